@@ -0,0 +1,147 @@
+package com.github.zhkl0228.androidvpn;
+
+import android.content.pm.PackageManager;
+import android.net.VpnService;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Which apps use the tunnel, read from {@value #FILE_NAME} next to {@code vpn_config.txt}. The first
+ * rule line picks the mode, every other line is a package name:
+ * <pre>
+ * # these apps bypass the tunnel
+ * exclude
+ * com.google.android.youtube
+ * com.android.vending
+ * </pre>
+ * With {@code include} only the listed apps use the tunnel. Without the file every app does.
+ */
+final class AppPolicy {
+
+    private static final String TAG = AndroidVPN.TAG;
+
+    static final String FILE_NAME = "vpn_apps.txt";
+
+    enum Mode {
+        /**
+         * Only the listed packages use the tunnel.
+         */
+        include,
+        /**
+         * The listed packages bypass the tunnel.
+         */
+        exclude
+    }
+
+    private static final Pattern PACKAGE_NAME = Pattern.compile("[A-Za-z][A-Za-z0-9_]*(\\.[A-Za-z][A-Za-z0-9_]*)+");
+
+    final Mode mode;
+    final Set<String> packages;
+
+    AppPolicy(Mode mode, Set<String> packages) {
+        this.mode = mode;
+        this.packages = Collections.unmodifiableSet(new LinkedHashSet<>(packages));
+    }
+
+    /**
+     * Adds the policy to {@code builder}, packages that are not installed are skipped.
+     *
+     * @param ownPackage tunnelled alone when none of the included packages is installed, so that the
+     *                   include list never falls back to routing every app.
+     * @return number of packages applied.
+     */
+    int apply(VpnService.Builder builder, String ownPackage) {
+        int applied = 0;
+        for (String packageName : packages) {
+            try {
+                if (mode == Mode.include) {
+                    builder.addAllowedApplication(packageName);
+                } else {
+                    builder.addDisallowedApplication(packageName);
+                }
+                applied++;
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.d(TAG, "app policy skips missing package: " + packageName);
+            }
+        }
+        if (mode == Mode.include && applied == 0) {
+            Log.w(TAG, "none of the included apps is installed, only " + ownPackage + " uses the tunnel");
+            try {
+                builder.addAllowedApplication(ownPackage);
+            } catch (PackageManager.NameNotFoundException e) {
+                throw new IllegalStateException(ownPackage, e);
+            }
+        }
+        return applied;
+    }
+
+    static AppPolicy parse(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        Mode mode = null;
+        Set<String> packages = new LinkedHashSet<>();
+        String line;
+        int number = 0;
+        while ((line = lines.readLine()) != null) {
+            number++;
+            int comment = line.indexOf('#');
+            if (comment != -1) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (mode == null) {
+                try {
+                    mode = Mode.valueOf(line);
+                    continue;
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(FILE_NAME + ":" + number + ": expected include or exclude, line=" + line);
+                }
+            }
+            if (!PACKAGE_NAME.matcher(line).matches()) {
+                throw new IllegalArgumentException(FILE_NAME + ":" + number + ": package name expected, line=" + line);
+            }
+            packages.add(line);
+        }
+        if (mode == null) {
+            throw new IllegalArgumentException(FILE_NAME + ": expected include or exclude");
+        }
+        return new AppPolicy(mode, packages);
+    }
+
+    /**
+     * @return null if there is no policy file.
+     */
+    static AppPolicy load(File file) throws IOException {
+        if (file == null || !file.canRead()) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return parse(reader);
+        }
+    }
+
+    static FileCache<AppPolicy> newCache() {
+        return new FileCache<>("AppPolicy", AppPolicy::load);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "AppPolicy{" + mode + " " + packages.size() + " packages}";
+    }
+}
@@ -0,0 +1,149 @@
+package com.github.zhkl0228.androidvpn;
+
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers the server's discovery queries with the packages owning a flow. It has no socket of its own: the
+ * reply goes back over whichever socket the query arrived on, a discovery server's or the udp transport's
+ * tunnel socket, see {@link #datagramHandler(DatagramSocket)}.
+ */
+final class ApplicationDiscovery {
+
+    private static final String TAG = AndroidVPN.TAG;
+
+    /**
+     * The single flow query older servers send, {@code [u8 type][u8 protocol][utf saddr][u16 sport][utf daddr][u16 dport]}.
+     */
+    static final int TYPE_SINGLE_QUERY = 0x1;
+
+    private final FlowOwnerTracker.OwnerResolver resolver;
+    private final PackageCache packageCache;
+    private final Executor executor;
+    private final TunnelMetrics metrics;
+
+    /**
+     * @param executor runs the owner lookups, which are binder calls that may block.
+     */
+    ApplicationDiscovery(FlowOwnerTracker.OwnerResolver resolver, PackageCache packageCache, Executor executor, TunnelMetrics metrics) {
+        this.resolver = resolver;
+        this.packageCache = packageCache;
+        this.executor = executor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * For queries arriving on the tunnel socket of the udp transport, among its own datagrams.
+     */
+    DatagramTunnel.DatagramHandler datagramHandler(DatagramSocket socket) {
+        return packet -> {
+            try {
+                handle(socket, packet);
+            } catch (IllegalStateException | IOException e) {
+                Log.w(TAG, "discover failed", e);
+            }
+        };
+    }
+
+    /**
+     * Parses one discovery query and queues its lookups, the reply goes back over {@code udp} to the sender
+     * of {@code packet} once they are done. The packet buffer may be reused as soon as this returns.
+     */
+    void handle(DatagramSocket udp, DatagramPacket packet) throws IOException {
+        SocketAddress replyTo = packet.getSocketAddress();
+        int type = packet.getLength() == 0 ? -1 : packet.getData()[packet.getOffset()] & 0xff;
+        metrics.discoveryQueries.increment();
+        if (type == DiscoveryBatch.TYPE_QUERY) {
+            List<DiscoveryBatch.Flow> flows = DiscoveryBatch.parseQuery(packet.getData(), packet.getOffset(), packet.getLength());
+            metrics.discoveryFlows.add(flows.size());
+            lookupBatch(udp, replyTo, flows);
+            return;
+        }
+        DataInput dataInput = new DataInputStream(new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+        type = dataInput.readUnsignedByte();
+        if (type != TYPE_SINGLE_QUERY) {
+            throw new IllegalStateException("type=" + type);
+        }
+        int protocol = dataInput.readUnsignedByte();
+        String saddr = dataInput.readUTF();
+        int sport = dataInput.readUnsignedShort();
+        String daddr = dataInput.readUTF();
+        int dport = dataInput.readUnsignedShort();
+        if (protocol != PacketHeaders.IPPROTO_TCP && protocol != PacketHeaders.IPPROTO_UDP) {
+            return;
+        }
+        InetSocketAddress local = new InetSocketAddress(saddr, sport);
+        InetSocketAddress remote = new InetSocketAddress(daddr, dport);
+        metrics.discoveryFlows.increment();
+        int hash = DiscoveryBatch.id(protocol, saddr, sport, daddr, dport);
+        executor.execute(() -> {
+            try {
+                PackageCache.Entry entry = lookup(protocol, local, remote);
+                if (!entry.packages.isEmpty()) {
+                    byte[] data = DiscoveryBatch.encodeSingleReply(hash, entry.encoded);
+                    udp.send(new DatagramPacket(data, data.length, replyTo));
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "discover failed " + local + " => " + remote, e);
+            }
+        });
+    }
+
+    /**
+     * Looks all flows up concurrently, whichever lookup finishes last sends the replies.
+     */
+    private void lookupBatch(DatagramSocket udp, SocketAddress replyTo, List<DiscoveryBatch.Flow> flows) {
+        int count = flows.size();
+        if (count == 0) {
+            return;
+        }
+        byte[][] encodedPackages = new byte[count][];
+        AtomicInteger remaining = new AtomicInteger(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            DiscoveryBatch.Flow flow = flows.get(i);
+            executor.execute(() -> {
+                PackageCache.Entry entry = PackageCache.EMPTY;
+                try {
+                    entry = lookup(flow.protocol, flow.local, flow.remote);
+                } catch (Exception e) {
+                    Log.w(TAG, "discover failed " + flow.local + " => " + flow.remote, e);
+                }
+                encodedPackages[index] = entry.encoded;
+                if (remaining.decrementAndGet() == 0) {
+                    try {
+                        for (byte[] data : DiscoveryBatch.encodeReplies(flows, encodedPackages, DiscoveryBatch.MAX_REPLY_SIZE)) {
+                            udp.send(new DatagramPacket(data, data.length, replyTo));
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, "discover reply failed", e);
+                    }
+                }
+            });
+        }
+    }
+
+    private PackageCache.Entry lookup(int protocol, InetSocketAddress local, InetSocketAddress remote) throws PackageManager.NameNotFoundException {
+        if (protocol != PacketHeaders.IPPROTO_TCP && protocol != PacketHeaders.IPPROTO_UDP) {
+            return PackageCache.EMPTY;
+        }
+        long start = System.nanoTime();
+        int uid = resolver.ownerUid(protocol, local, remote);
+        PackageCache.Entry entry = packageCache.get(uid);
+        metrics.discoveryLookupMicros.record((System.nanoTime() - start) / 1000);
+        Log.d(TAG, "allowed protocol=" + protocol + ", uid=" + uid + ", packages=" + entry.packages + " " + local + " => " + remote);
+        return entry;
+    }
+}
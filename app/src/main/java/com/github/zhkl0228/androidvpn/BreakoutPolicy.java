@@ -0,0 +1,303 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Which destinations leave the device directly instead of through the tunnel, read from {@value #FILE_NAME}
+ * next to {@link TunnelOptions#FILE_NAME}. One rule per line, {@code #} starts a comment:
+ * <pre>
+ * # action protocol prefix [ports]
+ * direct udp 203.0.113.0/24 443
+ * direct udp 0.0.0.0/0 3478-3481,19302
+ * direct any 17.0.0.0/8
+ * tunnel any 17.1.0.0/16
+ * </pre>
+ * The longest prefix with a rule for the protocol and port wins, within one prefix the first such rule.
+ * Everything unmatched uses the tunnel. Rules compile into a binary trie over the destination address,
+ * a lookup visits at most 33 nodes and allocates nothing.
+ * <p>
+ * {@link UdpBreakout} forwards matched UDP flows itself. Other protocols leave directly only where the
+ * kernel can do it, see {@link #addRouteExclusions(IPUtil.RangeSet)}.
+ */
+final class BreakoutPolicy {
+
+    static final String FILE_NAME = "vpn_breakout.txt";
+
+    static final int PROTOCOL_ANY = 0;
+
+    static final class Rule {
+        final boolean direct;
+        final int protocol;
+        final int address;
+        final int prefix;
+        final int fromPort;
+        final int toPort;
+
+        Rule(boolean direct, int protocol, int address, int prefix, int fromPort, int toPort) {
+            if (prefix < 0 || prefix > 32) {
+                throw new IllegalArgumentException("prefix=" + prefix);
+            }
+            if (fromPort < 0 || toPort > 0xffff || fromPort > toPort) {
+                throw new IllegalArgumentException("ports=" + fromPort + "-" + toPort);
+            }
+            this.direct = direct;
+            this.protocol = protocol;
+            this.address = prefix == 0 ? 0 : address & (-1 << (32 - prefix));
+            this.prefix = prefix;
+            this.fromPort = fromPort;
+            this.toPort = toPort;
+        }
+
+        boolean matches(int protocol, int port) {
+            return (this.protocol == PROTOCOL_ANY || this.protocol == protocol) && port >= fromPort && port <= toPort;
+        }
+
+        /**
+         * @return true if every packet to the prefix matches, so the kernel may route it.
+         */
+        boolean wholePrefix() {
+            return protocol == PROTOCOL_ANY && fromPort == 0 && toPort == 0xffff;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return (direct ? "direct " : "tunnel ") + protocolName(protocol) + " " + IPUtil.toString(address) + "/" + prefix +
+                    (fromPort == 0 && toPort == 0xffff ? "" : fromPort == toPort ? " " + fromPort : " " + fromPort + "-" + toPort);
+        }
+    }
+
+    private final List<Rule> rules;
+    /**
+     * Child node indexes, {@code node * 2 + bit}. The root is node 0, so 0 also means no child.
+     */
+    private int[] children;
+    /**
+     * Index into {@link #rules} of the first rule of each node, -1 for none. The rules of a node are adjacent.
+     */
+    private int[] firstRule;
+    private int[] ruleCount;
+    private int nodes;
+
+    BreakoutPolicy(List<Rule> rules) {
+        List<Rule> sorted = new ArrayList<>(rules);
+        // stable, so rules of one prefix keep their order
+        Collections.sort(sorted, (r1, r2) -> r1.prefix != r2.prefix ? Integer.compare(r1.prefix, r2.prefix) : Integer.compareUnsigned(r1.address, r2.address));
+        this.rules = Collections.unmodifiableList(sorted);
+        this.children = new int[64];
+        this.firstRule = new int[32];
+        this.ruleCount = new int[32];
+        this.nodes = 1;
+        firstRule[0] = -1;
+        for (int i = 0; i < sorted.size(); i++) {
+            int node = insert(sorted.get(i));
+            if (firstRule[node] == -1) {
+                firstRule[node] = i;
+            }
+            ruleCount[node]++;
+        }
+    }
+
+    private int insert(Rule rule) {
+        int node = 0;
+        for (int depth = 0; depth < rule.prefix; depth++) {
+            int slot = node * 2 + ((rule.address >>> (31 - depth)) & 1);
+            if (children[slot] == 0) {
+                if (nodes == firstRule.length) {
+                    children = Arrays.copyOf(children, nodes * 4);
+                    firstRule = Arrays.copyOf(firstRule, nodes * 2);
+                    ruleCount = Arrays.copyOf(ruleCount, nodes * 2);
+                }
+                firstRule[nodes] = -1;
+                children[slot] = nodes++;
+            }
+            node = children[slot];
+        }
+        return node;
+    }
+
+    /**
+     * @param address destination IPv4 address
+     * @param port destination port, 0 for protocols without ports
+     */
+    boolean isDirect(int protocol, int address, int port) {
+        boolean direct = false;
+        int node = 0;
+        for (int depth = 0; ; depth++) {
+            int first = firstRule[node];
+            if (first != -1) {
+                for (int i = first, end = first + ruleCount[node]; i < end; i++) {
+                    Rule rule = rules.get(i);
+                    if (rule.matches(protocol, port)) {
+                        direct = rule.direct;
+                        break;
+                    }
+                }
+            }
+            if (depth == 32) {
+                return direct;
+            }
+            node = children[node * 2 + ((address >>> (31 - depth)) & 1)];
+            if (node == 0) {
+                return direct;
+            }
+        }
+    }
+
+    /**
+     * @return true if some rule sends UDP directly, i.e. {@link UdpBreakout} has work to do.
+     */
+    boolean hasDirectUdp() {
+        for (Rule rule : rules) {
+            if (rule.direct && (rule.protocol == PacketHeaders.IPPROTO_UDP || rule.protocol == PROTOCOL_ANY)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the addresses the kernel may route around the tunnel: prefixes whose first rule sends every
+     * protocol and port directly, minus any more specific prefix with rules of its own. Those stay on the tun,
+     * where {@link UdpBreakout} still applies the policy to UDP.
+     */
+    void addRouteExclusions(IPUtil.RangeSet exclusions) {
+        IPUtil.RangeSet holes = new IPUtil.RangeSet();
+        // rules are sorted by prefix length, so more specific prefixes override
+        for (int i = 0; i < rules.size(); i++) {
+            Rule rule = rules.get(i);
+            if (i > 0 && rules.get(i - 1).prefix == rule.prefix && rules.get(i - 1).address == rule.address) {
+                continue;
+            }
+            if (rule.direct && rule.wholePrefix()) {
+                holes.addCIDR(rule.address, rule.prefix);
+            } else {
+                holes.complement().addCIDR(rule.address, rule.prefix).complement();
+            }
+        }
+        holes.forEachCIDR(exclusions::addCIDR);
+    }
+
+    List<Rule> getRules() {
+        return rules;
+    }
+
+    static BreakoutPolicy parse(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        List<Rule> rules = new ArrayList<>();
+        String line;
+        int number = 0;
+        while ((line = lines.readLine()) != null) {
+            number++;
+            int comment = line.indexOf('#');
+            if (comment != -1) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                parseRule(line, rules);
+            } catch (IllegalArgumentException | UnknownHostException e) {
+                throw new IllegalArgumentException(FILE_NAME + ":" + number + ": " + e.getMessage() + ", line=" + line, e);
+            }
+        }
+        return new BreakoutPolicy(rules);
+    }
+
+    private static void parseRule(String line, List<Rule> rules) throws UnknownHostException {
+        String[] fields = line.split("\\s+");
+        if (fields.length < 3 || fields.length > 4) {
+            throw new IllegalArgumentException("expected: action protocol prefix [ports]");
+        }
+        boolean direct;
+        switch (fields[0]) {
+            case "direct":
+                direct = true;
+                break;
+            case "tunnel":
+                direct = false;
+                break;
+            default:
+                throw new IllegalArgumentException("action=" + fields[0]);
+        }
+        int protocol = parseProtocol(fields[1]);
+        int slash = fields[2].indexOf('/');
+        String host = slash == -1 ? fields[2] : fields[2].substring(0, slash);
+        if (!host.matches("[0-9.]+")) {
+            throw new IllegalArgumentException("IPv4 prefix expected: " + fields[2]);
+        }
+        long address = IPUtil.toLong(InetAddress.getByName(host));
+        int prefix = slash == -1 ? 32 : Integer.parseInt(fields[2].substring(slash + 1));
+        if (fields.length == 3) {
+            rules.add(new Rule(direct, protocol, (int) address, prefix, 0, 0xffff));
+            return;
+        }
+        for (String ports : fields[3].split(",")) {
+            int dash = ports.indexOf('-');
+            int fromPort = Integer.parseInt(dash == -1 ? ports : ports.substring(0, dash));
+            int toPort = dash == -1 ? fromPort : Integer.parseInt(ports.substring(dash + 1));
+            rules.add(new Rule(direct, protocol, (int) address, prefix, fromPort, toPort));
+        }
+    }
+
+    private static int parseProtocol(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "any":
+                return PROTOCOL_ANY;
+            case "tcp":
+                return PacketHeaders.IPPROTO_TCP;
+            case "udp":
+                return PacketHeaders.IPPROTO_UDP;
+            default:
+                throw new IllegalArgumentException("protocol=" + name);
+        }
+    }
+
+    private static String protocolName(int protocol) {
+        switch (protocol) {
+            case PROTOCOL_ANY:
+                return "any";
+            case PacketHeaders.IPPROTO_TCP:
+                return "tcp";
+            case PacketHeaders.IPPROTO_UDP:
+                return "udp";
+            default:
+                return String.valueOf(protocol);
+        }
+    }
+
+    /**
+     * @return null if there is no policy file.
+     */
+    static BreakoutPolicy load(File file) throws IOException {
+        if (file == null || !file.canRead()) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return parse(reader);
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "BreakoutPolicy{rules=" + rules.size() + ", nodes=" + nodes + '}';
+    }
+}
@@ -0,0 +1,32 @@
+package com.github.zhkl0228.androidvpn;
+
+/**
+ * In-band messages between the tunnel ends. A control frame sets {@link #FLAG_CONTROL} in its u16 header and
+ * carries {@code [u8 type][body]}, masked like any other payload but never compressed. Only a peer that
+ * announced support in the handshake gets them, and packet frames then stay below {@link #LENGTH_MASK}.
+ */
+final class ControlFrame {
+
+    static final int FLAG_CONTROL = 0x4000;
+    static final int LENGTH_MASK = 0x3fff;
+
+    /**
+     * Owner of a new flow, sent on its connection once it is known, possibly after the first packets of the flow:
+     * {@code [u8 protocol][u8 address length][local address][u16 local port][remote address][u16 remote port][i32 uid][u8 packages][package...]}.
+     */
+    static final int TYPE_FLOW_OWNER = 0x1;
+
+    /**
+     * Keepalive, {@code [u32 sequence][u64 sent nanos]}. Only the client pings, the server answers {@link #TYPE_PONG}
+     * with the same body right away, see {@link TunnelHealth}.
+     */
+    static final int TYPE_PING = 0x2;
+    static final int TYPE_PONG = 0x3;
+    static final int PING_BODY = 12;
+
+    static final int MAX_BODY = LENGTH_MASK - 1;
+
+    private ControlFrame() {
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A connected {@link DatagramChannel} as tun, every datagram is one packet as on a tun fd. Feeds the
+ * tunnel through a real descriptor on a plain JVM, whoever holds the other end of the datagram path
+ * plays the apps.
+ * <p>
+ * A downlink packet the socket buffer has no room for is dropped, like a full tun queue drops it.
+ */
+final class DatagramTunDevice implements TunDevice {
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final AtomicLong droppedPackets = new AtomicLong();
+
+    DatagramTunDevice(DatagramChannel channel) throws IOException {
+        if (!channel.isConnected()) {
+            throw new IllegalArgumentException("channel must be connected");
+        }
+        channel.configureBlocking(false);
+        this.channel = channel;
+        this.selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
+    @Override
+    public boolean awaitReadable(int timeoutMillis) throws IOException {
+        try {
+            int selected = selector.select(Math.max(1, timeoutMillis));
+            selector.selectedKeys().clear();
+            return selected > 0;
+        } catch (ClosedSelectorException e) {
+            throw new EOFException("device closed");
+        }
+    }
+
+    @Override
+    public boolean isReadable() throws IOException {
+        try {
+            int selected = selector.selectNow();
+            selector.selectedKeys().clear();
+            return selected > 0;
+        } catch (ClosedSelectorException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer packet) throws IOException {
+        try {
+            return channel.read(packet);
+        } catch (ClosedChannelException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer packet) throws IOException {
+        if (channel.write(packet) == 0) {
+            droppedPackets.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            selector.close();
+        } finally {
+            channel.close();
+        }
+    }
+}
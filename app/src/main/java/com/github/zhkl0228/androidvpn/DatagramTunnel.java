@@ -0,0 +1,230 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Carries every tun packet as one datagram {@code [u8 TYPE_DATA][payload ^ magic]} over a connected,
+ * protected {@link DatagramSocket}, so a lost packet costs only itself instead of stalling a TCP stream.
+ * <p>
+ * A session starts with {@link #TYPE_HELLO} {@code [u64 session][handshake]} retried until the server
+ * answers {@link #TYPE_HELLO_ACK} {@code [u64 session]}. {@link #TYPE_PING}/{@link #TYPE_PONG}
+ * {@code [u64 session][u64 nanos]} keep NAT mappings alive while idle and let the session id follow
+ * a rebinding. Datagrams of any other type, e.g. discovery queries, go to the {@link DatagramHandler}.
+ */
+class DatagramTunnel {
+
+    static final int TYPE_HELLO = 0x10;
+    static final int TYPE_HELLO_ACK = 0x11;
+    static final int TYPE_DATA = 0x12;
+    static final int TYPE_PING = 0x13;
+    static final int TYPE_PONG = 0x14;
+
+    /**
+     * The type byte in front of every tun packet.
+     */
+    static final int HEADER_SIZE = 1;
+    /**
+     * Largest tun packet whose datagram fits a 1500 byte path without IP fragmentation, behind an IPv6 and
+     * a UDP header. One lost fragment would lose the whole packet.
+     */
+    static final int PATH_MTU = 1500 - 40 - 8 - HEADER_SIZE;
+
+    interface DatagramHandler {
+        void onDatagram(DatagramPacket packet) throws IOException;
+    }
+
+    private final DatagramSocket socket;
+    private final byte magic;
+    private final int mtu;
+    private final long session;
+    private final int keepaliveMillis;
+
+    private final byte[] sendBuffer;
+    private final ByteBuffer sendView;
+    private final DatagramPacket sendPacket;
+    private byte[] lastPacket;
+    private ByteBuffer lastPacketView;
+
+    private final byte[] controlBuffer = new byte[17];
+    private final DatagramPacket controlPacket = new DatagramPacket(controlBuffer, controlBuffer.length);
+
+    private volatile long lastSendNanos;
+    private volatile long lastReceiveNanos;
+    /**
+     * Round trips of our pings, the keepalive schedule and silence check stay with {@link #receive}.
+     */
+    private final TunnelHealth health;
+
+    /**
+     * @param socket connected and protected.
+     */
+    DatagramTunnel(DatagramSocket socket, byte magic, int mtu, long session, int keepaliveMillis) {
+        if (!socket.isConnected()) {
+            throw new IllegalArgumentException("socket not connected");
+        }
+        this.socket = socket;
+        this.magic = magic;
+        this.mtu = mtu;
+        this.session = session;
+        this.keepaliveMillis = keepaliveMillis;
+        this.health = new TunnelHealth(Math.max(1, keepaliveMillis), System.nanoTime());
+        this.sendBuffer = new byte[HEADER_SIZE + mtu];
+        this.sendView = ByteBuffer.wrap(sendBuffer).order(ByteOrder.nativeOrder());
+        this.sendPacket = new DatagramPacket(sendBuffer, sendBuffer.length);
+        sendBuffer[0] = TYPE_DATA;
+    }
+
+    long getSession() {
+        return session;
+    }
+
+    /**
+     * Sends HELLO with {@code handshake} until it is acknowledged, doubling the wait after every attempt.
+     */
+    void handshake(byte[] handshake, int attempts, int timeoutMillis) throws IOException {
+        byte[] hello = new byte[9 + handshake.length];
+        hello[0] = TYPE_HELLO;
+        putLong(hello, 1, session);
+        System.arraycopy(handshake, 0, hello, 9, handshake.length);
+        byte[] buffer = new byte[16];
+        DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+        int soTimeout = socket.getSoTimeout();
+        try {
+            for (int attempt = 0; attempt < attempts; attempt++, timeoutMillis *= 2) {
+                socket.send(new DatagramPacket(hello, hello.length));
+                long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+                try {
+                    while (true) {
+                        long remaining = (deadline - System.nanoTime()) / 1000000L;
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        socket.setSoTimeout((int) remaining);
+                        reply.setLength(buffer.length);
+                        socket.receive(reply);
+                        if (reply.getLength() >= 9 && (buffer[0] & 0xff) == TYPE_HELLO_ACK && getLong(buffer, 1) == session) {
+                            lastReceiveNanos = lastSendNanos = System.nanoTime();
+                            return;
+                        }
+                    }
+                } catch (SocketTimeoutException ignored) {
+                }
+            }
+        } finally {
+            socket.setSoTimeout(soTimeout);
+        }
+        throw new IOException("handshake not acknowledged after " + attempts + " attempts");
+    }
+
+    /**
+     * Sends one tun packet, safe to call concurrently with {@link #receive}.
+     */
+    void send(byte[] packet, int offset, int length) throws IOException {
+        if (length > mtu) {
+            throw new IOException("length=" + length + ", mtu=" + mtu);
+        }
+        if (packet != lastPacket) {
+            lastPacket = packet;
+            lastPacketView = ByteBuffer.wrap(packet).order(ByteOrder.nativeOrder());
+        }
+        MaskCodec.mask(lastPacketView, offset, sendView, HEADER_SIZE, length, magic);
+        sendPacket.setLength(HEADER_SIZE + length);
+        socket.send(sendPacket);
+        lastSendNanos = System.nanoTime();
+    }
+
+    /**
+     * Receives until the socket is closed or the peer has been silent for four keepalive intervals.
+     * Pings the server at most once per interval while either direction is idle.
+     */
+    void receive(FrameReader.PacketHandler handler, DatagramHandler datagramHandler) throws IOException {
+        byte[] buffer = new byte[Math.max(HEADER_SIZE + mtu, 2048)];
+        ByteBuffer view = ByteBuffer.wrap(buffer).order(ByteOrder.nativeOrder());
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.setSoTimeout(Math.max(1, keepaliveMillis / 2));
+        long keepaliveNanos = keepaliveMillis * 1000000L;
+        long lastPingNanos = System.nanoTime();
+        while (!socket.isClosed()) {
+            long now = System.nanoTime();
+            if (now - lastReceiveNanos > 4 * keepaliveNanos) {
+                throw new IOException("vpn server silent for " + (now - lastReceiveNanos) / 1000000L + "ms");
+            }
+            if (now - lastPingNanos >= keepaliveNanos && now - Math.min(lastSendNanos, lastReceiveNanos) >= keepaliveNanos) {
+                sendControl(TYPE_PING, now);
+                lastPingNanos = now;
+            }
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            int length = packet.getLength();
+            if (length < 1) {
+                continue;
+            }
+            lastReceiveNanos = System.nanoTime();
+            health.onReceived(lastReceiveNanos);
+            switch (buffer[0] & 0xff) {
+                case TYPE_DATA:
+                    if (length > 1) {
+                        MaskCodec.mask(view, HEADER_SIZE, length - HEADER_SIZE, magic);
+                        handler.onPacket(buffer, HEADER_SIZE, length - HEADER_SIZE);
+                    }
+                    break;
+                case TYPE_PING:
+                    if (length >= 17 && getLong(buffer, 1) == session) {
+                        sendControl(TYPE_PONG, getLong(buffer, 9));
+                    }
+                    break;
+                case TYPE_PONG:
+                    if (length >= 17 && getLong(buffer, 1) == session) {
+                        health.onRttSample(lastReceiveNanos - getLong(buffer, 9));
+                    }
+                    break;
+                case TYPE_HELLO_ACK:
+                    break;
+                default:
+                    if (datagramHandler != null) {
+                        datagramHandler.onDatagram(packet);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void sendControl(int type, long nanos) throws IOException {
+        synchronized (controlPacket) {
+            controlBuffer[0] = (byte) type;
+            putLong(controlBuffer, 1, session);
+            putLong(controlBuffer, 9, nanos);
+            socket.send(controlPacket);
+        }
+        lastSendNanos = System.nanoTime();
+    }
+
+    static void putLong(byte[] data, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static long getLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    TunnelHealth getHealth() {
+        return health;
+    }
+
+}
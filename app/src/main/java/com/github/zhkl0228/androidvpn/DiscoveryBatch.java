@@ -0,0 +1,137 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Batched connection owner lookups, so a burst of new flows costs one datagram each way:
+ * <pre>
+ * query: [u8 0x3][u8 count] count * ([u8 protocol][u8 address length, 4 or 16][local address][u16 local port][remote address][u16 remote port])
+ * reply: [u8 0x4][u8 count] count * ([i32 id][u8 packages][package...])
+ * </pre>
+ * The id is the one single queries are answered with, computed over {@link InetAddress#getHostAddress()}.
+ * Every queried flow is answered, with zero packages when its owner is unknown, and a long answer is split
+ * over several reply datagrams.
+ */
+final class DiscoveryBatch {
+
+    /**
+     * Answer to a single {@code 0x1} query: {@code [u8 0x2][i32 id][u8 packages][package...]}.
+     */
+    static final int TYPE_SINGLE_REPLY = 0x2;
+    static final int TYPE_QUERY = 0x3;
+    static final int TYPE_REPLY = 0x4;
+
+    static final int MAX_FLOWS = 0xff;
+
+    /**
+     * Replies leave through a protected socket on the real network, keep them below a typical path mtu.
+     */
+    static final int MAX_REPLY_SIZE = 1400;
+
+    private static final int REPLY_HEADER = 2;
+
+    static final class Flow {
+        final int protocol;
+        final InetSocketAddress local;
+        final InetSocketAddress remote;
+        final int id;
+
+        Flow(int protocol, InetSocketAddress local, InetSocketAddress remote) {
+            this.protocol = protocol;
+            this.local = local;
+            this.remote = remote;
+            this.id = id(protocol, local.getAddress().getHostAddress(), local.getPort(), remote.getAddress().getHostAddress(), remote.getPort());
+        }
+    }
+
+    private DiscoveryBatch() {
+    }
+
+    static int id(int protocol, String saddr, int sport, String daddr, int dport) {
+        return Objects.hash(protocol, saddr, sport, daddr, dport);
+    }
+
+    /**
+     * @param offset start of the query, at its type byte.
+     */
+    static List<Flow> parseQuery(byte[] data, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        try {
+            int type = buffer.get() & 0xff;
+            if (type != TYPE_QUERY) {
+                throw new IOException("type=" + type);
+            }
+            int count = buffer.get() & 0xff;
+            List<Flow> flows = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int protocol = buffer.get() & 0xff;
+                int addressLength = buffer.get() & 0xff;
+                if (addressLength != 4 && addressLength != 16) {
+                    throw new IOException("addressLength=" + addressLength);
+                }
+                InetSocketAddress local = readSocketAddress(buffer, addressLength);
+                InetSocketAddress remote = readSocketAddress(buffer, addressLength);
+                flows.add(new Flow(protocol, local, remote));
+            }
+            return flows;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated query length=" + length, e);
+        }
+    }
+
+    private static InetSocketAddress readSocketAddress(ByteBuffer buffer, int addressLength) throws IOException {
+        byte[] address = new byte[addressLength];
+        buffer.get(address);
+        int port = buffer.getShort() & 0xffff;
+        return new InetSocketAddress(InetAddress.getByAddress(address), port);
+    }
+
+    /**
+     * @param encodedPackages per flow {@code [u8 packages][package...]}, see {@link PackageCache.Entry#encoded}.
+     * @return reply datagrams, none larger than {@code maxReplySize} unless a single answer is.
+     */
+    static List<byte[]> encodeReplies(List<Flow> flows, byte[][] encodedPackages, int maxReplySize) {
+        List<byte[]> replies = new ArrayList<>();
+        int start = 0;
+        while (start < flows.size()) {
+            int size = REPLY_HEADER;
+            int end = start;
+            while (end < flows.size() && (end == start || size + 4 + encodedPackages[end].length <= maxReplySize)) {
+                size += 4 + encodedPackages[end].length;
+                end++;
+            }
+            ByteBuffer reply = ByteBuffer.allocate(size);
+            reply.put((byte) TYPE_REPLY);
+            reply.put((byte) (end - start));
+            for (int i = start; i < end; i++) {
+                reply.putInt(flows.get(i).id);
+                reply.put(encodedPackages[i]);
+            }
+            replies.add(reply.array());
+            start = end;
+        }
+        return replies;
+    }
+
+    /**
+     * @param encodedPackages {@code [u8 packages][package...]}, see {@link PackageCache.Entry#encoded}.
+     */
+    static byte[] encodeSingleReply(int id, byte[] encodedPackages) {
+        byte[] data = new byte[5 + encodedPackages.length];
+        data[0] = TYPE_SINGLE_REPLY;
+        data[1] = (byte) (id >>> 24);
+        data[2] = (byte) (id >>> 16);
+        data[3] = (byte) (id >>> 8);
+        data[4] = (byte) id;
+        System.arraycopy(encodedPackages, 0, data, 5, encodedPackages.length);
+        return data;
+    }
+
+}
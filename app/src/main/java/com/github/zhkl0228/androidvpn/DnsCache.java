@@ -0,0 +1,169 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded LRU of DNS responses keyed by {@link DnsMessage#questionKey(byte[], int) question}, each kept
+ * for its TTL and served with the TTLs aged by the time it spent here. Shared by every app, and kept by the
+ * service across reconnects so a new tunnel starts warm.
+ * <p>
+ * Thread safe, lookups come from the uplink thread and stores from the thread reading upstream replies.
+ */
+final class DnsCache {
+
+    static final long MAX_TTL_SECONDS = 86400;
+    /**
+     * Upper bound for caching NXDOMAIN and NODATA, whatever the SOA says.
+     */
+    static final long MAX_NEGATIVE_TTL_SECONDS = 300;
+    /**
+     * Hits an entry needs before it is worth refreshing ahead of its expiry.
+     */
+    static final int PREFETCH_MIN_HITS = 3;
+    /**
+     * An entry is refreshed once this share of its TTL or less is left.
+     */
+    static final int PREFETCH_REMAINING_PERCENT = 10;
+
+    static final class Entry {
+        final byte[] response;
+        final int questionEnd;
+        final int[] ttlOffsets;
+        final long storedMillis;
+        final long ttlMillis;
+        private int hits;
+        private boolean prefetching;
+
+        Entry(byte[] response, int questionEnd, int[] ttlOffsets, long storedMillis, long ttlMillis) {
+            this.response = response;
+            this.questionEnd = questionEnd;
+            this.ttlOffsets = ttlOffsets;
+            this.storedMillis = storedMillis;
+            this.ttlMillis = ttlMillis;
+        }
+
+        boolean isExpired(long now) {
+            return now - storedMillis >= ttlMillis;
+        }
+
+        /**
+         * Writes the response as the answer to {@code query}: its id, its question with the client's letter
+         * case, and every TTL less the whole seconds the entry is old.
+         *
+         * @return the answer's length in {@code reply}.
+         */
+        int answer(byte[] query, int queryQuestionEnd, byte[] reply, long now) {
+            int shift = queryQuestionEnd - questionEnd;
+            int length = response.length + shift;
+            System.arraycopy(response, 0, reply, 0, DnsMessage.HEADER_SIZE);
+            System.arraycopy(query, 0, reply, 0, 2);
+            System.arraycopy(query, DnsMessage.HEADER_SIZE, reply, DnsMessage.HEADER_SIZE, queryQuestionEnd - DnsMessage.HEADER_SIZE);
+            System.arraycopy(response, questionEnd, reply, queryQuestionEnd, response.length - questionEnd);
+            long age = (now - storedMillis) / 1000;
+            for (int offset : ttlOffsets) {
+                long ttl = DnsMessage.readInt(response, offset);
+                DnsMessage.writeInt(reply, offset + shift, Math.max(0, ttl - age));
+            }
+            return length;
+        }
+    }
+
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+    private long hits;
+    private long misses;
+    private long expired;
+    private long evicted;
+    private long prefetches;
+
+    DnsCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > DnsCache.this.maxEntries) {
+                    evicted++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the live entry for {@code key}, null on a miss.
+     */
+    synchronized Entry get(String key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.isExpired(now)) {
+            entries.remove(key);
+            expired++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.hits++;
+        return entry;
+    }
+
+    /**
+     * Caches a copy of {@code response} if it is complete, positive or negative, and has a TTL.
+     *
+     * @return the new entry, null if the response is not cacheable.
+     */
+    Entry put(String key, byte[] response, int length, long now) {
+        DnsMessage.Ttls ttls = DnsMessage.ttls(response, length);
+        if (ttls == null) {
+            return null;
+        }
+        int rcode = DnsMessage.rcode(response);
+        boolean negative = rcode == DnsMessage.RCODE_NXDOMAIN || DnsMessage.readShort(response, 6) == 0;
+        long seconds = Math.min(ttls.cacheSeconds, negative ? MAX_NEGATIVE_TTL_SECONDS : MAX_TTL_SECONDS);
+        byte[] copy = new byte[length];
+        System.arraycopy(response, 0, copy, 0, length);
+        Entry entry = new Entry(copy, DnsMessage.skipName(copy, DnsMessage.HEADER_SIZE, length) + 4, ttls.offsets, now, seconds * 1000);
+        synchronized (this) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Claims the refresh of a popular entry close to its expiry, only the first caller gets true.
+     */
+    synchronized boolean startPrefetch(Entry entry, long now) {
+        if (entry.prefetching || entry.hits < PREFETCH_MIN_HITS ||
+                (entry.ttlMillis - (now - entry.storedMillis)) * 100 > entry.ttlMillis * PREFETCH_REMAINING_PERCENT) {
+            return false;
+        }
+        entry.prefetching = true;
+        prefetches++;
+        return true;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "DnsCache{entries=%d/%d, hits=%d, misses=%d, expired=%d, evicted=%d, prefetches=%d}",
+                entries.size(), maxEntries, hits, misses, expired, evicted, prefetches);
+    }
+}
@@ -0,0 +1,222 @@
+package com.github.zhkl0228.androidvpn;
+
+/**
+ * Just enough of RFC 1035 for {@link DnsStub}: the question of a query as a cache key, the TTLs of a
+ * response, and the EDNS payload size a client accepts. Every method checks bounds and returns -1 or null
+ * for a message it does not understand, which the stub then forwards untouched.
+ */
+final class DnsMessage {
+
+    static final int HEADER_SIZE = 12;
+    static final int MAX_UDP_PAYLOAD = 512;
+
+    static final int TYPE_SOA = 6;
+    static final int TYPE_OPT = 41;
+
+    static final int RCODE_NOERROR = 0;
+    static final int RCODE_NXDOMAIN = 3;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_TC = 0x0200;
+    static final int FLAG_RD = 0x0100;
+    private static final int FLAG_RA = 0x0080;
+    private static final int OPCODE_MASK = 0x7800;
+
+    private DnsMessage() {
+    }
+
+    static int readShort(byte[] message, int offset) {
+        return ((message[offset] & 0xff) << 8) | (message[offset + 1] & 0xff);
+    }
+
+    static void writeShort(byte[] message, int offset, int value) {
+        message[offset] = (byte) (value >>> 8);
+        message[offset + 1] = (byte) value;
+    }
+
+    static long readInt(byte[] message, int offset) {
+        return ((long) readShort(message, offset) << 16) | readShort(message, offset + 2);
+    }
+
+    static void writeInt(byte[] message, int offset, long value) {
+        writeShort(message, offset, (int) (value >>> 16));
+        writeShort(message, offset + 2, (int) value);
+    }
+
+    static int id(byte[] message) {
+        return readShort(message, 0);
+    }
+
+    static int flags(byte[] message) {
+        return readShort(message, 2);
+    }
+
+    static int rcode(byte[] message) {
+        return flags(message) & 0xf;
+    }
+
+    /**
+     * @return offset behind the name at {@code offset}, -1 if it runs past {@code length} or is malformed.
+     */
+    static int skipName(byte[] message, int offset, int length) {
+        int labels = 0;
+        while (offset < length) {
+            int label = message[offset] & 0xff;
+            if (label == 0) {
+                return offset + 1;
+            }
+            if ((label & 0xc0) == 0xc0) {
+                return offset + 2 <= length ? offset + 2 : -1;
+            }
+            if ((label & 0xc0) != 0 || ++labels > 127) {
+                return -1;
+            }
+            offset += 1 + label;
+        }
+        return -1;
+    }
+
+    /**
+     * @return offset behind the only question of a standard query, -1 for anything else.
+     */
+    static int questionEnd(byte[] message, int length) {
+        if (length < HEADER_SIZE || (flags(message) & (FLAG_QR | OPCODE_MASK)) != 0 || readShort(message, 4) != 1) {
+            return -1;
+        }
+        int end = skipName(message, HEADER_SIZE, length);
+        if (end == -1 || (message[end - 1] != 0) || end + 4 > length) {
+            // queries never compress their only name
+            return -1;
+        }
+        return end + 4;
+    }
+
+    /**
+     * Lower cased name, type and class of the question ending at {@code questionEnd}.
+     */
+    static String questionKey(byte[] message, int questionEnd) {
+        StringBuilder builder = new StringBuilder(questionEnd);
+        int offset = HEADER_SIZE;
+        int label;
+        while ((label = message[offset++] & 0xff) != 0) {
+            for (int i = 0; i < label; i++) {
+                char c = (char) (message[offset++] & 0xff);
+                builder.append(c >= 'A' && c <= 'Z' ? (char) (c + 32) : c);
+            }
+            builder.append('.');
+        }
+        builder.append(' ').append(readShort(message, offset)).append(' ').append(readShort(message, offset + 2));
+        return builder.toString();
+    }
+
+    /**
+     * @return UDP payload size the query's EDNS OPT record announces, {@link #MAX_UDP_PAYLOAD} without one.
+     */
+    static int udpPayloadSize(byte[] message, int questionEnd, int length) {
+        int records = readShort(message, 6) + readShort(message, 8) + readShort(message, 10);
+        int offset = questionEnd;
+        for (int i = 0; i < records; i++) {
+            offset = skipName(message, offset, length);
+            if (offset == -1 || offset + 10 > length) {
+                break;
+            }
+            if (readShort(message, offset) == TYPE_OPT) {
+                return Math.max(MAX_UDP_PAYLOAD, readShort(message, offset + 2));
+            }
+            offset += 10 + readShort(message, offset + 8);
+        }
+        return MAX_UDP_PAYLOAD;
+    }
+
+    /**
+     * Where the TTL of each resource record of a response sits, for {@link DnsCache} to age them.
+     */
+    static final class Ttls {
+        final int[] offsets;
+        /**
+         * Seconds the response may be cached, the smallest TTL of a positive answer or the negative TTL of
+         * the SOA record.
+         */
+        final long cacheSeconds;
+
+        Ttls(int[] offsets, long cacheSeconds) {
+            this.offsets = offsets;
+            this.cacheSeconds = cacheSeconds;
+        }
+    }
+
+    /**
+     * @return the TTLs of a complete NOERROR or NXDOMAIN response to a single question, null if it must not
+     * be cached.
+     */
+    static Ttls ttls(byte[] message, int length) {
+        if (length < HEADER_SIZE) {
+            return null;
+        }
+        int flags = flags(message);
+        int rcode = flags & 0xf;
+        if ((flags & FLAG_QR) == 0 || (flags & (FLAG_TC | OPCODE_MASK)) != 0 || readShort(message, 4) != 1 ||
+                (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN)) {
+            return null;
+        }
+        int answers = readShort(message, 6);
+        int authorities = readShort(message, 8);
+        int records = answers + authorities + readShort(message, 10);
+        int offset = skipName(message, HEADER_SIZE, length);
+        if (offset == -1 || offset + 4 > length) {
+            return null;
+        }
+        offset += 4;
+        int[] offsets = new int[records];
+        int count = 0;
+        long minTtl = Long.MAX_VALUE;
+        long negativeTtl = -1;
+        for (int i = 0; i < records; i++) {
+            offset = skipName(message, offset, length);
+            if (offset == -1 || offset + 10 > length) {
+                return null;
+            }
+            int type = readShort(message, offset);
+            long ttl = readInt(message, offset + 4);
+            int dataLength = readShort(message, offset + 8);
+            if (offset + 10 + dataLength > length) {
+                return null;
+            }
+            if (type != TYPE_OPT) {
+                offsets[count++] = offset + 4;
+                minTtl = Math.min(minTtl, ttl);
+                if (type == TYPE_SOA && i >= answers && i < answers + authorities && dataLength >= 20) {
+                    // RFC 2308: the smaller of the SOA TTL and its MINIMUM field
+                    negativeTtl = Math.min(ttl, readInt(message, offset + 10 + dataLength - 4));
+                }
+            }
+            offset += 10 + dataLength;
+        }
+        long cacheSeconds;
+        if (rcode == RCODE_NXDOMAIN || answers == 0) {
+            cacheSeconds = negativeTtl;
+        } else {
+            cacheSeconds = minTtl;
+        }
+        if (cacheSeconds <= 0) {
+            return null;
+        }
+        int[] trimmed = new int[count];
+        System.arraycopy(offsets, 0, trimmed, 0, count);
+        return new Ttls(trimmed, cacheSeconds);
+    }
+
+    /**
+     * An empty truncated response to the query, telling the client to retry over TCP.
+     *
+     * @return its length in {@code reply}.
+     */
+    static int truncated(byte[] query, int questionEnd, byte[] reply) {
+        System.arraycopy(query, 0, reply, 0, questionEnd);
+        writeShort(reply, 2, FLAG_QR | FLAG_TC | FLAG_RA | (flags(query) & FLAG_RD));
+        writeShort(reply, 6, 0);
+        writeShort(reply, 8, 0);
+        writeShort(reply, 10, 0);
+        return questionEnd;
+    }
+}
@@ -0,0 +1,462 @@
+package com.github.zhkl0228.androidvpn;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers the apps' DNS queries inside the tunnel: UDP/53 packets to one of the VPN's DNS servers are
+ * taken off the uplink and answered from the {@link DnsCache}. Misses go to the real server through one
+ * protected socket, and identical questions asked while one is in flight wait for that answer instead of
+ * going out again. With prefetch, popular entries are refreshed shortly before they expire, so their next
+ * hit does not wait for the server.
+ * <p>
+ * {@link #onUplinkPacket(ByteBuffer)} belongs to the uplink thread, {@link #run()} to the thread reading
+ * the server's replies, which also writes every answer to the tun, cache hits included, so the uplink
+ * never blocks on the tun. Queries it does not understand, and any query once too many are in flight or
+ * waiting for an answer, are left to the tunnel. A reply the tun does not take is dropped, the app asks
+ * again; once the stub's thread exits every query goes to the tunnel.
+ */
+final class DnsStub implements Runnable, Closeable {
+
+    private static final String TAG = AndroidVPN.TAG;
+
+    static final int DNS_PORT = 53;
+    static final long QUERY_TIMEOUT_MILLIS = 5000;
+    static final int MAX_PENDING = 512;
+
+    private static final int IPV4_HEADER = 20;
+    private static final int UDP_HEADER = 8;
+    private static final int MAX_DATAGRAM = 0xffff;
+
+    /**
+     * An app waiting for an answer.
+     */
+    private static final class Waiter {
+        final int address;
+        final int port;
+        /**
+         * The query up to the end of its question, all an answer copies.
+         */
+        final byte[] query;
+        final int questionEnd;
+        final int payloadSize;
+
+        Waiter(int address, int port, byte[] query, int questionEnd, int payloadSize) {
+            this.address = address;
+            this.port = port;
+            this.query = query;
+            this.questionEnd = questionEnd;
+            this.payloadSize = payloadSize;
+        }
+    }
+
+    /**
+     * A question sent upstream, answered to every waiter that asked it meanwhile.
+     */
+    private static final class Pending {
+        final String key;
+        final int id;
+        final int server;
+        final SocketAddress upstream;
+        final long sentMillis;
+        final List<Waiter> waiters = new ArrayList<>(1);
+        boolean done;
+
+        Pending(String key, int id, int server, SocketAddress upstream, long sentMillis) {
+            this.key = key;
+            this.id = id;
+            this.server = server;
+            this.upstream = upstream;
+            this.sentMillis = sentMillis;
+        }
+    }
+
+    /**
+     * A cache hit on its way to the stub's thread.
+     */
+    private static final class Hit {
+        final Waiter waiter;
+        final DnsCache.Entry entry;
+        final int server;
+        final long now;
+
+        Hit(Waiter waiter, DnsCache.Entry entry, int server, long now) {
+            this.waiter = waiter;
+            this.entry = entry;
+            this.server = server;
+            this.now = now;
+        }
+    }
+
+    private final DnsCache cache;
+    private final Map<Integer, InetSocketAddress> servers;
+    private final boolean prefetch;
+    private final WritableByteChannel tun;
+    private final int mtu;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Random random = new SecureRandom();
+    private final Map<String, Pending> pendingByKey = new ConcurrentHashMap<>();
+    private final Map<Integer, Pending> pendingById = new ConcurrentHashMap<>();
+    private final Queue<Hit> hits = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedHits = new AtomicInteger();
+    private volatile boolean closed;
+
+    private final byte[] uplinkQuery = new byte[MAX_DATAGRAM];
+    private final ByteBuffer downlink = ByteBuffer.allocate(MAX_DATAGRAM);
+    private final byte[] downlinkReply = new byte[MAX_DATAGRAM];
+    private final ByteBuffer downlinkPacket = ByteBuffer.allocateDirect(IPV4_HEADER + UDP_HEADER + MAX_DATAGRAM);
+
+    private long queries;
+    private long answered;
+    private long forwarded;
+    private long coalesced;
+    private long prefetched;
+    private long passed;
+    private volatile long replies;
+    private volatile long truncated;
+    private volatile long timeouts;
+    private volatile long stray;
+    private volatile long dropped;
+
+    /**
+     * @param servers the DNS servers apps are told to use, as IPv4 addresses in host order, each with the
+     *                address queries to it are forwarded to.
+     */
+    DnsStub(DnsCache cache, Map<Integer, InetSocketAddress> servers, boolean prefetch, UdpBreakout.Protector protector,
+            WritableByteChannel tun, int mtu) throws IOException {
+        this.cache = cache;
+        this.servers = servers;
+        this.prefetch = prefetch;
+        this.tun = tun;
+        this.mtu = mtu;
+        this.channel = DatagramChannel.open();
+        try {
+            if (!protector.protect(channel.socket())) {
+                throw new IOException("protect dns stub socket failed");
+            }
+            channel.configureBlocking(false);
+            channel.bind(null);
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Call for every uplink packet before it goes to the tunnel.
+     *
+     * @return true if the packet was a query answered or forwarded here.
+     */
+    boolean onUplinkPacket(ByteBuffer packet) throws IOException {
+        int offset = packet.position();
+        int length = packet.remaining();
+        if (closed || PacketHeaders.version(packet, offset, length) != 4 || PacketHeaders.protocol(packet, offset, length) != PacketHeaders.IPPROTO_UDP) {
+            return false;
+        }
+        int transportOffset = PacketHeaders.transportOffset(packet, offset, length);
+        if (transportOffset == -1 || PacketHeaders.destinationPort(packet, transportOffset) != DNS_PORT) {
+            return false;
+        }
+        int server = PacketHeaders.readInt(packet, offset + 16);
+        InetSocketAddress upstream = servers.get(server);
+        if (upstream == null) {
+            return false;
+        }
+        int udpLength = PacketHeaders.readShort(packet, transportOffset + 4);
+        int end = Math.min(offset + length, transportOffset + Math.max(udpLength, UDP_HEADER));
+        int payload = end - transportOffset - UDP_HEADER;
+        byte[] query = uplinkQuery;
+        try {
+            packet.position(transportOffset + UDP_HEADER);
+            packet.get(query, 0, payload);
+        } finally {
+            packet.position(offset);
+        }
+        int questionEnd = DnsMessage.questionEnd(query, payload);
+        if (questionEnd == -1) {
+            passed++;
+            return false;
+        }
+        queries++;
+        int payloadSize = Math.min(DnsMessage.udpPayloadSize(query, questionEnd, payload), mtu - IPV4_HEADER - UDP_HEADER);
+        Waiter waiter = new Waiter(PacketHeaders.readInt(packet, offset + 12), PacketHeaders.sourcePort(packet, transportOffset),
+                Arrays.copyOf(query, questionEnd), questionEnd, payloadSize);
+        String key = DnsMessage.questionKey(query, questionEnd);
+        long now = System.currentTimeMillis();
+        DnsCache.Entry entry = cache.get(key, now);
+        if (entry != null && entry.response.length + questionEnd - entry.questionEnd <= payloadSize) {
+            if (queuedHits.incrementAndGet() > MAX_PENDING) {
+                queuedHits.decrementAndGet();
+                passed++;
+                return false;
+            }
+            Hit hit = new Hit(waiter, entry, server, now);
+            hits.add(hit);
+            if (closed && hits.remove(hit)) {
+                // the stub's thread is gone or going, it may not drain this one
+                queuedHits.decrementAndGet();
+                passed++;
+                return false;
+            }
+            selector.wakeup();
+            answered++;
+            if (prefetch && cache.startPrefetch(entry, now)) {
+                byte[] prefetchQuery = prefetchQuery(entry);
+                if (forward(key, null, prefetchQuery, prefetchQuery.length, server, upstream, now)) {
+                    prefetched++;
+                }
+            }
+            return true;
+        }
+        if (forward(key, waiter, query, payload, server, upstream, now)) {
+            return true;
+        }
+        passed++;
+        return false;
+    }
+
+    /**
+     * Sends the question upstream unless it is already in flight.
+     *
+     * @param waiter null to only refresh the cache.
+     * @param query the first {@code length} bytes are the question, sent with an id of our own.
+     * @return false if it could not be sent, or a refresh is in flight already.
+     */
+    private boolean forward(String key, Waiter waiter, byte[] query, int length, int server, InetSocketAddress upstream, long now) {
+        Pending pending = pendingByKey.get(key);
+        if (pending != null) {
+            if (waiter == null) {
+                return false;
+            }
+            synchronized (pending) {
+                if (!pending.done) {
+                    pending.waiters.add(waiter);
+                    coalesced++;
+                    return true;
+                }
+            }
+        }
+        if (pendingById.size() >= MAX_PENDING) {
+            return false;
+        }
+        int id;
+        do {
+            id = random.nextInt(0x10000);
+        } while (pendingById.containsKey(id));
+        pending = new Pending(key, id, server, upstream, now);
+        if (waiter != null) {
+            pending.waiters.add(waiter);
+        }
+        byte[] message = Arrays.copyOf(query, length);
+        DnsMessage.writeShort(message, 0, id);
+        pendingById.put(id, pending);
+        pendingByKey.put(key, pending);
+        try {
+            if (channel.send(ByteBuffer.wrap(message), upstream) == message.length) {
+                forwarded++;
+                return true;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "forward dns query failed: " + upstream, e);
+        }
+        pendingById.remove(id, pending);
+        pendingByKey.remove(key, pending);
+        return false;
+    }
+
+    /**
+     * The question of a cached response as a plain query, without the client's EDNS record.
+     */
+    private static byte[] prefetchQuery(DnsCache.Entry entry) {
+        byte[] query = new byte[entry.questionEnd];
+        System.arraycopy(entry.response, 0, query, 0, entry.questionEnd);
+        DnsMessage.writeShort(query, 2, DnsMessage.flags(entry.response) & DnsMessage.FLAG_RD);
+        DnsMessage.writeShort(query, 6, 0);
+        DnsMessage.writeShort(query, 8, 0);
+        DnsMessage.writeShort(query, 10, 0);
+        return query;
+    }
+
+    @Override
+    public void run() {
+        long nextExpiry = System.currentTimeMillis() + QUERY_TIMEOUT_MILLIS / 5;
+        try {
+            while (!closed) {
+                selector.select(QUERY_TIMEOUT_MILLIS / 5);
+                selector.selectedKeys().clear();
+                answerHits();
+                SocketAddress source;
+                while (!closed && (source = receive()) != null) {
+                    onResponse(source, downlink.array(), downlink.position());
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextExpiry) {
+                    expire(now);
+                    nextExpiry = now + QUERY_TIMEOUT_MILLIS / 5;
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                Log.w(TAG, "dns stub", e);
+            }
+        } finally {
+            // nobody answers any more, leave the queries to the tunnel
+            closed = true;
+            while (hits.poll() != null) {
+                queuedHits.decrementAndGet();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void answerHits() throws IOException {
+        Hit hit;
+        while ((hit = hits.poll()) != null) {
+            queuedHits.decrementAndGet();
+            int replyLength = hit.entry.answer(hit.waiter.query, hit.waiter.questionEnd, downlinkReply, hit.now);
+            writeReply(downlinkPacket, hit.server, hit.waiter, downlinkReply, replyLength);
+        }
+    }
+
+    private SocketAddress receive() throws IOException {
+        downlink.clear();
+        return channel.receive(downlink);
+    }
+
+    private void onResponse(SocketAddress source, byte[] response, int length) throws IOException {
+        if (length < DnsMessage.HEADER_SIZE) {
+            stray++;
+            return;
+        }
+        Pending pending = pendingById.get(DnsMessage.id(response));
+        int questionEnd = DnsMessage.skipName(response, DnsMessage.HEADER_SIZE, length);
+        if (pending == null || !pending.upstream.equals(source) || questionEnd == -1 || response[questionEnd - 1] != 0 ||
+                questionEnd + 4 > length || !pending.key.equals(DnsMessage.questionKey(response, questionEnd + 4))) {
+            stray++;
+            return;
+        }
+        questionEnd += 4;
+        pendingById.remove(pending.id, pending);
+        pendingByKey.remove(pending.key, pending);
+        long now = System.currentTimeMillis();
+        DnsCache.Entry entry = cache.put(pending.key, response, length, now);
+        if (entry == null) {
+            byte[] copy = new byte[length];
+            System.arraycopy(response, 0, copy, 0, length);
+            entry = new DnsCache.Entry(copy, questionEnd, new int[0], now, 0);
+        }
+        List<Waiter> waiters;
+        synchronized (pending) {
+            pending.done = true;
+            waiters = pending.waiters;
+        }
+        for (Waiter waiter : waiters) {
+            int replyLength;
+            if (entry.response.length + waiter.questionEnd - entry.questionEnd <= waiter.payloadSize) {
+                replyLength = entry.answer(waiter.query, waiter.questionEnd, downlinkReply, now);
+            } else {
+                replyLength = DnsMessage.truncated(waiter.query, waiter.questionEnd, downlinkReply);
+                truncated++;
+            }
+            writeReply(downlinkPacket, pending.server, waiter, downlinkReply, replyLength);
+        }
+    }
+
+    /**
+     * Only called by the stub's thread.
+     */
+    private void writeReply(ByteBuffer packet, int server, Waiter waiter, byte[] reply, int length) throws IOException {
+        packet.clear().position(IPV4_HEADER + UDP_HEADER);
+        packet.put(reply, 0, length);
+        UdpBreakout.writeHeaders(packet, server, DNS_PORT, waiter.address, waiter.port, packet.position());
+        packet.flip();
+        // counted first, whoever reads the tun may already look at the counter
+        replies++;
+        try {
+            tun.write(packet);
+        } catch (ClosedChannelException e) {
+            throw e;
+        } catch (IOException e) {
+            // e.g. ENOBUFS while the tun queue is full, only this reply is lost
+            replies--;
+            if (dropped++ == 0) {
+                Log.w(TAG, "write dns reply to tun failed", e);
+            }
+        }
+    }
+
+    /**
+     * Forgets questions the server never answered, the apps ask again.
+     */
+    private void expire(long now) {
+        for (Pending pending : pendingById.values()) {
+            if (now - pending.sentMillis >= QUERY_TIMEOUT_MILLIS) {
+                synchronized (pending) {
+                    pending.done = true;
+                }
+                pendingById.remove(pending.id, pending);
+                pendingByKey.remove(pending.key, pending);
+                timeouts++;
+            }
+        }
+    }
+
+    int getPending() {
+        return pendingById.size();
+    }
+
+    long getReplies() {
+        return replies;
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "DnsStub{queries=%d, answered=%d, forwarded=%d, coalesced=%d, prefetched=%d, passed=%d, replies=%d, truncated=%d, " +
+                        "timeouts=%d, stray=%d, dropped=%d, pending=%d, %s}",
+                queries, answered, forwarded, coalesced, prefetched, passed, replies, truncated, timeouts, stray, dropped, pendingById.size(), cache);
+    }
+}
@@ -0,0 +1,29 @@
+package com.github.zhkl0228.androidvpn;
+
+/**
+ * Frames that do not fit the u16 header, only used once {@link TunnelParameters} were agreed. Their header
+ * has both {@link FrameCompressor#FLAG_COMPRESSED} and {@link ControlFrame#FLAG_CONTROL} set, the low bits
+ * give the kind, and a u32 length follows: {@code [u16 0xc000 | kind][u32 length][payload]}.
+ * <p>
+ * With extended framing every u16 frame stays below {@link ControlFrame#LENGTH_MASK}, larger packets go as jumbo frames.
+ */
+final class ExtendedFrame {
+
+    static final int MARKER = FrameCompressor.FLAG_COMPRESSED | ControlFrame.FLAG_CONTROL;
+    static final int HEADER_SIZE = 6;
+
+    /**
+     * One raw packet larger than a u16 frame may carry, masked like any other payload.
+     */
+    static final int KIND_JUMBO = 0x0;
+
+    /**
+     * Several complete frames under one header, so the peer can take a whole batch with a single read.
+     * The payload is the unchanged frames themselves; super-frames do not nest.
+     */
+    static final int KIND_SUPER = 0x1;
+
+    private ExtendedFrame() {
+    }
+
+}
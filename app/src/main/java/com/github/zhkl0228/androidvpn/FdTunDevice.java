@@ -0,0 +1,96 @@
+package com.github.zhkl0228.androidvpn;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The tun fd of an established {@link android.net.VpnService}. Readiness comes from {@link Os#poll}, so an
+ * idle uplink still notices when the tun goes away, packets move through {@link FileChannel}s.
+ * <p>
+ * Streams over a borrowed descriptor do not own it on Android, closing the device leaves the fd to its
+ * {@link android.os.ParcelFileDescriptor}.
+ */
+final class FdTunDevice implements TunDevice {
+
+    private final FileInputStream input;
+    private final FileOutputStream output;
+    private final FileChannel readChannel;
+    private final FileChannel writeChannel;
+    private final StructPollfd[] pollfds;
+
+    FdTunDevice(FileDescriptor fd) {
+        this.input = new FileInputStream(fd);
+        this.output = new FileOutputStream(fd);
+        this.readChannel = input.getChannel();
+        this.writeChannel = output.getChannel();
+        StructPollfd pollfd = new StructPollfd();
+        pollfd.fd = fd;
+        pollfd.events = (short) OsConstants.POLLIN;
+        this.pollfds = new StructPollfd[]{pollfd};
+    }
+
+    /**
+     * For writers outside the tunnel, like {@link UdpBreakout}.
+     */
+    FileChannel getWriteChannel() {
+        return writeChannel;
+    }
+
+    @Override
+    public boolean awaitReadable(int timeoutMillis) throws IOException {
+        try {
+            pollfds[0].revents = 0;
+            if (Os.poll(pollfds, timeoutMillis) == 0) {
+                return false;
+            }
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.EINTR) {
+                return false;
+            }
+            throw e.rethrowAsIOException();
+        }
+        if ((pollfds[0].revents & (OsConstants.POLLERR | OsConstants.POLLHUP | OsConstants.POLLNVAL)) != 0) {
+            throw new EOFException("tun revents=" + pollfds[0].revents);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isReadable() {
+        try {
+            pollfds[0].revents = 0;
+            return Os.poll(pollfds, 0) > 0 && (pollfds[0].revents & OsConstants.POLLIN) != 0;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer packet) throws IOException {
+        return readChannel.read(packet);
+    }
+
+    @Override
+    public void write(ByteBuffer packet) throws IOException {
+        writeChannel.write(packet);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            input.close();
+        } finally {
+            output.close();
+        }
+    }
+}
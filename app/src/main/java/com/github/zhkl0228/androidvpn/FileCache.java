@@ -0,0 +1,66 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * What was last loaded from a file, loaded again only once the file's modification time or length changed.
+ * The files next to {@code vpn_config.txt} are read on every connect but rarely edited.
+ */
+final class FileCache<T> {
+
+    interface Loader<T> {
+        T load(File file) throws IOException;
+    }
+
+    private final String name;
+    private final Loader<T> loader;
+    private File file;
+    private long lastModified;
+    private long length;
+    private T value;
+    private int loads;
+
+    /**
+     * @param name shown by {@link #toString()}.
+     */
+    FileCache(String name, Loader<T> loader) {
+        this.name = name;
+        this.loader = loader;
+    }
+
+    /**
+     * @return null if there is no such file. A file that fails to load is tried again on the next call.
+     */
+    synchronized T get(File file) throws IOException {
+        if (file == null || !file.canRead()) {
+            this.file = null;
+            this.value = null;
+            return null;
+        }
+        if (value != null && file.equals(this.file) && file.lastModified() == lastModified && file.length() == length) {
+            return value;
+        }
+        long lastModified = file.lastModified();
+        long length = file.length();
+        T value = loader.load(file);
+        this.file = file;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.value = value;
+        loads++;
+        return value;
+    }
+
+    synchronized int getLoads() {
+        return loads;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return name + ".Cache{" + value + ", loads=" + loads + '}';
+    }
+}
@@ -0,0 +1,240 @@
+package com.github.zhkl0228.androidvpn;
+
+import android.content.pm.PackageManager;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spots new flows on the uplink - a TCP SYN or the first UDP packet of a 5-tuple - and pushes their owner
+ * as a {@link ControlFrame#TYPE_FLOW_OWNER} frame, sparing the server a discovery round trip.
+ * <p>
+ * Flows already announced are remembered by flow hash in a direct mapped table: a flow pushed out of it by
+ * a colliding one is simply announced again. The owner lookup is a binder call, so it runs on an
+ * {@link Executor} and the uplink only pays for the table check. Finished lookups are written ahead of a
+ * later packet or by {@link #drain(FrameSink)} when the uplink goes idle, on the connection of their flow;
+ * the owner may reach the server after the first packets of its flow.
+ * <p>
+ * {@link #onUplinkPacket} and {@link #drain} belong to the thread framing the uplink.
+ */
+final class FlowOwnerTracker {
+
+    interface OwnerResolver {
+        /**
+         * @return owner uid of the flow, or -1 if unknown.
+         */
+        int ownerUid(int protocol, InetSocketAddress local, InetSocketAddress remote);
+    }
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    /**
+     * Lookups queued or running at once, new flows beyond it are left to discovery.
+     */
+    static final int MAX_PENDING_LOOKUPS = 256;
+    /**
+     * How soon an idle uplink looks again for finished lookups while some are pending.
+     */
+    static final int DRAIN_MILLIS = 10;
+
+    private static final int TCP_FLAGS = 13;
+    private static final int TCP_SYN = 0x02;
+    private static final int TCP_ACK = 0x10;
+
+    /**
+     * A finished lookup: the headers route the frame to the connection of the flow.
+     */
+    private static final class Owner {
+        final ByteBuffer headers;
+        final byte[] body;
+
+        Owner(ByteBuffer headers, byte[] body) {
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    private final OwnerResolver resolver;
+    private final PackageCache packageCache;
+    private final Executor executor;
+    private final int[] seen;
+    private final Queue<Owner> resolved = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private long pushed;
+    private long skipped;
+    private final AtomicLong unknownOwners = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+
+    FlowOwnerTracker(OwnerResolver resolver, PackageCache packageCache, Executor executor) {
+        this(resolver, packageCache, executor, DEFAULT_TABLE_SIZE);
+    }
+
+    FlowOwnerTracker(OwnerResolver resolver, PackageCache packageCache, Executor executor, int tableSize) {
+        if (tableSize <= 0 || Integer.bitCount(tableSize) != 1) {
+            throw new IllegalArgumentException("tableSize=" + tableSize);
+        }
+        this.resolver = resolver;
+        this.packageCache = packageCache;
+        this.executor = executor;
+        this.seen = new int[tableSize];
+    }
+
+    /**
+     * Call for every uplink packet before it is written to {@code sink}. Writes the owners found since the
+     * last call ahead of it.
+     *
+     * @return true if the packet started a new flow, whose owner is being looked up.
+     */
+    boolean onUplinkPacket(ByteBuffer packet, FrameSink sink) throws IOException {
+        boolean started = start(packet);
+        drain(sink);
+        return started;
+    }
+
+    private boolean start(ByteBuffer packet) {
+        int offset = packet.position();
+        int length = packet.remaining();
+        int transportOffset = PacketHeaders.transportOffset(packet, offset, length);
+        if (transportOffset == -1) {
+            return false;
+        }
+        int protocol = PacketHeaders.protocol(packet, offset, length);
+        if (protocol == PacketHeaders.IPPROTO_TCP && (packet.get(transportOffset + TCP_FLAGS) & (TCP_SYN | TCP_ACK)) != TCP_SYN) {
+            return false;
+        }
+        int hash = PacketHeaders.flowHash(packet, offset, length);
+        if (hash == 0) {
+            hash = 1;
+        }
+        int slot = hash & (seen.length - 1);
+        if (seen[slot] == hash) {
+            return false;
+        }
+        seen[slot] = hash;
+        if (pending.get() >= MAX_PENDING_LOOKUPS) {
+            skipped++;
+            return false;
+        }
+
+        // the lookup outlives the packet buffer, it keeps a copy of the headers
+        byte[] headers = new byte[transportOffset - offset + (protocol == PacketHeaders.IPPROTO_TCP ? 20 : 8)];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = packet.get(offset + i);
+        }
+        pending.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    resolved.add(lookup(ByteBuffer.wrap(headers), protocol, transportOffset - offset));
+                } finally {
+                    pending.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            skipped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the owners found so far, each on the connection of its flow.
+     *
+     * @return frames written.
+     */
+    int drain(FrameSink sink) throws IOException {
+        int written = 0;
+        Owner owner;
+        while ((owner = resolved.poll()) != null) {
+            sink.writeControlFrame(owner.headers, ControlFrame.TYPE_FLOW_OWNER, owner.body, 0, owner.body.length);
+            written++;
+        }
+        pushed += written;
+        return written;
+    }
+
+    /**
+     * @return true while lookups have not been {@link #drain drained} yet.
+     */
+    boolean hasPending() {
+        return pending.get() > 0 || !resolved.isEmpty();
+    }
+
+    private Owner lookup(ByteBuffer headers, int protocol, int transportOffset) {
+        boolean ipv4 = PacketHeaders.version(headers, 0, headers.capacity()) == 4;
+        byte[] local = new byte[ipv4 ? 4 : 16];
+        byte[] remote = new byte[local.length];
+        int sourceOffset = ipv4 ? 12 : 8;
+        for (int i = 0; i < local.length; i++) {
+            local[i] = headers.get(sourceOffset + i);
+            remote[i] = headers.get(sourceOffset + local.length + i);
+        }
+        int localPort = PacketHeaders.sourcePort(headers, transportOffset);
+        int remotePort = PacketHeaders.destinationPort(headers, transportOffset);
+
+        long start = System.nanoTime();
+        int uid = -1;
+        PackageCache.Entry entry = PackageCache.EMPTY;
+        try {
+            uid = resolver.ownerUid(protocol, new InetSocketAddress(InetAddress.getByAddress(local), localPort),
+                    new InetSocketAddress(InetAddress.getByAddress(remote), remotePort));
+            if (uid != -1) {
+                entry = packageCache.get(uid);
+            }
+        } catch (IOException | PackageManager.NameNotFoundException | RuntimeException e) {
+            entry = PackageCache.EMPTY;
+        }
+        lookupNanos.addAndGet(System.nanoTime() - start);
+        if (entry.packages.isEmpty()) {
+            unknownOwners.incrementAndGet();
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(ControlFrame.MAX_BODY);
+        out.put((byte) protocol);
+        out.put((byte) local.length);
+        out.put(local);
+        out.putShort((short) localPort);
+        out.put(remote);
+        out.putShort((short) remotePort);
+        out.putInt(uid);
+        if (entry.encoded.length <= out.remaining()) {
+            out.put(entry.encoded);
+        } else {
+            out.put((byte) 0);
+        }
+        return new Owner(headers, Arrays.copyOf(out.array(), out.position()));
+    }
+
+    long getPushed() {
+        return pushed;
+    }
+
+    long getSkipped() {
+        return skipped;
+    }
+
+    long getUnknownOwners() {
+        return unknownOwners.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "FlowOwnerTracker{pushed=%d, skipped=%d, unknownOwners=%d, lookup=%.1fms, %s}",
+                pushed, skipped, unknownOwners.get(), lookupNanos.get() / 1e6, packageCache);
+    }
+
+}
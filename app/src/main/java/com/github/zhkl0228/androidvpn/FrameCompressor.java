@@ -0,0 +1,169 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Per-frame LZ4 compression for one tunnel direction. A compressed frame sets {@link #FLAG_COMPRESSED} in
+ * its u16 header and carries {@code [u16 raw length][lz4 block]}, masked like any other payload.
+ * <p>
+ * Encrypted and media flows do not compress, so every flow bucket backs off after a run of attempts that
+ * saved less than 1/16, skipping twice as many packets each time until one attempt pays again.
+ * Not thread safe, each direction owns its instance.
+ */
+class FrameCompressor {
+
+    static final int FLAG_COMPRESSED = 0x8000;
+    static final int LENGTH_MASK = 0x7fff;
+
+    /**
+     * Bytes in front of the lz4 block: the raw length.
+     */
+    static final int PREFIX_SIZE = 2;
+
+    private static final int MIN_LENGTH = 128;
+    private static final int BUCKETS = 256;
+    private static final int MISSES_BEFORE_BACKOFF = 4;
+    private static final int MIN_BACKOFF = 16;
+    private static final int MAX_BACKOFF = 4096;
+
+    private final Lz4Block lz4 = new Lz4Block();
+    private final byte[] misses = new byte[BUCKETS];
+    private final short[] backoff = new short[BUCKETS];
+    private final short[] skip = new short[BUCKETS];
+
+    private byte[] scratch = new byte[0];
+    private byte[] lastPacket;
+    private ByteBuffer lastPacketView;
+
+    private long rawBytes;
+    private long compressedBytes;
+    private long compressedFrames;
+    private long bypassedFrames;
+    private long failedFrames;
+    private long compressNanos;
+    private long inflatedBytes;
+    private long decompressNanos;
+
+    /**
+     * Compresses a tun packet into {@code dst} if that is worth it for its flow.
+     *
+     * @return payload length including {@link #PREFIX_SIZE}, or -1 if the packet should go out raw.
+     */
+    int compress(byte[] packet, int offset, int length, byte[] dst, int dstOffset) {
+        if (packet != lastPacket) {
+            lastPacket = packet;
+            lastPacketView = ByteBuffer.wrap(packet);
+        }
+        return compress(lastPacketView, offset, length, dst, dstOffset);
+    }
+
+    /**
+     * Same as above for a packet at an absolute offset of {@code packet}. Direct buffers are copied
+     * to a scratch array first, and only once the flow bucket is not backing off.
+     */
+    int compress(ByteBuffer packet, int offset, int length, byte[] dst, int dstOffset) {
+        if (length < MIN_LENGTH) {
+            return -1;
+        }
+        int bucket = PacketHeaders.flowHash(packet, offset, length) & (BUCKETS - 1);
+        if (skip[bucket] > 0) {
+            skip[bucket]--;
+            bypassedFrames++;
+            return -1;
+        }
+        byte[] src;
+        int srcOffset;
+        if (packet.hasArray()) {
+            src = packet.array();
+            srcOffset = packet.arrayOffset() + offset;
+        } else {
+            if (scratch.length < length) {
+                scratch = new byte[length];
+            }
+            // a duplicate would be an allocation per frame wherever escape analysis gives up
+            int position = packet.position();
+            int limit = packet.limit();
+            packet.limit(offset + length);
+            packet.position(offset);
+            packet.get(scratch, 0, length);
+            packet.limit(limit);
+            packet.position(position);
+            src = scratch;
+            srcOffset = 0;
+        }
+        long start = System.nanoTime();
+        int maxLength = length - (length >>> 4) - PREFIX_SIZE;
+        int compressed = lz4.compress(src, srcOffset, length, dst, dstOffset + PREFIX_SIZE, maxLength);
+        compressNanos += System.nanoTime() - start;
+        if (compressed < 0) {
+            failedFrames++;
+            if (++misses[bucket] >= MISSES_BEFORE_BACKOFF) {
+                misses[bucket] = 0;
+                int next = Math.min(MAX_BACKOFF, Math.max(MIN_BACKOFF, backoff[bucket] * 2));
+                backoff[bucket] = (short) next;
+                skip[bucket] = (short) next;
+            }
+            return -1;
+        }
+        misses[bucket] = 0;
+        backoff[bucket] = 0;
+        dst[dstOffset] = (byte) (length >>> 8);
+        dst[dstOffset + 1] = (byte) length;
+        rawBytes += length;
+        compressedBytes += compressed + PREFIX_SIZE;
+        compressedFrames++;
+        return compressed + PREFIX_SIZE;
+    }
+
+    /**
+     * Inflates an unmasked compressed payload.
+     *
+     * @return raw packet length.
+     */
+    int decompress(byte[] payload, int offset, int length, byte[] dst, int dstOffset, int mtu) throws IOException {
+        if (length < PREFIX_SIZE) {
+            throw new IOException("compressed frame length=" + length);
+        }
+        int rawLength = ((payload[offset] & 0xff) << 8) | (payload[offset + 1] & 0xff);
+        if (rawLength > mtu) {
+            throw new IOException("compressed frame rawLength=" + rawLength + ", mtu=" + mtu);
+        }
+        long start = System.nanoTime();
+        int inflated = Lz4Block.decompress(payload, offset + PREFIX_SIZE, length - PREFIX_SIZE, dst, dstOffset, rawLength);
+        decompressNanos += System.nanoTime() - start;
+        if (inflated != rawLength) {
+            throw new IOException("compressed frame inflated=" + inflated + ", rawLength=" + rawLength);
+        }
+        inflatedBytes += inflated;
+        return inflated;
+    }
+
+    long getSavedBytes() {
+        return rawBytes - compressedBytes;
+    }
+
+    long getCompressNanos() {
+        return compressNanos;
+    }
+
+    long getBypassedFrames() {
+        return bypassedFrames;
+    }
+
+    long getCompressedFrames() {
+        return compressedFrames;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "FrameCompressor{compressed=%d, failed=%d, bypassed=%d, saved=%dB (%.1f%%), compress=%.1fms, inflated=%dB, decompress=%.1fms}",
+                compressedFrames, failedFrames, bypassedFrames, getSavedBytes(),
+                rawBytes == 0 ? 0.0 : 100.0 * getSavedBytes() / rawBytes, compressNanos / 1e6,
+                inflatedBytes, decompressNanos / 1e6);
+    }
+}
@@ -0,0 +1,179 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes {@code [u16 length][payload ^ magic]} frames from large socket reads into one reusable buffer.
+ * <p>
+ * Every complete frame of a chunk is unmasked in place and handed out as a slice of that buffer,
+ * a frame split across reads is kept and completed by the next one.
+ * With a {@link FrameCompressor} compressed frames are inflated into a second buffer before being handed out.
+ * With agreed {@link TunnelParameters} jumbo frames are handed out like any other and super-frames are unwrapped.
+ */
+class FrameReader {
+
+    interface PacketHandler {
+        /**
+         * The slice is only valid until this method returns.
+         */
+        void onPacket(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    interface ControlHandler {
+        /**
+         * @param offset start of the unmasked body, after the type byte.
+         */
+        void onControlFrame(int type, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int HEADER_SIZE = 2;
+
+    private final InputStream inputStream;
+    private final byte magic;
+    private final int mtu;
+    private final byte[] buffer;
+    private final ByteBuffer view;
+    private final FrameCompressor compressor;
+    private final byte[] inflated;
+    private final TunnelParameters parameters;
+    private final ControlHandler controlHandler;
+    /**
+     * Largest frame including its header, a partial frame at the buffer tail is compacted once less is left.
+     */
+    private final int maxFrame;
+    private int start;
+    private int end;
+    private long controlFrames;
+
+    FrameReader(InputStream inputStream, byte magic, int mtu) {
+        this(inputStream, magic, mtu, DEFAULT_BUFFER_SIZE);
+    }
+
+    FrameReader(InputStream inputStream, byte magic, int mtu, int bufferSize) {
+        this(inputStream, magic, mtu, bufferSize, null);
+    }
+
+    FrameReader(InputStream inputStream, byte magic, int mtu, int bufferSize, FrameCompressor compressor) {
+        this(inputStream, magic, mtu, bufferSize, compressor, null);
+    }
+
+    FrameReader(InputStream inputStream, byte magic, int mtu, int bufferSize, FrameCompressor compressor, TunnelParameters parameters) {
+        this(inputStream, magic, mtu, bufferSize, compressor, parameters, null);
+    }
+
+    /**
+     * @param parameters agreed in the extended handshake, null for the legacy framing.
+     * @param controlHandler receives control frames, also in the legacy framing once the peer agreed to send them.
+     *                       Without it control frames are only counted.
+     */
+    FrameReader(InputStream inputStream, byte magic, int mtu, int bufferSize, FrameCompressor compressor, TunnelParameters parameters,
+                ControlHandler controlHandler) {
+        if (mtu <= 0 || mtu > (parameters != null ? parameters.mtu : compressor == null ? 0xffff : FrameCompressor.LENGTH_MASK)) {
+            throw new IllegalArgumentException("mtu=" + mtu);
+        }
+        this.inputStream = inputStream;
+        this.magic = magic;
+        this.mtu = mtu;
+        this.compressor = compressor;
+        this.parameters = parameters;
+        this.controlHandler = controlHandler;
+        this.inflated = compressor == null ? null : new byte[mtu];
+        this.maxFrame = mtu + (parameters == null ? HEADER_SIZE : ExtendedFrame.HEADER_SIZE);
+        this.buffer = new byte[Math.max(bufferSize, maxFrame)];
+        this.view = ByteBuffer.wrap(buffer).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Blocks for one read of the underlying stream and dispatches every frame completed by it.
+     *
+     * @return number of packets dispatched, zero-length frames are skipped, or -1 on a clean end of stream.
+     */
+    int read(PacketHandler handler) throws IOException {
+        if (start == end) {
+            start = end = 0;
+        } else if (buffer.length - start < maxFrame) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        int read = inputStream.read(buffer, end, buffer.length - end);
+        if (read == -1) {
+            if (end > start) {
+                throw new EOFException("truncated frame: " + (end - start) + " bytes");
+            }
+            return -1;
+        }
+        end += read;
+
+        byte[] buffer = this.buffer;
+        int packets = 0;
+        while (end - start >= HEADER_SIZE) {
+            int header = ((buffer[start] & 0xff) << 8) | (buffer[start + 1] & 0xff);
+            int headerSize = HEADER_SIZE;
+            boolean compressed = false;
+            boolean control = false;
+            int length;
+            if (parameters != null && (header & ExtendedFrame.MARKER) == ExtendedFrame.MARKER) {
+                if (end - start < ExtendedFrame.HEADER_SIZE) {
+                    break;
+                }
+                headerSize = ExtendedFrame.HEADER_SIZE;
+                length = ((buffer[start + 2] & 0xff) << 24) | ((buffer[start + 3] & 0xff) << 16) | ((buffer[start + 4] & 0xff) << 8) | (buffer[start + 5] & 0xff);
+                int kind = header & ControlFrame.LENGTH_MASK;
+                if (kind == ExtendedFrame.KIND_SUPER) {
+                    if (length < 0 || length > parameters.maxFrameSize) {
+                        throw new IOException("super-frame length=" + length + ", maxFrameSize=" + parameters.maxFrameSize);
+                    }
+                    // the frames inside are decoded as if they came one by one
+                    start += headerSize;
+                    continue;
+                }
+                if (kind != ExtendedFrame.KIND_JUMBO) {
+                    throw new IOException("extended frame kind=" + kind);
+                }
+            } else if ((parameters != null || controlHandler != null) &&
+                    (header & (FrameCompressor.FLAG_COMPRESSED | ControlFrame.FLAG_CONTROL)) == ControlFrame.FLAG_CONTROL) {
+                control = true;
+                length = header & ControlFrame.LENGTH_MASK;
+            } else {
+                compressed = compressor != null && (header & FrameCompressor.FLAG_COMPRESSED) != 0;
+                length = compressed ? header & FrameCompressor.LENGTH_MASK : header;
+            }
+            if (length < 0 || length > mtu) {
+                throw new IOException("length=" + length + ", mtu=" + mtu);
+            }
+            int offset = start + headerSize;
+            if (end - offset < length) {
+                break;
+            }
+            start = offset + length;
+            if (control) {
+                controlFrames++;
+                if (controlHandler != null && length > 0) {
+                    MaskCodec.mask(view, offset, length, magic);
+                    controlHandler.onControlFrame(buffer[offset] & 0xff, buffer, offset + 1, length - 1);
+                }
+            } else if (length > 0) {
+                MaskCodec.mask(view, offset, length, magic);
+                if (compressed) {
+                    handler.onPacket(inflated, 0, compressor.decompress(buffer, offset, length, inflated, 0, mtu));
+                } else {
+                    handler.onPacket(buffer, offset, length);
+                }
+                packets++;
+            }
+        }
+        return packets;
+    }
+
+    long getControlFrames() {
+        return controlFrames;
+    }
+
+}
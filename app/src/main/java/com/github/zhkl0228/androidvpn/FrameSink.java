@@ -0,0 +1,30 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Uplink side of the tunnel: takes tun packets, batches them and sends them on {@link #flush()}.
+ */
+interface FrameSink extends Flushable {
+
+    void writeFrame(byte[] packet, int offset, int length) throws IOException;
+
+    /**
+     * Appends the packet between position and limit, neither of which is changed.
+     */
+    void writeFrame(ByteBuffer packet) throws IOException;
+
+    /**
+     * Appends a {@link ControlFrame} on the connection that carries the flow of {@code packet},
+     * so it reaches the server ahead of that packet.
+     */
+    void writeControlFrame(ByteBuffer packet, int type, byte[] body, int offset, int length) throws IOException;
+
+    /**
+     * @return frames appended since the last flush.
+     */
+    int pendingFrames();
+
+}
@@ -0,0 +1,225 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes tun packets as {@code [u16 length][payload ^ magic]} frames into one reusable buffer,
+ * so that several frames reach the socket with a single write.
+ * <p>
+ * The caller decides when a batch is complete: {@link #flush()} as soon as the tun fd has nothing
+ * more to read, otherwise keep appending and let the buffer drain itself when it fills up.
+ * With a {@link FrameCompressor} frames that shrink are sent compressed instead, with agreed
+ * {@link TunnelParameters} packets above the u16 limit go as {@link ExtendedFrame jumbo frames}.
+ */
+class FrameWriter implements FrameSink {
+
+    static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+
+    private static final int HEADER_SIZE = 2;
+
+    private final OutputStream outputStream;
+    private final byte magic;
+    private final byte[] buffer;
+    private final ByteBuffer view;
+    private final FrameCompressor compressor;
+    private final int maxLength;
+    /**
+     * Largest packet that still goes into a u16 frame, anything above is sent as a jumbo frame.
+     */
+    private final int shortLength;
+    /**
+     * Room kept in front of the frames for a super-frame header, 0 unless super-frames were agreed.
+     */
+    private final int base;
+    private final int maxBatch;
+    private byte[] lastPacket;
+    private ByteBuffer lastPacketView;
+    private int count;
+    private int frames;
+    private long superFrames;
+
+    FrameWriter(OutputStream outputStream, byte magic, int mtu) {
+        this(outputStream, magic, mtu, DEFAULT_BATCH_SIZE);
+    }
+
+    FrameWriter(OutputStream outputStream, byte magic, int mtu, int batchSize) {
+        this(outputStream, magic, mtu, batchSize, null);
+    }
+
+    FrameWriter(OutputStream outputStream, byte magic, int mtu, int batchSize, FrameCompressor compressor) {
+        this(outputStream, magic, mtu, batchSize, compressor, null);
+    }
+
+    /**
+     * @param parameters agreed in the extended handshake, null for the legacy framing.
+     */
+    FrameWriter(OutputStream outputStream, byte magic, int mtu, int batchSize, FrameCompressor compressor, TunnelParameters parameters) {
+        int legacyLimit = compressor == null ? 0xffff : FrameCompressor.LENGTH_MASK;
+        if (mtu <= 0 || mtu > (parameters == null ? legacyLimit : parameters.mtu)) {
+            throw new IllegalArgumentException("mtu=" + mtu);
+        }
+        this.outputStream = outputStream;
+        this.magic = magic;
+        this.compressor = compressor;
+        if (parameters == null) {
+            this.buffer = new byte[Math.max(batchSize, mtu + HEADER_SIZE)];
+            this.base = 0;
+            this.maxBatch = buffer.length;
+            this.maxLength = Math.min(buffer.length - HEADER_SIZE, legacyLimit);
+            this.shortLength = maxLength;
+        } else {
+            this.base = parameters.superFrames() ? ExtendedFrame.HEADER_SIZE : 0;
+            int batch = Math.max(batchSize, mtu + ExtendedFrame.HEADER_SIZE);
+            this.maxBatch = parameters.superFrames() ? Math.min(batch, parameters.maxFrameSize) : batch;
+            this.buffer = new byte[base + maxBatch];
+            this.maxLength = mtu;
+            this.shortLength = ControlFrame.LENGTH_MASK;
+        }
+        this.count = base;
+        this.view = ByteBuffer.wrap(buffer).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Appends one frame, the packet itself is left untouched.
+     */
+    @Override
+    public void writeFrame(byte[] packet, int offset, int length) throws IOException {
+        append(packetView(packet), offset, length);
+    }
+
+    @Override
+    public void writeFrame(ByteBuffer packet) throws IOException {
+        append(packet, packet.position(), packet.remaining());
+    }
+
+    private void append(ByteBuffer packet, int offset, int length) throws IOException {
+        if (length < 0 || length > maxLength) {
+            throw new IOException("length=" + length + ", maxLength=" + maxLength);
+        }
+        if (length > shortLength) {
+            appendJumbo(packet, offset, length);
+            return;
+        }
+        reserve(length + HEADER_SIZE);
+        int frameStart = count;
+        int payload = frameStart + HEADER_SIZE;
+        int compressed = compressor == null ? -1 : compressor.compress(packet, offset, length, buffer, payload);
+        int header;
+        if (compressed > 0) {
+            MaskCodec.mask(view, payload, compressed, magic);
+            header = FrameCompressor.FLAG_COMPRESSED | compressed;
+            count = payload + compressed;
+        } else {
+            MaskCodec.mask(packet, offset, view, payload, length, magic);
+            header = length;
+            count = payload + length;
+        }
+        buffer[frameStart] = (byte) (header >>> 8);
+        buffer[frameStart + 1] = (byte) header;
+        frames++;
+    }
+
+    /**
+     * Jumbo packets are never compressed, the compressed header could not carry them.
+     */
+    private void appendJumbo(ByteBuffer packet, int offset, int length) throws IOException {
+        reserve(length + ExtendedFrame.HEADER_SIZE);
+        int frameStart = count;
+        int payload = frameStart + ExtendedFrame.HEADER_SIZE;
+        MaskCodec.mask(packet, offset, view, payload, length, magic);
+        putExtendedHeader(frameStart, ExtendedFrame.KIND_JUMBO, length);
+        count = payload + length;
+        frames++;
+    }
+
+    private void putExtendedHeader(int offset, int kind, int length) {
+        int header = ExtendedFrame.MARKER | kind;
+        buffer[offset] = (byte) (header >>> 8);
+        buffer[offset + 1] = (byte) header;
+        buffer[offset + 2] = (byte) (length >>> 24);
+        buffer[offset + 3] = (byte) (length >>> 16);
+        buffer[offset + 4] = (byte) (length >>> 8);
+        buffer[offset + 5] = (byte) length;
+    }
+
+    /**
+     * Drains first unless {@code frameSize} more bytes fit into the batch.
+     */
+    private void reserve(int frameSize) throws IOException {
+        if (maxBatch - (count - base) < frameSize) {
+            drain();
+        }
+    }
+
+    @Override
+    public void writeControlFrame(ByteBuffer packet, int type, byte[] body, int offset, int length) throws IOException {
+        writeControlFrame(type, body, offset, length);
+    }
+
+    /**
+     * Appends a {@link ControlFrame} on this connection, e.g. a ping that concerns the connection itself.
+     */
+    void writeControlFrame(int type, byte[] body, int offset, int length) throws IOException {
+        if (length < 0 || length > ControlFrame.MAX_BODY || length + 1 + HEADER_SIZE > maxBatch) {
+            throw new IOException("control length=" + length);
+        }
+        reserve(length + 1 + HEADER_SIZE);
+        int frameStart = count;
+        int payload = frameStart + HEADER_SIZE;
+        buffer[payload] = (byte) type;
+        System.arraycopy(body, offset, buffer, payload + 1, length);
+        MaskCodec.mask(view, payload, length + 1, magic);
+        int header = ControlFrame.FLAG_CONTROL | (length + 1);
+        buffer[frameStart] = (byte) (header >>> 8);
+        buffer[frameStart + 1] = (byte) header;
+        count = payload + length + 1;
+        frames++;
+    }
+
+    /**
+     * The uplink reuses one packet array, so its view is wrapped once and not per frame.
+     */
+    private ByteBuffer packetView(byte[] packet) {
+        if (packet != lastPacket) {
+            lastPacket = packet;
+            lastPacketView = ByteBuffer.wrap(packet).order(ByteOrder.nativeOrder());
+        }
+        return lastPacketView;
+    }
+
+    @Override
+    public int pendingFrames() {
+        return frames;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        outputStream.flush();
+    }
+
+    long getSuperFrames() {
+        return superFrames;
+    }
+
+    /**
+     * With super-frames agreed a batch of two frames or more goes out under one super-frame header.
+     */
+    private void drain() throws IOException {
+        if (count > base) {
+            if (base > 0 && frames > 1) {
+                putExtendedHeader(0, ExtendedFrame.KIND_SUPER, count - base);
+                outputStream.write(buffer, 0, count);
+                superFrames++;
+            } else {
+                outputStream.write(buffer, base, count - base);
+            }
+            count = base;
+            frames = 0;
+        }
+    }
+
+}
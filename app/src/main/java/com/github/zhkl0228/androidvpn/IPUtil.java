@@ -21,9 +21,11 @@ package com.github.zhkl0228.androidvpn;
 
 import android.util.Log;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class IPUtil {
@@ -34,34 +36,50 @@ public class IPUtil {
     }
 
     public static List<CIDR> toCIDR(InetAddress start, InetAddress end) throws UnknownHostException {
-        List<CIDR> listResult = new ArrayList<>();
-
-        Log.i(TAG, "toCIDR(" + start.getHostAddress() + "," + end.getHostAddress() + ")");
-
+        final List<CIDR> listResult = new ArrayList<>();
         long from = inet2long(start);
         long to = inet2long(end);
-        while (to >= from) {
-            byte prefix = 32;
-            while (prefix > 0) {
-                long mask = prefix2mask(prefix - 1);
-                if ((from & mask) != from)
-                    break;
-                prefix--;
-            }
-
-            byte max = (byte) (32 - Math.floor(Math.log(to - from + 1) / Math.log(2)));
-            if (prefix < max)
-                prefix = max;
+        if (to >= from)
+            forEachCIDR(from, to, (address, prefix) -> listResult.add(new CIDR(long2inet(address & 0xFFFFFFFFL), prefix)));
+        return listResult;
+    }
 
-            listResult.add(new CIDR(long2inet(from), prefix));
+    public interface CIDRConsumer {
+        /**
+         * @param address IPv4 network address, unsigned
+         */
+        void accept(int address, int prefix);
+    }
 
-            from += Math.pow(2, (32 - prefix));
+    /**
+     * Splits {@code from...to}, inclusive unsigned IPv4 addresses, into the fewest CIDRs: each step takes the
+     * largest block that is aligned at {@code from} and still fits the rest of the range.
+     *
+     * @return the number of CIDRs emitted.
+     */
+    public static int forEachCIDR(long from, long to, CIDRConsumer consumer) {
+        if (from < 0 || to > 0xFFFFFFFFL || from > to)
+            throw new IllegalArgumentException(from + "..." + to);
+        int count = 0;
+        while (from <= to) {
+            int bits = Math.min(Long.numberOfTrailingZeros(from), 32);
+            bits = Math.min(bits, 63 - Long.numberOfLeadingZeros(to - from + 1));
+            consumer.accept((int) from, 32 - bits);
+            from += 1L << bits;
+            count++;
         }
+        return count;
+    }
 
-        for (CIDR cidr : listResult)
-            Log.i(TAG, cidr.toString());
+    /**
+     * @return the IPv4 address as unsigned int, or -1 for anything else.
+     */
+    public static long toLong(InetAddress address) {
+        return address instanceof Inet4Address ? inet2long(address) : -1;
+    }
 
-        return listResult;
+    public static String toString(int address) {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
     }
 
     private static long prefix2mask(int bits) {
@@ -97,6 +115,152 @@ public class IPUtil {
         return long2inet(inet2long(addr) + 1);
     }
 
+    /**
+     * A set of IPv4 ranges kept as primitive {@code long}s. Each range is packed as {@code start << 32 | end}
+     * with the sign bit flipped, so a plain signed sort orders ranges by unsigned start address. Ranges may be
+     * added in any order and may overlap: they are sorted and merged lazily, when the set is next read.
+     * Not thread safe.
+     */
+    public static class RangeSet {
+        private static final long SIGN = Long.MIN_VALUE;
+
+        private long[] ranges;
+        private int size;
+        private boolean normalized = true;
+
+        public RangeSet() {
+            this(32);
+        }
+
+        public RangeSet(int capacity) {
+            ranges = new long[Math.max(capacity, 2)];
+        }
+
+        /**
+         * @param start first address, unsigned
+         * @param end last address, unsigned and inclusive
+         */
+        public RangeSet add(int start, int end) {
+            if (Integer.compareUnsigned(start, end) > 0)
+                throw new IllegalArgumentException(IPUtil.toString(start) + "..." + IPUtil.toString(end));
+            if (size == ranges.length)
+                ranges = Arrays.copyOf(ranges, size * 2);
+            ranges[size++] = pack(start, end);
+            normalized = false;
+            return this;
+        }
+
+        public RangeSet addCIDR(int address, int prefix) {
+            if (prefix < 0 || prefix > 32)
+                throw new IllegalArgumentException("prefix=" + prefix);
+            int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+            return add(address & mask, address | ~mask);
+        }
+
+        /**
+         * IPv6 and unresolved entries are ignored.
+         */
+        public RangeSet add(CIDR cidr) {
+            long address = toLong(cidr.address);
+            if (address != -1)
+                addCIDR((int) address, Math.min(cidr.prefix, 32));
+            return this;
+        }
+
+        /**
+         * Replaces the set with every IPv4 address not in it.
+         */
+        public RangeSet complement() {
+            normalize();
+            if (size == ranges.length)
+                ranges = Arrays.copyOf(ranges, size + 1);
+            long next = 0; // first address not yet covered
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                long range = ranges[i];
+                long start = start(range);
+                if (start > next)
+                    ranges[count++] = pack((int) next, (int) (start - 1));
+                next = end(range) + 1;
+            }
+            if (next <= 0xFFFFFFFFL)
+                ranges[count++] = pack((int) next, -1);
+            size = count;
+            return this;
+        }
+
+        public boolean contains(int address) {
+            normalize();
+            long key = pack(address, -1);
+            int index = Arrays.binarySearch(ranges, 0, size, key);
+            if (index < 0)
+                index = -index - 2;
+            return index >= 0 && end(ranges[index]) >= (address & 0xFFFFFFFFL);
+        }
+
+        /**
+         * @return number of disjoint ranges.
+         */
+        public int size() {
+            normalize();
+            return size;
+        }
+
+        /**
+         * Emits the fewest CIDRs that cover the set, in ascending order.
+         *
+         * @return the number of CIDRs emitted.
+         */
+        public int forEachCIDR(CIDRConsumer consumer) {
+            normalize();
+            int count = 0;
+            for (int i = 0; i < size; i++)
+                count += IPUtil.forEachCIDR(start(ranges[i]), end(ranges[i]), consumer);
+            return count;
+        }
+
+        private void normalize() {
+            if (normalized)
+                return;
+            Arrays.sort(ranges, 0, size);
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                long range = ranges[i];
+                if (count > 0 && start(range) <= end(ranges[count - 1]) + 1) {
+                    if (end(range) > end(ranges[count - 1]))
+                        ranges[count - 1] = pack((int) start(ranges[count - 1]), (int) end(range));
+                } else
+                    ranges[count++] = range;
+            }
+            size = count;
+            normalized = true;
+        }
+
+        private static long pack(int start, int end) {
+            return ((long) start << 32 | (end & 0xFFFFFFFFL)) ^ SIGN;
+        }
+
+        private static long start(long range) {
+            return (range ^ SIGN) >>> 32;
+        }
+
+        private static long end(long range) {
+            return range & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public String toString() {
+            normalize();
+            StringBuilder builder = new StringBuilder("RangeSet[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0)
+                    builder.append(", ");
+                builder.append(IPUtil.toString((int) start(ranges[i]))).append("...").append(IPUtil.toString((int) end(ranges[i])));
+            }
+            return builder.append(']').toString();
+        }
+    }
+
     public static class CIDR implements Comparable<CIDR> {
         public InetAddress address;
         public int prefix;
@@ -1,22 +1,21 @@
 package com.github.zhkl0228.androidvpn;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.net.VpnService;
 import android.os.Bundle;
-import android.os.FileUtils;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
-import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
@@ -26,19 +25,19 @@ import androidx.annotation.NonNull;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInput;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
@@ -50,21 +49,35 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class InspectorVpnService extends VpnService {
 
     private static final String TAG = AndroidVPN.TAG;
 
     private static final int MSG_SERVICE_INTENT = 0;
+    private static final int MSG_NETWORK_CHANGED = 1;
+
+    /**
+     * Network changes come in bursts, e.g. Wi-Fi lost, cellular validated, cellular addresses, act once they settle.
+     */
+    private static final long NETWORK_SETTLE_MILLIS = 1000;
 
     public static final String EXTRA_COMMAND = "Command";
     private static final String EXTRA_REASON = "Reason";
@@ -78,6 +91,72 @@ public class InspectorVpnService extends VpnService {
     private Thread tunnelThread;
     private ParcelFileDescriptor vpn;
 
+    /**
+     * The running session as the command thread started it, so a network change can rebuild it.
+     */
+    private String sessionHost;
+    private int sessionPort;
+    private TunnelOptions sessionOptions;
+    private Builder sessionBuilder;
+
+    private NetworkMonitor networkMonitor;
+
+    /**
+     * One engine thread started by {@link #startNative}. It is only ever signalled by closing its sockets:
+     * the tun is a {@link java.nio.channels.InterruptibleChannel}, interrupting the thread would close the
+     * tun fd as well. A handover stops one session and starts the next, each keeps its own flags.
+     */
+    private static final class NativeSession {
+        /**
+         * Sockets of the running engine, closing them ends the engine and leaves the tun alone.
+         */
+        private final List<Closeable> sockets = new CopyOnWriteArrayList<>();
+        /**
+         * Set before the sockets are closed for a handover, the engine thread then reconnects on the same tun.
+         */
+        final AtomicBoolean reconnecting = new AtomicBoolean();
+        volatile boolean stopped;
+        Thread thread;
+
+        /**
+         * Closes {@code socket} right away if the session was stopped meanwhile.
+         */
+        void register(Closeable socket) {
+            sockets.add(socket);
+            if (stopped) {
+                closeQuietly(socket);
+            }
+        }
+
+        void unregister(Closeable socket) {
+            sockets.remove(socket);
+        }
+
+        void reconnect() {
+            reconnecting.set(true);
+            closeSockets();
+        }
+
+        void stop() {
+            stopped = true;
+            closeSockets();
+        }
+
+        private void closeSockets() {
+            for (Closeable socket : sockets) {
+                closeQuietly(socket);
+            }
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "NativeSession{thread=" + thread + ", sockets=" + sockets.size() + ", stopped=" + stopped + '}';
+        }
+    }
+
+    private volatile NativeSession nativeSession;
+
     private final class CommandHandler extends Handler {
         CommandHandler(Looper looper) {
             super(looper);
@@ -95,6 +174,8 @@ public class InspectorVpnService extends VpnService {
             try {
                 if (msg.what == MSG_SERVICE_INTENT) {
                     handleIntent((Intent) msg.obj);
+                } else if (msg.what == MSG_NETWORK_CHANGED) {
+                    handover();
                 } else {
                     Log.e(TAG, "Unknown command message=" + msg.what);
                 }
@@ -139,12 +220,19 @@ public class InspectorVpnService extends VpnService {
 
         private void start(String vpnHost, int vpnPort) {
             if (vpn == null) {
-                Builder builder = getBuilder(vpnHost);
+                TunnelOptions options = loadTunnelOptions();
+                Builder builder = getBuilder(vpnHost, options);
                 vpn = startVPN(builder);
                 if (vpn == null) {
                     throw new IllegalStateException("start vpn failed.");
                 }
-                startNative(vpn, vpnHost, vpnPort);
+                sessionHost = vpnHost;
+                sessionPort = vpnPort;
+                sessionOptions = options;
+                sessionBuilder = builder;
+                openCapture(options);
+                dnsCache = options.servesDns() ? new DnsCache(options.dnsCacheEntries) : null;
+                startNative(vpn, vpnHost, vpnPort, options);
             }
         }
 
@@ -154,16 +242,47 @@ public class InspectorVpnService extends VpnService {
                 stopVPN(vpn);
                 vpn = null;
             }
+            sessionBuilder = null;
+        }
+
+        /**
+         * Moves the session to the new underlying network. If the tun would come out the same, e.g. the
+         * local subnets are unchanged, only the tunnel connection is replaced and apps keep their sockets.
+         * Otherwise the new tun is established before the old one is closed, so traffic never leaks around
+         * the VPN in between.
+         */
+        private void handover() {
+            if (vpn == null || sessionBuilder == null) {
+                return;
+            }
+            Builder builder = getBuilder(sessionHost, sessionOptions);
+            NativeSession session = nativeSession;
+            if (builder.equals(sessionBuilder) && session != null) {
+                Log.i(TAG, "Handover reconnects the tunnel, " + session);
+                session.reconnect();
+                return;
+            }
+            Log.i(TAG, "Handover establishes a new tun");
+            ParcelFileDescriptor next = startVPN(builder);
+            if (next == null) {
+                throw new IllegalStateException("handover establish failed.");
+            }
+            ParcelFileDescriptor previous = vpn;
+            stopNative();
+            stopVPN(previous);
+            vpn = next;
+            sessionBuilder = builder;
+            startNative(vpn, sessionHost, sessionPort, sessionOptions);
         }
     }
 
     private void stopNative() {
         Log.i(TAG, "Stop native");
 
-        if (vpnServerThread != null) {
-            Thread thread = vpnServerThread;
-            thread.interrupt();
-            vpnServerThread = null;
+        NativeSession session = nativeSession;
+        if (session != null) {
+            nativeSession = null;
+            session.stop();
             Log.i(TAG, "Stopped vpn server thread");
         }
         if (tunnelThread != null) {
@@ -194,222 +313,717 @@ public class InspectorVpnService extends VpnService {
 
     private static final byte VPN_MAGIC = 0xe;
 
-    private class StreamForward implements Runnable {
-        private final DataInput dataInput;
-        private final OutputStream outputStream;
-        private final int mtu;
-        public StreamForward(DataInput dataInput, OutputStream outputStream, int mtu) {
-            this.dataInput = dataInput;
-            this.outputStream = outputStream;
-            this.mtu = mtu;
+    /**
+     * Handshake byte: low bits are the os type, 0x0 for android, high bits flag optional features.
+     */
+    private static final int OS_TYPE_CONFIG = 0x80;
+    // 0x40 announced compression without an answer, it is a feature of the extended handshake now
+    private static final int OS_TYPE_OWNER_PUSH = 0x20;
+    private static final int OS_TYPE_EXTENDED = 0x10;
+    private static final int OS_TYPE_RESUME = 0x08;
+    private static final int OS_TYPE_PING = 0x04;
+    /**
+     * The config is offered by hash instead of inline, see {@link VpnConfig}.
+     */
+    private static final int OS_TYPE_CONFIG_HASH = 0x02;
+
+    /**
+     * A connection that lasted this long was healthy, the next failure reconnects without the built up delay.
+     */
+    private static final long STABLE_SESSION_MILLIS = 10000;
+    private static final int MAX_BACKLOG_BYTES = 1024 * 1024;
+
+    /**
+     * Answers discovery queries on the local address of one stream connection. It lives exactly as long as
+     * its own socket: the engine closes it together with the connection, so every reconnect replaces it.
+     */
+    private class ApplicationDiscoverServer implements Runnable, Closeable {
+        private final DatagramSocket udp;
+        public ApplicationDiscoverServer(SocketAddress socketAddress) throws SocketException {
+            this.udp = new DatagramSocket(socketAddress);
         }
         @Override
         public void run() {
+            byte[] buffer = new byte[0xffff];
             try {
-                byte[] packet = new byte[mtu];
-                while (vpnServerThread != null) {
-                    int length = dataInput.readUnsignedShort();
-                    if (length > mtu) {
-                        throw new IOException("length=" + length + ", mtu=" + mtu);
-                    }
-                    dataInput.readFully(packet, 0, length);
-                    if (length == -1) {
-                        throw new EOFException();
-                    }
-                    if (length > 0) {
-                        for (int i = 0; i < length; i++) {
-                            packet[i] ^= VPN_MAGIC;
-                        }
-                        outputStream.write(packet, 0, length);
-                        outputStream.flush();
-                    }
+                protect(udp);
+                while (!udp.isClosed()) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    udp.receive(packet);
+                    discovery.handle(udp, packet);
                 }
             } catch (IOException e) {
-                Log.w(TAG, "stream forward", e);
+                if (!udp.isClosed()) {
+                    Log.d(TAG, "run udp server failed.", e);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "run udp server failed.", e);
+            } finally {
+                udp.close();
+                Log.d(TAG, "exit udp server.");
             }
+        }
 
-            if (vpn != null) {
-                try { vpn.close(); } catch(Exception ignored) {}
-                vpn = null;
-            }
+        @Override
+        public void close() {
+            udp.close();
         }
     }
 
-    private Thread vpnServerThread;
-
-    private class ApplicationDiscoverServer implements Runnable {
-        private final SocketAddress socketAddress;
-        public ApplicationDiscoverServer(SocketAddress socketAddress) {
-            this.socketAddress = socketAddress;
+    /**
+     * Owner lookups are binder calls that may block, a burst of them runs on a few threads.
+     */
+    private static final int DISCOVERY_THREADS = 4;
+
+    private ExecutorService discoveryExecutor;
+
+    private PackageCache packageCache;
+    private ApplicationDiscovery discovery;
+    private final FileCache<AppPolicy> appPolicyCache = AppPolicy.newCache();
+    private final FileCache<VpnConfig> vpnConfigCache = VpnConfig.newCache();
+    private final TunnelMetrics metrics = new TunnelMetrics();
+
+    /**
+     * Answers of the {@link DnsStub}, kept across reconnects and handovers of a session.
+     */
+    private volatile DnsCache dnsCache;
+
+    private static final String CAPTURE_FILE_NAME = "capture.ring";
+
+    /**
+     * Ring the engines capture into, swapped by a rotation while they run.
+     */
+    private volatile PcapRing captureRing;
+    private final TunnelCore.PacketTap captureTap = (packet, uplink) -> {
+        PcapRing ring = captureRing;
+        if (ring != null) {
+            ring.capture(packet, uplink);
         }
+    };
+
+    /**
+     * Drops cached packages of a uid as soon as one of its packages changes, a missing uid drops them all.
+     */
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
         @Override
-        public void run() {
-            byte[] buffer = new byte[1024];
-            ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-            PackageManager pm = getPackageManager();
-            try (DatagramSocket udp = new DatagramSocket(socketAddress)) {
-                protect(udp);
-                udp.setSoTimeout(2000);
-                Thread thread;
-                while ((thread = vpnServerThread) != null && thread.isAlive()) {
+        public void onReceive(Context context, Intent intent) {
+            int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            Log.d(TAG, "package changed action=" + intent.getAction() + ", uid=" + uid + ", data=" + intent.getData());
+            if (uid == -1) {
+                packageCache.invalidateAll();
+            } else {
+                packageCache.invalidate(uid);
+            }
+        }
+    };
+
+    private List<Package> loadPackages(int uid) throws PackageManager.NameNotFoundException {
+        PackageManager pm = getPackageManager();
+        String[] packages = pm.getPackagesForUid(uid);
+        if (packages == null) {
+            return null;
+        }
+        List<Package> list = new ArrayList<>(packages.length);
+        for (String packageName : packages) {
+            PackageInfo packageInfo = pm.getPackageInfo(packageName, PackageManager.GET_META_DATA);
+            CharSequence label = pm.getApplicationLabel(packageInfo.applicationInfo);
+            list.add(new Package(packageName, label, packageInfo.getLongVersionCode()));
+        }
+        return list;
+    }
+
+    private void startNative(final ParcelFileDescriptor vpn, String vpnHost, int vpnPort, TunnelOptions options) {
+        Log.d(TAG, "startNative vpnHost=" + vpnHost + ", vpnPort=" + vpnPort + ", nativeSession=" + nativeSession + ", options=" + options);
+        if (nativeSession != null) {
+            return;
+        }
+        NativeSession nativeSession = new NativeSession();
+        nativeSession.thread = new Thread(() -> {
+            TrafficSnapshot sessionStart = TrafficSnapshot.take();
+            List<String> unsupported = options.unsupported();
+            if (!unsupported.isEmpty()) {
+                Log.w(TAG, "ignoring " + unsupported + ", not supported with engine=" + options.engine + ", transport=" + options.transport);
+            }
+            TunnelSession session = new TunnelSession(new SecureRandom().nextLong());
+            UplinkBacklog backlog = new UplinkBacklog(options.reconnectBacklog, MAX_BACKLOG_BYTES);
+            ReconnectBackoff backoff = new ReconnectBackoff(new SecureRandom());
+            while (true) {
+                long connected = System.currentTimeMillis();
+                runEngine(nativeSession, vpn, vpnHost, vpnPort, options, options.resume ? session : null, backlog);
+                if (nativeSession.stopped) {
+                    // stopped, or a handover runs the next session
+                    break;
+                }
+                if (nativeSession.reconnecting.getAndSet(false)) {
+                    backoff.reset();
+                } else if (options.reconnect) {
+                    if (System.currentTimeMillis() - connected >= STABLE_SESSION_MILLIS) {
+                        backoff.reset();
+                    }
+                    long delay = backoff.nextDelayMillis();
+                    Log.i(TAG, "Reconnecting in " + delay + "ms, " + backoff + ", " + backlog);
                     try {
-                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                        udp.receive(packet);
-                        DataInput dataInput = new DataInputStream(new ByteArrayInputStream(buffer));
-                        int type = dataInput.readUnsignedByte();
-                        if (type != 0x1) {
-                            throw new IllegalStateException("type=" + type);
-                        }
-                        int protocol = dataInput.readUnsignedByte();
-                        String saddr = dataInput.readUTF();
-                        int sport = dataInput.readUnsignedShort();
-                        String daddr = dataInput.readUTF();
-                        int dport = dataInput.readUnsignedShort();
-                        if (protocol != OsConstants.IPPROTO_TCP && protocol != OsConstants.IPPROTO_UDP) {
-                            continue;
-                        }
-                        InetSocketAddress local = new InetSocketAddress(saddr, sport);
-                        InetSocketAddress remote = new InetSocketAddress(daddr, dport);
-                        int uid = cm.getConnectionOwnerUid(protocol, local, remote);
-                        String[] packages = pm.getPackagesForUid(uid);
-                        int hash = Objects.hash(protocol, saddr, sport, daddr, dport);
-                        Log.d(TAG, "allowed protocol=" + protocol + ", uid=" + uid + ", packages=" + Arrays.toString(packages) + " " + local + " => " + remote);
-                        if (packages != null) {
-                            List<Package> list = new ArrayList<>(packages.length);
-                            for (String packageName : packages) {
-                                PackageInfo packageInfo = pm.getPackageInfo(packageName, PackageManager.GET_META_DATA);
-                                CharSequence label = pm.getApplicationLabel(packageInfo.applicationInfo);
-                                list.add(new Package(packageName, label, packageInfo.getLongVersionCode()));
-                            }
-                            Log.d(TAG, "allowed list=" + list);
-                            byte[] data = responseForPackages(hash, list);
-                            DatagramPacket forSend = new DatagramPacket(data, data.length, packet.getSocketAddress());
-                            udp.send(forSend);
-                        }
-                    } catch(SocketTimeoutException ignored) {}
+                        awaitReconnect(nativeSession, vpn, options, backlog, delay);
+                    } catch (IOException e) {
+                        Log.d(TAG, "tun closed while reconnecting", e);
+                        break;
+                    }
+                    nativeSession.reconnecting.set(false);
+                } else {
+                    break;
                 }
-            } catch (IOException e) {
-                Log.d(TAG, "run udp server failed.", e);
-            } catch (Exception e) {
-                Log.w(TAG, "run udp server failed.", e);
-            } finally {
-                Log.d(TAG, "exit udp server.");
+                session.nextGeneration();
+                metrics.reconnects.increment();
+            }
+            TrafficSnapshot sessionEnd = TrafficSnapshot.take();
+            if (sessionStart != null && sessionEnd != null) {
+                Log.i(TAG, "session traffic " + sessionEnd.describeSince(sessionStart) + ", " + appPolicyCache);
+            }
+
+            // a handover may already run the next session, leave its tun and thread alone
+            try {
+                vpn.close();
+            } catch (IOException ignored) {
+            }
+            if (this.vpn == vpn) {
+                this.vpn = null;
+            }
+            if (this.nativeSession == nativeSession) {
+                this.nativeSession = null;
+            }
+        }, "Connect vpn server");
+        nativeSession.thread.setPriority(Thread.MAX_PRIORITY);
+        this.nativeSession = nativeSession;
+        nativeSession.thread.start();
+    }
+
+    /**
+     * @param session null unless the server resumes sessions.
+     * @param backlog uplink packets read while the tunnel was down, sent first.
+     */
+    private void runEngine(NativeSession nativeSession, ParcelFileDescriptor vpn, String vpnHost, int vpnPort, TunnelOptions options, TunnelSession session, UplinkBacklog backlog) {
+        try {
+            if (options.transport == TunnelOptions.Transport.udp) {
+                runDatagramTransport(nativeSession, vpn, vpnHost, vpnPort, options.tunMtu(), options.keepaliveSeconds * 1000, session, backlog);
+            } else if (options.engine == TunnelOptions.Engine.nio) {
+                runNioEngine(nativeSession, vpn, vpnHost, vpnPort, session, backlog);
+            } else {
+                runStreamEngine(nativeSession, vpn, vpnHost, vpnPort, options, session, backlog);
             }
+        } catch (IOException e) {
+            Log.d(TAG, "loop vpn server failed", e);
         }
+    }
 
-        @NonNull
-        private byte[] responseForPackages(int hash, List<Package> packages) {
-            if (packages == null) {
-                throw new IllegalArgumentException();
-            }
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                DataOutput dataOutput = new DataOutputStream(baos);
-                dataOutput.writeByte(0x2);
-                dataOutput.writeInt(hash);
-                dataOutput.writeByte(packages.size());
-                for (Package pkg : packages) {
-                    pkg.output(dataOutput);
+    /**
+     * Waits out a reconnect delay but keeps reading the tun into the backlog, its kernel queue only holds a
+     * few hundred packets. Returns early when a handover asks for an immediate reconnect or the session stops.
+     *
+     * @throws IOException if the tun went away.
+     */
+    private void awaitReconnect(NativeSession nativeSession, ParcelFileDescriptor vpn, TunnelOptions options, UplinkBacklog backlog, long delayMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + delayMillis;
+        ByteBuffer packet = ByteBuffer.allocate(options.tunMtu());
+        try (TunDevice tun = new FdTunDevice(vpn.getFileDescriptor())) {
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0 &&
+                    !nativeSession.stopped && !nativeSession.reconnecting.get()) {
+                if (!tun.awaitReadable((int) Math.min(remaining, TunnelCore.IDLE_POLL_MILLIS))) {
+                    continue;
+                }
+                packet.clear();
+                int length = tun.read(packet);
+                if (length == -1) {
+                    throw new EOFException();
+                }
+                if (length > 0) {
+                    backlog.offer(packet.array(), 0, length);
                 }
-                return baos.toByteArray();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
             }
         }
     }
 
-    private void startNative(final ParcelFileDescriptor vpn, String vpnHost, int vpnPort) {
-        Log.d(TAG, "startNative vpnHost=" + vpnHost + ", vpnPort=" + vpnPort + ", vpnServerThread=" + vpnServerThread);
-        if (vpnServerThread != null) {
-            return;
+    /**
+     * @return the server to close with the connection, null if it could not bind, discovery is optional.
+     */
+    private ApplicationDiscoverServer startApplicationDiscoverServer(SocketAddress socketAddress) {
+        ApplicationDiscoverServer server;
+        try {
+            server = new ApplicationDiscoverServer(socketAddress);
+        } catch (SocketException e) {
+            Log.d(TAG, "start udp server failed: " + socketAddress, e);
+            return null;
+        }
+        Thread udpServerThread = new Thread(server, "Discover " + socketAddress);
+        udpServerThread.setDaemon(true);
+        udpServerThread.start();
+        return server;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
         }
-        vpnServerThread = new Thread(() -> {
-            try (Socket socket = new Socket()) {
+    }
+
+    private void runStreamEngine(NativeSession nativeSession, ParcelFileDescriptor vpn, String vpnHost, int vpnPort, TunnelOptions options, TunnelSession session, UplinkBacklog backlog) throws IOException {
+        int stripes = options.stripes;
+        List<Socket> sockets = new ArrayList<>(stripes);
+        List<ApplicationDiscoverServer> discoverServers = new ArrayList<>(stripes);
+        int tunMtu = options.tunMtu();
+        FlowOwnerTracker ownerTracker = null;
+        if (options.ownerPush) {
+            ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+            ownerTracker = new FlowOwnerTracker(cm::getConnectionOwnerUid, packageCache, discoveryExecutor);
+        }
+        UdpBreakout breakout = null;
+        DnsStub dnsStub = null;
+        DnsCache cache = dnsCache;
+        try (FdTunDevice tun = new FdTunDevice(vpn.getFileDescriptor())) {
+            if (options.breakout != null && options.breakout.hasDirectUdp()) {
+                breakout = new UdpBreakout(options.breakout, this::protect, tun.getWriteChannel(), tunMtu);
+                Thread thread = new Thread(breakout, "UDP breakout");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            if (cache != null) {
+                Map<Integer, InetSocketAddress> servers = new HashMap<>();
+                for (InetAddress dns : getDns()) {
+                    servers.put((int) IPUtil.toLong(dns), new InetSocketAddress(dns, DnsStub.DNS_PORT));
+                }
+                try {
+                    dnsStub = new DnsStub(cache, servers, options.dnsPrefetch, this::protect, tun.getWriteChannel(), tunMtu);
+                    Thread thread = new Thread(dnsStub, "DNS stub");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    Log.w(TAG, "dns stub failed, queries go through the tunnel", e);
+                }
+            }
+            int mtu = tunMtu;
+            TunnelParameters[] parameters = new TunnelParameters[stripes];
+            for (int i = 0; i < stripes; i++) {
+                Socket socket = new Socket();
+                sockets.add(socket);
+                nativeSession.register(socket);
                 protect(socket);
-                socket.connect(new InetSocketAddress(vpnHost, vpnPort), 15000);
-                Log.d(TAG, "Connected to vpn server: " + socket);
-                {
-                    Thread udpServerThread = new Thread(new ApplicationDiscoverServer(socket.getLocalSocketAddress()));
-                    udpServerThread.setDaemon(true);
-                    udpServerThread.start();
+                if (options.socketSendBuffer > 0) {
+                    socket.setSendBufferSize(options.socketSendBuffer);
                 }
+                socket.connect(new InetSocketAddress(vpnHost, vpnPort), 15000);
+                Log.d(TAG, "Connected to vpn server: " + socket + ", stripe=" + (i + 1) + "/" + stripes);
+                discoverServers.add(startApplicationDiscoverServer(socket.getLocalSocketAddress()));
 
-                InputStream inputStream = socket.getInputStream();
                 OutputStream outputStream = socket.getOutputStream();
-                int mtu = MTU;
-                try (InputStream vpnInput = new FileInputStream(vpn.getFileDescriptor());
-                     OutputStream vpnOutput = new FileOutputStream(vpn.getFileDescriptor())) {
-                    DataOutput output = new DataOutputStream(outputStream);
-                    int osType = 0x0;
-                    File dir = getExternalFilesDir(null);
-                    // /sdcard/Android/data/com.github.zhkl0228.androidvpn/files/vpn_config.txt
-                    File configFile = dir == null ? null : new File(dir, "vpn_config.txt");
-                    Log.d(TAG, "vpn config path: " + configFile);
-                    byte[] configData = null;
-                    if (configFile != null && configFile.canRead()) {
-                        try (FileInputStream fileInputStream = new FileInputStream(configFile);
-                             ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                            FileUtils.copy(fileInputStream, baos);
-                            configData = baos.toByteArray();
-                        } catch (Exception e) {
-                            Log.w(TAG, "read vpn config failed: " + configFile, e);
+                writeHandshake(outputStream, (ownerTracker != null ? OS_TYPE_OWNER_PUSH : 0) |
+                        (options.negotiates() ? OS_TYPE_EXTENDED : 0) | (options.ping ? OS_TYPE_PING : 0), session,
+                        options.sendsConfigByHash() ? socket : null);
+                if (options.negotiates()) {
+                    parameters[i] = negotiate(socket, options);
+                    mtu = Math.min(mtu, parameters[i].mtu);
+                }
+            }
+            if (mtu < tunMtu) {
+                Log.w(TAG, "server agreed to mtu=" + mtu + " below the tun mtu=" + tunMtu + ", TCP is clamped and larger packets answered with ICMP too big");
+            }
+            TunnelCore core = new TunnelCore(tun, VPN_MAGIC, mtu, new PacketBufferPool(tunMtu, options.packetBuffers), metrics);
+            if (options.schedulesUplink()) {
+                core.setUplinkScheduler(new UplinkScheduler(options.schedulerPackets, options.schedulerQuantum, metrics));
+            }
+            for (int i = 0; i < stripes; i++) {
+                // compressed only once the server acknowledged it in the extended handshake
+                boolean compression = parameters[i] != null && parameters[i].compression();
+                core.addStripe(sockets.get(i), parameters[i], compression, options.ping ? new TunnelHealth(options.pingMillis, System.nanoTime()) : null);
+            }
+            if (breakout != null || dnsStub != null || ownerTracker != null) {
+                UdpBreakout packetBreakout = breakout;
+                DnsStub packetDnsStub = dnsStub;
+                FlowOwnerTracker packetOwnerTracker = ownerTracker;
+                core.setUplinkFilter(new TunnelCore.UplinkFilter() {
+                    @Override
+                    public boolean onUplinkPacket(ByteBuffer packet, FrameSink sink) throws IOException {
+                        if (packetDnsStub != null && packetDnsStub.onUplinkPacket(packet)) {
+                            return true;
                         }
-                    }
-                    if (configData != null) {
-                        osType |= 0x80;
-                    }
-                    output.writeByte(osType);
-                    if (configData != null) {
-                        Locale locale = Locale.getDefault();
-                        try {
-                            JSONObject obj = new JSONObject();
-                            obj.put("locale", locale.toString());
-                            obj.put("language", locale.getLanguage());
-                            obj.put("country", locale.getCountry());
-                            obj.put("config", Base64.encodeToString(configData, Base64.NO_WRAP));
-                            String json = obj.toString();
-                            Log.d(TAG, "vpn config path: " + configFile + ", json=" + json);
-                            output.writeUTF(json);
-                        } catch (JSONException e) {
-                            Log.w(TAG, "write vpn config failed: " + configFile, e);
+                        if (packetBreakout != null && packetBreakout.onUplinkPacket(packet)) {
+                            return true;
                         }
-                    }
-                    Thread thread = new Thread(new StreamForward(new DataInputStream(inputStream), vpnOutput, mtu));
-                    thread.start();
-                    byte[] packet = new byte[mtu];
-                    while (true) {
-                        int length = vpnInput.read(packet);
-                        if (length == -1) {
-                            throw new EOFException();
+                        if (packetOwnerTracker != null) {
+                            packetOwnerTracker.onUplinkPacket(packet, sink);
                         }
-                        if (length > 0) {
-                            if (length > mtu) {
-                                throw new IOException("Invalid mtu=" + mtu + ", length=" + length);
-                            }
-                            output.writeShort(length);
-                            for (int i = 0; i < length; i++) {
-                                packet[i] ^= VPN_MAGIC;
-                            }
-                            output.write(packet, 0, length);
-                            outputStream.flush();
+                        return false;
+                    }
+
+                    @Override
+                    public int onIdle(FrameSink sink) throws IOException {
+                        if (packetOwnerTracker == null) {
+                            return TunnelCore.IDLE_POLL_MILLIS;
                         }
+                        packetOwnerTracker.drain(sink);
+                        return packetOwnerTracker.hasPending() ? FlowOwnerTracker.DRAIN_MILLIS : TunnelCore.IDLE_POLL_MILLIS;
                     }
+                });
+            }
+            if (captureRing != null) {
+                core.setPacketTap(captureTap);
+            }
+            core.run(backlog);
+        } finally {
+            for (Socket socket : sockets) {
+                nativeSession.unregister(socket);
+            }
+            if (breakout != null) {
+                breakout.close();
+                Log.d(TAG, "uplink " + breakout);
+            }
+            if (dnsStub != null) {
+                dnsStub.close();
+                Log.d(TAG, "uplink " + dnsStub);
+            }
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+            for (ApplicationDiscoverServer server : discoverServers) {
+                closeQuietly(server);
+            }
+            if (ownerTracker != null) {
+                Log.d(TAG, "uplink " + ownerTracker);
+            }
+        }
+    }
+
+    /**
+     * Sends the proposal of the extended handshake and waits for the server's answer.
+     *
+     * @return the parameters both ends support.
+     */
+    private static TunnelParameters negotiate(Socket socket, TunnelOptions options) throws IOException {
+        int features = TunnelParameters.FEATURE_SUPER_FRAMES | (options.compression ? TunnelParameters.FEATURE_COMPRESSION : 0);
+        TunnelParameters proposal = new TunnelParameters(TunnelParameters.VERSION, options.mtu, options.maxFrameSize, features);
+        try {
+            TunnelParameters agreed = proposal.negotiate(socket, 15000);
+            Log.d(TAG, "negotiated " + agreed + " with " + socket.getRemoteSocketAddress());
+            if (options.compression && !agreed.compression()) {
+                Log.w(TAG, "server did not agree to compression, frames are sent uncompressed");
+            }
+            return agreed;
+        } catch (SocketTimeoutException e) {
+            throw new IOException("no answer to the extended handshake, set negotiate=false for this server", e);
+        }
+    }
+
+    private void runNioEngine(NativeSession nativeSession, ParcelFileDescriptor vpn, String vpnHost, int vpnPort, TunnelSession session, UplinkBacklog backlog) throws IOException {
+        ApplicationDiscoverServer discoverServer = null;
+        try (SocketChannel channel = SocketChannel.open()) {
+            Socket socket = channel.socket();
+            // the engine polls a duplicate of the fd, only a shutdown wakes it
+            Closeable closer = () -> {
+                try {
+                    socket.shutdownInput();
+                } finally {
+                    channel.close();
                 }
-            } catch (IOException e) {
-                Log.d(TAG, "loop vpn server failed", e);
+            };
+            nativeSession.register(closer);
+            protect(socket);
+            socket.connect(new InetSocketAddress(vpnHost, vpnPort), 15000);
+            Log.d(TAG, "Connected to vpn server: " + socket + ", engine=nio");
+            discoverServer = startApplicationDiscoverServer(socket.getLocalSocketAddress());
+
+            writeHandshake(socket.getOutputStream(), 0, session, null);
+            if (backlog.size() > 0) {
+                Log.d(TAG, "sending " + backlog);
+                FrameWriter writer = new FrameWriter(socket.getOutputStream(), VPN_MAGIC, MTU);
+                ByteBuffer packet;
+                while ((packet = backlog.poll()) != null) {
+                    if (packet.remaining() <= MTU) {
+                        writer.writeFrame(packet);
+                    }
+                }
+                writer.flush();
+            }
+            channel.configureBlocking(false);
+            try (ParcelFileDescriptor socketFd = ParcelFileDescriptor.fromSocket(socket)) {
+                NioTunnelEngine engine = new NioTunnelEngine(vpn.getFileDescriptor(), channel, socketFd.getFileDescriptor(), VPN_MAGIC, MTU);
+                try {
+                    engine.run();
+                } finally {
+                    Log.d(TAG, "nio engine exit, droppedPackets=" + engine.getDroppedPackets());
+                }
+            } finally {
+                nativeSession.unregister(closer);
             }
+        } finally {
+            closeQuietly(discoverServer);
+        }
+    }
 
-            ParcelFileDescriptor fd = this.vpn;
+    private void runDatagramTransport(NativeSession nativeSession, ParcelFileDescriptor vpn, String vpnHost, int vpnPort, int mtu, int keepaliveMillis,
+                                      TunnelSession session, UplinkBacklog backlog) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            nativeSession.register(socket);
             try {
-                if (fd != null) {
-                    fd.close();
+                runDatagramTunnel(vpn, socket, vpnHost, vpnPort, mtu, keepaliveMillis, session, backlog);
+            } finally {
+                nativeSession.unregister(socket);
+            }
+        }
+    }
+
+    /**
+     * @param mtu of the tun, small enough for one unfragmented datagram per packet.
+     */
+    private void runDatagramTunnel(ParcelFileDescriptor vpn, DatagramSocket socket, String vpnHost, int vpnPort, int mtu, int keepaliveMillis,
+                                   TunnelSession session, UplinkBacklog backlog) throws IOException {
+        protect(socket);
+        socket.connect(new InetSocketAddress(vpnHost, vpnPort));
+        // a resumed session keeps its datagram session id
+        DatagramTunnel tunnel = new DatagramTunnel(socket, VPN_MAGIC, mtu, session == null ? new SecureRandom().nextLong() : session.token, keepaliveMillis);
+        ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+        writeHandshake(handshake, 0, session, null);
+        tunnel.handshake(handshake.toByteArray(), 6, 500);
+        Log.d(TAG, "Connected to vpn server: " + socket.getRemoteSocketAddress() + ", transport=udp, session=" + Long.toHexString(tunnel.getSession()));
+
+        // discovery queries arrive on the tunnel socket itself, no server of their own
+        DatagramTunnel.DatagramHandler datagramHandler = discovery.datagramHandler(socket);
+        try (TunDevice tun = new FdTunDevice(vpn.getFileDescriptor())) {
+            Thread thread = new Thread(() -> {
+                try {
+                    tunnel.receive((buffer, offset, length) -> {
+                        metrics.downlinkPackets.record(length);
+                        metrics.tunWrites.increment();
+                        ByteBuffer packet = ByteBuffer.wrap(buffer, offset, length);
+                        captureTap.onPacket(packet, false);
+                        tun.write(packet);
+                    }, datagramHandler);
+                } catch (IOException e) {
+                    Log.w(TAG, "datagram forward", e);
                 }
-                this.vpn = null;
+                Log.d(TAG, "datagram " + tunnel.getHealth());
+                socket.close();
+            }, "Datagram forward");
+            thread.start();
+            ByteBuffer queued;
+            while ((queued = backlog.poll()) != null) {
+                if (queued.remaining() <= mtu) {
+                    tunnel.send(queued.array(), 0, queued.remaining());
+                }
+            }
+            ByteBuffer packet = ByteBuffer.allocate(mtu);
+            while (true) {
+                if (!tun.awaitReadable(TunnelCore.IDLE_POLL_MILLIS)) {
+                    if (socket.isClosed()) {
+                        throw new SocketException("tunnel socket closed");
+                    }
+                    continue;
+                }
+                packet.clear();
+                int length = tun.read(packet);
+                metrics.tunReads.increment();
+                if (length == -1) {
+                    throw new EOFException();
+                }
+                if (length > 0) {
+                    packet.flip();
+                    captureTap.onPacket(packet, true);
+                    tunnel.send(packet.array(), 0, length);
+                    metrics.uplinkPackets.record(length);
+                    metrics.socketWrites.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param flags {@code OS_TYPE_*} features this session uses.
+     * @param session sent after the config when not null.
+     * @param exchange the connection to offer the config by hash on, null sends it inline.
+     */
+    private void writeHandshake(OutputStream outputStream, int flags, TunnelSession session, Socket exchange) throws IOException {
+        DataOutputStream output = new DataOutputStream(outputStream);
+        int osType = flags;
+        File dir = getExternalFilesDir(null);
+        // /sdcard/Android/data/com.github.zhkl0228.androidvpn/files/vpn_config.txt
+        File configFile = dir == null ? null : new File(dir, VpnConfig.FILE_NAME);
+        VpnConfig config = null;
+        try {
+            config = vpnConfigCache.get(configFile);
+        } catch (Exception e) {
+            Log.w(TAG, "read vpn config failed: " + configFile, e);
+        }
+        String json = null;
+        if (config != null) {
+            try {
+                JSONObject obj = localeHeader();
+                if (exchange == null) {
+                    obj.put("config", Base64.encodeToString(config.data, Base64.NO_WRAP));
+                }
+                json = obj.toString();
+            } catch (JSONException e) {
+                Log.w(TAG, "write vpn config failed: " + configFile, e);
+                config = null;
+            }
+        }
+        if (config != null && exchange == null && !VpnConfig.fitsInline(json)) {
+            Log.w(TAG, "vpn config not sent, " + config + " is too large to send inline, set configByHash=true: " + configFile);
+            config = null;
+        }
+        if (config != null) {
+            osType |= exchange != null ? OS_TYPE_CONFIG_HASH : OS_TYPE_CONFIG;
+        }
+        if (session != null) {
+            osType |= OS_TYPE_RESUME;
+        }
+        output.writeByte(osType);
+        if (config != null) {
+            if (exchange != null) {
+                Log.d(TAG, "vpn config path: " + configFile + ", " + config + ", header=" + json);
+                config.writeOffer(output, json);
+                output.flush();
+                if (readConfigReply(exchange)) {
+                    config.writeData(output);
+                    Log.d(TAG, "sent " + config + " as " + config.getEncodedSize() + " bytes");
+                }
+            } else {
+                Log.d(TAG, "vpn config path: " + configFile + ", json=" + json);
+                output.writeUTF(json);
+            }
+        }
+        if (session != null) {
+            session.write(output);
+        }
+    }
+
+    /**
+     * The JSON the config travels in, without the config itself.
+     */
+    private static JSONObject localeHeader() throws JSONException {
+        Locale locale = Locale.getDefault();
+        JSONObject obj = new JSONObject();
+        obj.put("locale", locale.toString());
+        obj.put("language", locale.getLanguage());
+        obj.put("country", locale.getCountry());
+        return obj;
+    }
+
+    /**
+     * @return true if the server asked for the config it was offered.
+     */
+    private static boolean readConfigReply(Socket socket) throws IOException {
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(15000);
+        try {
+            return VpnConfig.readReply(new DataInputStream(socket.getInputStream()));
+        } catch (SocketTimeoutException e) {
+            throw new IOException("no answer to the config offer, set configByHash=false for this server", e);
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    private TunnelOptions loadTunnelOptions() {
+        File dir = getExternalFilesDir(null);
+        // /sdcard/Android/data/com.github.zhkl0228.androidvpn/files/vpn_tunnel.properties
+        File optionsFile = dir == null ? null : new File(dir, TunnelOptions.FILE_NAME);
+        try {
+            return TunnelOptions.load(optionsFile);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "read tunnel options failed: " + optionsFile, e);
+            return new TunnelOptions(new Properties());
+        }
+    }
+
+    /**
+     * Starts capturing into a fresh {@link #CAPTURE_FILE_NAME} if the options ask for it, and stops a
+     * capture they no longer do.
+     */
+    private void openCapture(TunnelOptions options) {
+        File dir = getExternalFilesDir(null);
+        PcapRing ring = null;
+        if (options.capture && dir != null) {
+            try {
+                ring = newCaptureRing(dir, options);
+                Log.i(TAG, "capturing into " + new File(dir, CAPTURE_FILE_NAME) + ", " + ring);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "open capture failed", e);
+            }
+        }
+        PcapRing retired = captureRing;
+        captureRing = ring;
+        if (retired != null) {
+            try {
+                retired.close();
             } catch (IOException ignored) {
             }
-            vpnServerThread = null;
-        }, "Connect vpn server");
-        vpnServerThread.setPriority(Thread.MAX_PRIORITY);
-        vpnServerThread.start();
+        }
+    }
+
+    /**
+     * Unlinks the ring file first, a ring still mapping it keeps its pages and never sees a truncation.
+     */
+    private static PcapRing newCaptureRing(File dir, TunnelOptions options) throws IOException {
+        File file = new File(dir, CAPTURE_FILE_NAME);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("delete " + file + " failed");
+        }
+        return new PcapRing(file, options.captureBytes, options.captureSnaplen, options.captureSampling);
+    }
+
+    /**
+     * Writes the capture to a pcapng file next to the ring on a thread of its own, the engines keep
+     * capturing while it is copied.
+     *
+     * @param rotate start a fresh ring first, the dump then holds exactly what the old one captured.
+     */
+    private void dumpCapture(PrintWriter writer, boolean rotate) {
+        PcapRing ring = captureRing;
+        TunnelOptions options = sessionOptions;
+        File dir = getExternalFilesDir(null);
+        if (ring == null || dir == null) {
+            writer.println("capture is off, set capture=true in " + TunnelOptions.FILE_NAME);
+            return;
+        }
+        if (rotate) {
+            try {
+                captureRing = newCaptureRing(dir, options);
+            } catch (IOException | IllegalArgumentException e) {
+                writer.println("rotate capture failed: " + e);
+                return;
+            }
+        }
+        File file = new File(dir, String.format(Locale.ROOT, "capture-%1$tY%1$tm%1$td-%1$tH%1$tM%1$tS.pcapng", System.currentTimeMillis()));
+        writer.println("writing " + ring + " to " + file);
+        Thread thread = new Thread(() -> {
+            try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024)) {
+                long packets = ring.dump(outputStream);
+                Log.i(TAG, "wrote " + packets + " captured packets to " + file);
+            } catch (IOException e) {
+                Log.w(TAG, "dump capture failed: " + file, e);
+            }
+            if (rotate) {
+                try {
+                    ring.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }, "Capture dump");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private AppPolicy loadAppPolicy() {
+        File dir = getExternalFilesDir(null);
+        // /sdcard/Android/data/com.github.zhkl0228.androidvpn/files/vpn_apps.txt
+        File policyFile = dir == null ? null : new File(dir, AppPolicy.FILE_NAME);
+        try {
+            return appPolicyCache.get(policyFile);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "read app policy failed: " + policyFile, e);
+            return null;
+        }
     }
 
     private ParcelFileDescriptor startVPN(Builder builder) throws SecurityException {
@@ -423,7 +1037,7 @@ public class InspectorVpnService extends VpnService {
         }
     }
 
-    private Builder getBuilder(String vpnHost) {
+    private Builder getBuilder(String vpnHost, TunnelOptions options) {
         // Build VPN service
         Builder builder = new Builder();
         builder.setSession("Inspector");
@@ -454,7 +1068,9 @@ public class InspectorVpnService extends VpnService {
             if (dns instanceof Inet4Address) {
                 Log.i(TAG, "dns=" + dns + ", address=" + dns.getHostAddress());
                 builder.addDnsServer(dns);
-                listExclude.add(new IPUtil.CIDR(dns.getHostAddress(), 24));
+                if (!options.servesDns()) {
+                    listExclude.add(new IPUtil.CIDR(dns.getHostAddress(), 24));
+                }
             }
         }
 
@@ -540,50 +1156,48 @@ public class InspectorVpnService extends VpnService {
         // Broadcast
         listExclude.add(new IPUtil.CIDR("224.0.0.0", 3));
 
-        Collections.sort(listExclude);
-
-        try {
-            InetAddress start = InetAddress.getByName("0.0.0.0");
-            for (IPUtil.CIDR exclude : listExclude) {
-                Log.i(TAG, "Exclude " + exclude.getStart().getHostAddress() + "..." + exclude.getEnd().getHostAddress());
-                for (IPUtil.CIDR include : IPUtil.toCIDR(start, IPUtil.minus1(exclude.getStart()))) {
-                    try {
-                        builder.addRoute(include.address, include.prefix);
-                    } catch (Throwable ex) {
-                        Log.e(TAG, ex + "\n" + Log.getStackTraceString(ex));
-                    }
-                }
-                start = IPUtil.plus1(exclude.getEnd());
+        // Route everything else, overlapping exclusions are merged first
+        IPUtil.RangeSet routes = new IPUtil.RangeSet(listExclude.size() + 1);
+        for (IPUtil.CIDR exclude : listExclude)
+            routes.add(exclude);
+        if (options.breakout != null)
+            options.breakout.addRouteExclusions(routes);
+        routes.complement();
+        // Multicast and broadcast are excluded above only to be routed as a whole
+        routes.addCIDR(0xE0000000, 3);
+        long start = System.nanoTime();
+        int count = routes.forEachCIDR((address, prefix) -> {
+            try {
+                builder.addRoute(IPUtil.toString(address), prefix);
+            } catch (Throwable ex) {
+                Log.e(TAG, ex + "\n" + Log.getStackTraceString(ex));
             }
-            for (IPUtil.CIDR include : IPUtil.toCIDR("224.0.0.0", "255.255.255.255"))
-                try {
-                    builder.addRoute(include.address, include.prefix);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex + "\n" + Log.getStackTraceString(ex));
-                }
-        } catch (UnknownHostException ex) {
-            Log.e(TAG, ex + "\n" + Log.getStackTraceString(ex));
+        });
+        Log.i(TAG, "Excluded " + listExclude.size() + " ranges, " + count + " routes in " + (System.nanoTime() - start) / 1000 + "us");
+
+        AppPolicy appPolicy = loadAppPolicy();
+        if (appPolicy != null) {
+            int applied = appPolicy.apply(builder, getPackageName());
+            Log.i(TAG, appPolicy + ", applied=" + applied);
         }
 
 //        builder.addRoute("0:0:0:0:0:0:0:0", 0);
-        builder.setMtu(MTU);
-        builder.setBlocking(true);
+        builder.setMtu(options.tunMtu());
+        builder.setBlocking(options.engine != TunnelOptions.Engine.nio);
 
         return builder;
     }
 
     @SuppressWarnings("deprecation")
     private class Builder extends VpnService.Builder {
-        private final NetworkInfo networkInfo;
         private int mtu;
         private final List<String> listAddress = new ArrayList<>();
         private final List<String> listRoute = new ArrayList<>();
         private final List<InetAddress> listDns = new ArrayList<>();
+        private final List<String> listApplication = new ArrayList<>();
 
         private Builder() {
             super();
-            ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-            networkInfo = cm == null ? null : cm.getActiveNetworkInfo();
         }
 
         @NonNull
@@ -618,6 +1232,22 @@ public class InspectorVpnService extends VpnService {
             return this;
         }
 
+        @NonNull
+        @Override
+        public Builder addAllowedApplication(@NonNull String packageName) throws PackageManager.NameNotFoundException {
+            super.addAllowedApplication(packageName);
+            listApplication.add("+" + packageName);
+            return this;
+        }
+
+        @NonNull
+        @Override
+        public Builder addDisallowedApplication(@NonNull String packageName) throws PackageManager.NameNotFoundException {
+            super.addDisallowedApplication(packageName);
+            listApplication.add("-" + packageName);
+            return this;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (!(obj instanceof Builder)) {
@@ -626,10 +1256,6 @@ public class InspectorVpnService extends VpnService {
 
             Builder other = (Builder) obj;
 
-            if (this.networkInfo == null || other.networkInfo == null ||
-                    this.networkInfo.getType() != other.networkInfo.getType())
-                return false;
-
             if (this.mtu != other.mtu)
                 return false;
 
@@ -654,6 +1280,9 @@ public class InspectorVpnService extends VpnService {
                 if (!other.listDns.contains(dns))
                     return false;
 
+            if (!this.listApplication.equals(other.listApplication))
+                return false;
+
             return true;
         }
     }
@@ -713,6 +1342,27 @@ public class InspectorVpnService extends VpnService {
 
         commandLooper = commandThread.getLooper();
         commandHandler = new CommandHandler(commandLooper);
+
+        packageCache = new PackageCache(this::loadPackages);
+        discoveryExecutor = Executors.newFixedThreadPool(DISCOVERY_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "Discovery lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        discovery = new ApplicationDiscovery(cm::getConnectionOwnerUid, packageCache, discoveryExecutor, metrics);
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(packageReceiver, packageFilter);
+
+        networkMonitor = new NetworkMonitor((network, reason) -> {
+            commandHandler.removeMessages(MSG_NETWORK_CHANGED);
+            commandHandler.sendEmptyMessageDelayed(MSG_NETWORK_CHANGED, NETWORK_SETTLE_MILLIS);
+        });
+        networkMonitor.register(cm);
     }
 
     public static final String VPN_HOST_KEY = "vpnHost";
@@ -744,11 +1394,41 @@ public class InspectorVpnService extends VpnService {
         return START_STICKY;
     }
 
+    /**
+     * {@code adb shell dumpsys activity service com.github.zhkl0228.androidvpn/.InspectorVpnService [--json|--capture|--capture-rotate]}
+     * <p>
+     * {@code --capture} writes the packets the capture ring holds to a pcapng file, {@code --capture-rotate}
+     * also starts a fresh ring.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        List<String> options = args == null ? Collections.emptyList() : Arrays.asList(args);
+        if (options.contains("--json")) {
+            writer.println(metrics.toJson());
+            return;
+        }
+        if (options.contains("--capture") || options.contains("--capture-rotate")) {
+            dumpCapture(writer, options.contains("--capture-rotate"));
+            return;
+        }
+        writer.println("vpn=" + (vpn != null) + ", server=" + sessionHost + ":" + sessionPort + ", options=" + sessionOptions);
+        metrics.dump(writer);
+        writer.println(packageCache);
+        writer.println(appPolicyCache);
+        writer.println(vpnConfigCache);
+        writer.println(captureRing);
+        writer.println(dnsCache);
+    }
+
     @Override
     public void onDestroy() {
         Log.i(TAG, "Destroy");
 
         commandLooper.quit();
+        unregisterReceiver(packageReceiver);
+        ((ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE)).unregisterNetworkCallback(networkMonitor);
+        discoveryExecutor.shutdownNow();
+        Log.d(TAG, "discovery " + packageCache);
 
         try {
             if (vpn != null) {
@@ -759,6 +1439,15 @@ public class InspectorVpnService extends VpnService {
         } catch (Throwable ex) {
             Log.e(TAG, ex + "\n" + Log.getStackTraceString(ex));
         }
+        PcapRing ring = captureRing;
+        if (ring != null) {
+            captureRing = null;
+            Log.d(TAG, "capture " + ring);
+            try {
+                ring.close();
+            } catch (IOException ignored) {
+            }
+        }
 
         super.onDestroy();
     }
@@ -0,0 +1,191 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Minimal compressor and decompressor for the LZ4 block format, the greedy single-probe variant
+ * which trades ratio for speed. Blocks interoperate with any LZ4 implementation given the raw length.
+ * <p>
+ * An instance owns the match table and must not be shared between threads.
+ */
+final class Lz4Block {
+
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 0xffff;
+    private static final int SKIP_TRIGGER = 6;
+
+    /**
+     * Positions relative to {@link #base}, anything below base belongs to an earlier block.
+     * This spares clearing the table for every packet.
+     */
+    private final int[] table = new int[1 << HASH_LOG];
+    private int base = 1;
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8) | ((data[offset + 2] & 0xff) << 16) | ((data[offset + 3] & 0xff) << 24);
+    }
+
+    /**
+     * @return compressed length, or -1 if the block would not fit into {@code maxLength} bytes.
+     */
+    int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int maxLength) {
+        if (base > Integer.MAX_VALUE - 2 * (srcLength + 1)) {
+            Arrays.fill(table, 0);
+            base = 1;
+        }
+        final int end = srcOffset + srcLength;
+        final int matchLimit = end - LAST_LITERALS;
+        final int mfLimit = end - MF_LIMIT;
+        final int dstEnd = dstOffset + maxLength;
+        int anchor = srcOffset;
+        int ip = srcOffset;
+        int op = dstOffset;
+        try {
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = table[h] - base + srcOffset;
+                table[h] = base + ip - srcOffset;
+                if (ref < srcOffset || ref >= ip || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, dst, op, dstEnd, ip - ref, matchLength);
+                if (op < 0) {
+                    return -1;
+                }
+                ip += matchLength;
+                anchor = ip;
+            }
+            op = writeSequence(src, anchor, end - anchor, dst, op, dstEnd, 0, 0);
+            return op < 0 ? -1 : op - dstOffset;
+        } finally {
+            base += srcLength + 1;
+        }
+    }
+
+    /**
+     * Writes literals followed by a match, or only literals for the last sequence when {@code matchLength} is 0.
+     *
+     * @return new output position, or -1 when {@code dstEnd} would be exceeded.
+     */
+    private static int writeSequence(byte[] src, int literalOffset, int literalLength, byte[] dst, int op, int dstEnd, int offset, int matchLength) {
+        int required = 1 + literalLength + literalLength / 255 + 1 + (matchLength == 0 ? 0 : 2 + matchLength / 255 + 1);
+        if (op + required > dstEnd) {
+            return -1;
+        }
+        int tokenPos = op++;
+        int token;
+        if (literalLength >= 15) {
+            token = 15 << 4;
+            op = writeLength(dst, op, literalLength - 15);
+        } else {
+            token = literalLength << 4;
+        }
+        System.arraycopy(src, literalOffset, dst, op, literalLength);
+        op += literalLength;
+        if (matchLength != 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            int length = matchLength - MIN_MATCH;
+            if (length >= 15) {
+                token |= 15;
+                op = writeLength(dst, op, length - 15);
+            } else {
+                token |= length;
+            }
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     * @return decompressed length, at most {@code maxLength}.
+     */
+    static int decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int maxLength) throws IOException {
+        final int srcEnd = srcOffset + srcLength;
+        final int dstEnd = dstOffset + maxLength;
+        int ip = srcOffset;
+        int op = dstOffset;
+        while (true) {
+            if (ip >= srcEnd) {
+                throw new IOException("lz4: truncated block");
+            }
+            int token = src[ip++] & 0xff;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new IOException("lz4: truncated literal length");
+                    }
+                    b = src[ip++] & 0xff;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > srcEnd - ip || literalLength > dstEnd - op) {
+                throw new IOException("lz4: literal overflow");
+            }
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip == srcEnd) {
+                return op - dstOffset;
+            }
+            if (srcEnd - ip < 2) {
+                throw new IOException("lz4: truncated offset");
+            }
+            int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+            ip += 2;
+            if (offset == 0 || offset > op - dstOffset) {
+                throw new IOException("lz4: invalid offset=" + offset);
+            }
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new IOException("lz4: truncated match length");
+                    }
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - op) {
+                throw new IOException("lz4: match overflow");
+            }
+            int ref = op - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * XOR masking with the tunnel magic. Heap buffers are masked by a plain loop over the backing array, which
+ * the compiler is free to vectorize. Direct buffers have no array to loop over and would pay a bounds check
+ * and a memory peek for every byte, so they go eight bytes per step through absolute
+ * {@link ByteBuffer#getLong(int)} and {@link ByteBuffer#putLong(int, long)}, followed by a scalar tail.
+ * <p>
+ * Every byte of the pattern is the same, so the byte order of a view does not change the result, only a copy
+ * between views of different order has to swap the words back. A direct view in native order saves the
+ * swap on every word, see {@code MaskBenchmark}.
+ */
+final class MaskCodec {
+
+    private MaskCodec() {
+    }
+
+    static long pattern(byte magic) {
+        return (magic & 0xffL) * 0x0101010101010101L;
+    }
+
+    /**
+     * Masks {@code length} bytes of {@code buffer} starting at {@code offset} in place.
+     */
+    static void mask(ByteBuffer buffer, int offset, int length, byte magic) {
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int start = buffer.arrayOffset() + offset;
+            for (int i = start, end = start + length; i < end; i++) {
+                array[i] ^= magic;
+            }
+            return;
+        }
+        long pattern = pattern(magic);
+        int i = offset;
+        int end = offset + length;
+        for (int wideEnd = end - 7; i < wideEnd; i += 8) {
+            buffer.putLong(i, buffer.getLong(i) ^ pattern);
+        }
+        for (; i < end; i++) {
+            buffer.put(i, (byte) (buffer.get(i) ^ magic));
+        }
+    }
+
+    /**
+     * Copies {@code length} bytes from {@code src} into {@code dst} masking them on the way, {@code src} is not modified.
+     */
+    static void mask(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset, int length, byte magic) {
+        if (src.hasArray() && dst.hasArray()) {
+            byte[] from = src.array();
+            byte[] to = dst.array();
+            int s = src.arrayOffset() + srcOffset;
+            int d = dst.arrayOffset() + dstOffset;
+            for (int i = 0; i < length; i++) {
+                to[d + i] = (byte) (from[s + i] ^ magic);
+            }
+            return;
+        }
+        long pattern = pattern(magic);
+        int i = 0;
+        if (src.order() == dst.order()) {
+            for (int wideEnd = length - 7; i < wideEnd; i += 8) {
+                dst.putLong(dstOffset + i, src.getLong(srcOffset + i) ^ pattern);
+            }
+        } else {
+            for (int wideEnd = length - 7; i < wideEnd; i += 8) {
+                dst.putLong(dstOffset + i, Long.reverseBytes(src.getLong(srcOffset + i)) ^ pattern);
+            }
+        }
+        for (; i < length; i++) {
+            dst.put(dstOffset + i, (byte) (src.get(srcOffset + i) ^ magic));
+        }
+    }
+
+}
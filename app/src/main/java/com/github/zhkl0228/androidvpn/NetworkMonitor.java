@@ -0,0 +1,142 @@
+package com.github.zhkl0228.androidvpn;
+
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Follows the physical networks below the VPN and reports when the one the tunnel should ride on changes,
+ * e.g. Wi-Fi to cellular, or when that network's addresses change. Our own VPN is left out of the request,
+ * and the state the system reports right after registering is taken as the starting point.
+ * <p>
+ * Callbacks arrive on a binder thread, {@link Listener#onNetworkChanged} is expected to hand the work
+ * over to the command thread.
+ */
+final class NetworkMonitor extends ConnectivityManager.NetworkCallback {
+
+    private static final String TAG = AndroidVPN.TAG;
+
+    interface Listener {
+        /**
+         * @param network the preferred underlying network now, null if there is none.
+         */
+        void onNetworkChanged(Network network, String reason);
+    }
+
+    private final Listener listener;
+    private final Map<Network, Integer> ranks = new HashMap<>();
+    private final Map<Network, Set<LinkAddress>> addresses = new HashMap<>();
+    private Network preferred;
+
+    NetworkMonitor(Listener listener) {
+        this.listener = listener;
+    }
+
+    void register(ConnectivityManager cm) {
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .build();
+        cm.registerNetworkCallback(request, this);
+    }
+
+    /**
+     * Higher is preferred, the way the system ranks default networks: wired and Wi-Fi before cellular.
+     */
+    private static int rank(NetworkCapabilities capabilities) {
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            return 3;
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            return 2;
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            return 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public void onCapabilitiesChanged(@NonNull Network network, @NonNull NetworkCapabilities capabilities) {
+        Integer rank = rank(capabilities);
+        boolean changed;
+        synchronized (this) {
+            // most calls only report a new signal strength or bandwidth
+            changed = !rank.equals(ranks.put(network, rank));
+        }
+        if (changed) {
+            update("capabilities " + network + " rank=" + rank);
+        }
+    }
+
+    @Override
+    public void onLost(@NonNull Network network) {
+        synchronized (this) {
+            ranks.remove(network);
+            addresses.remove(network);
+        }
+        update("lost " + network);
+    }
+
+    /**
+     * Only new addresses matter to the tunnel, its sockets are bound to the old ones. DNS or route updates are ignored.
+     */
+    @Override
+    public void onLinkPropertiesChanged(@NonNull Network network, @NonNull LinkProperties linkProperties) {
+        List<LinkAddress> linkAddresses = linkProperties.getLinkAddresses();
+        Set<LinkAddress> current = linkAddresses == null ? Collections.<LinkAddress>emptySet() : new HashSet<>(linkAddresses);
+        boolean changed;
+        synchronized (this) {
+            Set<LinkAddress> previous = addresses.put(network, current);
+            changed = previous != null && !previous.equals(current) && network.equals(preferred);
+        }
+        if (changed) {
+            Log.d(TAG, "underlying addresses changed " + network + " " + linkProperties.getInterfaceName() + " " + current);
+            listener.onNetworkChanged(network, "addresses " + network);
+        }
+    }
+
+    private void update(String reason) {
+        Network previous;
+        Network next = null;
+        synchronized (this) {
+            int best = -1;
+            for (Map.Entry<Network, Integer> entry : ranks.entrySet()) {
+                if (entry.getValue() > best) {
+                    best = entry.getValue();
+                    next = entry.getKey();
+                }
+            }
+            Integer current = preferred == null ? null : ranks.get(preferred);
+            if (current != null && current == best) {
+                // a tie keeps the network the tunnel already uses
+                next = preferred;
+            }
+            previous = preferred;
+            preferred = next;
+        }
+        if (!Objects.equals(previous, next)) {
+            Log.d(TAG, "underlying network " + previous + " -> " + next + ", " + reason);
+            listener.onNetworkChanged(next, reason);
+        }
+    }
+
+    synchronized Network getPreferred() {
+        return preferred;
+    }
+
+}
@@ -0,0 +1,199 @@
+package com.github.zhkl0228.androidvpn;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Serves both tunnel directions from the calling thread: a non-blocking tun fd and a non-blocking
+ * {@link SocketChannel} are polled together, and packets only ever live in two direct buffers.
+ * <p>
+ * Tun packets are read straight behind a reserved frame header in the uplink buffer and masked in place,
+ * downlink frames are unmasked in place and written to the tun fd from the buffer they were received in.
+ */
+class NioTunnelEngine {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 2;
+    private static final int POLL_TIMEOUT_MILLIS = 1000;
+
+    private final FileDescriptor tun;
+    private final SocketChannel channel;
+    private final byte magic;
+    private final int mtu;
+
+    /**
+     * Encoded frames waiting for the socket, in write mode.
+     */
+    private final ByteBuffer uplink;
+    /**
+     * Socket bytes not yet decoded, in write mode.
+     */
+    private final ByteBuffer downlink;
+    /**
+     * Native order views of the two buffers for {@link MaskCodec}, so its words need no byte swap.
+     */
+    private final ByteBuffer uplinkMask;
+    private final ByteBuffer downlinkMask;
+
+    private final StructPollfd tunPoll = new StructPollfd();
+    private final StructPollfd socketPoll = new StructPollfd();
+    private final StructPollfd[] pollfds = new StructPollfd[]{tunPoll, socketPoll};
+
+    private long droppedPackets;
+
+    /**
+     * @param socketFd a descriptor of the channel's socket, only used for polling.
+     */
+    NioTunnelEngine(FileDescriptor tun, SocketChannel channel, FileDescriptor socketFd, byte magic, int mtu) {
+        if (channel.isBlocking()) {
+            throw new IllegalArgumentException("channel must be non-blocking");
+        }
+        this.tun = tun;
+        this.channel = channel;
+        this.magic = magic;
+        this.mtu = mtu;
+        this.uplink = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, mtu + HEADER_SIZE));
+        this.downlink = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, mtu + HEADER_SIZE));
+        this.uplinkMask = uplink.duplicate().order(ByteOrder.nativeOrder());
+        this.downlinkMask = downlink.duplicate().order(ByteOrder.nativeOrder());
+        tunPoll.fd = tun;
+        socketPoll.fd = socketFd;
+    }
+
+    /**
+     * Loops until the channel is closed or either side fails. The owner stops it by shutting down and closing
+     * the channel, never by interrupting the thread, which would close the tun along with it.
+     */
+    void run() throws IOException {
+        final int errorEvents = OsConstants.POLLERR | OsConstants.POLLHUP | OsConstants.POLLNVAL;
+        while (channel.isOpen()) {
+            tunPoll.events = (short) (uplink.remaining() >= mtu + HEADER_SIZE ? OsConstants.POLLIN : 0);
+            socketPoll.events = (short) (OsConstants.POLLIN | (uplink.position() > 0 ? OsConstants.POLLOUT : 0));
+            tunPoll.revents = 0;
+            socketPoll.revents = 0;
+            try {
+                if (Os.poll(pollfds, POLL_TIMEOUT_MILLIS) == 0) {
+                    continue;
+                }
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EINTR) {
+                    continue;
+                }
+                throw e.rethrowAsIOException();
+            }
+            if ((tunPoll.revents & errorEvents) != 0) {
+                throw new EOFException("tun revents=" + tunPoll.revents);
+            }
+            if ((tunPoll.revents & OsConstants.POLLIN) != 0) {
+                readTun();
+            }
+            if ((socketPoll.revents & (OsConstants.POLLIN | errorEvents)) != 0) {
+                readSocket();
+            }
+            if (uplink.position() > 0) {
+                writeSocket();
+            }
+        }
+    }
+
+    /**
+     * @return downlink packets the tun fd refused, the engine drops them like a full interface queue would.
+     */
+    long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    private void readTun() throws IOException {
+        while (uplink.remaining() >= mtu + HEADER_SIZE) {
+            int start = uplink.position();
+            uplink.position(start + HEADER_SIZE);
+            uplink.limit(start + HEADER_SIZE + mtu);
+            int length;
+            try {
+                length = Os.read(tun, uplink);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EAGAIN) {
+                    length = -1;
+                } else {
+                    throw e.rethrowAsIOException();
+                }
+            } finally {
+                uplink.limit(uplink.capacity());
+            }
+            if (length == 0) {
+                throw new EOFException("tun closed");
+            }
+            if (length < 0) {
+                uplink.position(start);
+                break;
+            }
+            uplink.put(start, (byte) (length >>> 8));
+            uplink.put(start + 1, (byte) length);
+            MaskCodec.mask(uplinkMask, start + HEADER_SIZE, length, magic);
+        }
+    }
+
+    private void writeSocket() throws IOException {
+        uplink.flip();
+        try {
+            channel.write(uplink);
+        } finally {
+            uplink.compact();
+        }
+    }
+
+    private void readSocket() throws IOException {
+        int read = channel.read(downlink);
+        if (read == -1) {
+            throw new EOFException("vpn server closed");
+        }
+        downlink.flip();
+        try {
+            while (downlink.remaining() >= HEADER_SIZE) {
+                int start = downlink.position();
+                int length = ((downlink.get(start) & 0xff) << 8) | (downlink.get(start + 1) & 0xff);
+                if (length > mtu) {
+                    throw new IOException("length=" + length + ", mtu=" + mtu);
+                }
+                if (downlink.remaining() - HEADER_SIZE < length) {
+                    break;
+                }
+                int offset = start + HEADER_SIZE;
+                int end = offset + length;
+                if (length > 0) {
+                    MaskCodec.mask(downlinkMask, offset, length, magic);
+                    int limit = downlink.limit();
+                    downlink.limit(end);
+                    downlink.position(offset);
+                    writeTun(downlink);
+                    downlink.limit(limit);
+                }
+                downlink.position(end);
+            }
+        } finally {
+            downlink.compact();
+        }
+    }
+
+    private void writeTun(ByteBuffer packet) throws IOException {
+        try {
+            Os.write(tun, packet);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.EAGAIN || e.errno == OsConstants.ENOBUFS) {
+                droppedPackets++;
+            } else {
+                throw e.rethrowAsIOException();
+            }
+        }
+    }
+
+}
@@ -2,8 +2,11 @@ package com.github.zhkl0228.androidvpn;
 
 import androidx.annotation.NonNull;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.List;
 
 class Package {
 
@@ -28,4 +31,20 @@ class Package {
         dataOutput.writeUTF(String.valueOf(label));
         dataOutput.writeLong(versionCode);
     }
+
+    /**
+     * @return {@code [u8 count][package...]}, the tail of a discovery reply.
+     */
+    static byte[] encode(List<Package> packages) {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            DataOutput dataOutput = new DataOutputStream(baos);
+            dataOutput.writeByte(packages.size());
+            for (Package pkg : packages) {
+                pkg.output(dataOutput);
+            }
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
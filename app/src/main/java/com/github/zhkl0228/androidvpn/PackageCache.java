@@ -0,0 +1,151 @@
+package com.github.zhkl0228.androidvpn;
+
+import android.content.pm.PackageManager;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded LRU of the packages owning a uid, together with their encoded form for discovery replies.
+ * Package manager lookups are binder calls, while the server keeps asking about the same few uids.
+ * <p>
+ * Entries are dropped by {@link #invalidate(int)} when a package of the uid is added, replaced or removed.
+ * Thread safe, every discovery server shares one instance.
+ */
+final class PackageCache {
+
+    interface Loader {
+        /**
+         * @return packages of {@code uid}, or null if the uid has none.
+         */
+        List<Package> load(int uid) throws PackageManager.NameNotFoundException;
+    }
+
+    static final class Entry {
+        /**
+         * Never null, empty for a uid without packages.
+         */
+        final List<Package> packages;
+        /**
+         * {@code [u8 count][package...]}, the tail of a discovery reply.
+         */
+        final byte[] encoded;
+
+        Entry(List<Package> packages, byte[] encoded) {
+            this.packages = packages;
+            this.encoded = encoded;
+        }
+    }
+
+    /**
+     * Answer for a uid without packages or a lookup that failed.
+     */
+    static final Entry EMPTY = new Entry(Collections.emptyList(), new byte[]{0});
+
+    static final int DEFAULT_CAPACITY = 512;
+
+    private final Loader loader;
+    private final Map<Integer, Entry> entries;
+
+    /**
+     * Bumped by every invalidation, a load that raced with one is returned but not cached.
+     */
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    PackageCache(Loader loader) {
+        this(loader, DEFAULT_CAPACITY);
+    }
+
+    PackageCache(Loader loader, final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity=" + capacity);
+        }
+        this.loader = loader;
+        this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                if (size() > capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The lookup runs outside the lock, two threads missing the same uid at once both load it.
+     */
+    @NonNull
+    Entry get(int uid) throws PackageManager.NameNotFoundException {
+        long loadGeneration;
+        synchronized (this) {
+            Entry entry = entries.get(uid);
+            if (entry != null) {
+                hits++;
+                return entry;
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+        List<Package> packages = loader.load(uid);
+        Entry entry = packages == null ? EMPTY : new Entry(Collections.unmodifiableList(packages), Package.encode(packages));
+        synchronized (this) {
+            if (loadGeneration == generation) {
+                entries.put(uid, entry);
+            }
+        }
+        return entry;
+    }
+
+    synchronized void invalidate(int uid) {
+        generation++;
+        if (entries.remove(uid) != null) {
+            invalidations++;
+        }
+    }
+
+    synchronized void invalidateAll() {
+        generation++;
+        invalidations += entries.size();
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format(Locale.ROOT, "PackageCache{size=%d, hits=%d, misses=%d (%.1f%% hit), evictions=%d, invalidations=%d}",
+                entries.size(), hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, invalidations);
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed set of packet buffers sliced out of one direct allocation, so the hot path neither allocates
+ * nor copies through the Java heap on its way from the tun. The pool never grows: when every
+ * buffer is out {@link #acquire()} returns null and the caller decides whether to wait or drop.
+ * <p>
+ * Thread safe, a buffer may be acquired on one thread and released on another.
+ */
+final class PacketBufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> free;
+    /**
+     * Checked out flag of every buffer, only read after construction.
+     */
+    private final Map<ByteBuffer, AtomicBoolean> owned;
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    PacketBufferPool(int bufferSize, int capacity) {
+        if (bufferSize <= 0 || capacity <= 0 || (long) bufferSize * capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("bufferSize=" + bufferSize + ", capacity=" + capacity);
+        }
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.owned = new IdentityHashMap<>(capacity);
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * capacity);
+        for (int i = 0; i < capacity; i++) {
+            slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+            ByteBuffer buffer = slab.slice();
+            owned.put(buffer, new AtomicBoolean());
+            free.add(buffer);
+        }
+    }
+
+    /**
+     * @return a cleared buffer, or null if all of them are in use.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        return checkOut(buffer);
+    }
+
+    /**
+     * Waits up to {@code timeout} for a buffer to come back.
+     *
+     * @return a cleared buffer, or null on timeout.
+     */
+    ByteBuffer acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        ByteBuffer buffer = free.poll(timeout, unit);
+        return checkOut(buffer);
+    }
+
+    private ByteBuffer checkOut(ByteBuffer buffer) {
+        if (buffer == null) {
+            exhausted.incrementAndGet();
+            return null;
+        }
+        owned.get(buffer).set(true);
+        acquired.incrementAndGet();
+        int current = inUse.incrementAndGet();
+        int peak;
+        while (current > (peak = peakInUse.get()) && !peakInUse.compareAndSet(peak, current)) {
+            // retry
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back. Foreign buffers and double releases are caller bugs and throw.
+     */
+    void release(ByteBuffer buffer) {
+        AtomicBoolean checkedOut = buffer == null ? null : owned.get(buffer);
+        if (checkedOut == null) {
+            throw new IllegalArgumentException("buffer not from this pool: " + buffer);
+        }
+        if (!checkedOut.compareAndSet(true, false)) {
+            throw new IllegalStateException("buffer released twice");
+        }
+        inUse.decrementAndGet();
+        free.add(buffer);
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    int getCapacity() {
+        return owned.size();
+    }
+
+    int getInUse() {
+        return inUse.get();
+    }
+
+    int getPeakInUse() {
+        return peakInUse.get();
+    }
+
+    long getAcquired() {
+        return acquired.get();
+    }
+
+    long getExhausted() {
+        return exhausted.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "PacketBufferPool{bufferSize=%d, capacity=%d, inUse=%d, peakInUse=%d, acquired=%d, exhausted=%d}",
+                bufferSize, getCapacity(), getInUse(), getPeakInUse(), getAcquired(), getExhausted());
+    }
+
+}
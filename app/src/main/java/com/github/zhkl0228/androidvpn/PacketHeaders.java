@@ -0,0 +1,158 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation free accessors for the IP and transport headers of a raw tun packet.
+ * Offsets are absolute buffer indexes, so heap views and pooled direct buffers work alike.
+ */
+final class PacketHeaders {
+
+    static final int IPPROTO_TCP = 6;
+    static final int IPPROTO_UDP = 17;
+
+    private static final int IPV4_HEADER_MIN = 20;
+    private static final int IPV6_HEADER = 40;
+
+    private PacketHeaders() {
+    }
+
+    /**
+     * @return 4, 6 or 0 if the packet is too short to tell.
+     */
+    static int version(ByteBuffer packet, int offset, int length) {
+        if (length < 1) {
+            return 0;
+        }
+        int version = (packet.get(offset) & 0xff) >>> 4;
+        if (version == 4 && length >= IPV4_HEADER_MIN) {
+            return 4;
+        }
+        if (version == 6 && length >= IPV6_HEADER) {
+            return 6;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the transport protocol number, or -1 for a packet that is not IP.
+     */
+    static int protocol(ByteBuffer packet, int offset, int length) {
+        switch (version(packet, offset, length)) {
+            case 4:
+                return packet.get(offset + 9) & 0xff;
+            case 6:
+                return packet.get(offset + 6) & 0xff;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return offset of the TCP or UDP header within {@code packet}, or -1 for other protocols, truncated packets
+     * and IPv4 fragments that do not carry the transport header. IPv6 extension headers are not followed.
+     */
+    static int transportOffset(ByteBuffer packet, int offset, int length) {
+        int headerLength;
+        int protocol;
+        switch (version(packet, offset, length)) {
+            case 4:
+                if ((readShort(packet, offset + 6) & 0x1fff) != 0) {
+                    return -1;
+                }
+                headerLength = (packet.get(offset) & 0xf) * 4;
+                protocol = packet.get(offset + 9) & 0xff;
+                break;
+            case 6:
+                headerLength = IPV6_HEADER;
+                protocol = packet.get(offset + 6) & 0xff;
+                break;
+            default:
+                return -1;
+        }
+        int minTransport = protocol == IPPROTO_TCP ? 20 : protocol == IPPROTO_UDP ? 8 : -1;
+        if (minTransport == -1 || headerLength < IPV4_HEADER_MIN || length < headerLength + minTransport) {
+            return -1;
+        }
+        return offset + headerLength;
+    }
+
+    static int sourcePort(ByteBuffer packet, int transportOffset) {
+        return readShort(packet, transportOffset);
+    }
+
+    static int destinationPort(ByteBuffer packet, int transportOffset) {
+        return readShort(packet, transportOffset + 2);
+    }
+
+    /**
+     * Hash of protocol, addresses and - when present - ports. Every packet of one flow gets the same value,
+     * so anything keyed by it keeps per-flow order. Packets that are not IP all hash to 0.
+     */
+    static int flowHash(ByteBuffer packet, int offset, int length) {
+        int version = version(packet, offset, length);
+        int addressOffset;
+        int addressLength;
+        if (version == 4) {
+            addressOffset = offset + 12;
+            addressLength = 8;
+        } else if (version == 6) {
+            addressOffset = offset + 8;
+            addressLength = 32;
+        } else {
+            return 0;
+        }
+        int hash = protocol(packet, offset, length);
+        for (int i = addressOffset, end = addressOffset + addressLength; i < end; i += 4) {
+            hash = hash * 31 + readInt(packet, i);
+        }
+        int transportOffset = transportOffset(packet, offset, length);
+        if (transportOffset != -1) {
+            hash = hash * 31 + readInt(packet, transportOffset);
+        }
+        return mix(hash);
+    }
+
+    static int readShort(ByteBuffer data, int offset) {
+        return ((data.get(offset) & 0xff) << 8) | (data.get(offset + 1) & 0xff);
+    }
+
+    static int readInt(ByteBuffer data, int offset) {
+        return ((data.get(offset) & 0xff) << 24) | ((data.get(offset + 1) & 0xff) << 16) | ((data.get(offset + 2) & 0xff) << 8) | (data.get(offset + 3) & 0xff);
+    }
+
+    /**
+     * One's complement sum of 16 bit words in network order whatever the buffer's order, not yet folded.
+     */
+    static long sum(ByteBuffer data, int offset, int length, long sum) {
+        int end = offset + length;
+        int i = offset;
+        for (; i + 1 < end; i += 2) {
+            sum += readShort(data, i);
+        }
+        if (i < end) {
+            sum += (data.get(i) & 0xff) << 8;
+        }
+        return sum;
+    }
+
+    static int fold(long sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    /**
+     * murmur3 finalizer, spreads nearby ports over all bits.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+}
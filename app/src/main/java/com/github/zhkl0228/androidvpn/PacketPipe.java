@@ -0,0 +1,110 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In memory {@link TunDevice}: uplink packets are offered as apps would write them to a tun, downlink
+ * packets go to a {@link Sink}. The uplink queue is bounded and a full one blocks the offering thread,
+ * the backpressure a tun fd gives its writers.
+ */
+final class PacketPipe implements TunDevice {
+
+    interface Sink {
+        /**
+         * Called by every downlink thread, {@code packet} is only valid during the call.
+         */
+        void onPacket(ByteBuffer packet) throws IOException;
+    }
+
+    private static final byte[] CLOSED = new byte[0];
+
+    private final BlockingQueue<byte[]> uplink;
+    private final Sink downlink;
+    private volatile boolean closed;
+
+    /**
+     * Taken from the queue by a readiness check, read next.
+     */
+    private byte[] next;
+
+    PacketPipe(int capacity, Sink downlink) {
+        this.uplink = new ArrayBlockingQueue<>(capacity);
+        this.downlink = downlink;
+    }
+
+    /**
+     * Queues one uplink packet, the pipe keeps the array.
+     *
+     * @return false if the queue stayed full for {@code timeout} or the pipe is closed.
+     */
+    boolean offer(byte[] packet, long timeout, TimeUnit unit) throws InterruptedException {
+        return !closed && uplink.offer(packet, timeout, unit);
+    }
+
+    @Override
+    public boolean awaitReadable(int timeoutMillis) throws IOException {
+        if (next == null) {
+            try {
+                next = uplink.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("await uplink packet");
+            }
+        }
+        if (next == CLOSED) {
+            throw new EOFException("pipe closed");
+        }
+        return next != null;
+    }
+
+    @Override
+    public boolean isReadable() {
+        if (next == null) {
+            next = uplink.poll();
+        }
+        return next != null && next != CLOSED;
+    }
+
+    @Override
+    public int read(ByteBuffer packet) {
+        if (next == null) {
+            next = uplink.poll();
+        }
+        if (next == null) {
+            return 0;
+        }
+        if (next == CLOSED) {
+            return -1;
+        }
+        // a tun read into a short buffer truncates the packet, so does this
+        int length = Math.min(next.length, packet.remaining());
+        packet.put(next, 0, length);
+        next = null;
+        return length;
+    }
+
+    @Override
+    public void write(ByteBuffer packet) throws IOException {
+        if (closed) {
+            throw new IOException("pipe closed");
+        }
+        downlink.onPacket(packet);
+    }
+
+    /**
+     * Drops queued uplink packets, the reader sees the end of the device once it is through.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        uplink.clear();
+        while (!uplink.offer(CLOSED)) {
+            uplink.poll();
+        }
+    }
+}
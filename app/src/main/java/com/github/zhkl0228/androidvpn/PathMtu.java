@@ -0,0 +1,163 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps traffic within an mtu agreed with the server below the tun mtu, which only takes effect for new
+ * sessions. TCP SYNs in both directions have their MSS option clamped, so neither end sends segments
+ * that would not fit; any other packet that is too large is answered like a router would, with an ICMP
+ * fragmentation needed or ICMPv6 packet too big error, so a sender with DF set learns the path mtu instead
+ * of black-holing.
+ */
+final class PathMtu {
+
+    static final int IPPROTO_ICMP = 1;
+    static final int IPPROTO_ICMPV6 = 58;
+    static final int ICMP_UNREACHABLE = 3;
+    static final int ICMP_FRAGMENTATION_NEEDED = 4;
+    static final int ICMP_ECHO_REQUEST = 8;
+    static final int ICMPV6_PACKET_TOO_BIG = 2;
+    /**
+     * Errors are informational ICMPv6 types below this one.
+     */
+    static final int ICMPV6_INFORMATIONAL = 128;
+
+    /**
+     * Largest error we answer with: the IPv6 minimum mtu, which is also enough for any IPv4 one.
+     */
+    static final int MAX_REPLY = 1280;
+
+    private static final int IPV4_HEADER = 20;
+    private static final int IPV6_HEADER = 40;
+    private static final int ICMP_HEADER = 8;
+    private static final int TCP_HEADER = 20;
+    private static final int TCP_FLAGS = 13;
+    private static final int TCP_SYN = 0x02;
+    private static final int TCP_OPTION_END = 0;
+    private static final int TCP_OPTION_NOP = 1;
+    private static final int TCP_OPTION_MSS = 2;
+
+    private PathMtu() {
+    }
+
+    /**
+     * Lowers the MSS option of a TCP SYN or SYN-ACK between position and limit to what fits {@code mtu},
+     * patching the checksum.
+     *
+     * @return true if the packet was changed.
+     */
+    static boolean clampMss(ByteBuffer packet, int mtu) {
+        int offset = packet.position();
+        int length = packet.remaining();
+        int transportOffset = PacketHeaders.transportOffset(packet, offset, length);
+        if (transportOffset == -1 || PacketHeaders.protocol(packet, offset, length) != PacketHeaders.IPPROTO_TCP ||
+                (packet.get(transportOffset + TCP_FLAGS) & TCP_SYN) == 0) {
+            return false;
+        }
+        int maxMss = mtu - (transportOffset - offset) - TCP_HEADER;
+        int optionsEnd = Math.min(offset + length, transportOffset + ((packet.get(transportOffset + 12) & 0xf0) >>> 2));
+        int i = transportOffset + TCP_HEADER;
+        while (i < optionsEnd) {
+            int kind = packet.get(i) & 0xff;
+            if (kind == TCP_OPTION_END) {
+                break;
+            }
+            if (kind == TCP_OPTION_NOP) {
+                i++;
+                continue;
+            }
+            if (i + 1 >= optionsEnd) {
+                break;
+            }
+            int optionLength = packet.get(i + 1) & 0xff;
+            if (optionLength < 2 || i + optionLength > optionsEnd) {
+                break;
+            }
+            if (kind == TCP_OPTION_MSS && optionLength == 4) {
+                int mss = PacketHeaders.readShort(packet, i + 2);
+                if (mss <= maxMss) {
+                    return false;
+                }
+                // RFC 1624: HC' = ~(~HC + ~m + m')
+                int checksumOffset = transportOffset + 16;
+                long sum = (~PacketHeaders.readShort(packet, checksumOffset) & 0xffff) + (~mss & 0xffff) + maxMss;
+                writeShort(packet, i + 2, maxMss);
+                writeShort(packet, checksumOffset, ~PacketHeaders.fold(sum));
+                return true;
+            }
+            i += optionLength;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the ICMP error telling the sender of {@code packet}, between position and limit, to stay within
+     * {@code mtu} into {@code reply}, flipped. Only IPv4 packets with DF set get one, the others may be
+     * fragmented, and ICMP errors are never answered.
+     *
+     * @param reply at least {@link #MAX_REPLY} bytes.
+     * @return false if there is nothing to answer.
+     */
+    static boolean writeTooBig(ByteBuffer packet, int mtu, ByteBuffer reply) {
+        int offset = packet.position();
+        int length = packet.remaining();
+        int protocol = PacketHeaders.protocol(packet, offset, length);
+        reply.clear();
+        switch (PacketHeaders.version(packet, offset, length)) {
+            case 4: {
+                int headerLength = (packet.get(offset) & 0xf) * 4;
+                if ((packet.get(offset + 6) & 0x40) == 0 || headerLength < IPV4_HEADER || length < headerLength + ICMP_HEADER) {
+                    return false;
+                }
+                if (protocol == IPPROTO_ICMP && (packet.get(offset + headerLength) & 0xff) != ICMP_ECHO_REQUEST) {
+                    return false;
+                }
+                // the header and the first 8 bytes of the offending packet
+                int quoted = headerLength + ICMP_HEADER;
+                int total = IPV4_HEADER + ICMP_HEADER + quoted;
+                reply.put((byte) 0x45).put((byte) 0).putShort((short) total).putInt(0);
+                reply.put((byte) 64).put((byte) IPPROTO_ICMP).putShort((short) 0);
+                copy(packet, offset + 16, reply, 4);
+                copy(packet, offset + 12, reply, 4);
+                reply.putShort(10, (short) ~PacketHeaders.fold(PacketHeaders.sum(reply, 0, IPV4_HEADER, 0)));
+                reply.put((byte) ICMP_UNREACHABLE).put((byte) ICMP_FRAGMENTATION_NEEDED).putShort((short) 0);
+                reply.putShort((short) 0).putShort((short) mtu);
+                copy(packet, offset, reply, quoted);
+                reply.putShort(IPV4_HEADER + 2, (short) ~PacketHeaders.fold(PacketHeaders.sum(reply, IPV4_HEADER, ICMP_HEADER + quoted, 0)));
+                break;
+            }
+            case 6: {
+                if (protocol == IPPROTO_ICMPV6 && length > IPV6_HEADER && (packet.get(offset + IPV6_HEADER) & 0xff) < ICMPV6_INFORMATIONAL) {
+                    return false;
+                }
+                // as much of the offending packet as fits the minimum mtu
+                int quoted = Math.min(length, MAX_REPLY - IPV6_HEADER - ICMP_HEADER);
+                int payload = ICMP_HEADER + quoted;
+                reply.putInt(0x60000000).putShort((short) payload).put((byte) IPPROTO_ICMPV6).put((byte) 64);
+                copy(packet, offset + 24, reply, 16);
+                copy(packet, offset + 8, reply, 16);
+                reply.put((byte) ICMPV6_PACKET_TOO_BIG).put((byte) 0).putShort((short) 0);
+                reply.putInt(Math.max(mtu, MAX_REPLY));
+                copy(packet, offset, reply, quoted);
+                long pseudo = PacketHeaders.sum(reply, 8, 32, payload + IPPROTO_ICMPV6);
+                reply.putShort(IPV6_HEADER + 2, (short) ~PacketHeaders.fold(PacketHeaders.sum(reply, IPV6_HEADER, payload, pseudo)));
+                break;
+            }
+            default:
+                return false;
+        }
+        reply.flip();
+        return true;
+    }
+
+    private static void copy(ByteBuffer from, int offset, ByteBuffer to, int length) {
+        for (int i = 0; i < length; i++) {
+            to.put(from.get(offset + i));
+        }
+    }
+
+    private static void writeShort(ByteBuffer packet, int offset, int value) {
+        packet.put(offset, (byte) (value >>> 8));
+        packet.put(offset + 1, (byte) value);
+    }
+}
@@ -0,0 +1,281 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Packet capture into a fixed size memory-mapped file, so capturing a packet is a few stores into the page
+ * cache and never a syscall. The file starts with a pcapng section and interface header and holds a ring of
+ * equal slots behind it, each slot one Enhanced Packet Block of at most {@link #getSnaplen() snaplen}
+ * captured bytes. Once the ring is full the oldest packets are overwritten.
+ * <p>
+ * Any number of threads capture at once without locking: a packet takes the next sequence and claims its
+ * slot with a compare-and-set, and the sequence published once the block is complete tells
+ * {@link #dump(OutputStream)} which slots hold whole packets. A packet whose slot is still being written
+ * by a thread a whole lap behind, or already holds a newer packet, is dropped rather than waited for.
+ * Dumping copies the ring while it is written and skips slots that changed under it, so neither side
+ * waits for the other.
+ * <p>
+ * Packets are raw IP ({@code LINKTYPE_RAW}) with microsecond timestamps, uplink packets flagged outbound
+ * and downlink packets inbound.
+ */
+final class PcapRing implements Closeable {
+
+    static final int LINKTYPE_RAW = 101;
+
+    private static final int SECTION_HEADER_BLOCK = 0x0a0d0d0a;
+    private static final int SECTION_HEADER_SIZE = 28;
+    private static final int INTERFACE_DESCRIPTION_BLOCK = 1;
+    private static final int INTERFACE_DESCRIPTION_SIZE = 20;
+    static final int HEADER_SIZE = SECTION_HEADER_SIZE + INTERFACE_DESCRIPTION_SIZE;
+
+    private static final int ENHANCED_PACKET_BLOCK = 6;
+    /**
+     * Block header, interface id, timestamp, captured and original length.
+     */
+    private static final int PACKET_HEADER_SIZE = 28;
+    private static final int OPTION_FLAGS = 2;
+    private static final int OPTION_PACKET_ID = 5;
+    /**
+     * epb_flags, epb_packetid, opt_endofopt and the trailing block length.
+     */
+    private static final int PACKET_TRAILER_SIZE = 8 + 12 + 4 + 4;
+    private static final int FLAG_INBOUND = 1;
+    private static final int FLAG_OUTBOUND = 2;
+
+    static final int MIN_SLOTS = 16;
+
+    private static final long EMPTY = -2;
+    private static final long BUSY = -1;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final ThreadLocal<ByteBuffer> writers;
+    private final int snaplen;
+    private final int sampling;
+    private final int slotSize;
+    private final int slots;
+    private final long clockOffsetMicros;
+
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Sequence of the packet each slot holds, {@link #BUSY} while it is written.
+     */
+    private final AtomicLongArray published;
+    private volatile boolean closed;
+
+    /**
+     * Creates or truncates {@code path} to {@code size} bytes and maps it.
+     *
+     * @param snaplen captured bytes per packet, longer packets are truncated.
+     * @param sampling capture one in this many packets.
+     */
+    PcapRing(File path, int size, int snaplen, int sampling) throws IOException {
+        if (snaplen < 1 || sampling < 1) {
+            throw new IllegalArgumentException("snaplen=" + snaplen + ", sampling=" + sampling);
+        }
+        this.snaplen = snaplen;
+        this.sampling = sampling;
+        this.slotSize = PACKET_HEADER_SIZE + align(snaplen) + PACKET_TRAILER_SIZE;
+        this.slots = (size - HEADER_SIZE) / slotSize;
+        if (slots < MIN_SLOTS) {
+            throw new IllegalArgumentException("size=" + size + " holds " + slots + " slots of " + slotSize + " bytes, need " + MIN_SLOTS);
+        }
+        this.published = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            published.set(i, EMPTY);
+        }
+        this.clockOffsetMicros = System.currentTimeMillis() * 1000L - System.nanoTime() / 1000L;
+
+        int length = HEADER_SIZE + slots * slotSize;
+        this.file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(0);
+            file.setLength(length);
+            this.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader(map, snaplen);
+        this.writers = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            }
+        };
+    }
+
+    private static int align(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static void writeHeader(ByteBuffer buffer, int snaplen) {
+        buffer.putInt(0, SECTION_HEADER_BLOCK);
+        buffer.putInt(4, SECTION_HEADER_SIZE);
+        buffer.putInt(8, 0x1a2b3c4d);
+        buffer.putShort(12, (short) 1);
+        buffer.putShort(14, (short) 0);
+        buffer.putLong(16, -1L);
+        buffer.putInt(24, SECTION_HEADER_SIZE);
+
+        int offset = SECTION_HEADER_SIZE;
+        buffer.putInt(offset, INTERFACE_DESCRIPTION_BLOCK);
+        buffer.putInt(offset + 4, INTERFACE_DESCRIPTION_SIZE);
+        buffer.putShort(offset + 8, (short) LINKTYPE_RAW);
+        buffer.putShort(offset + 10, (short) 0);
+        buffer.putInt(offset + 12, snaplen);
+        buffer.putInt(offset + 16, INTERFACE_DESCRIPTION_SIZE);
+    }
+
+    int getSnaplen() {
+        return snaplen;
+    }
+
+    int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Packets captured so far, including those already overwritten.
+     */
+    long getCaptured() {
+        return sequence.get() - dropped.get();
+    }
+
+    /**
+     * Packets lost to a slot another thread was writing.
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Captures the remaining bytes of {@code packet}, whose position and limit are restored before returning.
+     *
+     * @param uplink true for packets apps sent, false for packets written to them.
+     */
+    void capture(ByteBuffer packet, boolean uplink) {
+        if (closed || (sampling > 1 && offered.getAndIncrement() % sampling != 0)) {
+            return;
+        }
+        long seq = sequence.getAndIncrement();
+        int slot = (int) (seq % slots);
+        long held = published.get(slot);
+        if (held == BUSY || held > seq || !published.compareAndSet(slot, held, BUSY)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int base = HEADER_SIZE + slot * slotSize;
+
+        int length = packet.remaining();
+        int captured = Math.min(length, snaplen);
+        int padded = align(captured);
+        int blockSize = PACKET_HEADER_SIZE + padded + PACKET_TRAILER_SIZE;
+        long micros = clockOffsetMicros + System.nanoTime() / 1000L;
+        ByteBuffer writer = writers.get();
+        writer.putInt(base, ENHANCED_PACKET_BLOCK);
+        writer.putInt(base + 4, blockSize);
+        writer.putInt(base + 8, 0);
+        writer.putInt(base + 12, (int) (micros >>> 32));
+        writer.putInt(base + 16, (int) micros);
+        writer.putInt(base + 20, captured);
+        writer.putInt(base + 24, length);
+
+        int position = packet.position();
+        int limit = packet.limit();
+        packet.limit(position + captured);
+        writer.position(base + PACKET_HEADER_SIZE);
+        writer.put(packet);
+        packet.limit(limit).position(position);
+        for (int i = captured; i < padded; i++) {
+            writer.put((byte) 0);
+        }
+
+        int options = base + PACKET_HEADER_SIZE + padded;
+        writer.putShort(options, (short) OPTION_FLAGS);
+        writer.putShort(options + 2, (short) 4);
+        writer.putInt(options + 4, uplink ? FLAG_OUTBOUND : FLAG_INBOUND);
+        writer.putShort(options + 8, (short) OPTION_PACKET_ID);
+        writer.putShort(options + 10, (short) 8);
+        writer.putLong(options + 12, seq);
+        writer.putInt(options + 20, 0);
+        writer.putInt(options + 24, blockSize);
+        published.lazySet(slot, seq);
+    }
+
+    /**
+     * Writes the packets the ring holds as a pcapng file, oldest first. Runs alongside capturing threads,
+     * a slot overwritten while it is copied is left out.
+     *
+     * @return packets written.
+     */
+    long dump(OutputStream outputStream) throws IOException {
+        ByteBuffer reader = map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        byte[] block = new byte[Math.max(HEADER_SIZE, slotSize)];
+        reader.position(0);
+        reader.get(block, 0, HEADER_SIZE);
+        outputStream.write(block, 0, HEADER_SIZE);
+
+        long end = sequence.get();
+        long written = 0;
+        for (long seq = Math.max(0, end - slots); seq < end; seq++) {
+            int slot = (int) (seq % slots);
+            if (published.get(slot) != seq) {
+                continue;
+            }
+            int base = HEADER_SIZE + slot * slotSize;
+            reader.position(base);
+            reader.get(block, 0, slotSize);
+            // a volatile read may move ahead of the copy and miss a writer tearing it, the compare-and-set is also
+            // a volatile write, so the copy happens before any claim of the slot that follows it; without
+            // VarHandle.acquireFence below API 33 it stands in for the load fence. The packet id double checks.
+            if (!published.compareAndSet(slot, seq, seq)) {
+                continue;
+            }
+            ByteBuffer copy = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+            int blockSize = copy.getInt(4);
+            if (copy.getInt(0) != ENHANCED_PACKET_BLOCK || blockSize < PACKET_HEADER_SIZE + PACKET_TRAILER_SIZE || blockSize > slotSize ||
+                    copy.getInt(blockSize - 4) != blockSize || copy.getLong(blockSize - PACKET_TRAILER_SIZE + 8 + 4) != seq) {
+                continue;
+            }
+            outputStream.write(block, 0, blockSize);
+            written++;
+        }
+        outputStream.flush();
+        return written;
+    }
+
+    /**
+     * Stops capturing. The mapping stays valid until it is collected, so threads still holding this ring
+     * and a {@link #dump(OutputStream)} in progress are unaffected.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        file.close();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        long captured = getCaptured();
+        return String.format(Locale.ROOT, "PcapRing{captured=%d, dropped=%d, held=%d/%d, snaplen=%d, sampling=1/%d, closed=%s}",
+                captured, dropped.get(), Math.min(captured, slots), slots, snaplen, sampling, closed);
+    }
+}
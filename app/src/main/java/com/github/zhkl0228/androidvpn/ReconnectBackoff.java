@@ -0,0 +1,66 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.util.Random;
+
+/**
+ * Delays between reconnect attempts: exponential from {@link #baseMillis} up to {@link #maxMillis},
+ * each delay drawn from the upper half of its step. The first retry comes after a few dozen milliseconds,
+ * so a brief dropout costs little, and clients that lost the server together do not come back together.
+ * <p>
+ * Not thread safe, it belongs to the engine thread.
+ */
+final class ReconnectBackoff {
+
+    static final long DEFAULT_BASE_MILLIS = 50;
+    static final long DEFAULT_MAX_MILLIS = 30000;
+
+    private final long baseMillis;
+    private final long maxMillis;
+    private final Random random;
+    private int attempts;
+
+    ReconnectBackoff(long baseMillis, long maxMillis, Random random) {
+        if (baseMillis <= 0 || maxMillis < baseMillis) {
+            throw new IllegalArgumentException("baseMillis=" + baseMillis + ", maxMillis=" + maxMillis);
+        }
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.random = random;
+    }
+
+    ReconnectBackoff(Random random) {
+        this(DEFAULT_BASE_MILLIS, DEFAULT_MAX_MILLIS, random);
+    }
+
+    /**
+     * @return how long to wait before the next attempt, in {@code [step / 2, step]}.
+     */
+    long nextDelayMillis() {
+        long step = baseMillis << Math.min(attempts, 30);
+        if (step <= 0 || step > maxMillis) {
+            step = maxMillis;
+        }
+        attempts++;
+        long half = step / 2;
+        return step - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    /**
+     * Call once a connection has proven itself, the next failure starts over at the base delay.
+     */
+    void reset() {
+        attempts = 0;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "ReconnectBackoff{attempts=" + attempts + ", baseMillis=" + baseMillis + ", maxMillis=" + maxMillis + '}';
+    }
+}
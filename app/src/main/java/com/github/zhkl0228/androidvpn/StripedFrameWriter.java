@@ -0,0 +1,66 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Spreads tun packets over several server connections. Each flow is pinned to one stripe by its
+ * {@link PacketHeaders#flowHash flow hash}, so per-flow order holds while a loss on one connection
+ * only stalls the flows that hash onto it.
+ */
+class StripedFrameWriter implements FrameSink {
+
+    private final FrameSink[] stripes;
+    private int pendingFrames;
+    private byte[] lastPacket;
+    private ByteBuffer lastPacketView;
+
+    StripedFrameWriter(FrameSink[] stripes) {
+        if (stripes.length == 0) {
+            throw new IllegalArgumentException("no stripes");
+        }
+        this.stripes = stripes;
+    }
+
+    static int stripeOf(ByteBuffer packet, int offset, int length, int stripes) {
+        return (PacketHeaders.flowHash(packet, offset, length) & 0x7fffffff) % stripes;
+    }
+
+    @Override
+    public void writeFrame(byte[] packet, int offset, int length) throws IOException {
+        if (packet != lastPacket) {
+            lastPacket = packet;
+            lastPacketView = ByteBuffer.wrap(packet);
+        }
+        stripes[stripeOf(lastPacketView, offset, length, stripes.length)].writeFrame(packet, offset, length);
+        pendingFrames++;
+    }
+
+    @Override
+    public void writeFrame(ByteBuffer packet) throws IOException {
+        stripes[stripeOf(packet, packet.position(), packet.remaining(), stripes.length)].writeFrame(packet);
+        pendingFrames++;
+    }
+
+    @Override
+    public void writeControlFrame(ByteBuffer packet, int type, byte[] body, int offset, int length) throws IOException {
+        stripes[stripeOf(packet, packet.position(), packet.remaining(), stripes.length)].writeControlFrame(packet, type, body, offset, length);
+        pendingFrames++;
+    }
+
+    @Override
+    public int pendingFrames() {
+        return pendingFrames;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (FrameSink stripe : stripes) {
+            if (stripe.pendingFrames() > 0) {
+                stripe.flush();
+            }
+        }
+        pendingFrames = 0;
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.github.zhkl0228.androidvpn;
+
+import android.net.TrafficStats;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Device and own-uid byte counters at one instant, to tell per session how much traffic kept off the tunnel.
+ * <p>
+ * Since Android 7 other apps' counters are private, so the split is estimated: device totals count tunnelled
+ * traffic twice, once on the tun and once on our own tunnel sockets, and everything else never entered the
+ * tunnel. Framing and compression make the estimate approximate.
+ */
+final class TrafficSnapshot {
+
+    final long totalBytes;
+    final long ownBytes;
+
+    TrafficSnapshot(long totalBytes, long ownBytes) {
+        this.totalBytes = totalBytes;
+        this.ownBytes = ownBytes;
+    }
+
+    /**
+     * @return null if the device does not report traffic counters.
+     */
+    static TrafficSnapshot take() {
+        long totalRx = TrafficStats.getTotalRxBytes();
+        long totalTx = TrafficStats.getTotalTxBytes();
+        int uid = Process.myUid();
+        long ownRx = TrafficStats.getUidRxBytes(uid);
+        long ownTx = TrafficStats.getUidTxBytes(uid);
+        if (totalRx == TrafficStats.UNSUPPORTED || totalTx == TrafficStats.UNSUPPORTED ||
+                ownRx == TrafficStats.UNSUPPORTED || ownTx == TrafficStats.UNSUPPORTED) {
+            return null;
+        }
+        return new TrafficSnapshot(totalRx + totalTx, ownRx + ownTx);
+    }
+
+    /**
+     * @return bytes carried by the tunnel since {@code start}.
+     */
+    long tunnelledSince(TrafficSnapshot start) {
+        return Math.max(0, ownBytes - start.ownBytes);
+    }
+
+    /**
+     * @return bytes that bypassed the tunnel since {@code start}, excluded apps and route holes alike.
+     */
+    long keptOffSince(TrafficSnapshot start) {
+        return Math.max(0, totalBytes - start.totalBytes - 2 * tunnelledSince(start));
+    }
+
+    String describeSince(TrafficSnapshot start) {
+        long tunnelled = tunnelledSince(start);
+        long keptOff = keptOffSince(start);
+        long total = tunnelled + keptOff;
+        return String.format(Locale.ROOT, "tunnelled=%dKB, keptOff=%dKB (%.0f%%)", tunnelled / 1024, keptOff / 1024,
+                total == 0 ? 0.0 : keptOff * 100.0 / total);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "TrafficSnapshot{totalBytes=" + totalBytes + ", ownBytes=" + ownBytes + '}';
+    }
+}
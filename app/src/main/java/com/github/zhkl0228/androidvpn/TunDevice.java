@@ -0,0 +1,41 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the tunnel takes uplink packets from and puts downlink packets to, one packet per read and write
+ * as a tun fd does. {@link FdTunDevice} is the tun of the service, {@link PacketPipe} and
+ * {@link DatagramTunDevice} let {@link TunnelCore} run on a plain JVM.
+ * <p>
+ * Reads belong to the uplink thread, writes may come from every downlink thread at once.
+ */
+interface TunDevice extends Closeable {
+
+    /**
+     * Blocks until a packet can be read, at most {@code timeoutMillis}.
+     *
+     * @return false on timeout.
+     * @throws java.io.EOFException once the device is gone.
+     */
+    boolean awaitReadable(int timeoutMillis) throws IOException;
+
+    /**
+     * @return whether the next read returns a packet right away.
+     */
+    boolean isReadable() throws IOException;
+
+    /**
+     * Reads one packet into {@code packet} at its position.
+     *
+     * @return length of the packet, 0 if none was ready, -1 once the device is gone.
+     */
+    int read(ByteBuffer packet) throws IOException;
+
+    /**
+     * Writes the remaining bytes of {@code packet} as one packet.
+     */
+    void write(ByteBuffer packet) throws IOException;
+
+}
@@ -0,0 +1,567 @@
+package com.github.zhkl0228.androidvpn;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The stream engine without the service around it: frames packets read from a {@link TunDevice} onto one
+ * or more connected tunnel sockets, and writes the packets the server frames back to the device. Connecting,
+ * the handshake and anything else Android stays with the caller, so the same code runs in
+ * {@link InspectorVpnService} and on a plain JVM against a {@link PacketPipe} and a stand-in server.
+ * <p>
+ * {@link #run(UplinkBacklog)} serves the uplink on the calling thread and every stripe's downlink on a
+ * thread of its own, until the device or a connection fails or {@link #close()} is called. With an
+ * {@link UplinkScheduler} the calling thread reads the tun into it and another thread frames its packets.
+ */
+final class TunnelCore {
+
+    private static final String TAG = AndroidVPN.TAG;
+
+    /**
+     * How long an idle uplink waits for the tun before it checks on its connections.
+     */
+    static final int IDLE_POLL_MILLIS = 1000;
+
+    interface UplinkFilter {
+        /**
+         * Sees every uplink packet before it is framed, on the thread framing it, and may write control
+         * frames ahead of it.
+         *
+         * @return true if the packet was consumed and must not go through the tunnel.
+         */
+        boolean onUplinkPacket(ByteBuffer packet, FrameSink sink) throws IOException;
+
+        /**
+         * Called before the uplink waits for packets, may write frames prepared off the uplink thread.
+         * They are flushed right after.
+         *
+         * @return milliseconds the uplink may wait before it calls again.
+         */
+        default int onIdle(FrameSink sink) throws IOException {
+            return IDLE_POLL_MILLIS;
+        }
+    }
+
+    interface PacketTap {
+        /**
+         * Sees every packet read from and written to the tun on the thread moving it, so it must neither
+         * block nor move the position of {@code packet} nor keep it.
+         */
+        void onPacket(ByteBuffer packet, boolean uplink);
+    }
+
+    private static final class Stripe {
+        final Socket socket;
+        final TunnelParameters parameters;
+        final FrameCompressor uplinkCompressor;
+        final FrameCompressor downlinkCompressor;
+        final TunnelHealth health;
+
+        Stripe(Socket socket, TunnelParameters parameters, boolean compression, TunnelHealth health) {
+            this.socket = socket;
+            this.parameters = parameters;
+            this.uplinkCompressor = compression ? new FrameCompressor() : null;
+            this.downlinkCompressor = compression ? new FrameCompressor() : null;
+            this.health = health;
+        }
+    }
+
+    private final TunDevice tun;
+    private final byte magic;
+    private final int mtu;
+    private final PacketBufferPool pool;
+    private final TunnelMetrics metrics;
+    private final List<Stripe> stripes = new ArrayList<>();
+    private UplinkFilter uplinkFilter;
+    private PacketTap packetTap;
+    private UplinkScheduler uplinkScheduler;
+    private volatile boolean closed;
+    private long oversized;
+    private ByteBuffer tooBigReply;
+    /**
+     * When the thread framing the uplink pings next, see {@link #pingIfDue}.
+     */
+    private long nextPingNanos;
+
+    /**
+     * @param mtu largest uplink packet, the smallest mtu every stripe agreed to. Larger packets are dropped
+     *            and answered, TCP is kept below it, see {@link PathMtu}.
+     * @param pool buffers of the tun mtu the uplink reads into, downlinks write from their reader's buffer.
+     */
+    TunnelCore(TunDevice tun, byte magic, int mtu, PacketBufferPool pool, TunnelMetrics metrics) {
+        this.tun = tun;
+        this.magic = magic;
+        this.mtu = mtu;
+        this.pool = pool;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Adds a connection the handshake already went through.
+     *
+     * @param parameters agreed by the extended handshake, null for the legacy framing.
+     * @param health non-null to ping the server over this connection.
+     */
+    void addStripe(Socket socket, TunnelParameters parameters, boolean compression, TunnelHealth health) {
+        stripes.add(new Stripe(socket, parameters, compression, health));
+    }
+
+    void setUplinkFilter(UplinkFilter uplinkFilter) {
+        this.uplinkFilter = uplinkFilter;
+    }
+
+    void setPacketTap(PacketTap packetTap) {
+        this.packetTap = packetTap;
+    }
+
+    /**
+     * Orders the uplink by class and flow instead of arrival, on a writer thread of its own. The scheduler
+     * holds up to its capacity of buffers of the pool.
+     */
+    void setUplinkScheduler(UplinkScheduler uplinkScheduler) {
+        this.uplinkScheduler = uplinkScheduler;
+    }
+
+    /**
+     * @param backlog uplink packets read while the tunnel was down, sent first.
+     * @throws IOException why the tunnel ended, every connection is closed by then.
+     */
+    void run(UplinkBacklog backlog) throws IOException {
+        if (stripes.isEmpty()) {
+            throw new IllegalStateException("no stripes");
+        }
+        int count = stripes.size();
+        FrameWriter[] writers = new FrameWriter[count];
+        TunnelHealth[] health = stripes.get(0).health == null ? null : new TunnelHealth[count];
+        List<Socket> sockets = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                Stripe stripe = stripes.get(i);
+                sockets.add(stripe.socket);
+                writers[i] = new FrameWriter(metrics.meter(stripe.socket.getOutputStream()), magic, mtu, FrameWriter.DEFAULT_BATCH_SIZE,
+                        stripe.uplinkCompressor, stripe.parameters);
+                if (health != null) {
+                    health[i] = stripe.health;
+                }
+                Thread thread = new Thread(new Downlink(stripe), "Stream forward " + (i + 1) + "/" + count);
+                thread.start();
+            }
+            FrameSink frameSink = count == 1 ? writers[0] : new StripedFrameWriter(writers);
+            if (backlog != null && backlog.size() > 0) {
+                Log.d(TAG, "sending " + backlog);
+                ByteBuffer packet;
+                while ((packet = backlog.poll()) != null) {
+                    if (packet.remaining() > mtu) {
+                        tooBig(packet);
+                        continue;
+                    }
+                    clampMss(packet);
+                    if (packetTap != null) {
+                        packetTap.onPacket(packet, true);
+                    }
+                    if (uplinkFilter != null && uplinkFilter.onUplinkPacket(packet, frameSink)) {
+                        continue;
+                    }
+                    frameSink.writeFrame(packet);
+                }
+                frameSink.flush();
+            }
+            if (uplinkScheduler != null) {
+                runScheduledUplink(uplinkScheduler, frameSink, writers, health, sockets);
+            } else {
+                runUplink(frameSink, writers, health, sockets);
+            }
+        } finally {
+            closed = true;
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            for (Stripe stripe : stripes) {
+                if (stripe.uplinkCompressor != null) {
+                    Log.d(TAG, "uplink " + stripe.uplinkCompressor);
+                }
+            }
+            Log.d(TAG, "stream engine " + pool);
+        }
+    }
+
+    private void runUplink(FrameSink frameSink, FrameWriter[] writers, TunnelHealth[] health, List<Socket> sockets) throws IOException {
+        boolean readable = false;
+        long batchStart = 0;
+        while (!closed) {
+            if (!readable) {
+                metrics.tunPolls.increment();
+                long timeout = IDLE_POLL_MILLIS;
+                if (health != null) {
+                    timeout = Math.min(timeout, ping(writers, health, sockets));
+                }
+                if (uplinkFilter != null) {
+                    timeout = Math.min(timeout, idle(frameSink));
+                }
+                if (!tun.awaitReadable((int) timeout)) {
+                    for (Socket socket : sockets) {
+                        if (socket.isClosed()) {
+                            throw new SocketException("tunnel socket closed: " + socket);
+                        }
+                    }
+                    continue;
+                }
+            } else {
+                pingIfDue(writers, health, sockets);
+            }
+            ByteBuffer packet = acquirePacketBuffer(pool);
+            try {
+                int length = tun.read(packet);
+                metrics.tunReads.increment();
+                if (length == -1) {
+                    throw new EOFException();
+                }
+                if (length > 0) {
+                    packet.flip();
+                    if (length > mtu) {
+                        tooBig(packet);
+                        continue;
+                    }
+                    clampMss(packet);
+                    if (frameSink.pendingFrames() == 0) {
+                        batchStart = System.nanoTime();
+                    }
+                    if (packetTap != null) {
+                        packetTap.onPacket(packet, true);
+                    }
+                    if (uplinkFilter != null && uplinkFilter.onUplinkPacket(packet, frameSink)) {
+                        continue;
+                    }
+                    frameSink.writeFrame(packet);
+                    metrics.uplinkPackets.record(length);
+                }
+            } finally {
+                pool.release(packet);
+            }
+            if (frameSink.pendingFrames() > 0) {
+                metrics.tunPolls.increment();
+                readable = tun.isReadable();
+            } else {
+                readable = false;
+            }
+            if (frameSink.pendingFrames() > 0 && !readable) {
+                metrics.uplinkLatencyMicros.record((System.nanoTime() - batchStart) / 1000, frameSink.pendingFrames());
+                frameSink.flush();
+            }
+        }
+        throw new SocketException("tunnel closed");
+    }
+
+    /**
+     * The uplink split in two around the scheduler: this thread only moves tun packets into it, so the tun
+     * keeps draining while a full socket blocks the writer thread, which frames them by class and flow.
+     */
+    private void runScheduledUplink(UplinkScheduler scheduler, FrameSink frameSink, FrameWriter[] writers, TunnelHealth[] health,
+                                    List<Socket> sockets) throws IOException {
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                writeScheduled(scheduler, frameSink, writers, health, sockets);
+            } catch (IOException e) {
+                failure.set(e);
+            } catch (RuntimeException | Error e) {
+                failure.set(new IOException("stream uplink failed", e));
+                throw e;
+            }
+        }, "Stream uplink");
+        writer.start();
+        try {
+            while (!closed) {
+                IOException writeFailure = failure.get();
+                if (writeFailure != null) {
+                    throw writeFailure;
+                }
+                metrics.tunPolls.increment();
+                if (!tun.awaitReadable(IDLE_POLL_MILLIS)) {
+                    for (Socket socket : sockets) {
+                        if (socket.isClosed()) {
+                            throw new SocketException("tunnel socket closed: " + socket);
+                        }
+                    }
+                    continue;
+                }
+                ByteBuffer packet = acquirePacketBuffer(pool);
+                ByteBuffer release = packet;
+                try {
+                    int length = tun.read(packet);
+                    metrics.tunReads.increment();
+                    if (length == -1) {
+                        throw new EOFException();
+                    }
+                    if (length == 0) {
+                        continue;
+                    }
+                    packet.flip();
+                    if (length > mtu) {
+                        tooBig(packet);
+                        continue;
+                    }
+                    clampMss(packet);
+                    if (packetTap != null) {
+                        packetTap.onPacket(packet, true);
+                    }
+                    release = scheduler.offer(packet, System.nanoTime());
+                } finally {
+                    if (release != null) {
+                        pool.release(release);
+                    }
+                }
+            }
+            throw new SocketException("tunnel closed");
+        } finally {
+            closed = true;
+            scheduler.close();
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            try {
+                writer.join(IDLE_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!writer.isAlive()) {
+                ByteBuffer packet;
+                while ((packet = scheduler.poll(0)) != null) {
+                    pool.release(packet);
+                }
+            }
+            Log.d(TAG, "uplink " + scheduler);
+        }
+    }
+
+    /**
+     * Writer thread of {@link #runScheduledUplink}: frames packets while the scheduler has them and flushes
+     * once it runs dry. Pings go out when due either way.
+     */
+    private void writeScheduled(UplinkScheduler scheduler, FrameSink frameSink, FrameWriter[] writers, TunnelHealth[] health,
+                                List<Socket> sockets) throws IOException {
+        long batchStart = 0;
+        while (!closed) {
+            ByteBuffer packet = scheduler.poll(0);
+            if (packet == null) {
+                if (frameSink.pendingFrames() > 0) {
+                    metrics.uplinkLatencyMicros.record((System.nanoTime() - batchStart) / 1000, frameSink.pendingFrames());
+                    frameSink.flush();
+                }
+                long timeout = IDLE_POLL_MILLIS;
+                if (health != null) {
+                    timeout = Math.min(timeout, ping(writers, health, sockets));
+                }
+                if (uplinkFilter != null) {
+                    timeout = Math.min(timeout, idle(frameSink));
+                }
+                packet = scheduler.poll(Math.max(1, timeout));
+                if (packet == null) {
+                    continue;
+                }
+            }
+            try {
+                pingIfDue(writers, health, sockets);
+                if (frameSink.pendingFrames() == 0) {
+                    batchStart = scheduler.getLastEnqueuedNanos();
+                }
+                if (uplinkFilter != null && uplinkFilter.onUplinkPacket(packet, frameSink)) {
+                    continue;
+                }
+                int length = packet.remaining();
+                frameSink.writeFrame(packet);
+                metrics.uplinkPackets.record(length);
+            } finally {
+                pool.release(packet);
+            }
+        }
+    }
+
+    /**
+     * Ends {@link #run(UplinkBacklog)}: the connections close at once, the uplink notices within a poll.
+     */
+    void close() {
+        closed = true;
+        for (Stripe stripe : stripes) {
+            try {
+                stripe.socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Pings every connection that is due and fails the engine once one of them stopped answering.
+     *
+     * @return milliseconds until the next ping is due.
+     */
+    private long ping(FrameWriter[] writers, TunnelHealth[] health, List<Socket> sockets) throws IOException {
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        for (int i = 0; i < writers.length; i++) {
+            if (health[i].isDead(now)) {
+                throw new SocketTimeoutException("vpn server silent for " + health[i].getIdleNanos(now) / 1000000L + "ms, " + health[i] + ", " + sockets.get(i));
+            }
+            byte[] ping = health[i].pingIfDue(now);
+            if (ping != null) {
+                writers[i].writeControlFrame(ControlFrame.TYPE_PING, ping, 0, ping.length);
+                writers[i].flush();
+            }
+            next = Math.min(next, health[i].millisUntilPing(now));
+        }
+        nextPingNanos = now + next * 1000000L;
+        return next;
+    }
+
+    /**
+     * {@link #ping} between packets: an uplink that never runs dry must not starve the pings, or a healthy
+     * connection would be taken for dead by the server, and a dead one go unnoticed.
+     */
+    private void pingIfDue(FrameWriter[] writers, TunnelHealth[] health, List<Socket> sockets) throws IOException {
+        if (health != null && System.nanoTime() - nextPingNanos >= 0) {
+            ping(writers, health, sockets);
+        }
+    }
+
+    /**
+     * Drops an uplink packet above the agreed mtu and tells its sender, see {@link PathMtu}. Only called
+     * by the thread reading the tun.
+     */
+    private void tooBig(ByteBuffer packet) throws IOException {
+        metrics.uplinkDropped.increment();
+        if (oversized++ == 0) {
+            Log.w(TAG, "answering packets above mtu=" + mtu + " with ICMP too big, length=" + packet.remaining());
+        }
+        if (tooBigReply == null) {
+            tooBigReply = ByteBuffer.allocate(PathMtu.MAX_REPLY);
+        }
+        if (PathMtu.writeTooBig(packet, mtu, tooBigReply)) {
+            metrics.uplinkTooBig.increment();
+            tun.write(tooBigReply);
+        }
+    }
+
+    private void clampMss(ByteBuffer packet) {
+        if (PathMtu.clampMss(packet, mtu)) {
+            metrics.mssClamped.increment();
+        }
+    }
+
+    /**
+     * Lets the uplink filter write what it prepared off the uplink thread.
+     *
+     * @return milliseconds until the filter wants to be called again.
+     */
+    private int idle(FrameSink frameSink) throws IOException {
+        int next = uplinkFilter.onIdle(frameSink);
+        if (frameSink.pendingFrames() > 0) {
+            frameSink.flush();
+        }
+        return Math.max(1, next);
+    }
+
+    /**
+     * The uplink only runs dry while a scheduler holds every buffer, give its writer a moment to frame them.
+     */
+    private static ByteBuffer acquirePacketBuffer(PacketBufferPool pool) throws IOException {
+        try {
+            ByteBuffer packet = pool.acquire(1, TimeUnit.SECONDS);
+            if (packet == null) {
+                throw new IOException("packet buffers exhausted: " + pool);
+            }
+            return packet;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("acquire packet buffer");
+        }
+    }
+
+    private final class Downlink implements Runnable {
+        private final Stripe stripe;
+
+        Downlink(Stripe stripe) {
+            this.stripe = stripe;
+        }
+
+        @Override
+        public void run() {
+            Socket socket = stripe.socket;
+            TunnelHealth health = stripe.health;
+            try {
+                TunnelMetrics.MeteredInputStream inputStream = metrics.meter(socket.getInputStream());
+                FrameReader.ControlHandler controlHandler = health == null ? null : (type, buffer, offset, length) -> {
+                    if (type == ControlFrame.TYPE_PONG) {
+                        if (health.onPong(buffer, offset, length, System.nanoTime())) {
+                            metrics.rttMicros.record(health.getLastRttNanos() / 1000);
+                        }
+                    }
+                };
+                FrameReader frameReader = new FrameReader(inputStream, magic, stripe.parameters == null ? mtu : stripe.parameters.mtu,
+                        FrameReader.DEFAULT_BUFFER_SIZE, stripe.downlinkCompressor, stripe.parameters, controlHandler);
+                FrameReader.PacketHandler handler = (buffer, offset, length) -> {
+                    metrics.downlinkPackets.record(length);
+                    metrics.tunWrites.increment();
+                    // straight from the reader's buffer, the pool stays with the uplink
+                    ByteBuffer packet = ByteBuffer.wrap(buffer, offset, length);
+                    clampMss(packet);
+                    if (packetTap != null) {
+                        packetTap.onPacket(packet, false);
+                    }
+                    tun.write(packet);
+                };
+                while (!closed) {
+                    int packets = frameReader.read(handler);
+                    if (packets == -1) {
+                        throw new EOFException();
+                    }
+                    if (packets > 0) {
+                        metrics.downlinkLatencyMicros.record((System.nanoTime() - inputStream.getLastReadNanos()) / 1000, packets);
+                    }
+                    if (health != null) {
+                        health.onReceived(System.nanoTime());
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    Log.w(TAG, "stream forward", e);
+                }
+            }
+            if (stripe.downlinkCompressor != null) {
+                Log.d(TAG, "downlink " + stripe.downlinkCompressor);
+            }
+            if (health != null) {
+                Log.d(TAG, "downlink " + health + ", " + socket);
+            }
+
+            // the uplink notices and ends the engine, the caller decides whether the tun goes too
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "TunnelCore{stripes=" + stripes.size() + ", mtu=" + mtu + ", closed=" + closed + '}';
+    }
+}
@@ -0,0 +1,148 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Liveness of one tunnel connection, fed by {@link ControlFrame#TYPE_PING} and {@link ControlFrame#TYPE_PONG}
+ * frames: the uplink pings once per interval, the server echoes the ping body back, and the round trip feeds
+ * a smoothed RTT and variance as TCP keeps them (RFC 6298) and an interarrival jitter as RTP does (RFC 3550).
+ * <p>
+ * The peer counts as dead when nothing at all came back for {@link #DEAD_INTERVALS} intervals plus one
+ * retransmission timeout, which finds a stalled connection in seconds rather than after TCP gives up.
+ * Times are {@link System#nanoTime()}. Pings belong to the uplink thread, received data and pongs to the
+ * downlink thread.
+ */
+final class TunnelHealth {
+
+    static final int DEAD_INTERVALS = 3;
+
+    private final long intervalNanos;
+    private final byte[] ping = new byte[ControlFrame.PING_BODY];
+    private int sequence;
+    private long nextPing;
+
+    private volatile long lastReceived;
+    private long srtt;
+    private long rttvar;
+    private long jitter;
+    private long lastRtt;
+    private long samples;
+    private long pings;
+
+    TunnelHealth(long intervalMillis, long now) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis=" + intervalMillis);
+        }
+        this.intervalNanos = intervalMillis * 1000000L;
+        this.lastReceived = now;
+        this.nextPing = now + intervalNanos;
+    }
+
+    /**
+     * Call whenever anything arrives from the peer.
+     */
+    void onReceived(long now) {
+        lastReceived = now;
+    }
+
+    /**
+     * @return body of a ping to send now, {@code [u32 sequence][u64 sent nanos]}, or null if none is due.
+     * The array is reused by the next ping.
+     */
+    byte[] pingIfDue(long now) {
+        if (now - nextPing < 0) {
+            return null;
+        }
+        nextPing = now + intervalNanos;
+        int sequence = ++this.sequence;
+        for (int i = 0; i < 4; i++) {
+            ping[i] = (byte) (sequence >>> (24 - 8 * i));
+        }
+        DatagramTunnel.putLong(ping, 4, now);
+        synchronized (this) {
+            pings++;
+        }
+        return ping;
+    }
+
+    /**
+     * @return milliseconds until the next ping is due, at least 0.
+     */
+    long millisUntilPing(long now) {
+        return Math.max(0, (nextPing - now + 999999) / 1000000L);
+    }
+
+    /**
+     * Takes the round trip of an echoed ping body.
+     *
+     * @return false if the body is not one of our pings.
+     */
+    boolean onPong(byte[] buffer, int offset, int length, long now) {
+        if (length != ControlFrame.PING_BODY) {
+            return false;
+        }
+        long rtt = now - DatagramTunnel.getLong(buffer, offset + 4);
+        if (rtt < 0 || rtt > DEAD_INTERVALS * intervalNanos * 2) {
+            return false;
+        }
+        onRttSample(rtt);
+        return true;
+    }
+
+    synchronized void onRttSample(long rtt) {
+        if (samples == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+            srtt += (rtt - srtt) / 8;
+            jitter += (Math.abs(rtt - lastRtt) - jitter) / 16;
+        }
+        lastRtt = rtt;
+        samples++;
+    }
+
+    /**
+     * @return true once the peer has been silent for longer than it plausibly could be while alive.
+     */
+    boolean isDead(long now) {
+        long rto;
+        synchronized (this) {
+            rto = srtt + 4 * rttvar;
+        }
+        return now - lastReceived > DEAD_INTERVALS * intervalNanos + rto;
+    }
+
+    long getIdleNanos(long now) {
+        return now - lastReceived;
+    }
+
+    synchronized long getLastRttNanos() {
+        return lastRtt;
+    }
+
+    synchronized long getSmoothedRttNanos() {
+        return srtt;
+    }
+
+    synchronized long getRttVarianceNanos() {
+        return rttvar;
+    }
+
+    synchronized long getJitterNanos() {
+        return jitter;
+    }
+
+    synchronized long getSamples() {
+        return samples;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "TunnelHealth{srtt=%.1fms, rttvar=%.1fms, jitter=%.1fms, idle=%dms, samples=%d/%d}",
+                srtt / 1e6, rttvar / 1e6, jitter / 1e6, getIdleNanos(System.nanoTime()) / 1000000L, samples, pings);
+    }
+}
@@ -0,0 +1,283 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the running service, cheap enough to stay on in production: every update is
+ * a {@link LongAdder} add, so the uplink, downlink and discovery threads never contend on one cache line
+ * and nothing locks or allocates. Readers get a consistent enough view from {@link #dump(PrintWriter)},
+ * which backs {@code adb shell dumpsys activity service .../.InspectorVpnService}, and {@link #toJson()}.
+ * <p>
+ * Latencies are recorded once per batch for every packet in it: uplink from the tun read of the first
+ * packet of a batch to its flush to the socket, downlink from the socket read to the last tun write of
+ * the packets it completed. Both are upper bounds for the packets they cover.
+ */
+final class TunnelMetrics {
+
+    /**
+     * Power of two buckets, value {@code v > 0} lands in bucket {@code 64 - numberOfLeadingZeros(v)}.
+     */
+    static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[65];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(0, value))].increment();
+            sum.add(value);
+        }
+
+        /**
+         * Records {@code value} for each of {@code count} events.
+         */
+        void record(long value, int count) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(0, value))].add(count);
+            sum.add(value * count);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        /**
+         * @return upper bound of the bucket holding the {@code quantile}, 0 if empty.
+         */
+        long quantile(double quantile) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket == 0 ? 0 : bucket == 64 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+
+        void toJson(StringBuilder json) {
+            long count = count();
+            long sum = sum();
+            json.append("{\"count\":").append(count)
+                    .append(",\"sum\":").append(sum)
+                    .append(",\"mean\":").append(count == 0 ? 0 : sum / count)
+                    .append(",\"p50\":").append(quantile(0.5))
+                    .append(",\"p90\":").append(quantile(0.9))
+                    .append(",\"p99\":").append(quantile(0.99))
+                    .append(",\"max\":").append(quantile(1))
+                    .append('}');
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            long count = count();
+            return String.format(Locale.ROOT, "count=%d, mean=%d, p50<=%d, p90<=%d, p99<=%d, max<=%d",
+                    count, count == 0 ? 0 : sum() / count, quantile(0.5), quantile(0.9), quantile(0.99), quantile(1));
+        }
+    }
+
+    /**
+     * Counts reads and bytes of a tunnel socket and remembers when the last read returned.
+     */
+    final class MeteredInputStream extends FilterInputStream {
+        private volatile long lastReadNanos;
+
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            lastReadNanos = System.nanoTime();
+            socketReads.increment();
+            if (read > 0) {
+                socketReadBytes.add(read);
+            }
+            return read;
+        }
+
+        long getLastReadNanos() {
+            return lastReadNanos;
+        }
+    }
+
+    /**
+     * Counts writes and bytes of a tunnel socket, i.e. after framing and compression.
+     */
+    final class MeteredOutputStream extends FilterOutputStream {
+        MeteredOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            socketWrites.increment();
+            socketWriteBytes.add(len);
+        }
+    }
+
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Packet sizes, their count and sum are the packet and byte counters of each direction.
+     */
+    final Histogram uplinkPackets = new Histogram();
+    final Histogram downlinkPackets = new Histogram();
+    final Histogram uplinkLatencyMicros = new Histogram();
+    final Histogram downlinkLatencyMicros = new Histogram();
+    final Histogram rttMicros = new Histogram();
+    /**
+     * Time uplink packets waited in the {@link UplinkScheduler}, by its priority class.
+     */
+    final Histogram[] uplinkQueueMicros = {new Histogram(), new Histogram(), new Histogram()};
+
+    final LongAdder uplinkDropped = new LongAdder();
+    /**
+     * Uplink packets above the agreed mtu answered with an ICMP too big error, see {@link PathMtu}.
+     */
+    final LongAdder uplinkTooBig = new LongAdder();
+    /**
+     * TCP SYNs in either direction whose MSS was lowered to the agreed mtu.
+     */
+    final LongAdder mssClamped = new LongAdder();
+    final LongAdder uplinkQueueDropped = new LongAdder();
+    final LongAdder tunReads = new LongAdder();
+    final LongAdder tunWrites = new LongAdder();
+    final LongAdder tunPolls = new LongAdder();
+    final LongAdder socketReads = new LongAdder();
+    final LongAdder socketReadBytes = new LongAdder();
+    final LongAdder socketWrites = new LongAdder();
+    final LongAdder socketWriteBytes = new LongAdder();
+    final LongAdder reconnects = new LongAdder();
+
+    final LongAdder discoveryQueries = new LongAdder();
+    final LongAdder discoveryFlows = new LongAdder();
+    final Histogram discoveryLookupMicros = new Histogram();
+
+    MeteredInputStream meter(InputStream inputStream) {
+        return new MeteredInputStream(inputStream);
+    }
+
+    MeteredOutputStream meter(OutputStream outputStream) {
+        return new MeteredOutputStream(outputStream);
+    }
+
+    long getUptimeMillis() {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+
+    private static double perSecond(long count, long millis) {
+        return millis <= 0 ? 0 : count * 1000.0 / millis;
+    }
+
+    void dump(PrintWriter writer) {
+        long uptime = getUptimeMillis();
+        writer.printf(Locale.ROOT, "uptime=%ds%n", uptime / 1000);
+        writer.printf(Locale.ROOT, "uplink: packets=%d, bytes=%d, dropped=%d, tooBig=%d, mssClamped=%d, %.1f packets/s%n", uplinkPackets.count(),
+                uplinkPackets.sum(), uplinkDropped.sum(), uplinkTooBig.sum(), mssClamped.sum(), perSecond(uplinkPackets.count(), uptime));
+        writer.println("  packet size: " + uplinkPackets);
+        writer.println("  latency us: " + uplinkLatencyMicros);
+        writer.printf(Locale.ROOT, "  scheduler: dropped=%d%n", uplinkQueueDropped.sum());
+        for (int i = 0; i < uplinkQueueMicros.length; i++) {
+            writer.println("    " + UplinkScheduler.CLASS_NAMES[i] + " queue us: " + uplinkQueueMicros[i]);
+        }
+        writer.printf(Locale.ROOT, "downlink: packets=%d, bytes=%d, %.1f packets/s%n", downlinkPackets.count(), downlinkPackets.sum(),
+                perSecond(downlinkPackets.count(), uptime));
+        writer.println("  packet size: " + downlinkPackets);
+        writer.println("  latency us: " + downlinkLatencyMicros);
+        writer.println("rtt us: " + rttMicros);
+        writer.printf(Locale.ROOT, "syscalls: tunReads=%d, tunWrites=%d, tunPolls=%d, socketReads=%d, socketWrites=%d%n",
+                tunReads.sum(), tunWrites.sum(), tunPolls.sum(), socketReads.sum(), socketWrites.sum());
+        writer.printf(Locale.ROOT, "wire: readBytes=%d, writeBytes=%d, reconnects=%d%n", socketReadBytes.sum(), socketWriteBytes.sum(), reconnects.sum());
+        writer.printf(Locale.ROOT, "discovery: queries=%d, flows=%d, %.2f queries/s%n", discoveryQueries.sum(), discoveryFlows.sum(),
+                perSecond(discoveryQueries.sum(), uptime));
+        writer.println("  lookup us: " + discoveryLookupMicros);
+    }
+
+    String toJson() {
+        long uptime = getUptimeMillis();
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"uptimeMillis\":").append(uptime);
+        json.append(",\"uplink\":{\"packets\":").append(uplinkPackets.count())
+                .append(",\"bytes\":").append(uplinkPackets.sum())
+                .append(",\"dropped\":").append(uplinkDropped.sum())
+                .append(",\"tooBig\":").append(uplinkTooBig.sum())
+                .append(",\"mssClamped\":").append(mssClamped.sum())
+                .append(",\"packetSize\":");
+        uplinkPackets.toJson(json);
+        json.append(",\"latencyMicros\":");
+        uplinkLatencyMicros.toJson(json);
+        json.append(",\"scheduler\":{\"dropped\":").append(uplinkQueueDropped.sum());
+        for (int i = 0; i < uplinkQueueMicros.length; i++) {
+            json.append(",\"").append(UplinkScheduler.CLASS_NAMES[i]).append("QueueMicros\":");
+            uplinkQueueMicros[i].toJson(json);
+        }
+        json.append("}},\"downlink\":{\"packets\":").append(downlinkPackets.count())
+                .append(",\"bytes\":").append(downlinkPackets.sum())
+                .append(",\"packetSize\":");
+        downlinkPackets.toJson(json);
+        json.append(",\"latencyMicros\":");
+        downlinkLatencyMicros.toJson(json);
+        json.append("},\"rttMicros\":");
+        rttMicros.toJson(json);
+        json.append(",\"syscalls\":{\"tunReads\":").append(tunReads.sum())
+                .append(",\"tunWrites\":").append(tunWrites.sum())
+                .append(",\"tunPolls\":").append(tunPolls.sum())
+                .append(",\"socketReads\":").append(socketReads.sum())
+                .append(",\"socketWrites\":").append(socketWrites.sum())
+                .append("},\"wire\":{\"readBytes\":").append(socketReadBytes.sum())
+                .append(",\"writeBytes\":").append(socketWriteBytes.sum())
+                .append(",\"reconnects\":").append(reconnects.sum())
+                .append("},\"discovery\":{\"queries\":").append(discoveryQueries.sum())
+                .append(",\"flows\":").append(discoveryFlows.sum())
+                .append(",\"queriesPerSecond\":").append(String.format(Locale.ROOT, "%.3f", perSecond(discoveryQueries.sum(), uptime)))
+                .append(",\"lookupMicros\":");
+        discoveryLookupMicros.toJson(json);
+        json.append("}}");
+        return json.toString();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "TunnelMetrics{uplink=" + uplinkPackets.count() + "/" + uplinkPackets.sum() + "B, downlink=" + downlinkPackets.count() + "/" +
+                downlinkPackets.sum() + "B, reconnects=" + reconnects.sum() + '}';
+    }
+}
@@ -0,0 +1,340 @@
+package com.github.zhkl0228.androidvpn;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Local tunnel tunables, read from {@value #FILE_NAME} next to {@code vpn_config.txt}.
+ * Unlike the config file this one never leaves the device, every key is optional.
+ */
+final class TunnelOptions {
+
+    private static final String TAG = AndroidVPN.TAG;
+
+    static final String FILE_NAME = "vpn_tunnel.properties";
+
+    enum Engine {
+        /**
+         * Blocking tun fd and socket, one thread per direction.
+         */
+        stream,
+        /**
+         * Non-blocking tun fd and socket channel polled from a single thread.
+         */
+        nio
+    }
+
+    enum Transport {
+        /**
+         * Length prefixed frames over TCP.
+         */
+        tcp,
+        /**
+         * One datagram per packet, see {@link DatagramTunnel}.
+         */
+        udp
+    }
+
+    static final int MAX_STRIPES = 8;
+    static final int DEFAULT_MTU = 10000;
+
+    final Engine engine;
+    /**
+     * Number of server connections the stream engine spreads flows over.
+     */
+    final int stripes;
+    final Transport transport;
+    /**
+     * Idle interval after which the udp transport pings the server.
+     */
+    final int keepaliveSeconds;
+    /**
+     * Propose {@link TunnelParameters#FEATURE_COMPRESSION} in the extended handshake, frames that shrink are
+     * compressed only once the server agreed. Needs {@link #negotiate}.
+     */
+    final boolean compression;
+    /**
+     * Size of the {@link PacketBufferPool} the stream engine reads the uplink into.
+     */
+    final int packetBuffers;
+    /**
+     * Send the uplink by priority class and per flow fair instead of in arrival order, see {@link UplinkScheduler}.
+     */
+    final boolean scheduler;
+    /**
+     * Packets the scheduler holds, at most half the {@link #packetBuffers} as each one is a pool buffer.
+     */
+    final int schedulerPackets;
+    final int schedulerQuantum;
+    /**
+     * SO_SNDBUF of the tunnel sockets, 0 keeps the system default. A small one keeps the uplink queue in the
+     * scheduler, where it can still be reordered.
+     */
+    final int socketSendBuffer;
+    /**
+     * Announce the owner of every new flow in-band, the server must understand {@link ControlFrame control frames}.
+     */
+    final boolean ownerPush;
+    /**
+     * Send the extended handshake and use the {@link TunnelParameters} the server agrees to.
+     */
+    final boolean negotiate;
+    /**
+     * Tun and tunnel mtu proposed to the server, only configurable together with {@link #negotiate} or over
+     * udp, see {@link #tunMtu()}.
+     */
+    final int mtu;
+    final int maxFrameSize;
+    /**
+     * Reconnect with {@link ReconnectBackoff} when the tunnel fails instead of ending the session.
+     */
+    final boolean reconnect;
+    /**
+     * Uplink packets held in the {@link UplinkBacklog} while reconnecting, 0 drops them.
+     */
+    final int reconnectBacklog;
+    /**
+     * Send the {@link TunnelSession} token on every connection, the server must understand the resume flag.
+     */
+    final boolean resume;
+    /**
+     * Offer {@link VpnConfig} by hash and send it only when the server has not cached it yet, the server
+     * must understand the config hash flag.
+     */
+    final boolean configByHash;
+    /**
+     * Ping the server in-band and end connections it stopped answering, see {@link TunnelHealth}.
+     * The server must understand ping control frames.
+     */
+    final boolean ping;
+    final int pingMillis;
+    /**
+     * Record tun traffic into a {@link PcapRing} of {@link #captureBytes} bytes.
+     */
+    final boolean capture;
+    final int captureBytes;
+    final int captureSnaplen;
+    /**
+     * Capture one in this many packets.
+     */
+    final int captureSampling;
+    /**
+     * Answer DNS queries from a {@link DnsCache} inside the tunnel, see {@link DnsStub}.
+     */
+    final boolean dnsStub;
+    final int dnsCacheEntries;
+    /**
+     * Refresh popular cache entries before they expire.
+     */
+    final boolean dnsPrefetch;
+    /**
+     * Destinations that bypass the tunnel, from {@link BreakoutPolicy#FILE_NAME}, null without that file.
+     */
+    final BreakoutPolicy breakout;
+
+    TunnelOptions(Properties properties) {
+        this(properties, null);
+    }
+
+    TunnelOptions(Properties properties, BreakoutPolicy breakout) {
+        this.engine = Engine.valueOf(properties.getProperty("engine", Engine.stream.name()).trim());
+        this.stripes = intValue(properties, "stripes", 1, 1, MAX_STRIPES);
+        this.transport = Transport.valueOf(properties.getProperty("transport", Transport.tcp.name()).trim());
+        this.keepaliveSeconds = intValue(properties, "keepaliveSeconds", 15, 1, 3600);
+        this.compression = Boolean.parseBoolean(properties.getProperty("compression", "false").trim());
+        this.packetBuffers = intValue(properties, "packetBuffers", 64, 2, 1024);
+        this.scheduler = Boolean.parseBoolean(properties.getProperty("scheduler", "false").trim());
+        this.schedulerPackets = intValue(properties, "schedulerPackets", 32, 1, 512);
+        if (scheduler && schedulerPackets * 2 > packetBuffers) {
+            throw new IllegalArgumentException("schedulerPackets=" + schedulerPackets + " requires packetBuffers>=" + schedulerPackets * 2);
+        }
+        this.schedulerQuantum = intValue(properties, "schedulerQuantum", 1514, 64, 65536);
+        this.socketSendBuffer = intValue(properties, "socketSendBuffer", 0, 0, 16 * 1024 * 1024);
+        this.ownerPush = Boolean.parseBoolean(properties.getProperty("ownerPush", "false").trim());
+        this.negotiate = Boolean.parseBoolean(properties.getProperty("negotiate", "false").trim());
+        this.mtu = intValue(properties, "mtu", DEFAULT_MTU, TunnelParameters.MIN_MTU, TunnelParameters.MAX_MTU);
+        if (mtu != DEFAULT_MTU && !negotiate && transport != Transport.udp) {
+            throw new IllegalArgumentException("mtu=" + mtu + " requires negotiate=true");
+        }
+        this.maxFrameSize = intValue(properties, "maxFrameSize", 256 * 1024, mtu + ExtendedFrame.HEADER_SIZE, 16 * 1024 * 1024);
+        this.reconnect = Boolean.parseBoolean(properties.getProperty("reconnect", "true").trim());
+        this.reconnectBacklog = intValue(properties, "reconnectBacklog", 256, 0, 4096);
+        this.resume = Boolean.parseBoolean(properties.getProperty("resume", "false").trim());
+        this.configByHash = Boolean.parseBoolean(properties.getProperty("configByHash", "false").trim());
+        this.ping = Boolean.parseBoolean(properties.getProperty("ping", "false").trim());
+        this.pingMillis = intValue(properties, "pingMillis", 2000, 100, 60000);
+        this.capture = Boolean.parseBoolean(properties.getProperty("capture", "false").trim());
+        this.captureBytes = intValue(properties, "captureBytes", 16 * 1024 * 1024, 1024 * 1024, 512 * 1024 * 1024);
+        this.captureSnaplen = intValue(properties, "captureSnaplen", 256, 64, TunnelParameters.MAX_MTU);
+        this.captureSampling = intValue(properties, "captureSampling", 1, 1, 1000000);
+        this.dnsStub = Boolean.parseBoolean(properties.getProperty("dnsStub", "false").trim());
+        this.dnsCacheEntries = intValue(properties, "dnsCacheEntries", 2048, 16, 65536);
+        this.dnsPrefetch = Boolean.parseBoolean(properties.getProperty("dnsPrefetch", "false").trim());
+        this.breakout = breakout;
+    }
+
+    private static int intValue(Properties properties, String key, int defaultValue, int min, int max) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        int intValue = Integer.parseInt(value.trim());
+        if (intValue < min || intValue > max) {
+            throw new IllegalArgumentException(key + "=" + intValue + ", expected " + min + ".." + max);
+        }
+        return intValue;
+    }
+
+    /**
+     * Most options are features of the stream engine over tcp.
+     */
+    private boolean streamOverTcp() {
+        return engine == Engine.stream && transport == Transport.tcp;
+    }
+
+    /**
+     * Only the stream engine over tcp speaks the extended handshake.
+     */
+    boolean negotiates() {
+        return negotiate && streamOverTcp();
+    }
+
+    /**
+     * Mtu of the tun. Over udp every packet is one datagram, so it is kept to what a 1500 byte path carries
+     * unfragmented, or the configured mtu if that is smaller.
+     */
+    int tunMtu() {
+        if (transport == Transport.udp) {
+            return Math.min(mtu, DatagramTunnel.PATH_MTU);
+        }
+        return negotiates() ? mtu : DEFAULT_MTU;
+    }
+
+    /**
+     * Only the stream engine over tcp filters the uplink, elsewhere DNS keeps bypassing the tunnel.
+     */
+    boolean servesDns() {
+        return dnsStub && streamOverTcp();
+    }
+
+    /**
+     * Only the stream engine over tcp runs the uplink through {@link TunnelCore}.
+     */
+    boolean schedulesUplink() {
+        return scheduler && streamOverTcp();
+    }
+
+    /**
+     * Only the stream engine over tcp waits for the server's answer during the handshake.
+     */
+    boolean sendsConfigByHash() {
+        return configByHash && streamOverTcp();
+    }
+
+    /**
+     * @return the enabled options the selected engine and transport ignore, empty if there are none.
+     */
+    List<String> unsupported() {
+        List<String> unsupported = new ArrayList<>();
+        if (stripes > 1 && !streamOverTcp()) {
+            unsupported.add(transport == Transport.udp ? "stripes, the udp transport uses one socket" : "stripes, the nio engine uses one connection");
+        }
+        if (socketSendBuffer > 0 && !streamOverTcp()) {
+            unsupported.add("socketSendBuffer");
+        }
+        if (capture && engine == Engine.nio && transport == Transport.tcp) {
+            unsupported.add("capture");
+        }
+        if (negotiate && !negotiates()) {
+            unsupported.add("negotiate");
+        }
+        if (compression && !negotiates()) {
+            unsupported.add(streamOverTcp() ? "compression without negotiate=true" : "compression");
+        }
+        if (ownerPush && !streamOverTcp()) {
+            unsupported.add("ownerPush");
+        }
+        if (breakout != null && breakout.hasDirectUdp() && !streamOverTcp()) {
+            unsupported.add("udp breakout, only route exclusions apply");
+        }
+        if (dnsStub && !servesDns()) {
+            unsupported.add("dnsStub");
+        }
+        if (scheduler && !schedulesUplink()) {
+            unsupported.add("scheduler");
+        }
+        if (configByHash && !sendsConfigByHash()) {
+            unsupported.add("configByHash, the config is sent inline");
+        }
+        if (ping && !streamOverTcp()) {
+            unsupported.add(transport == Transport.udp ? "ping, the udp transport keeps its own keepalive" : "ping");
+        }
+        return unsupported;
+    }
+
+    static TunnelOptions load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file != null && file.canRead()) {
+            try (InputStream inputStream = new FileInputStream(file)) {
+                properties.load(inputStream);
+            }
+        }
+        return new TunnelOptions(properties, file == null ? null : loadBreakout(new File(file.getParentFile(), BreakoutPolicy.FILE_NAME)));
+    }
+
+    /**
+     * A broken policy file only costs the breakout, the other options still apply.
+     */
+    private static BreakoutPolicy loadBreakout(File file) {
+        try {
+            return BreakoutPolicy.load(file);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "breakout disabled, load " + file + " failed", e);
+            return null;
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "TunnelOptions{" +
+                "engine=" + engine +
+                ", stripes=" + stripes +
+                ", transport=" + transport +
+                ", keepaliveSeconds=" + keepaliveSeconds +
+                ", compression=" + compression +
+                ", packetBuffers=" + packetBuffers +
+                ", scheduler=" + scheduler +
+                ", schedulerPackets=" + schedulerPackets +
+                ", schedulerQuantum=" + schedulerQuantum +
+                ", socketSendBuffer=" + socketSendBuffer +
+                ", ownerPush=" + ownerPush +
+                ", negotiate=" + negotiate +
+                ", mtu=" + mtu +
+                ", maxFrameSize=" + maxFrameSize +
+                ", reconnect=" + reconnect +
+                ", reconnectBacklog=" + reconnectBacklog +
+                ", resume=" + resume +
+                ", configByHash=" + configByHash +
+                ", ping=" + ping +
+                ", pingMillis=" + pingMillis +
+                ", capture=" + capture +
+                ", captureBytes=" + captureBytes +
+                ", captureSnaplen=" + captureSnaplen +
+                ", captureSampling=" + captureSampling +
+                ", dnsStub=" + dnsStub +
+                ", dnsCacheEntries=" + dnsCacheEntries +
+                ", dnsPrefetch=" + dnsPrefetch +
+                ", breakout=" + breakout +
+                '}';
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Framing limits agreed in the extended handshake. The client sends its proposal right after the legacy
+ * handshake, the server answers with its own and both sides use the smaller of each:
+ * <pre>
+ * [u8 version][u16 mtu][u32 max frame size][u8 features]
+ * </pre>
+ * Only servers that understand it get the extended handshake, everyone else keeps the legacy framing.
+ */
+final class TunnelParameters {
+
+    static final int VERSION = 1;
+
+    /**
+     * Batches of frames may be wrapped into one {@link ExtendedFrame#KIND_SUPER super-frame}.
+     */
+    static final int FEATURE_SUPER_FRAMES = 0x1;
+    /**
+     * Frames that shrink are sent as {@link FrameCompressor} frames, in both directions.
+     */
+    static final int FEATURE_COMPRESSION = 0x2;
+
+    static final int MIN_MTU = 576;
+    static final int MAX_MTU = 0xffff;
+
+    final int version;
+    final int mtu;
+    /**
+     * Largest super-frame payload either side accepts.
+     */
+    final int maxFrameSize;
+    final int features;
+
+    TunnelParameters(int version, int mtu, int maxFrameSize, int features) {
+        if (version < 1) {
+            throw new IllegalArgumentException("version=" + version);
+        }
+        if (mtu < MIN_MTU || mtu > MAX_MTU) {
+            throw new IllegalArgumentException("mtu=" + mtu);
+        }
+        if (maxFrameSize < mtu + ExtendedFrame.HEADER_SIZE) {
+            throw new IllegalArgumentException("maxFrameSize=" + maxFrameSize + ", mtu=" + mtu);
+        }
+        this.version = version;
+        this.mtu = mtu;
+        this.maxFrameSize = maxFrameSize;
+        this.features = features;
+    }
+
+    boolean superFrames() {
+        return (features & FEATURE_SUPER_FRAMES) != 0;
+    }
+
+    boolean compression() {
+        return (features & FEATURE_COMPRESSION) != 0;
+    }
+
+    /**
+     * @return what both ends support.
+     */
+    TunnelParameters agree(TunnelParameters peer) {
+        return new TunnelParameters(Math.min(version, peer.version), Math.min(mtu, peer.mtu),
+                Math.min(maxFrameSize, peer.maxFrameSize), features & peer.features);
+    }
+
+    void write(DataOutput output) throws IOException {
+        output.writeByte(version);
+        output.writeShort(mtu);
+        output.writeInt(maxFrameSize);
+        output.writeByte(features);
+    }
+
+    /**
+     * Client side: sends this proposal and waits up to {@code timeoutMillis} for the server's answer.
+     *
+     * @return the parameters both ends support.
+     * @throws SocketTimeoutException if the server did not answer, it does not understand the extended handshake.
+     */
+    TunnelParameters negotiate(Socket socket, int timeoutMillis) throws IOException {
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        write(output);
+        output.flush();
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(timeoutMillis);
+        try {
+            return agree(read(new DataInputStream(socket.getInputStream())));
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    static TunnelParameters read(DataInput input) throws IOException {
+        int version = input.readUnsignedByte();
+        int mtu = input.readUnsignedShort();
+        int maxFrameSize = input.readInt();
+        int features = input.readUnsignedByte();
+        try {
+            return new TunnelParameters(version, mtu, maxFrameSize, features);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("bad tunnel parameters: " + e.getMessage(), e);
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "TunnelParameters{" +
+                "version=" + version +
+                ", mtu=" + mtu +
+                ", maxFrameSize=" + maxFrameSize +
+                ", features=0x" + Integer.toHexString(features) +
+                '}';
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Identity of one VPN session across reconnects. With the resume flag set in the handshake every tunnel
+ * connection carries it right after the config:
+ * <pre>
+ * [u64 token][u16 generation]
+ * </pre>
+ * The token stays the same for the whole session, so the server can give a reconnecting client back its
+ * state. The generation counts reconnects, the server may drop connections of an older generation that
+ * it still believes to be alive. All stripes of one connect share a generation.
+ */
+final class TunnelSession {
+
+    final long token;
+    private int generation;
+
+    TunnelSession(long token) {
+        this.token = token;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Call before reconnecting.
+     */
+    void nextGeneration() {
+        generation = (generation + 1) & 0xffff;
+    }
+
+    void write(DataOutput output) throws IOException {
+        output.writeLong(token);
+        output.writeShort(generation);
+    }
+
+    /**
+     * Server side of {@link #write(DataOutput)}.
+     */
+    static TunnelSession read(DataInput input) throws IOException {
+        TunnelSession session = new TunnelSession(input.readLong());
+        session.generation = input.readUnsignedShort();
+        return session;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "TunnelSession{token=" + Long.toHexString(token) + ", generation=" + generation + '}';
+    }
+}
@@ -0,0 +1,364 @@
+package com.github.zhkl0228.androidvpn;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Local NAT for the UDP flows {@link BreakoutPolicy} sends directly: each flow gets a protected, connected
+ * {@link DatagramChannel}, uplink payloads are written to it straight from the tun buffer, and replies are
+ * wrapped in fresh IPv4 and UDP headers and written back to the tun.
+ * <p>
+ * {@link #onUplinkPacket(ByteBuffer)} belongs to the uplink thread, {@link #run()} to the thread that
+ * polls the flows. IPv6 and non-UDP packets are left to the tunnel, and so is everything once the polling
+ * thread has ended, whatever the reason.
+ */
+final class UdpBreakout implements Runnable, Closeable {
+
+    private static final String TAG = AndroidVPN.TAG;
+
+    interface Protector {
+        /**
+         * Keeps {@code socket} out of the VPN, see {@link android.net.VpnService#protect(DatagramSocket)}.
+         */
+        boolean protect(DatagramSocket socket);
+    }
+
+    static final int MAX_FLOWS = 1024;
+    static final long IDLE_TIMEOUT_MILLIS = 60000;
+
+    private static final int IPV4_HEADER = 20;
+    private static final int UDP_HEADER = 8;
+    private static final int IPV4_MORE_FRAGMENTS = 0x2000;
+    private static final int MAX_DATAGRAM = 0xffff;
+
+    private static final class Flow {
+        final long key;
+        final DatagramChannel channel;
+        final int localAddress;
+        final int localPort;
+        final int remoteAddress;
+        final int remotePort;
+        volatile long lastActive;
+
+        Flow(long key, DatagramChannel channel, int localAddress, int localPort, int remoteAddress, int remotePort) {
+            this.key = key;
+            this.channel = channel;
+            this.localAddress = localAddress;
+            this.localPort = localPort;
+            this.remoteAddress = remoteAddress;
+            this.remotePort = remotePort;
+        }
+    }
+
+    private final BreakoutPolicy policy;
+    private final Protector protector;
+    private final WritableByteChannel tun;
+    private final int mtu;
+    private final Selector selector;
+    private final Map<Long, Flow> flows = new ConcurrentHashMap<>();
+    private final Queue<Flow> pending = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer downlink = ByteBuffer.allocateDirect(IPV4_HEADER + UDP_HEADER + MAX_DATAGRAM);
+    private final byte[] remoteAddress = new byte[4];
+    private volatile boolean closed;
+
+    private long uplinkPackets;
+    private long uplinkBytes;
+    private long uplinkDropped;
+    private long tooManyFlows;
+    private volatile long downlinkPackets;
+    private volatile long downlinkDropped;
+    private volatile long expired;
+
+    UdpBreakout(BreakoutPolicy policy, Protector protector, WritableByteChannel tun, int mtu) throws IOException {
+        this.policy = policy;
+        this.protector = protector;
+        this.tun = tun;
+        this.mtu = mtu;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Call for every uplink packet before it goes to the tunnel. Only whole datagrams break out: fragments,
+     * and packets cut short of their UDP length, are left to the tunnel, which carries the rest of them.
+     *
+     * @return true if the packet was consumed here, sent or dropped.
+     */
+    boolean onUplinkPacket(ByteBuffer packet) {
+        if (closed) {
+            return false;
+        }
+        int offset = packet.position();
+        int length = packet.remaining();
+        if (PacketHeaders.version(packet, offset, length) != 4 || PacketHeaders.protocol(packet, offset, length) != PacketHeaders.IPPROTO_UDP) {
+            return false;
+        }
+        int transportOffset = PacketHeaders.transportOffset(packet, offset, length);
+        if (transportOffset == -1 || (PacketHeaders.readShort(packet, offset + 6) & IPV4_MORE_FRAGMENTS) != 0) {
+            return false;
+        }
+        int udpLength = PacketHeaders.readShort(packet, transportOffset + 4);
+        if (udpLength < UDP_HEADER || transportOffset + udpLength > offset + length) {
+            return false;
+        }
+        int destination = PacketHeaders.readInt(packet, offset + 16);
+        int destinationPort = PacketHeaders.destinationPort(packet, transportOffset);
+        if (!policy.isDirect(PacketHeaders.IPPROTO_UDP, destination, destinationPort)) {
+            return false;
+        }
+        int source = PacketHeaders.readInt(packet, offset + 12);
+        int sourcePort = PacketHeaders.sourcePort(packet, transportOffset);
+        long key = (destination & 0xffffffffL) << 32 | (long) sourcePort << 16 | destinationPort;
+        Flow flow = flows.get(key);
+        if (flow == null) {
+            if (flows.size() >= MAX_FLOWS) {
+                tooManyFlows++;
+                return false;
+            }
+            flow = open(key, source, sourcePort, destination, destinationPort);
+            if (flow == null) {
+                return false;
+            }
+        } else if (flow.localAddress != source) {
+            return false;
+        }
+
+        int end = transportOffset + udpLength;
+        int limit = packet.limit();
+        try {
+            packet.limit(end).position(transportOffset + UDP_HEADER);
+            int payload = packet.remaining();
+            // channels never send an empty datagram, write returns 0 for it as for a full socket buffer
+            if (payload > 0 && flow.channel.write(packet) == payload) {
+                uplinkPackets++;
+                uplinkBytes += payload;
+            } else {
+                uplinkDropped++;
+            }
+            flow.lastActive = System.currentTimeMillis();
+        } catch (IOException e) {
+            // e.g. port unreachable reported on the connected channel, UDP may drop
+            uplinkDropped++;
+        } finally {
+            packet.limit(limit).position(offset);
+        }
+        return true;
+    }
+
+    private Flow open(long key, int source, int sourcePort, int destination, int destinationPort) {
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            if (!protector.protect(channel.socket())) {
+                Log.w(TAG, "protect breakout socket failed");
+                channel.close();
+                return null;
+            }
+            channel.configureBlocking(false);
+            remoteAddress[0] = (byte) (destination >>> 24);
+            remoteAddress[1] = (byte) (destination >>> 16);
+            remoteAddress[2] = (byte) (destination >>> 8);
+            remoteAddress[3] = (byte) destination;
+            channel.connect(new InetSocketAddress(InetAddress.getByAddress(remoteAddress), destinationPort));
+            Flow flow = new Flow(key, channel, source, sourcePort, destination, destinationPort);
+            flow.lastActive = System.currentTimeMillis();
+            flows.put(key, flow);
+            if (closed) {
+                // the polling thread ended meanwhile and will not close it
+                closeFlow(flow);
+                return null;
+            }
+            pending.add(flow);
+            selector.wakeup();
+            return flow;
+        } catch (IOException e) {
+            Log.w(TAG, "open breakout flow failed: " + IPUtil.toString(destination) + ":" + destinationPort, e);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextExpiry = System.currentTimeMillis() + IDLE_TIMEOUT_MILLIS / 4;
+        try {
+            while (!closed) {
+                selector.select(IDLE_TIMEOUT_MILLIS / 4);
+                Flow flow;
+                while ((flow = pending.poll()) != null) {
+                    try {
+                        flow.channel.register(selector, SelectionKey.OP_READ, flow);
+                    } catch (ClosedChannelException ignored) {
+                    }
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey selectionKey = iterator.next();
+                    iterator.remove();
+                    if (selectionKey.isValid() && selectionKey.isReadable()) {
+                        receive((Flow) selectionKey.attachment());
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextExpiry) {
+                    expire(now);
+                    nextExpiry = now + IDLE_TIMEOUT_MILLIS / 4;
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                Log.w(TAG, "udp breakout", e);
+            }
+        } finally {
+            // nobody reads the flows any more, leave matching traffic to the tunnel
+            closed = true;
+            for (Flow flow : flows.values()) {
+                closeFlow(flow);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Drains the flow's socket, every datagram becomes one packet on the tun.
+     */
+    private void receive(Flow flow) throws IOException {
+        while (true) {
+            ByteBuffer packet = downlink;
+            packet.clear().position(IPV4_HEADER + UDP_HEADER);
+            int length;
+            try {
+                // receive, unlike read, tells an empty datagram from none
+                if (flow.channel.receive(packet) == null) {
+                    return;
+                }
+                length = packet.position();
+            } catch (IOException e) {
+                closeFlow(flow);
+                return;
+            }
+            flow.lastActive = System.currentTimeMillis();
+            if (length > mtu) {
+                downlinkDropped++;
+                continue;
+            }
+            writeHeaders(packet, flow, length);
+            packet.flip();
+            // counted first, whoever reads the tun may already look at the counter
+            downlinkPackets++;
+            try {
+                tun.write(packet);
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                // e.g. ENOBUFS while the tun queue is full, only this datagram is lost
+                downlinkPackets--;
+                if (downlinkDropped++ == 0) {
+                    Log.w(TAG, "write breakout packet to tun failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills in the IPv4 and UDP headers in front of the payload already at {@code IPV4_HEADER + UDP_HEADER}.
+     */
+    static void writeHeaders(ByteBuffer packet, int source, int sourcePort, int destination, int destinationPort, int length) {
+        int udpLength = length - IPV4_HEADER;
+        packet.put(0, (byte) 0x45);
+        packet.put(1, (byte) 0);
+        packet.putShort(2, (short) length);
+        packet.putInt(4, 0x4000); // id 0, don't fragment
+        packet.put(8, (byte) 64);
+        packet.put(9, (byte) PacketHeaders.IPPROTO_UDP);
+        packet.putShort(10, (short) 0);
+        packet.putInt(12, source);
+        packet.putInt(16, destination);
+        packet.putShort(10, (short) ~PacketHeaders.fold(PacketHeaders.sum(packet, 0, IPV4_HEADER, 0)));
+
+        packet.putShort(IPV4_HEADER, (short) sourcePort);
+        packet.putShort(IPV4_HEADER + 2, (short) destinationPort);
+        packet.putShort(IPV4_HEADER + 4, (short) udpLength);
+        packet.putShort(IPV4_HEADER + 6, (short) 0);
+        int pseudo = (source >>> 16) + (source & 0xffff) + (destination >>> 16) + (destination & 0xffff) + PacketHeaders.IPPROTO_UDP + udpLength;
+        int checksum = ~PacketHeaders.fold(PacketHeaders.sum(packet, IPV4_HEADER, udpLength, pseudo)) & 0xffff;
+        packet.putShort(IPV4_HEADER + 6, (short) (checksum == 0 ? 0xffff : checksum));
+    }
+
+    private void writeHeaders(ByteBuffer packet, Flow flow, int length) {
+        writeHeaders(packet, flow.remoteAddress, flow.remotePort, flow.localAddress, flow.localPort, length);
+    }
+
+    private void expire(long now) {
+        for (Flow flow : flows.values()) {
+            if (now - flow.lastActive >= IDLE_TIMEOUT_MILLIS) {
+                closeFlow(flow);
+                expired++;
+            }
+        }
+    }
+
+    private void closeFlow(Flow flow) {
+        flows.remove(flow.key, flow);
+        try {
+            flow.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    int getFlows() {
+        return flows.size();
+    }
+
+    long getUplinkPackets() {
+        return uplinkPackets;
+    }
+
+    long getUplinkDropped() {
+        return uplinkDropped;
+    }
+
+    long getDownlinkPackets() {
+        return downlinkPackets;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "UdpBreakout{flows=%d, uplink=%d/%dB, uplinkDropped=%d, tooManyFlows=%d, downlink=%d, downlinkDropped=%d, expired=%d, %s}",
+                flows.size(), uplinkPackets, uplinkBytes, uplinkDropped, tooManyFlows, downlinkPackets, downlinkDropped, expired, policy);
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Uplink packets read from the tun while the tunnel reconnects, sent first once it is back. Bounded by
+ * packets and bytes, when full the oldest packet goes: by the time the tunnel returns a fresh packet is
+ * likelier to matter, and TCP retransmits what was lost anyway.
+ * <p>
+ * Not thread safe, only the engine thread fills and drains it.
+ */
+final class UplinkBacklog {
+
+    private final int maxPackets;
+    private final int maxBytes;
+    private final ArrayDeque<byte[]> packets = new ArrayDeque<>();
+    private int bytes;
+
+    private long queued;
+    private long dropped;
+
+    UplinkBacklog(int maxPackets, int maxBytes) {
+        if (maxPackets < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("maxPackets=" + maxPackets + ", maxBytes=" + maxBytes);
+        }
+        this.maxPackets = maxPackets;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Copies the packet, it is dropped right away if it alone exceeds the byte bound.
+     *
+     * @return false if the packet was dropped.
+     */
+    boolean offer(byte[] buffer, int offset, int length) {
+        if (length > maxBytes || maxPackets == 0) {
+            dropped++;
+            return false;
+        }
+        while (packets.size() >= maxPackets || bytes + length > maxBytes) {
+            bytes -= packets.removeFirst().length;
+            dropped++;
+        }
+        byte[] packet = new byte[length];
+        System.arraycopy(buffer, offset, packet, 0, length);
+        packets.addLast(packet);
+        bytes += length;
+        queued++;
+        return true;
+    }
+
+    /**
+     * @return the oldest packet wrapped as is, null if the backlog is empty.
+     */
+    ByteBuffer poll() {
+        byte[] packet = packets.pollFirst();
+        if (packet == null) {
+            return null;
+        }
+        bytes -= packet.length;
+        return ByteBuffer.wrap(packet);
+    }
+
+    int size() {
+        return packets.size();
+    }
+
+    int getBytes() {
+        return bytes;
+    }
+
+    long getQueued() {
+        return queued;
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "UplinkBacklog{packets=%d/%d, bytes=%d/%d, queued=%d, dropped=%d}",
+                packets.size(), maxPackets, bytes, maxBytes, queued, dropped);
+    }
+}
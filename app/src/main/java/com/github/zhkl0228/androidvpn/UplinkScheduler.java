@@ -0,0 +1,370 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Queue between the tun reader and the tunnel writer of the stream engine, so a bulk upload no longer
+ * holds interactive traffic behind it. Every packet is put into a priority class from its headers alone:
+ * <ul>
+ * <li>interactive: DNS, ICMP, TCP segments without payload other than FIN and RST, DSCP EF and CS6/CS7</li>
+ * <li>background: DSCP CS1 and LE</li>
+ * <li>default: everything else</li>
+ * </ul>
+ * Within a class each flow, by {@link PacketHeaders#flowHash(ByteBuffer, int, int) flow hash} bucket, has
+ * its own queue, served deficit round robin a quantum of bytes at a time. A flow that has just become
+ * active goes to the front of its class, so a sparse flow waits for at most one packet of each busy flow
+ * instead of their backlog. Classes are served by priority, except that a backlogged class gets a turn
+ * after {@link #PRIORITY_BURST} packets of higher classes, so none is starved.
+ * <p>
+ * Bounded by packets, which are pool buffers. When full the oldest packet of the flow holding the most bytes
+ * goes: the upload that filled the queue pays for it, and its TCP backs off.
+ * <p>
+ * Thread safe, one thread offers and another polls. The buffers stay the caller's, they come back from
+ * {@link #poll(long)} or as the dropped packet of {@link #offer(ByteBuffer, long)}.
+ */
+final class UplinkScheduler {
+
+    static final int CLASS_INTERACTIVE = 0;
+    static final int CLASS_DEFAULT = 1;
+    static final int CLASS_BACKGROUND = 2;
+    static final int CLASSES = 3;
+    static final String[] CLASS_NAMES = {"interactive", "default", "background"};
+
+    /**
+     * Flow queues of each class, a power of two.
+     */
+    static final int BUCKETS = 1024;
+    /**
+     * Packets a class may wait behind higher classes before it gets a turn.
+     */
+    static final int PRIORITY_BURST = 64;
+
+    private static final int IPPROTO_ICMP = 1;
+    private static final int IPPROTO_ICMPV6 = 58;
+    private static final int DNS_PORT = 53;
+    private static final int TCP_FIN = 0x01;
+    private static final int TCP_RST = 0x04;
+    private static final int DSCP_LE = 1;
+    private static final int DSCP_CS1 = 8;
+    private static final int DSCP_EF = 46;
+    private static final int DSCP_CS6 = 48;
+
+    private static final int NONE = -1;
+
+    private final int maxPackets;
+    private final int quantum;
+    private final TunnelMetrics metrics;
+
+    /**
+     * Queued packets as a linked list of nodes per flow, free nodes in a list of their own.
+     */
+    private final ByteBuffer[] packets;
+    private final long[] enqueuedNanos;
+    private final int[] nextNode;
+    private int freeNode;
+
+    /**
+     * Per flow state, indexed by {@code class * BUCKETS + bucket}.
+     */
+    private final int[] head = new int[CLASSES * BUCKETS];
+    private final int[] tail = new int[CLASSES * BUCKETS];
+    private final int[] flowBytes = new int[CLASSES * BUCKETS];
+    private final int[] deficit = new int[CLASSES * BUCKETS];
+    private final int[] nextActive = new int[CLASSES * BUCKETS];
+    private final boolean[] active = new boolean[CLASSES * BUCKETS];
+
+    /**
+     * Round robin list of the backlogged flows of each class.
+     */
+    private final int[] activeHead = new int[CLASSES];
+    private final int[] activeTail = new int[CLASSES];
+    private final int[] classPackets = new int[CLASSES];
+    /**
+     * Packets of higher classes sent while a class was backlogged, since its last turn.
+     */
+    private final int[] waited = new int[CLASSES];
+
+    private int size;
+    private int bytes;
+    private long lastEnqueuedNanos;
+    private boolean closed;
+
+    private final long[] queued = new long[CLASSES];
+    private long dropped;
+    private int peakSize;
+
+    /**
+     * @param maxPackets packets held at most, each one buffer of the caller's pool.
+     * @param quantum bytes a flow may send per round.
+     */
+    UplinkScheduler(int maxPackets, int quantum, TunnelMetrics metrics) {
+        if (maxPackets < 1 || quantum < 1) {
+            throw new IllegalArgumentException("maxPackets=" + maxPackets + ", quantum=" + quantum);
+        }
+        this.maxPackets = maxPackets;
+        this.quantum = quantum;
+        this.metrics = metrics;
+        this.packets = new ByteBuffer[maxPackets];
+        this.enqueuedNanos = new long[maxPackets];
+        this.nextNode = new int[maxPackets];
+        for (int i = 0; i < maxPackets; i++) {
+            nextNode[i] = i + 1 < maxPackets ? i + 1 : NONE;
+        }
+        this.freeNode = 0;
+        Arrays.fill(activeHead, NONE);
+        Arrays.fill(activeTail, NONE);
+    }
+
+    /**
+     * @return the {@code CLASS_*} of the packet between position and limit of {@code packet}.
+     */
+    static int classify(ByteBuffer packet) {
+        int offset = packet.position();
+        int length = packet.remaining();
+        int version = PacketHeaders.version(packet, offset, length);
+        int dscp;
+        int end;
+        if (version == 4) {
+            dscp = (packet.get(offset + 1) & 0xff) >>> 2;
+            end = offset + PacketHeaders.readShort(packet, offset + 2);
+        } else if (version == 6) {
+            dscp = (PacketHeaders.readShort(packet, offset) >>> 6) & 0x3f;
+            end = offset + 40 + PacketHeaders.readShort(packet, offset + 4);
+        } else {
+            return CLASS_DEFAULT;
+        }
+        if (dscp == DSCP_EF || dscp >= DSCP_CS6) {
+            return CLASS_INTERACTIVE;
+        }
+        if (dscp == DSCP_CS1 || dscp == DSCP_LE) {
+            return CLASS_BACKGROUND;
+        }
+        int protocol = PacketHeaders.protocol(packet, offset, length);
+        if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) {
+            return CLASS_INTERACTIVE;
+        }
+        int transport = PacketHeaders.transportOffset(packet, offset, length);
+        if (transport == -1) {
+            return CLASS_DEFAULT;
+        }
+        if (PacketHeaders.sourcePort(packet, transport) == DNS_PORT || PacketHeaders.destinationPort(packet, transport) == DNS_PORT) {
+            return CLASS_INTERACTIVE;
+        }
+        if (protocol == PacketHeaders.IPPROTO_TCP) {
+            int dataOffset = ((packet.get(transport + 12) & 0xff) >>> 4) * 4;
+            int flags = packet.get(transport + 13) & 0xff;
+            // a FIN or RST must not overtake the data ahead of it
+            if (Math.min(end, offset + length) - transport <= dataOffset && (flags & (TCP_FIN | TCP_RST)) == 0) {
+                return CLASS_INTERACTIVE;
+            }
+        }
+        return CLASS_DEFAULT;
+    }
+
+    /**
+     * Queues the packet between position and limit of {@code packet}, making room if needed.
+     *
+     * @param nanos {@link System#nanoTime()} the packet was read.
+     * @return the packet dropped to make room, the caller owns it again. Null if nothing was dropped.
+     */
+    synchronized ByteBuffer offer(ByteBuffer packet, long nanos) {
+        int length = packet.remaining();
+        ByteBuffer drop = size == maxPackets ? dropFromFattestFlow() : null;
+        int cls = classify(packet);
+        int flow = cls * BUCKETS + (PacketHeaders.flowHash(packet, packet.position(), length) & (BUCKETS - 1));
+        int node = freeNode;
+        freeNode = nextNode[node];
+        packets[node] = packet;
+        enqueuedNanos[node] = nanos;
+        nextNode[node] = NONE;
+        if (active[flow]) {
+            nextNode[tail[flow]] = node;
+        } else {
+            head[flow] = node;
+            active[flow] = true;
+            deficit[flow] = quantum;
+            // new flows go first, see the class comment
+            nextActive[flow] = activeHead[cls];
+            activeHead[cls] = flow;
+            if (activeTail[cls] == NONE) {
+                activeTail[cls] = flow;
+            }
+        }
+        tail[flow] = node;
+        flowBytes[flow] += length;
+        classPackets[cls]++;
+        size++;
+        bytes += length;
+        queued[cls]++;
+        peakSize = Math.max(peakSize, size);
+        if (size == 1) {
+            notifyAll();
+        }
+        return drop;
+    }
+
+    /**
+     * Removes the oldest packet of the flow with the most bytes queued.
+     */
+    private ByteBuffer dropFromFattestFlow() {
+        int fattest = NONE;
+        for (int cls = 0; cls < CLASSES; cls++) {
+            for (int flow = activeHead[cls]; flow != NONE; flow = nextActive[flow]) {
+                if (fattest == NONE || flowBytes[flow] > flowBytes[fattest]) {
+                    fattest = flow;
+                }
+            }
+        }
+        dropped++;
+        if (metrics != null) {
+            metrics.uplinkQueueDropped.increment();
+        }
+        return dequeue(fattest, fattest / BUCKETS);
+    }
+
+    /**
+     * Takes the head packet of {@code flow}, ending its turn once it has no packets left.
+     */
+    private ByteBuffer dequeue(int flow, int cls) {
+        int node = head[flow];
+        ByteBuffer packet = packets[node];
+        packets[node] = null;
+        lastEnqueuedNanos = enqueuedNanos[node];
+        head[flow] = nextNode[node];
+        nextNode[node] = freeNode;
+        freeNode = node;
+        int length = packet.remaining();
+        flowBytes[flow] -= length;
+        deficit[flow] -= length;
+        classPackets[cls]--;
+        size--;
+        bytes -= length;
+        if (head[flow] == NONE) {
+            active[flow] = false;
+            unlink(flow, cls);
+        }
+        return packet;
+    }
+
+    private void unlink(int flow, int cls) {
+        int previous = NONE;
+        for (int current = activeHead[cls]; current != flow; current = nextActive[current]) {
+            previous = current;
+        }
+        if (previous == NONE) {
+            activeHead[cls] = nextActive[flow];
+        } else {
+            nextActive[previous] = nextActive[flow];
+        }
+        if (activeTail[cls] == flow) {
+            activeTail[cls] = previous;
+        }
+        nextActive[flow] = NONE;
+    }
+
+    /**
+     * @return the class whose turn it is, {@link #NONE} when the queue is empty.
+     */
+    private int nextClass() {
+        int first = NONE;
+        for (int cls = 0; cls < CLASSES; cls++) {
+            if (classPackets[cls] == 0) {
+                continue;
+            }
+            if (first == NONE) {
+                first = cls;
+            } else if (waited[cls] >= PRIORITY_BURST) {
+                return cls;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} for a packet, 0 does not wait. Queued packets are still returned
+     * after {@link #close()}.
+     *
+     * @return the next packet by class and flow, null if there is none.
+     */
+    synchronized ByteBuffer poll(long timeoutMillis) throws InterruptedIOException {
+        if (size == 0 && timeoutMillis > 0 && !closed) {
+            long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+            try {
+                long remaining;
+                while (size == 0 && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+                    wait(Math.max(1, remaining / 1000000L));
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("await uplink packet");
+            }
+        }
+        int cls = nextClass();
+        if (cls == NONE) {
+            return null;
+        }
+        waited[cls] = 0;
+        for (int lower = cls + 1; lower < CLASSES; lower++) {
+            if (classPackets[lower] > 0) {
+                waited[lower]++;
+            }
+        }
+        int flow;
+        while (deficit[flow = activeHead[cls]] <= 0) {
+            deficit[flow] += quantum;
+            if (activeTail[cls] != flow) {
+                activeHead[cls] = nextActive[flow];
+                nextActive[flow] = NONE;
+                nextActive[activeTail[cls]] = flow;
+                activeTail[cls] = flow;
+            }
+        }
+        ByteBuffer packet = dequeue(flow, cls);
+        if (metrics != null) {
+            metrics.uplinkQueueMicros[cls].record((System.nanoTime() - lastEnqueuedNanos) / 1000);
+        }
+        return packet;
+    }
+
+    /**
+     * @return when the packet {@link #poll(long)} returned last was offered, only valid on the polling thread.
+     */
+    synchronized long getLastEnqueuedNanos() {
+        return lastEnqueuedNanos;
+    }
+
+    /**
+     * Wakes a waiting {@link #poll(long)} for good.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized int getBytes() {
+        return bytes;
+    }
+
+    synchronized long getQueued(int cls) {
+        return queued[cls];
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "UplinkScheduler{packets=%d/%d, bytes=%d, peak=%d, quantum=%d, queued=%d/%d/%d, dropped=%d}",
+                size, maxPackets, bytes, peakSize, quantum, queued[CLASS_INTERACTIVE], queued[CLASS_DEFAULT], queued[CLASS_BACKGROUND], dropped);
+    }
+}
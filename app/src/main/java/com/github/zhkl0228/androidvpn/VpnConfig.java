@@ -0,0 +1,290 @@
+package com.github.zhkl0228.androidvpn;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Contents of {@link #FILE_NAME} and their SHA-256, offered to the server by hash so an unchanged config
+ * crosses the network once instead of on every connect. With the config hash flag set in the handshake
+ * the inline config is replaced by an exchange:
+ * <pre>
+ * client: [u8 version][32 bytes sha256][utf header]
+ * server: [u8 0 cached | 1 send]
+ * client: [u32 length][u8 codec] { [u16 chunk length][chunk] } [u16 0]    only after a 1
+ * </pre>
+ * The header is the JSON the inline config travels in, without the config. The data is deflated when that
+ * makes it smaller and sent in chunks, so its size is not bound by {@link DataOutput#writeUTF(String)}.
+ * The inline config is bound by it: the JSON with the base64 config in it is a single writeUTF string of
+ * at most {@value #MAX_INLINE_SIZE} bytes, room for about 48 KB of config. Servers without the exchange
+ * read exactly that, so a larger config is only sent by hash and otherwise left out of the handshake.
+ */
+final class VpnConfig {
+
+    static final String FILE_NAME = "vpn_config.txt";
+
+    static final int VERSION = 1;
+    static final int HASH_SIZE = 32;
+    static final int REPLY_CACHED = 0;
+    static final int REPLY_SEND = 1;
+    static final int CODEC_STORED = 0;
+    static final int CODEC_DEFLATE = 1;
+    static final int CHUNK_SIZE = 32 * 1024;
+    /**
+     * Largest config a server accepts, a bound for the length it allocates.
+     */
+    static final int MAX_SIZE = 16 * 1024 * 1024;
+    /**
+     * Largest inline config JSON, the length prefix of {@link DataOutput#writeUTF(String)} is a u16.
+     */
+    static final int MAX_INLINE_SIZE = 0xffff;
+
+    final byte[] data;
+    final byte[] hash;
+    private byte[] encoded;
+    private int codec;
+
+    VpnConfig(byte[] data) {
+        this.data = data;
+        this.hash = sha256(data);
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] hash) {
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >>> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    String getHashHex() {
+        return toHex(hash);
+    }
+
+    /**
+     * Deflates once, the stripes of a connect and later reconnects send the same bytes.
+     */
+    private synchronized void encode() {
+        if (encoded != null) {
+            return;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[CHUNK_SIZE];
+            while (!deflater.finished() && baos.size() < data.length) {
+                int length = deflater.deflate(buffer);
+                baos.write(buffer, 0, length);
+            }
+            if (deflater.finished() && baos.size() < data.length) {
+                encoded = baos.toByteArray();
+                codec = CODEC_DEFLATE;
+            } else {
+                encoded = data;
+                codec = CODEC_STORED;
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    synchronized int getEncodedSize() {
+        encode();
+        return encoded.length;
+    }
+
+    void writeOffer(DataOutput output, String header) throws IOException {
+        output.writeByte(VERSION);
+        output.write(hash);
+        output.writeUTF(header);
+    }
+
+    /**
+     * @return true if the server asked for the data.
+     */
+    static boolean readReply(DataInput input) throws IOException {
+        int reply = input.readUnsignedByte();
+        if (reply != REPLY_CACHED && reply != REPLY_SEND) {
+            throw new IOException("unexpected config reply: " + reply);
+        }
+        return reply == REPLY_SEND;
+    }
+
+    void writeData(DataOutput output) throws IOException {
+        byte[] encoded;
+        int codec;
+        synchronized (this) {
+            encode();
+            encoded = this.encoded;
+            codec = this.codec;
+        }
+        output.writeInt(data.length);
+        output.writeByte(codec);
+        for (int offset = 0; offset < encoded.length; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, encoded.length - offset);
+            output.writeShort(length);
+            output.write(encoded, offset, length);
+        }
+        output.writeShort(0);
+    }
+
+    /**
+     * What the client offers, read by the server.
+     */
+    static final class Offer {
+        final byte[] hash;
+        final String header;
+
+        Offer(byte[] hash, String header) {
+            this.hash = hash;
+            this.header = header;
+        }
+
+        String getHashHex() {
+            return toHex(hash);
+        }
+    }
+
+    /**
+     * Server side of {@link #writeOffer(DataOutput, String)}.
+     */
+    static Offer readOffer(DataInput input) throws IOException {
+        int version = input.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported config version: " + version);
+        }
+        byte[] hash = new byte[HASH_SIZE];
+        input.readFully(hash);
+        return new Offer(hash, input.readUTF());
+    }
+
+    static void writeReply(DataOutput output, boolean send) throws IOException {
+        output.writeByte(send ? REPLY_SEND : REPLY_CACHED);
+    }
+
+    /**
+     * Server side of {@link #writeData(DataOutput)}, checked against the hash of the offer.
+     */
+    static VpnConfig readData(DataInput input, Offer offer) throws IOException {
+        int size = input.readInt();
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IOException("config size out of range: " + size);
+        }
+        int codec = input.readUnsignedByte();
+        if (codec != CODEC_STORED && codec != CODEC_DEFLATE) {
+            throw new IOException("unsupported config codec: " + codec);
+        }
+        byte[] data = new byte[size];
+        byte[] chunk = new byte[CHUNK_SIZE];
+        Inflater inflater = codec == CODEC_DEFLATE ? new Inflater() : null;
+        try {
+            int offset = 0;
+            int length;
+            while ((length = input.readUnsignedShort()) != 0) {
+                if (length > CHUNK_SIZE) {
+                    throw new IOException("config chunk too large: " + length);
+                }
+                if (inflater == null) {
+                    if (offset + length > size) {
+                        throw new IOException("config longer than " + size + " bytes");
+                    }
+                    input.readFully(data, offset, length);
+                    offset += length;
+                    continue;
+                }
+                input.readFully(chunk, 0, length);
+                inflater.setInput(chunk, 0, length);
+                while (!inflater.needsInput() && !inflater.finished()) {
+                    // once the data is complete only the stream's trailer may be left
+                    int inflated = offset < size ? inflater.inflate(data, offset, size - offset) : inflater.inflate(chunk, 0, 1);
+                    if (offset == size && inflated > 0) {
+                        throw new IOException("config longer than " + size + " bytes");
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new IOException("corrupt config data");
+                    }
+                    offset += inflated;
+                }
+            }
+            if (offset != size || (inflater != null && !inflater.finished())) {
+                throw new IOException("config truncated at " + offset + " of " + size + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt config data", e);
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+        VpnConfig config = new VpnConfig(data);
+        if (!Arrays.equals(config.hash, offer.hash)) {
+            throw new IOException("config hash mismatch: offered " + offer.getHashHex() + ", received " + config.getHashHex());
+        }
+        return config;
+    }
+
+    /**
+     * @return null if there is no config file.
+     */
+    static VpnConfig load(File file) throws IOException {
+        if (file == null || !file.canRead()) {
+            return null;
+        }
+        try (InputStream inputStream = new FileInputStream(file)) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) Math.min(file.length(), MAX_SIZE));
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                baos.write(buffer, 0, read);
+            }
+            return new VpnConfig(baos.toByteArray());
+        }
+    }
+
+    /**
+     * @return false if {@code json} is more than {@link #MAX_INLINE_SIZE} bytes of modified UTF-8.
+     */
+    static boolean fitsInline(String json) {
+        if (json.length() > MAX_INLINE_SIZE) {
+            return false;
+        }
+        int size = 0;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            size += c >= 0x1 && c <= 0x7f ? 1 : c <= 0x7ff ? 2 : 3;
+        }
+        return size <= MAX_INLINE_SIZE;
+    }
+
+    static FileCache<VpnConfig> newCache() {
+        return new FileCache<>("VpnConfig", VpnConfig::load);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "VpnConfig{" + data.length + " bytes, sha256=" + getHashHex() + '}';
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The route planning {@link InspectorVpnService} used before {@link IPUtil.RangeSet}, kept as the reference
+ * its output is checked against. Ranges are returned as {@code "a.b.c.d/prefix"}.
+ */
+final class LegacyRoutes {
+
+    private LegacyRoutes() {
+    }
+
+    static List<String> toCIDR(long from, long to) {
+        List<String> listResult = new ArrayList<>();
+        while (to >= from) {
+            byte prefix = 32;
+            while (prefix > 0) {
+                long mask = prefix2mask(prefix - 1);
+                if ((from & mask) != from)
+                    break;
+                prefix--;
+            }
+
+            byte max = (byte) (32 - Math.floor(Math.log(to - from + 1) / Math.log(2)));
+            if (prefix < max)
+                prefix = max;
+
+            listResult.add(IPUtil.toString((int) from) + "/" + prefix);
+
+            from += Math.pow(2, (32 - prefix));
+        }
+        return listResult;
+    }
+
+    /**
+     * The exclusion loop from {@code getBuilder}: sorted by address, never merged.
+     *
+     * @param multicast whether 224.0.0.0/3 is routed after the loop, as {@code getBuilder} did.
+     */
+    static List<String> routes(List<IPUtil.CIDR> listExclude, boolean multicast) throws UnknownHostException {
+        listExclude = new ArrayList<>(listExclude);
+        Collections.sort(listExclude);
+        List<String> routes = new ArrayList<>();
+        long start = 0;
+        for (IPUtil.CIDR exclude : listExclude) {
+            routes.addAll(toCIDR(start, inet2long(exclude.getStart()) - 1));
+            start = inet2long(exclude.getEnd()) + 1;
+        }
+        if (multicast)
+            routes.addAll(toCIDR(0xE0000000L, 0xFFFFFFFFL));
+        return routes;
+    }
+
+    private static long prefix2mask(int bits) {
+        return (0xFFFFFFFF00000000L >> bits) & 0xFFFFFFFFL;
+    }
+
+    private static long inet2long(InetAddress addr) {
+        long result = 0;
+        for (byte b : addr.getAddress())
+            result = result << 8 | (b & 0xFF);
+        return result;
+    }
+
+}
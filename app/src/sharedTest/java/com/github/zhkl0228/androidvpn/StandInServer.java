@@ -0,0 +1,242 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Loopback stand-in for the vpn server: accepts tunnel connections, reads the {@code osType} handshake
+ * and hands every uplink packet to a {@link Listener}. It understands the config, config hash, extended,
+ * resume and ping flags, with compression one of the extended handshake's features, answers pings with pongs and in {@link #setReflect(boolean) reflect} mode sends
+ * every packet back down the connection it came on.
+ * <p>
+ * A stall can be injected before each frame with a given probability, which models the retransmission
+ * timeout a lost segment costs the one TCP connection it was sent on, and a {@link #setReadRate(long) read
+ * rate} models a bottleneck link.
+ */
+class StandInServer implements Closeable {
+
+    interface Listener {
+        void onPacket(int connection, byte[] buffer, int offset, int length);
+    }
+
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets = new ArrayList<>();
+    private final Listener listener;
+    private final byte magic;
+    private final int mtu;
+    private volatile double stallProbability;
+    private volatile long stallMillis;
+    private volatile boolean reflect;
+    private volatile long readBytesPerSecond;
+    private volatile int features = TunnelParameters.FEATURE_SUPER_FRAMES | TunnelParameters.FEATURE_COMPRESSION;
+    private final Map<String, VpnConfig> configs = new ConcurrentHashMap<>();
+    private final AtomicInteger configUploads = new AtomicInteger();
+
+    StandInServer(Listener listener, byte magic, int mtu) throws IOException {
+        this(listener, magic, mtu, 0);
+    }
+
+    /**
+     * @param receiveBuffer receive buffer of accepted connections, set before bind so no advertised
+     *                      window shrinks. 0 keeps the default.
+     */
+    StandInServer(Listener listener, byte magic, int mtu, int receiveBuffer) throws IOException {
+        this.serverSocket = new ServerSocket();
+        if (receiveBuffer > 0) {
+            serverSocket.setReceiveBufferSize(receiveBuffer);
+        }
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+        this.listener = listener;
+        this.magic = magic;
+        this.mtu = mtu;
+        Thread thread = new Thread(this::acceptLoop, "stand-in accept");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void setStall(double probability, long millis) {
+        this.stallProbability = probability;
+        this.stallMillis = millis;
+    }
+
+    /**
+     * @return the config cached under {@code hash}, null if no client sent it yet.
+     */
+    VpnConfig getConfig(String hash) {
+        return configs.get(hash);
+    }
+
+    /**
+     * @return how many configs clients sent after offering them by hash.
+     */
+    int getConfigUploads() {
+        return configUploads.get();
+    }
+
+    /**
+     * {@link TunnelParameters} features the server answers the extended handshake with.
+     */
+    void setFeatures(int features) {
+        this.features = features;
+    }
+
+    /**
+     * Reads new connections at no more than {@code bytesPerSecond}, a bottleneck link the uplink queues up
+     * in front of. 0 reads at full speed.
+     */
+    void setReadRate(long bytesPerSecond) {
+        this.readBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Sends uplink packets back as downlink packets, so a client loads both directions.
+     */
+    void setReflect(boolean reflect) {
+        this.reflect = reflect;
+    }
+
+    private void acceptLoop() {
+        try {
+            for (int connection = 0; ; connection++) {
+                Socket socket = serverSocket.accept();
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                final int index = connection;
+                Thread thread = new Thread(() -> serve(index, socket), "stand-in connection " + connection);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void serve(int connection, Socket socket) {
+        Random random = new Random(connection);
+        long rate = readBytesPerSecond;
+        try (InputStream inputStream = rate > 0 ? new PacedInputStream(socket.getInputStream(), rate) : socket.getInputStream();
+             OutputStream outputStream = socket.getOutputStream()) {
+            DataInputStream dataInput = new DataInputStream(inputStream);
+            int osType = dataInput.readUnsignedByte();
+            if ((osType & 0x80) != 0) {
+                dataInput.readUTF();
+            } else if ((osType & 0x02) != 0) {
+                VpnConfig.Offer offer = VpnConfig.readOffer(dataInput);
+                DataOutputStream output = new DataOutputStream(outputStream);
+                boolean send = !configs.containsKey(offer.getHashHex());
+                VpnConfig.writeReply(output, send);
+                output.flush();
+                if (send) {
+                    configs.put(offer.getHashHex(), VpnConfig.readData(dataInput, offer));
+                    configUploads.incrementAndGet();
+                }
+            }
+            TunnelParameters parameters = null;
+            if ((osType & 0x10) != 0) {
+                TunnelParameters proposal = TunnelParameters.read(dataInput);
+                TunnelParameters answer = new TunnelParameters(proposal.version, proposal.mtu, proposal.maxFrameSize, features);
+                DataOutputStream output = new DataOutputStream(outputStream);
+                answer.write(output);
+                output.flush();
+                parameters = proposal.agree(answer);
+            }
+            if ((osType & 0x08) != 0) {
+                TunnelSession.read(dataInput);
+            }
+            boolean compression = parameters != null && parameters.compression();
+            int frameMtu = parameters == null ? mtu : parameters.mtu;
+            FrameWriter writer = new FrameWriter(outputStream, magic, frameMtu, FrameWriter.DEFAULT_BATCH_SIZE,
+                    compression ? new FrameCompressor() : null, parameters);
+            FrameReader.ControlHandler controlHandler = (type, buffer, offset, length) -> {
+                if (type == ControlFrame.TYPE_PING) {
+                    writer.writeControlFrame(ControlFrame.TYPE_PONG, buffer, offset, length);
+                    writer.flush();
+                }
+            };
+            FrameReader reader = new FrameReader(inputStream, magic, frameMtu, FrameReader.DEFAULT_BUFFER_SIZE,
+                    compression ? new FrameCompressor() : null, parameters, controlHandler);
+            FrameReader.PacketHandler handler = (buffer, offset, length) -> {
+                double probability = stallProbability;
+                if (probability > 0 && random.nextDouble() < probability) {
+                    try {
+                        Thread.sleep(stallMillis);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                if (listener != null) {
+                    listener.onPacket(connection, buffer, offset, length);
+                }
+                if (reflect) {
+                    writer.writeFrame(buffer, offset, length);
+                }
+            };
+            int packets;
+            do {
+                packets = reader.read(handler);
+                writer.flush();
+            } while (packets != -1);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Hands out bytes no faster than a given rate, in reads of at most {@link #MAX_READ} bytes.
+     */
+    private static final class PacedInputStream extends FilterInputStream {
+        private static final int MAX_READ = 4096;
+
+        private final long bytesPerSecond;
+        private long next = System.nanoTime();
+
+        PacedInputStream(InputStream in, long bytesPerSecond) {
+            super(in);
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, Math.min(len, MAX_READ));
+            if (read > 0) {
+                next = Math.max(next, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1)) + read * 1000000000L / bytesPerSecond;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            return read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class AppPolicyTest {
+
+    private static AppPolicy parse(String text) throws IOException {
+        return AppPolicy.parse(new StringReader(text));
+    }
+
+    private static void write(File file, String text) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        AppPolicy policy = parse("# media apps\n\nexclude   # bypass\n com.google.android.youtube \ncom.android.vending\ncom.android.vending\n");
+        assertEquals(AppPolicy.Mode.exclude, policy.mode);
+        assertEquals(Arrays.asList("com.google.android.youtube", "com.android.vending"), new ArrayList<>(policy.packages));
+
+        policy = parse("include\ncom.example.app_1\n");
+        assertEquals(AppPolicy.Mode.include, policy.mode);
+        assertEquals(1, policy.packages.size());
+
+        assertTrue(parse("exclude\n").packages.isEmpty());
+    }
+
+    @Test
+    public void testRejectBadFiles() throws IOException {
+        for (String text : new String[]{"", "# only a comment\n", "com.example.app\nexclude\n", "include\ncom.example.app\nexclude\n",
+                "exclude\nexample\n", "exclude\ncom.example app\n", "exclude\n1com.example\n"}) {
+            try {
+                parse(text);
+                fail(text);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith(AppPolicy.FILE_NAME));
+            }
+        }
+    }
+
+    @Test
+    public void testCacheParsesOncePerChange() throws IOException {
+        File file = File.createTempFile("vpn_apps", ".txt");
+        try {
+            FileCache<AppPolicy> cache = AppPolicy.newCache();
+            write(file, "exclude\ncom.example.a\n");
+            AppPolicy first = cache.get(file);
+            assertSame(first, cache.get(file));
+            assertSame(first, cache.get(file));
+            assertEquals(1, cache.getLoads());
+
+            write(file, "include\ncom.example.a\ncom.example.b\n");
+            assertTrue(file.setLastModified(file.lastModified() + 2000));
+            AppPolicy second = cache.get(file);
+            assertNotSame(first, second);
+            assertEquals(AppPolicy.Mode.include, second.mode);
+            assertEquals(2, cache.getLoads());
+
+            write(file, "include\nnot a package\n");
+            assertTrue(file.setLastModified(file.lastModified() + 2000));
+            try {
+                cache.get(file);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            assertTrue(file.delete());
+            assertNull(cache.get(file));
+            assertNull(cache.get(null));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTrafficEstimate() {
+        TrafficSnapshot start = new TrafficSnapshot(1000, 100);
+        // 400 bytes through the tunnel show up on the tun and on our sockets, 300 bytes went around it
+        TrafficSnapshot end = new TrafficSnapshot(1000 + 2 * 400 + 300, 100 + 400);
+        assertEquals(400, end.tunnelledSince(start));
+        assertEquals(300, end.keptOffSince(start));
+        assertEquals(0, new TrafficSnapshot(1100, 200).keptOffSince(start));
+        assertTrue(end.describeSince(start), end.describeSince(start).endsWith("(43%)"));
+    }
+
+}
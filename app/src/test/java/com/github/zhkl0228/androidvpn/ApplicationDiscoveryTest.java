@@ -0,0 +1,109 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ApplicationDiscoveryTest {
+
+    private static final byte MAGIC = 0xe;
+
+    private static byte[] singleQuery(int protocol, String saddr, int sport, String daddr, int dport) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(baos);
+        output.writeByte(ApplicationDiscovery.TYPE_SINGLE_QUERY);
+        output.writeByte(protocol);
+        output.writeUTF(saddr);
+        output.writeShort(sport);
+        output.writeUTF(daddr);
+        output.writeShort(dport);
+        return baos.toByteArray();
+    }
+
+    /**
+     * The udp transport's wiring: a query the server sends to the tunnel socket is answered over that same
+     * socket, without binding one of its own.
+     */
+    @Test
+    public void testAnsweredOnTheDatagramTunnelSocket() throws Exception {
+        PackageCache packageCache = new PackageCache(uid -> Collections.singletonList(new Package("app.uid" + uid, "App", 1)));
+        TunnelMetrics metrics = new TunnelMetrics();
+        int[] owner = new int[1];
+        ApplicationDiscovery discovery = new ApplicationDiscovery((protocol, local, remote) -> {
+            owner[0] = protocol == PacketHeaders.IPPROTO_TCP && local.getPort() == 40000 && remote.getPort() == 443 ? 10001 : -1;
+            return owner[0];
+        }, packageCache, Runnable::run, metrics);
+
+        try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramSocket socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            server.setSoTimeout(2000);
+            socket.connect(server.getLocalSocketAddress());
+            DatagramTunnel tunnel = new DatagramTunnel(socket, MAGIC, 1400, 3L, 1000);
+            Thread acknowledge = new Thread(() -> {
+                byte[] buffer = new byte[2048];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    server.receive(packet);
+                    buffer[0] = DatagramTunnel.TYPE_HELLO_ACK;
+                    server.send(new DatagramPacket(buffer, 0, 9, packet.getSocketAddress()));
+                } catch (IOException ignored) {
+                }
+            });
+            acknowledge.start();
+            tunnel.handshake(new byte[]{0x0}, 3, 500);
+            acknowledge.join();
+
+            Thread receiver = new Thread(() -> {
+                try {
+                    tunnel.receive((buffer, offset, length) -> fail(), discovery.datagramHandler(socket));
+                } catch (IOException ignored) {
+                }
+            });
+            receiver.start();
+            byte[] query = singleQuery(PacketHeaders.IPPROTO_TCP, "10.1.10.1", 40000, "1.1.1.1", 443);
+            SocketAddress tunnelAddress = socket.getLocalSocketAddress();
+            server.send(new DatagramPacket(query, query.length, tunnelAddress));
+
+            byte[] buffer = new byte[2048];
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+            do {
+                server.receive(reply);
+            } while (buffer[0] == DatagramTunnel.TYPE_PING);
+            socket.close();
+            receiver.join();
+
+            assertEquals("from the tunnel socket", tunnelAddress, reply.getSocketAddress());
+            byte[] expected = DiscoveryBatch.encodeSingleReply(DiscoveryBatch.id(PacketHeaders.IPPROTO_TCP, "10.1.10.1", 40000, "1.1.1.1", 443),
+                    packageCache.get(10001).encoded);
+            assertArrayEquals(expected, Arrays.copyOf(buffer, reply.getLength()));
+            assertEquals(10001, owner[0]);
+            assertEquals(1, metrics.discoveryQueries.sum());
+            assertEquals(1, metrics.discoveryFlows.sum());
+        }
+    }
+
+    @Test
+    public void testUnknownQueryIsDroppedByTheHandler() throws Exception {
+        TunnelMetrics metrics = new TunnelMetrics();
+        ApplicationDiscovery discovery = new ApplicationDiscovery((protocol, local, remote) -> {
+            throw new AssertionError();
+        }, new PackageCache(uid -> null), Runnable::run, metrics);
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            byte[] data = {0x7f, 0, 0};
+            discovery.datagramHandler(socket).onDatagram(new DatagramPacket(data, data.length, socket.getLocalSocketAddress()));
+        }
+        assertEquals(1, metrics.discoveryQueries.sum());
+        assertEquals(0, metrics.discoveryFlows.sum());
+    }
+}
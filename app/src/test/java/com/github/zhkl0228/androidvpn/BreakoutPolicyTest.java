@@ -0,0 +1,177 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BreakoutPolicyTest {
+
+    private static final int TCP = PacketHeaders.IPPROTO_TCP;
+    private static final int UDP = PacketHeaders.IPPROTO_UDP;
+
+    private static BreakoutPolicy parse(String text) throws IOException {
+        return BreakoutPolicy.parse(new StringReader(text));
+    }
+
+    private static int address(String ip) throws UnknownHostException {
+        return (int) IPUtil.toLong(InetAddress.getByName(ip));
+    }
+
+    @Test
+    public void testLongestPrefixWins() throws IOException {
+        BreakoutPolicy policy = parse("# cdn\n" +
+                "direct any 17.0.0.0/8\n" +
+                "tunnel any 17.1.0.0/16   # except the api\n" +
+                "direct udp 17.1.2.0/24 443\n" +
+                "\n" +
+                "direct udp 0.0.0.0/0 3478-3481,19302\n");
+        assertTrue(policy.isDirect(TCP, address("17.200.1.1"), 80));
+        assertTrue(policy.isDirect(UDP, address("17.0.0.0"), 53));
+        assertFalse(policy.isDirect(TCP, address("17.1.2.3"), 443));
+        assertTrue(policy.isDirect(UDP, address("17.1.2.3"), 443));
+        assertFalse(policy.isDirect(UDP, address("17.1.2.3"), 444));
+        assertFalse(policy.isDirect(UDP, address("17.1.3.3"), 443));
+        assertFalse(policy.isDirect(UDP, address("8.8.8.8"), 53));
+        assertTrue(policy.isDirect(UDP, address("8.8.8.8"), 3478));
+        assertTrue(policy.isDirect(UDP, address("8.8.8.8"), 3481));
+        assertFalse(policy.isDirect(UDP, address("8.8.8.8"), 3482));
+        assertTrue(policy.isDirect(UDP, address("8.8.8.8"), 19302));
+        assertFalse(policy.isDirect(TCP, address("8.8.8.8"), 19302));
+        assertEquals(5, policy.getRules().size());
+    }
+
+    @Test
+    public void testFirstRuleOfPrefixWins() throws IOException {
+        BreakoutPolicy policy = parse("tunnel udp 10.0.0.0/8 53\ndirect any 10.0.0.0/8\ntunnel any 10.0.0.0/8\n");
+        assertFalse(policy.isDirect(UDP, address("10.1.1.1"), 53));
+        assertTrue(policy.isDirect(UDP, address("10.1.1.1"), 54));
+        assertTrue(policy.isDirect(TCP, address("10.1.1.1"), 53));
+    }
+
+    @Test
+    public void testHostRoutes() throws IOException {
+        BreakoutPolicy policy = parse("direct udp 1.2.3.4\ndirect udp 255.255.255.255/32\ndirect tcp 0.0.0.0/0 22");
+        assertTrue(policy.isDirect(UDP, address("1.2.3.4"), 1));
+        assertFalse(policy.isDirect(UDP, address("1.2.3.5"), 1));
+        assertTrue(policy.isDirect(UDP, -1, 1));
+        assertTrue(policy.isDirect(TCP, address("1.2.3.4"), 22));
+        assertFalse(policy.isDirect(TCP, address("1.2.3.4"), 23));
+    }
+
+    @Test
+    public void testMatchesLinearScan() throws IOException {
+        Random random = new Random(0x14);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            int prefix = random.nextInt(33);
+            text.append(random.nextBoolean() ? "direct " : "tunnel ")
+                    .append(new String[]{"any", "tcp", "udp"}[random.nextInt(3)]).append(' ')
+                    .append(IPUtil.toString(random.nextInt(4) << 30 | random.nextInt(256) << 16)).append('/').append(prefix);
+            if (random.nextBoolean()) {
+                int from = random.nextInt(1000);
+                text.append(' ').append(from).append('-').append(from + random.nextInt(1000));
+            }
+            text.append('\n');
+        }
+        BreakoutPolicy policy = parse(text.toString());
+        List<BreakoutPolicy.Rule> rules = policy.getRules();
+        for (int i = 0; i < 20000; i++) {
+            int address = random.nextInt(4) << 30 | random.nextInt(256) << 16 | random.nextInt(1 << 16);
+            int protocol = random.nextBoolean() ? TCP : UDP;
+            int port = random.nextInt(2000);
+            BreakoutPolicy.Rule best = null;
+            for (BreakoutPolicy.Rule rule : rules) {
+                int mask = rule.prefix == 0 ? 0 : -1 << (32 - rule.prefix);
+                if ((address & mask) == rule.address && rule.matches(protocol, port) && (best == null || rule.prefix > best.prefix)) {
+                    best = rule;
+                }
+            }
+            assertEquals(IPUtil.toString(address) + " " + best, best != null && best.direct, policy.isDirect(protocol, address, port));
+        }
+    }
+
+    @Test
+    public void testRouteExclusions() throws IOException {
+        BreakoutPolicy policy = parse("direct any 17.0.0.0/8\n" +
+                "tunnel any 17.1.0.0/16\n" +
+                "direct any 17.1.128.0/17\n" +
+                "direct udp 17.2.0.0/16 443\n" +
+                "direct udp 8.8.8.0/24\n" +
+                "direct any 1.1.1.1\n");
+        IPUtil.RangeSet exclusions = new IPUtil.RangeSet();
+        policy.addRouteExclusions(exclusions);
+        assertEquals("RangeSet[1.1.1.1...1.1.1.1, 17.0.0.0...17.0.255.255, 17.1.128.0...17.1.255.255, 17.3.0.0...17.255.255.255]",
+                exclusions.toString());
+        assertTrue(policy.hasDirectUdp());
+
+        policy = parse("direct tcp 0.0.0.0/0 443\n");
+        exclusions = new IPUtil.RangeSet();
+        policy.addRouteExclusions(exclusions);
+        assertEquals(0, exclusions.size());
+        assertFalse(policy.hasDirectUdp());
+    }
+
+    @Test
+    public void testRejectBadRules() {
+        List<String> bad = new ArrayList<>();
+        bad.add("direct");
+        bad.add("allow any 1.0.0.0/8");
+        bad.add("direct icmp 1.0.0.0/8");
+        bad.add("direct any 1.0.0.0/33");
+        bad.add("direct any ::1/128");
+        bad.add("direct any example.com");
+        bad.add("direct udp 1.0.0.0/8 70000");
+        bad.add("direct udp 1.0.0.0/8 90-80");
+        bad.add("direct udp 1.0.0.0/8 http");
+        for (String line : bad) {
+            try {
+                parse("# first\n" + line);
+                fail(line);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith(BreakoutPolicy.FILE_NAME + ":2: "));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static void write(File file, String text) throws IOException {
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testBadPolicyOnlyDisablesBreakout() throws IOException {
+        File dir = Files.createTempDirectory("vpn").toFile();
+        File options = new File(dir, TunnelOptions.FILE_NAME);
+        File policy = new File(dir, BreakoutPolicy.FILE_NAME);
+        try {
+            write(options, "stripes=3\n");
+            write(policy, "direct udp 1.0.0.0/8\n");
+            assertNotNull(TunnelOptions.load(options).breakout);
+
+            write(policy, "direct udp 1.0.0.0/33\n");
+            TunnelOptions tunnelOptions = TunnelOptions.load(options);
+            assertNull(tunnelOptions.breakout);
+            assertEquals("the other options still apply", 3, tunnelOptions.stripes);
+        } finally {
+            assertTrue(policy.delete());
+            assertTrue(options.delete());
+            assertTrue(dir.delete());
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class DatagramTunnelTest {
+
+    private static final byte MAGIC = 0xe;
+    private static final int MTU = 1500;
+
+    /**
+     * Loopback stand-in for the udp side of the vpn server: acknowledges HELLO, answers PING and
+     * echoes DATA back, dropping datagrams in both directions with the given probability.
+     */
+    private static class EchoServer implements AutoCloseable {
+        final DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final Random random = new Random(0x77);
+        final AtomicInteger hellos = new AtomicInteger();
+        final AtomicInteger pings = new AtomicInteger();
+        final AtomicLong dataReceived = new AtomicLong();
+        volatile double loss;
+        volatile boolean silent;
+
+        EchoServer() throws IOException {
+            socket.setReceiveBufferSize(4 << 20);
+            Thread thread = new Thread(this::serve, "udp stand-in");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private boolean drop() {
+            double loss = this.loss;
+            return loss > 0 && random.nextDouble() < loss;
+        }
+
+        private void serve() {
+            byte[] buffer = new byte[65536];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                while (true) {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                    if (silent || drop()) {
+                        continue;
+                    }
+                    SocketAddress client = packet.getSocketAddress();
+                    int type = buffer[0] & 0xff;
+                    if (type == DatagramTunnel.TYPE_HELLO) {
+                        hellos.incrementAndGet();
+                        byte[] ack = new byte[9];
+                        ack[0] = DatagramTunnel.TYPE_HELLO_ACK;
+                        System.arraycopy(buffer, 1, ack, 1, 8);
+                        socket.send(new DatagramPacket(ack, ack.length, client));
+                    } else if (type == DatagramTunnel.TYPE_PING) {
+                        pings.incrementAndGet();
+                        buffer[0] = DatagramTunnel.TYPE_PONG;
+                        socket.send(new DatagramPacket(buffer, 0, packet.getLength(), client));
+                    } else if (type == DatagramTunnel.TYPE_DATA) {
+                        dataReceived.incrementAndGet();
+                        if (!drop()) {
+                            socket.send(new DatagramPacket(buffer, 0, packet.getLength(), client));
+                        }
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+
+    private static DatagramSocket connect(EchoServer server) throws IOException {
+        DatagramSocket socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        socket.setReceiveBufferSize(4 << 20);
+        socket.connect(server.socket.getLocalSocketAddress());
+        return socket;
+    }
+
+    @Test
+    public void testHandshakeRetriedUnderLoss() throws Exception {
+        try (EchoServer server = new EchoServer(); DatagramSocket socket = connect(server)) {
+            server.loss = 0.3;
+            DatagramTunnel tunnel = new DatagramTunnel(socket, MAGIC, MTU, 0x1234L, 1000);
+            tunnel.handshake(new byte[]{0x0}, 20, 20);
+            assertTrue(server.hellos.get() >= 1);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testHandshakeTimeout() throws Exception {
+        try (EchoServer server = new EchoServer(); DatagramSocket socket = connect(server)) {
+            server.silent = true;
+            new DatagramTunnel(socket, MAGIC, MTU, 0x1234L, 1000).handshake(new byte[]{0x0}, 3, 10);
+        }
+    }
+
+    @Test
+    public void testKeepaliveAndDeadPeer() throws Exception {
+        try (EchoServer server = new EchoServer(); DatagramSocket socket = connect(server)) {
+            DatagramTunnel tunnel = new DatagramTunnel(socket, MAGIC, MTU, 0x5678L, 40);
+            tunnel.handshake(new byte[]{0x0}, 3, 200);
+            Thread silence = new Thread(() -> {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException ignored) {
+                }
+                server.silent = true;
+            });
+            silence.start();
+            long start = System.nanoTime();
+            try {
+                tunnel.receive((buffer, offset, length) -> fail(), null);
+                fail("dead peer not detected");
+            } catch (IOException expected) {
+                long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+                assertTrue("elapsed=" + elapsedMillis, elapsedMillis >= 300 && elapsedMillis < 2000);
+            }
+            assertTrue("pings=" + server.pings.get(), server.pings.get() >= 3);
+            assertTrue("pongs feed the rtt estimate: " + tunnel.getHealth(), tunnel.getHealth().getSamples() >= 1);
+        }
+    }
+
+    @Test
+    public void testRoundTripPayload() throws Exception {
+        try (EchoServer server = new EchoServer(); DatagramSocket socket = connect(server)) {
+            DatagramTunnel tunnel = new DatagramTunnel(socket, MAGIC, MTU, 1L, 1000);
+            tunnel.handshake(new byte[]{0x0}, 3, 200);
+            byte[] packet = TestPackets.udp4("10.1.10.1", 5353, "8.8.8.8", 53, new byte[100]);
+            tunnel.send(packet, 0, packet.length);
+            Thread closer = closeAfter(socket, 500);
+            byte[][] received = new byte[1][];
+            try {
+                tunnel.receive((buffer, offset, length) -> {
+                    received[0] = Arrays.copyOfRange(buffer, offset, offset + length);
+                    socket.close();
+                }, null);
+            } catch (IOException ignored) {
+            }
+            closer.interrupt();
+            assertArrayEquals(packet, received[0]);
+        }
+    }
+
+    @Test
+    public void testUdpTunMtuFitsOneUnfragmentedDatagram() {
+        Properties properties = new Properties();
+        properties.setProperty("transport", "udp");
+        TunnelOptions options = new TunnelOptions(properties);
+        assertEquals(DatagramTunnel.PATH_MTU, options.tunMtu());
+        // IPv6 and UDP header around the type byte and the packet
+        assertEquals(1500, 40 + 8 + DatagramTunnel.HEADER_SIZE + options.tunMtu());
+
+        properties.setProperty("mtu", "1280");
+        assertEquals(1280, new TunnelOptions(properties).tunMtu());
+        properties.setProperty("transport", "tcp");
+        properties.remove("mtu");
+        assertEquals(TunnelOptions.DEFAULT_MTU, new TunnelOptions(properties).tunMtu());
+    }
+
+    /**
+     * Delivery of the echo path under injected loss: every lost datagram costs only itself.
+     */
+    @Test
+    public void testDeliveryUnderLoss() throws Exception {
+        for (double loss : new double[]{0, 0.01, 0.05}) {
+            try (EchoServer server = new EchoServer(); DatagramSocket socket = connect(server)) {
+                DatagramTunnel tunnel = new DatagramTunnel(socket, MAGIC, MTU, 2L, 1000);
+                tunnel.handshake(new byte[]{0x0}, 3, 200);
+                server.loss = loss;
+                AtomicInteger packets = new AtomicInteger();
+                Thread receiver = new Thread(() -> {
+                    try {
+                        tunnel.receive((buffer, offset, length) -> packets.incrementAndGet(), null);
+                    } catch (IOException ignored) {
+                    }
+                });
+                receiver.start();
+                byte[] packet = TestPackets.udp4("10.1.10.1", 40000, "1.1.1.1", 443, new byte[1200]);
+                int sent = 5000;
+                for (int i = 0; i < sent; i++) {
+                    tunnel.send(packet, 0, packet.length);
+                    if (i % 16 == 0) {
+                        Thread.sleep(1);
+                    }
+                }
+                Thread.sleep(200);
+                socket.close();
+                receiver.join();
+                double delivered = (double) packets.get() / sent;
+                assertTrue("delivered=" + delivered, delivered > (1 - loss) * (1 - loss) - 0.15);
+            }
+        }
+    }
+
+    private static Thread closeAfter(DatagramSocket socket, long millis) {
+        Thread thread = new Thread(() -> {
+            try {
+                Thread.sleep(millis);
+                socket.close();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.Assert.*;
+
+public class DiscoveryBatchTest {
+
+    /**
+     * What the server sends, one flow per {@code {protocol, saddr, sport, daddr, dport}}.
+     */
+    private static byte[] query(Object[]... flows) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(baos);
+        output.writeByte(DiscoveryBatch.TYPE_QUERY);
+        output.writeByte(flows.length);
+        for (Object[] flow : flows) {
+            byte[] local = InetAddress.getByName((String) flow[1]).getAddress();
+            byte[] remote = InetAddress.getByName((String) flow[3]).getAddress();
+            output.writeByte((Integer) flow[0]);
+            output.writeByte(local.length);
+            output.write(local);
+            output.writeShort((Integer) flow[2]);
+            output.write(remote);
+            output.writeShort((Integer) flow[4]);
+        }
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testParseQuery() throws IOException {
+        byte[] query = query(new Object[]{6, "10.1.10.1", 40000, "1.1.1.1", 443},
+                new Object[]{17, "fd00::2", 5353, "2001:db8::1", 53});
+        byte[] data = new byte[query.length + 3];
+        System.arraycopy(query, 0, data, 3, query.length);
+        List<DiscoveryBatch.Flow> flows = DiscoveryBatch.parseQuery(data, 3, query.length);
+        assertEquals(2, flows.size());
+
+        DiscoveryBatch.Flow tcp = flows.get(0);
+        assertEquals(6, tcp.protocol);
+        assertEquals("10.1.10.1", tcp.local.getAddress().getHostAddress());
+        assertEquals(40000, tcp.local.getPort());
+        assertEquals(443, tcp.remote.getPort());
+        assertEquals("same id a single query would get", Objects.hash(6, "10.1.10.1", 40000, "1.1.1.1", 443), tcp.id);
+
+        DiscoveryBatch.Flow udp = flows.get(1);
+        assertEquals(17, udp.protocol);
+        assertEquals(InetAddress.getByName("2001:db8::1"), udp.remote.getAddress());
+        assertEquals(53, udp.remote.getPort());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedQuery() throws IOException {
+        byte[] query = query(new Object[]{6, "10.1.10.1", 40000, "1.1.1.1", 443});
+        DiscoveryBatch.parseQuery(query, 0, query.length - 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadAddressLength() throws IOException {
+        byte[] query = query(new Object[]{6, "10.1.10.1", 40000, "1.1.1.1", 443});
+        query[3] = 5;
+        DiscoveryBatch.parseQuery(query, 0, query.length);
+    }
+
+    @Test
+    public void testRepliesSplitAndComplete() throws IOException {
+        Object[][] flowArgs = new Object[DiscoveryBatch.MAX_FLOWS][];
+        for (int i = 0; i < flowArgs.length; i++) {
+            flowArgs[i] = new Object[]{6, "10.1.10.1", 30000 + i, "93.184.216.34", 443};
+        }
+        byte[] query = query(flowArgs);
+        List<DiscoveryBatch.Flow> flows = DiscoveryBatch.parseQuery(query, 0, query.length);
+        byte[][] encoded = new byte[flows.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            if (i % 3 == 0) {
+                encoded[i] = PackageCache.EMPTY.encoded;
+            } else {
+                encoded[i] = new byte[40];
+                encoded[i][0] = 1;
+            }
+        }
+
+        List<byte[]> replies = DiscoveryBatch.encodeReplies(flows, encoded, DiscoveryBatch.MAX_REPLY_SIZE);
+        assertTrue("replies=" + replies.size(), replies.size() > 1);
+        List<Integer> ids = new ArrayList<>();
+        for (byte[] reply : replies) {
+            assertTrue(reply.length <= DiscoveryBatch.MAX_REPLY_SIZE);
+            ByteBuffer buffer = ByteBuffer.wrap(reply);
+            assertEquals(DiscoveryBatch.TYPE_REPLY, buffer.get());
+            int count = buffer.get() & 0xff;
+            for (int i = 0; i < count; i++) {
+                int index = ids.size();
+                ids.add(buffer.getInt());
+                byte[] answer = new byte[encoded[index].length];
+                buffer.get(answer);
+                assertArrayEquals(encoded[index], answer);
+            }
+            assertEquals(0, buffer.remaining());
+        }
+        assertEquals(flows.size(), ids.size());
+        for (int i = 0; i < flows.size(); i++) {
+            assertEquals(flows.get(i).id, (int) ids.get(i));
+        }
+    }
+
+    @Test
+    public void testOversizedAnswerSentAlone() throws IOException {
+        byte[] query = query(new Object[]{6, "10.1.10.1", 1, "1.1.1.1", 443}, new Object[]{6, "10.1.10.1", 2, "1.1.1.1", 443});
+        List<DiscoveryBatch.Flow> flows = DiscoveryBatch.parseQuery(query, 0, query.length);
+        byte[][] encoded = {new byte[2000], new byte[]{0}};
+        List<byte[]> replies = DiscoveryBatch.encodeReplies(flows, encoded, DiscoveryBatch.MAX_REPLY_SIZE);
+        assertEquals(2, replies.size());
+        assertEquals(2 + 4 + 2000, replies.get(0).length);
+        assertArrayEquals(Arrays.copyOfRange(replies.get(1), 6, 7), new byte[]{0});
+    }
+
+    @Test
+    public void testSingleReply() {
+        byte[] encoded = Package.encode(Arrays.asList(new Package("app.a", "A", 1)));
+        byte[] reply = DiscoveryBatch.encodeSingleReply(0x01020304, encoded);
+        ByteBuffer buffer = ByteBuffer.wrap(reply);
+        assertEquals(DiscoveryBatch.TYPE_SINGLE_REPLY, buffer.get());
+        assertEquals(0x01020304, buffer.getInt());
+        assertArrayEquals(encoded, Arrays.copyOfRange(reply, 5, reply.length));
+        assertEquals(1, encoded[0]);
+    }
+
+}
@@ -0,0 +1,242 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class DnsCacheTest {
+
+    static final int TYPE_A = 1;
+    static final int TYPE_AAAA = 28;
+
+    /**
+     * A recursive query for {@code name}, with an EDNS OPT record announcing {@code payloadSize} unless 0.
+     */
+    static byte[] query(int id, String name, int type, int payloadSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeShort(out, id);
+        writeShort(out, 0x0100);
+        writeShort(out, 1);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, payloadSize == 0 ? 0 : 1);
+        for (String label : name.split("\\.")) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write(0);
+        writeShort(out, type);
+        writeShort(out, 1);
+        if (payloadSize != 0) {
+            out.write(0);
+            writeShort(out, DnsMessage.TYPE_OPT);
+            writeShort(out, payloadSize);
+            writeInt(out, 0);
+            writeShort(out, 0);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The answer to {@code query}: {@code answers} A records of {@code ttl} seconds, or with {@code soaTtl}
+     * and {@code soaMinimum} above zero an SOA record in the authority section.
+     */
+    static byte[] response(byte[] query, int rcode, int answers, long ttl, long soaTtl, long soaMinimum) {
+        int questionEnd = DnsMessage.questionEnd(query, query.length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeShort(out, DnsMessage.id(query));
+        writeShort(out, 0x8180 | rcode);
+        writeShort(out, 1);
+        writeShort(out, answers);
+        writeShort(out, soaTtl > 0 ? 1 : 0);
+        writeShort(out, 0);
+        out.write(query, DnsMessage.HEADER_SIZE, questionEnd - DnsMessage.HEADER_SIZE);
+        for (int i = 0; i < answers; i++) {
+            writeShort(out, 0xc00c);
+            writeShort(out, TYPE_A);
+            writeShort(out, 1);
+            writeInt(out, ttl);
+            writeShort(out, 4);
+            writeInt(out, 0x5db8d800L + i);
+        }
+        if (soaTtl > 0) {
+            writeShort(out, 0xc00c);
+            writeShort(out, DnsMessage.TYPE_SOA);
+            writeShort(out, 1);
+            writeInt(out, soaTtl);
+            writeShort(out, 2 + 2 + 20);
+            writeShort(out, 0xc00c);
+            writeShort(out, 0xc00c);
+            writeInt(out, 2024010101);
+            writeInt(out, 7200);
+            writeInt(out, 3600);
+            writeInt(out, 1209600);
+            writeInt(out, soaMinimum);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        writeShort(out, (int) (value >>> 16));
+        writeShort(out, (int) value);
+    }
+
+    private static String key(byte[] query) {
+        return DnsMessage.questionKey(query, DnsMessage.questionEnd(query, query.length));
+    }
+
+    @Test
+    public void testQuestionKey() {
+        assertEquals("www.example.com. 1 1", key(query(1, "www.Example.COM", TYPE_A, 0)));
+        assertEquals(key(query(1, "example.com", TYPE_A, 0)), key(query(2, "EXAMPLE.com", TYPE_A, 1232)));
+        assertNotEquals(key(query(1, "example.com", TYPE_A, 0)), key(query(1, "example.com", TYPE_AAAA, 0)));
+    }
+
+    @Test
+    public void testOnlyStandardQueries() {
+        byte[] query = query(1, "example.com", TYPE_A, 0);
+        assertEquals(query.length, DnsMessage.questionEnd(query, query.length));
+        assertEquals(-1, DnsMessage.questionEnd(query, query.length - 1));
+        assertEquals(-1, DnsMessage.questionEnd(query, 11));
+
+        byte[] response = response(query, 0, 1, 60, 0, 0);
+        assertEquals(-1, DnsMessage.questionEnd(response, response.length));
+
+        byte[] twoQuestions = query.clone();
+        DnsMessage.writeShort(twoQuestions, 4, 2);
+        assertEquals(-1, DnsMessage.questionEnd(twoQuestions, twoQuestions.length));
+
+        byte[] notify = query.clone();
+        DnsMessage.writeShort(notify, 2, 4 << 11);
+        assertEquals(-1, DnsMessage.questionEnd(notify, notify.length));
+
+        byte[] compressed = query.clone();
+        compressed[DnsMessage.HEADER_SIZE] = (byte) 0xc0;
+        assertEquals(-1, DnsMessage.questionEnd(compressed, compressed.length));
+    }
+
+    @Test
+    public void testUdpPayloadSize() {
+        byte[] plain = query(1, "example.com", TYPE_A, 0);
+        assertEquals(512, DnsMessage.udpPayloadSize(plain, DnsMessage.questionEnd(plain, plain.length), plain.length));
+        byte[] edns = query(1, "example.com", TYPE_A, 4096);
+        assertEquals(4096, DnsMessage.udpPayloadSize(edns, DnsMessage.questionEnd(edns, edns.length), edns.length));
+        byte[] small = query(1, "example.com", TYPE_A, 100);
+        assertEquals(512, DnsMessage.udpPayloadSize(small, DnsMessage.questionEnd(small, small.length), small.length));
+    }
+
+    @Test
+    public void testTtls() {
+        byte[] query = query(1, "example.com", TYPE_A, 0);
+        byte[] positive = response(query, DnsMessage.RCODE_NOERROR, 3, 300, 0, 0);
+        DnsMessage.writeInt(positive, positive.length - 10, 120);
+        DnsMessage.Ttls ttls = DnsMessage.ttls(positive, positive.length);
+        assertNotNull(ttls);
+        assertEquals(120, ttls.cacheSeconds);
+        assertEquals(3, ttls.offsets.length);
+
+        byte[] nxdomain = response(query, DnsMessage.RCODE_NXDOMAIN, 0, 0, 900, 60);
+        assertEquals(60, DnsMessage.ttls(nxdomain, nxdomain.length).cacheSeconds);
+        byte[] nodata = response(query, DnsMessage.RCODE_NOERROR, 0, 0, 30, 600);
+        assertEquals(30, DnsMessage.ttls(nodata, nodata.length).cacheSeconds);
+
+        byte[] nodataWithoutSoa = response(query, DnsMessage.RCODE_NOERROR, 0, 0, 0, 0);
+        assertNull(DnsMessage.ttls(nodataWithoutSoa, nodataWithoutSoa.length));
+        byte[] servfail = response(query, 2, 0, 0, 0, 0);
+        assertNull(DnsMessage.ttls(servfail, servfail.length));
+        byte[] zeroTtl = response(query, DnsMessage.RCODE_NOERROR, 1, 0, 0, 0);
+        assertNull(DnsMessage.ttls(zeroTtl, zeroTtl.length));
+        byte[] truncated = positive.clone();
+        truncated[2] |= 0x02;
+        assertNull(DnsMessage.ttls(truncated, truncated.length));
+        assertNull(DnsMessage.ttls(positive, positive.length - 1));
+    }
+
+    @Test
+    public void testAnswerAgesTtls() {
+        DnsCache cache = new DnsCache(16);
+        byte[] query = query(0x1234, "example.com", TYPE_A, 0);
+        byte[] response = response(query, DnsMessage.RCODE_NOERROR, 2, 300, 0, 0);
+        assertNotNull(cache.put(key(query), response, response.length, 1000));
+
+        byte[] again = query(0x4321, "EXAMPLE.com", TYPE_A, 0);
+        int questionEnd = DnsMessage.questionEnd(again, again.length);
+        DnsCache.Entry entry = cache.get(key(again), 31999);
+        assertNotNull(entry);
+        byte[] reply = new byte[512];
+        int length = entry.answer(again, questionEnd, reply, 31999);
+        assertEquals(response.length, length);
+        assertEquals(0x4321, DnsMessage.id(reply));
+        assertEquals(DnsMessage.flags(response), DnsMessage.flags(reply));
+        assertEquals('E', reply[DnsMessage.HEADER_SIZE + 1]);
+        DnsMessage.Ttls ttls = DnsMessage.ttls(reply, length);
+        assertEquals(270, ttls.cacheSeconds);
+        for (int offset : ttls.offsets) {
+            assertEquals(270, DnsMessage.readInt(reply, offset));
+        }
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testExpiry() {
+        DnsCache cache = new DnsCache(16);
+        byte[] query = query(1, "example.com", TYPE_A, 0);
+        byte[] response = response(query, DnsMessage.RCODE_NOERROR, 1, 10, 0, 0);
+        cache.put(key(query), response, response.length, 0);
+        assertNotNull(cache.get(key(query), 9999));
+        assertNull(cache.get(key(query), 10000));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testNegativeTtlIsCapped() {
+        DnsCache cache = new DnsCache(16);
+        byte[] query = query(1, "missing.example.com", TYPE_A, 0);
+        byte[] response = response(query, DnsMessage.RCODE_NXDOMAIN, 0, 0, 86400, 86400);
+        cache.put(key(query), response, response.length, 0);
+        assertNotNull(cache.get(key(query), DnsCache.MAX_NEGATIVE_TTL_SECONDS * 1000 - 1));
+        assertNull(cache.get(key(query), DnsCache.MAX_NEGATIVE_TTL_SECONDS * 1000));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        DnsCache cache = new DnsCache(2);
+        byte[][] queries = {query(1, "a.example", TYPE_A, 0), query(1, "b.example", TYPE_A, 0), query(1, "c.example", TYPE_A, 0)};
+        for (int i = 0; i < 2; i++) {
+            byte[] response = response(queries[i], DnsMessage.RCODE_NOERROR, 1, 60, 0, 0);
+            cache.put(key(queries[i]), response, response.length, 0);
+        }
+        assertNotNull(cache.get(key(queries[0]), 0));
+        byte[] response = response(queries[2], DnsMessage.RCODE_NOERROR, 1, 60, 0, 0);
+        cache.put(key(queries[2]), response, response.length, 0);
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(key(queries[0]), 0));
+        assertNull(cache.get(key(queries[1]), 0));
+        assertNotNull(cache.get(key(queries[2]), 0));
+    }
+
+    @Test
+    public void testPrefetchOnlyPopularEntriesNearExpiry() {
+        DnsCache cache = new DnsCache(16);
+        byte[] query = query(1, "example.com", TYPE_A, 0);
+        byte[] response = response(query, DnsMessage.RCODE_NOERROR, 1, 100, 0, 0);
+        cache.put(key(query), response, response.length, 0);
+        DnsCache.Entry entry = cache.get(key(query), 95000);
+        assertFalse("one hit", cache.startPrefetch(entry, 95000));
+        cache.get(key(query), 0);
+        cache.get(key(query), 0);
+        assertFalse("most of the ttl left", cache.startPrefetch(entry, 50000));
+        assertTrue(cache.startPrefetch(entry, 95000));
+        assertFalse("already prefetching", cache.startPrefetch(entry, 96000));
+    }
+}
@@ -0,0 +1,230 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DnsStubTest {
+
+    private static final int MTU = 10000;
+    private static final int SERVER = 0x08080808;
+
+    private static class TunSink implements WritableByteChannel {
+        final BlockingQueue<byte[]> packets = new LinkedBlockingQueue<>();
+        final Set<Thread> writers = ConcurrentHashMap.newKeySet();
+        /**
+         * Thrown by the next write if set.
+         */
+        volatile IOException failure;
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            writers.add(Thread.currentThread());
+            IOException failure = this.failure;
+            if (failure != null) {
+                this.failure = null;
+                throw failure;
+            }
+            byte[] packet = new byte[src.remaining()];
+            src.get(packet);
+            packets.add(packet);
+            return packet.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private DatagramSocket resolver;
+    private Thread resolverThread;
+    private final AtomicInteger resolverQueries = new AtomicInteger();
+    /**
+     * Replies are held until this opens.
+     */
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private volatile int answers = 1;
+    private final TunSink tun = new TunSink();
+    private final DnsCache cache = new DnsCache(64);
+    private DnsStub stub;
+    private Thread stubThread;
+
+    @Before
+    public void setUp() throws IOException {
+        resolver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        resolverThread = new Thread(() -> {
+            byte[] buffer = new byte[0x10000];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    resolver.receive(packet);
+                    resolverQueries.incrementAndGet();
+                    byte[] query = new byte[packet.getLength()];
+                    System.arraycopy(buffer, 0, query, 0, query.length);
+                    release.await();
+                    byte[] response = DnsCacheTest.response(query, DnsMessage.RCODE_NOERROR, answers, 60, 0, 0);
+                    resolver.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+                }
+            } catch (IOException | InterruptedException ignored) {
+            }
+        });
+        resolverThread.start();
+        stub = new DnsStub(cache, Collections.singletonMap(SERVER, new InetSocketAddress(InetAddress.getLoopbackAddress(), resolver.getLocalPort())),
+                true, socket -> true, tun, MTU);
+        stubThread = new Thread(stub);
+        stubThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        stub.close();
+        stubThread.join(5000);
+        resolver.close();
+        resolverThread.join(5000);
+    }
+
+    private boolean ask(int sourcePort, byte[] query) throws IOException {
+        return ask("8.8.8.8", 53, sourcePort, query);
+    }
+
+    private boolean ask(String server, int port, int sourcePort, byte[] query) throws IOException {
+        return stub.onUplinkPacket(ByteBuffer.wrap(TestPackets.udp4("10.1.10.1", sourcePort, server, port, query)));
+    }
+
+    /**
+     * @return the dns payload of the next packet written to the tun, checked to go from the server to {@code port}.
+     */
+    private byte[] reply(int port) throws InterruptedException {
+        byte[] packet = tun.packets.poll(5, TimeUnit.SECONDS);
+        assertNotNull(packet);
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        assertEquals(SERVER, buffer.getInt(12));
+        assertEquals(0x0a010a01, buffer.getInt(16));
+        assertEquals(53, buffer.getShort(20) & 0xffff);
+        assertEquals(port, buffer.getShort(22) & 0xffff);
+        assertEquals(packet.length - 20, buffer.getShort(24) & 0xffff);
+        byte[] payload = new byte[packet.length - 28];
+        System.arraycopy(packet, 28, payload, 0, payload.length);
+        return payload;
+    }
+
+    @Test
+    public void testMissThenHit() throws Exception {
+        assertTrue(ask(40000, DnsCacheTest.query(0x1111, "example.com", DnsCacheTest.TYPE_A, 0)));
+        byte[] first = reply(40000);
+        assertEquals(0x1111, DnsMessage.id(first));
+        assertEquals(1, DnsMessage.readShort(first, 6));
+        assertEquals(1, resolverQueries.get());
+
+        assertTrue(ask(40001, DnsCacheTest.query(0x2222, "Example.Com", DnsCacheTest.TYPE_A, 1232)));
+        byte[] second = reply(40001);
+        assertEquals(0x2222, DnsMessage.id(second));
+        assertEquals('E', second[DnsMessage.HEADER_SIZE + 1]);
+        assertEquals(first.length, second.length);
+        assertEquals(1, resolverQueries.get());
+        assertEquals(1, cache.getHits());
+        assertEquals("the uplink never writes to the tun", Collections.singleton(stubThread), tun.writers);
+    }
+
+    @Test
+    public void testIdenticalQueriesAreCoalesced() throws Exception {
+        release = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(ask(41000 + i, DnsCacheTest.query(0x100 + i, "coalesced.example", DnsCacheTest.TYPE_A, 0)));
+        }
+        assertTrue(ask(41003, DnsCacheTest.query(0x200, "other.example", DnsCacheTest.TYPE_A, 0)));
+        assertEquals(2, stub.getPending());
+        release.countDown();
+
+        Set<Integer> ports = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            byte[] packet = tun.packets.poll(5, TimeUnit.SECONDS);
+            assertNotNull(packet);
+            int port = ByteBuffer.wrap(packet).getShort(22) & 0xffff;
+            ports.add(port);
+            assertEquals(port == 41003 ? 0x200 : 0x100 + port - 41000, ByteBuffer.wrap(packet).getShort(28) & 0xffff);
+        }
+        assertEquals(4, ports.size());
+        assertEquals(2, resolverQueries.get());
+        assertEquals(0, stub.getPending());
+    }
+
+    @Test
+    public void testOtherTrafficIsLeftToTheTunnel() throws Exception {
+        byte[] query = DnsCacheTest.query(1, "example.com", DnsCacheTest.TYPE_A, 0);
+        assertFalse(ask("8.8.8.8", 443, 40000, query));
+        assertFalse(ask("1.1.1.1", 53, 40000, query));
+        byte[] response = DnsCacheTest.response(query, DnsMessage.RCODE_NOERROR, 1, 60, 0, 0);
+        assertFalse(ask(40000, response));
+        assertFalse(ask(40000, new byte[5]));
+        assertFalse(stub.onUplinkPacket(ByteBuffer.wrap(TestPackets.tcp4("10.1.10.1", 40000, "8.8.8.8", 53, TestPackets.TCP_SYN, new byte[0]))));
+        assertEquals(0, resolverQueries.get());
+        assertTrue(tun.packets.isEmpty());
+    }
+
+    @Test
+    public void testLargeAnswerIsTruncatedForSmallClients() throws Exception {
+        answers = 40;
+        assertTrue(ask(40000, DnsCacheTest.query(7, "many.example", DnsCacheTest.TYPE_A, 0)));
+        byte[] truncated = reply(40000);
+        assertEquals(7, DnsMessage.id(truncated));
+        assertEquals(0x0200, DnsMessage.flags(truncated) & 0x0200);
+        assertEquals(0, DnsMessage.readShort(truncated, 6));
+
+        // the cached answer still fits a client announcing a larger payload
+        assertTrue(ask(40001, DnsCacheTest.query(8, "many.example", DnsCacheTest.TYPE_A, 4096)));
+        byte[] full = reply(40001);
+        assertEquals(40, DnsMessage.readShort(full, 6));
+        assertEquals(1, resolverQueries.get());
+    }
+
+    @Test
+    public void testTunWriteErrorDropsOnlyThatReply() throws Exception {
+        tun.failure = new IOException("No buffer space available");
+        assertTrue(ask(40000, DnsCacheTest.query(0x1111, "example.com", DnsCacheTest.TYPE_A, 0)));
+        assertTrue(ask(40001, DnsCacheTest.query(0x2222, "example.com", DnsCacheTest.TYPE_A, 0)));
+        assertEquals(0x2222, DnsMessage.id(reply(40001)));
+        assertEquals(1, stub.getDropped());
+        assertEquals(1, stub.getReplies());
+        assertTrue(stubThread.isAlive());
+    }
+
+    @Test
+    public void testClosedTunLeavesQueriesToTunnel() throws Exception {
+        byte[] query = DnsCacheTest.query(0x1111, "example.com", DnsCacheTest.TYPE_A, 0);
+        assertTrue(ask(40000, query));
+        reply(40000);
+        tun.failure = new ClosedChannelException();
+        assertTrue(ask(40001, query));
+        stubThread.join(5000);
+        assertFalse(stubThread.isAlive());
+        assertFalse("nobody would answer the hit", ask(40002, query));
+        assertFalse("nor the miss", ask(40003, DnsCacheTest.query(0x3333, "other.example", DnsCacheTest.TYPE_A, 0)));
+        assertEquals(1, resolverQueries.get());
+    }
+}
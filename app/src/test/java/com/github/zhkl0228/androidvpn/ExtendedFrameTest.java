@@ -0,0 +1,192 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ExtendedFrameTest {
+
+    private static final byte MAGIC = 0xe;
+    private static final int JUMBO_MTU = 60000;
+
+    private static final TunnelParameters SUPER = new TunnelParameters(1, JUMBO_MTU, 256 * 1024, TunnelParameters.FEATURE_SUPER_FRAMES);
+    private static final TunnelParameters PLAIN = new TunnelParameters(1, JUMBO_MTU, 256 * 1024, 0);
+
+    /**
+     * Returns at most {@code maxChunk} bytes per read.
+     */
+    private static InputStream chunked(byte[] data, Random random, int maxChunk) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1 + random.nextInt(maxChunk)));
+            }
+        };
+    }
+
+    private static List<byte[]> decodeAll(FrameReader reader) throws IOException {
+        List<byte[]> list = new ArrayList<>();
+        FrameReader.PacketHandler handler = (buffer, offset, length) -> list.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        int packets;
+        do {
+            packets = reader.read(handler);
+        } while (packets != -1);
+        return list;
+    }
+
+    private static List<byte[]> packets(Random random, int count) {
+        List<byte[]> packets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(4);
+            byte[] packet = new byte[kind == 0 ? JUMBO_MTU - random.nextInt(100) : kind == 1 ? ControlFrame.LENGTH_MASK + random.nextInt(2) : 1 + random.nextInt(1500)];
+            random.nextBytes(packet);
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    @Test
+    public void testParametersAgreeOnMinimum() throws IOException {
+        TunnelParameters client = new TunnelParameters(2, 16000, 1 << 20,
+                TunnelParameters.FEATURE_SUPER_FRAMES | TunnelParameters.FEATURE_COMPRESSION | 0x80);
+        TunnelParameters server = new TunnelParameters(1, 9000, 128 * 1024, TunnelParameters.FEATURE_SUPER_FRAMES);
+        TunnelParameters agreed = client.agree(server);
+        assertEquals(1, agreed.version);
+        assertEquals(9000, agreed.mtu);
+        assertEquals(128 * 1024, agreed.maxFrameSize);
+        assertTrue(agreed.superFrames());
+        assertFalse("compression needs the server's agreement", agreed.compression());
+        assertEquals(TunnelParameters.FEATURE_SUPER_FRAMES, agreed.features);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        client.write(new DataOutputStream(baos));
+        assertEquals(8, baos.size());
+        TunnelParameters read = TunnelParameters.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertEquals(client.toString(), read.toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectBadParameters() throws IOException {
+        byte[] reply = {1, 0, 100, 0, 0, 0x10, 0, 0};
+        TunnelParameters.read(new DataInputStream(new ByteArrayInputStream(reply)));
+    }
+
+    @Test
+    public void testJumboAndSuperFramesRoundTrip() throws IOException {
+        Random random = new Random(0x1212);
+        for (TunnelParameters parameters : new TunnelParameters[]{SUPER, PLAIN}) {
+            List<byte[]> packets = packets(random, 300);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            FrameWriter writer = new FrameWriter(out, MAGIC, JUMBO_MTU, FrameWriter.DEFAULT_BATCH_SIZE, null, parameters);
+            for (byte[] packet : packets) {
+                ByteBuffer direct = ByteBuffer.allocateDirect(packet.length);
+                direct.put(packet).flip();
+                writer.writeFrame(direct);
+                if (random.nextInt(8) == 0) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+            assertEquals(parameters.superFrames(), writer.getSuperFrames() > 0);
+
+            for (int maxChunk : new int[]{7, 1500, 100000}) {
+                FrameReader reader = new FrameReader(chunked(out.toByteArray(), random, maxChunk), MAGIC, JUMBO_MTU, FrameReader.DEFAULT_BUFFER_SIZE, null, parameters);
+                List<byte[]> decoded = decodeAll(reader);
+                assertEquals(packets.size(), decoded.size());
+                for (int i = 0; i < packets.size(); i++) {
+                    assertArrayEquals(parameters + " packet " + i, packets.get(i), decoded.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSuperFrameWrapsWholeBatch() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out, MAGIC, JUMBO_MTU, FrameWriter.DEFAULT_BATCH_SIZE, null, SUPER);
+        writer.writeFrame(new byte[100], 0, 100);
+        writer.flush();
+        assertEquals("a single frame is not wrapped", 102, out.size());
+
+        out.reset();
+        writer.writeFrame(new byte[100], 0, 100);
+        writer.writeFrame(new byte[20000], 0, 20000);
+        writer.writeFrame(new byte[50], 0, 50);
+        writer.flush();
+        ByteBuffer stream = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(ExtendedFrame.MARKER | ExtendedFrame.KIND_SUPER, stream.getShort() & 0xffff);
+        assertEquals(102 + 20006 + 52, stream.getInt());
+        assertEquals(100, stream.getShort(6));
+        assertEquals(ExtendedFrame.MARKER | ExtendedFrame.KIND_JUMBO, stream.getShort(6 + 102) & 0xffff);
+        assertEquals(20000, stream.getInt(6 + 102 + 2));
+        assertEquals(6 + 102 + 20006 + 52, out.size());
+        assertEquals(1, writer.getSuperFrames());
+    }
+
+    @Test
+    public void testSuperFrameBoundedByMaxFrameSize() throws IOException {
+        TunnelParameters small = new TunnelParameters(1, 1500, 4096, TunnelParameters.FEATURE_SUPER_FRAMES);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out, MAGIC, 1500, FrameWriter.DEFAULT_BATCH_SIZE, null, small);
+        for (int i = 0; i < 10; i++) {
+            writer.writeFrame(new byte[1000], 0, 1000);
+        }
+        writer.flush();
+        ByteBuffer stream = ByteBuffer.wrap(out.toByteArray());
+        int superFrames = 0;
+        while (stream.hasRemaining()) {
+            assertEquals(ExtendedFrame.MARKER | ExtendedFrame.KIND_SUPER, stream.getShort() & 0xffff);
+            int length = stream.getInt();
+            assertTrue("length=" + length, length <= 4096);
+            stream.position(stream.position() + length);
+            superFrames++;
+        }
+        assertEquals(3, superFrames);
+    }
+
+    @Test
+    public void testCompressedAndControlFramesWithParameters() throws IOException {
+        byte[] text = new byte[1200];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 7);
+        }
+        byte[] packet = TestPackets.tcp4("10.1.10.1", 40000, "1.1.1.1", 80, TestPackets.TCP_ACK, text);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out, MAGIC, JUMBO_MTU, FrameWriter.DEFAULT_BATCH_SIZE, new FrameCompressor(), SUPER);
+        writer.writeFrame(packet, 0, packet.length);
+        writer.writeControlFrame(ByteBuffer.wrap(packet), 0x7f, new byte[10], 0, 10);
+        writer.writeFrame(new byte[ControlFrame.LENGTH_MASK + 1], 0, ControlFrame.LENGTH_MASK + 1);
+        writer.flush();
+        assertTrue(out.size() < packet.length + ControlFrame.LENGTH_MASK + 1);
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()), MAGIC, JUMBO_MTU, FrameReader.DEFAULT_BUFFER_SIZE, new FrameCompressor(), SUPER);
+        List<byte[]> decoded = decodeAll(reader);
+        assertEquals(2, decoded.size());
+        assertArrayEquals(packet, decoded.get(0));
+        assertEquals(ControlFrame.LENGTH_MASK + 1, decoded.get(1).length);
+        assertEquals(1, reader.getControlFrames());
+    }
+
+    @Test(expected = IOException.class)
+    public void testJumboAboveMtuRejected() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out, MAGIC, JUMBO_MTU, FrameWriter.DEFAULT_BATCH_SIZE, null, PLAIN);
+        writer.writeFrame(new byte[20000], 0, 20000);
+        writer.flush();
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()), MAGIC, 16000, FrameReader.DEFAULT_BUFFER_SIZE, null, PLAIN);
+        decodeAll(reader);
+    }
+
+}
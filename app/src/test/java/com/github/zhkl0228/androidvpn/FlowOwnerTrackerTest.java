@@ -0,0 +1,233 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class FlowOwnerTrackerTest {
+
+    private static final byte MAGIC = 0xe;
+    private static final int MTU = 10000;
+    private static final int APP_UID = 10123;
+
+    /**
+     * A decoded uplink frame, {@code type} is -1 for a packet.
+     */
+    private static class Frame {
+        final int type;
+        final byte[] payload;
+        Frame(int type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    private static List<Frame> decode(byte[] stream) {
+        List<Frame> frames = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(stream);
+        while (buffer.hasRemaining()) {
+            int header = buffer.getShort() & 0xffff;
+            byte[] payload = new byte[header & ControlFrame.LENGTH_MASK];
+            buffer.get(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= MAGIC;
+            }
+            if ((header & ControlFrame.FLAG_CONTROL) != 0) {
+                frames.add(new Frame(payload[0] & 0xff, Arrays.copyOfRange(payload, 1, payload.length)));
+            } else {
+                frames.add(new Frame(-1, payload));
+            }
+        }
+        return frames;
+    }
+
+    private final List<String> lookups = new ArrayList<>();
+    private ByteArrayOutputStream out;
+    private FrameWriter writer;
+    private FlowOwnerTracker tracker;
+
+    @Before
+    public void setUp() {
+        out = new ByteArrayOutputStream();
+        writer = new FrameWriter(out, MAGIC, MTU);
+        tracker = newTracker(FlowOwnerTracker.DEFAULT_TABLE_SIZE);
+    }
+
+    /**
+     * Looks owners up on the calling thread, so they go right ahead of the packet that started the flow.
+     */
+    private FlowOwnerTracker newTracker(int tableSize) {
+        return newTracker(Runnable::run, tableSize);
+    }
+
+    private FlowOwnerTracker newTracker(Executor executor, int tableSize) {
+        PackageCache cache = new PackageCache(uid -> uid == APP_UID ? Collections.singletonList(new Package("com.example.app", "Example", 42)) : null);
+        return new FlowOwnerTracker((protocol, local, remote) -> {
+            lookups.add(protocol + " " + local + " " + remote);
+            return local.getPort() == 9999 ? -1 : APP_UID;
+        }, cache, executor, tableSize);
+    }
+
+    private boolean send(byte[] packet) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MTU);
+        buffer.put(packet).flip();
+        boolean pushed = tracker.onUplinkPacket(buffer, writer);
+        writer.writeFrame(buffer);
+        return pushed;
+    }
+
+    @Test
+    public void testTcpSynAnnouncedOnce() throws IOException {
+        byte[] syn = TestPackets.tcp4("10.1.10.1", 40000, "1.1.1.1", 443, TestPackets.TCP_SYN, new byte[0]);
+        assertTrue(send(syn));
+        assertFalse("retransmitted syn", send(syn));
+        assertFalse(send(TestPackets.tcp4("10.1.10.1", 40000, "1.1.1.1", 443, TestPackets.TCP_ACK, new byte[100])));
+        assertFalse("syn-ack is not a new uplink flow", send(TestPackets.tcp4("10.1.10.1", 40001, "1.1.1.1", 443, TestPackets.TCP_SYN | TestPackets.TCP_ACK, new byte[0])));
+        assertFalse("flows older than the tunnel are left to discovery", send(TestPackets.tcp4("10.1.10.1", 40002, "1.1.1.1", 443, TestPackets.TCP_ACK, new byte[0])));
+        writer.flush();
+
+        List<Frame> frames = decode(out.toByteArray());
+        assertEquals(6, frames.size());
+        assertEquals(ControlFrame.TYPE_FLOW_OWNER, frames.get(0).type);
+        assertArrayEquals("owner goes ahead of the syn", syn, frames.get(1).payload);
+        for (int i = 1; i < frames.size(); i++) {
+            assertEquals(-1, frames.get(i).type);
+        }
+        assertEquals(1, lookups.size());
+        assertEquals(1, tracker.getPushed());
+    }
+
+    @Test
+    public void testOwnerBody() throws IOException {
+        send(TestPackets.udp4("10.1.10.1", 5353, "8.8.8.8", 53, new byte[20]));
+        writer.flush();
+        Frame owner = decode(out.toByteArray()).get(0);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(owner.payload));
+        assertEquals(PacketHeaders.IPPROTO_UDP, input.readUnsignedByte());
+        assertEquals(4, input.readUnsignedByte());
+        byte[] address = new byte[4];
+        input.readFully(address);
+        assertEquals(InetAddress.getByName("10.1.10.1"), InetAddress.getByAddress(address));
+        assertEquals(5353, input.readUnsignedShort());
+        input.readFully(address);
+        assertEquals(InetAddress.getByName("8.8.8.8"), InetAddress.getByAddress(address));
+        assertEquals(53, input.readUnsignedShort());
+        assertEquals(APP_UID, input.readInt());
+        assertEquals(1, input.readUnsignedByte());
+        assertEquals("com.example.app", input.readUTF());
+        assertEquals("Example", input.readUTF());
+        assertEquals(42, input.readLong());
+        assertEquals(0, input.available());
+    }
+
+    @Test
+    public void testUdpFirstPacketPerFlow() throws IOException {
+        assertTrue(send(TestPackets.udp4("10.1.10.1", 5353, "8.8.8.8", 53, new byte[20])));
+        assertFalse(send(TestPackets.udp4("10.1.10.1", 5353, "8.8.8.8", 53, new byte[30])));
+        assertTrue(send(TestPackets.udp4("10.1.10.1", 5354, "8.8.8.8", 53, new byte[20])));
+        assertEquals(2, lookups.size());
+    }
+
+    @Test
+    public void testUnknownOwner() throws IOException {
+        assertTrue(send(TestPackets.udp4("10.1.10.1", 9999, "8.8.8.8", 53, new byte[20])));
+        writer.flush();
+        ByteBuffer body = ByteBuffer.wrap(decode(out.toByteArray()).get(0).payload);
+        body.position(2 + 4 + 2 + 4 + 2);
+        assertEquals(-1, body.getInt());
+        assertEquals(0, body.get());
+        assertFalse(body.hasRemaining());
+        assertEquals(1, tracker.getUnknownOwners());
+    }
+
+    @Test
+    public void testEvictedFlowAnnouncedAgain() throws IOException {
+        tracker = newTracker(1);
+        byte[] first = TestPackets.udp4("10.1.10.1", 5000, "8.8.8.8", 53, new byte[20]);
+        byte[] second = TestPackets.udp4("10.1.10.1", 5001, "8.8.8.8", 53, new byte[20]);
+        assertTrue(send(first));
+        assertTrue(send(second));
+        assertTrue(send(first));
+        assertFalse(send(first));
+    }
+
+    @Test
+    public void testLookupRunsOffTheUplink() throws IOException {
+        List<Runnable> queued = new ArrayList<>();
+        tracker = newTracker(queued::add, FlowOwnerTracker.DEFAULT_TABLE_SIZE);
+        byte[] syn = TestPackets.tcp4("10.1.10.1", 40000, "1.1.1.1", 443, TestPackets.TCP_SYN, new byte[0]);
+        assertTrue(send(syn));
+        assertTrue("the uplink does not wait for the lookup", lookups.isEmpty());
+        assertTrue(tracker.hasPending());
+        assertEquals(0, tracker.drain(writer));
+
+        queued.remove(0).run();
+        assertEquals(1, lookups.size());
+        assertEquals(1, tracker.drain(writer));
+        assertFalse(tracker.hasPending());
+        writer.flush();
+
+        List<Frame> frames = decode(out.toByteArray());
+        assertEquals(2, frames.size());
+        assertArrayEquals(syn, frames.get(0).payload);
+        assertEquals(ControlFrame.TYPE_FLOW_OWNER, frames.get(1).type);
+        assertEquals(40000, ByteBuffer.wrap(frames.get(1).payload).getShort(2 + 4) & 0xffff);
+        assertEquals(1, tracker.getPushed());
+    }
+
+    @Test
+    public void testPendingLookupsAreBounded() throws IOException {
+        List<Runnable> queued = new ArrayList<>();
+        tracker = newTracker(queued::add, FlowOwnerTracker.DEFAULT_TABLE_SIZE);
+        for (int port = 0; port <= FlowOwnerTracker.MAX_PENDING_LOOKUPS; port++) {
+            send(TestPackets.udp4("10.1.10.1", 20000 + port, "8.8.8.8", 53, new byte[20]));
+        }
+        assertEquals(FlowOwnerTracker.MAX_PENDING_LOOKUPS, queued.size());
+        assertEquals(1, tracker.getSkipped());
+    }
+
+    @Test
+    public void testOwnerOnSameStripeAsPacket() throws IOException {
+        int stripes = 4;
+        ByteArrayOutputStream[] outs = new ByteArrayOutputStream[stripes];
+        FrameSink[] writers = new FrameSink[stripes];
+        for (int i = 0; i < stripes; i++) {
+            outs[i] = new ByteArrayOutputStream();
+            writers[i] = new FrameWriter(outs[i], MAGIC, MTU);
+        }
+        StripedFrameWriter striped = new StripedFrameWriter(writers);
+        for (int port = 40000; port < 40032; port++) {
+            ByteBuffer buffer = ByteBuffer.wrap(TestPackets.tcp4("10.1.10.1", port, "1.1.1.1", 443, TestPackets.TCP_SYN, new byte[0]));
+            assertTrue(tracker.onUplinkPacket(buffer, striped));
+            striped.writeFrame(buffer);
+        }
+        striped.flush();
+        int total = 0;
+        for (ByteArrayOutputStream stripe : outs) {
+            List<Frame> frames = decode(stripe.toByteArray());
+            assertEquals(0, frames.size() % 2);
+            for (int i = 0; i < frames.size(); i += 2) {
+                assertEquals(ControlFrame.TYPE_FLOW_OWNER, frames.get(i).type);
+                assertEquals(-1, frames.get(i + 1).type);
+                int port = ByteBuffer.wrap(frames.get(i).payload).getShort(2 + 4) & 0xffff;
+                assertEquals(port, ByteBuffer.wrap(frames.get(i + 1).payload).getShort(20) & 0xffff);
+            }
+            total += frames.size();
+        }
+        assertEquals(64, total);
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameCompressorTest {
+
+    private static final byte MAGIC = 0xe;
+    private static final int MTU = 10000;
+
+    private static byte[] text(Random random, int length) {
+        String[] words = {"GET ", "/index.html ", "HTTP/1.1\r\n", "Host: ", "example.com\r\n", "Accept: ", "*/*\r\n", "{\"id\":", "\"name\":", "null,"};
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < length) {
+            builder.append(words[random.nextInt(words.length)]);
+        }
+        return builder.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testLz4RoundTrip() throws IOException {
+        Random random = new Random(0x11);
+        Lz4Block lz4 = new Lz4Block();
+        for (int size = 0; size < 3000; size += 1 + size / 8) {
+            for (int kind = 0; kind < 3; kind++) {
+                byte[] data;
+                if (kind == 0) {
+                    data = text(random, size);
+                } else if (kind == 1) {
+                    data = new byte[size];
+                    random.nextBytes(data);
+                } else {
+                    data = new byte[size];
+                    Arrays.fill(data, (byte) 'a');
+                }
+                byte[] compressed = new byte[size + size / 255 + 16];
+                int length = lz4.compress(data, 0, size, compressed, 3, compressed.length - 3);
+                assertTrue("size=" + size + ", kind=" + kind, length > 0);
+                byte[] restored = new byte[size + 5];
+                assertEquals(size, Lz4Block.decompress(compressed, 3, length, restored, 5, size));
+                assertArrayEquals("size=" + size + ", kind=" + kind, data, Arrays.copyOfRange(restored, 5, 5 + size));
+            }
+        }
+    }
+
+    @Test
+    public void testLz4RespectsMaxLength() {
+        byte[] data = new byte[1000];
+        new Random(0x12).nextBytes(data);
+        assertEquals(-1, new Lz4Block().compress(data, 0, data.length, new byte[2000], 0, 900));
+    }
+
+    @Test(expected = IOException.class)
+    public void testLz4RejectsBadOffset() throws IOException {
+        byte[] block = {0x10, 'a', 0x05, 0x00, 0x00};
+        Lz4Block.decompress(block, 0, block.length, new byte[100], 0, 100);
+    }
+
+    @Test
+    public void testCompressedFramesRoundTrip() throws IOException {
+        Random random = new Random(0x13);
+        List<byte[]> packets = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            byte[] payload = i % 2 == 0 ? text(random, 100 + random.nextInt(1300)) : new byte[random.nextInt(1300)];
+            if (i % 2 != 0) {
+                random.nextBytes(payload);
+            }
+            packets.add(TestPackets.tcp4("10.1.10.1", 40000 + i % 7, "93.184.216.34", 80, TestPackets.TCP_ACK, payload));
+        }
+        FrameCompressor compressor = new FrameCompressor();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(baos, MAGIC, MTU, FrameWriter.DEFAULT_BATCH_SIZE, compressor);
+        long raw = 0;
+        for (byte[] packet : packets) {
+            byte[] copy = packet.clone();
+            writer.writeFrame(copy, 0, copy.length);
+            assertArrayEquals(packet, copy);
+            raw += 2 + packet.length;
+        }
+        writer.flush();
+        assertTrue(compressor.toString(), compressor.getCompressedFrames() > 0);
+        assertTrue(compressor.toString(), compressor.getSavedBytes() > 0);
+        assertEquals(raw - compressor.getSavedBytes(), baos.size());
+
+        FrameCompressor decompressor = new FrameCompressor();
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(baos.toByteArray()), MAGIC, MTU, FrameReader.DEFAULT_BUFFER_SIZE, decompressor);
+        List<byte[]> decoded = new ArrayList<>();
+        FrameReader.PacketHandler handler = (buffer, offset, length) -> decoded.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        int read;
+        do {
+            read = reader.read(handler);
+        } while (read != -1);
+        assertEquals(packets.size(), decoded.size());
+        for (int i = 0; i < packets.size(); i++) {
+            assertArrayEquals("packet " + i, packets.get(i), decoded.get(i));
+        }
+    }
+
+    @Test
+    public void testIncompressibleFlowBypassed() {
+        Random random = new Random(0x14);
+        FrameCompressor compressor = new FrameCompressor();
+        byte[] dst = new byte[MTU + 2];
+        int attempts = 2000;
+        for (int i = 0; i < attempts; i++) {
+            byte[] payload = new byte[1400];
+            random.nextBytes(payload);
+            byte[] packet = TestPackets.tcp4("10.1.10.1", 40000, "93.184.216.34", 443, TestPackets.TCP_ACK, payload);
+            assertEquals(-1, compressor.compress(packet, 0, packet.length, dst, 0));
+        }
+        assertEquals(0, compressor.getCompressedFrames());
+        assertTrue(compressor.toString(), compressor.getBypassedFrames() > attempts * 9 / 10);
+
+        byte[] textPacket = TestPackets.tcp4("10.1.10.1", 40001, "93.184.216.34", 80, TestPackets.TCP_ACK, text(random, 1000));
+        assertTrue(compressor.compress(textPacket, 0, textPacket.length, dst, 0) > 0);
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameReaderTest {
+
+    private static final byte MAGIC = 0xe;
+    private static final int MTU = 10000;
+
+    /**
+     * Returns at most a random number of bytes per read, like a socket under load.
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final ByteArrayInputStream delegate;
+        private final Random random;
+        private final int maxChunk;
+        ChunkedInputStream(byte[] data, Random random, int maxChunk) {
+            this.delegate = new ByteArrayInputStream(data);
+            this.random = random;
+            this.maxChunk = maxChunk;
+        }
+        @Override
+        public int read() {
+            return delegate.read();
+        }
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return delegate.read(b, off, Math.min(len, 1 + random.nextInt(maxChunk)));
+        }
+    }
+
+    private static byte[] encode(List<byte[]> packets) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(baos, MAGIC, MTU);
+        for (byte[] packet : packets) {
+            writer.writeFrame(packet, 0, packet.length);
+        }
+        writer.flush();
+        return baos.toByteArray();
+    }
+
+    private static List<byte[]> decodeAll(FrameReader reader) throws IOException {
+        List<byte[]> list = new ArrayList<>();
+        FrameReader.PacketHandler handler = (buffer, offset, length) -> list.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        while (reader.read(handler) != -1) {
+            assertTrue(list.size() <= 100000);
+        }
+        return list;
+    }
+
+    private static List<byte[]> randomPackets(Random random, int count) {
+        List<byte[]> packets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] packet = new byte[random.nextInt(5) == 0 ? MTU : 1 + random.nextInt(1500)];
+            random.nextBytes(packet);
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    private static void assertPackets(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("packet " + i, expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void testFramesSplitAcrossReads() throws IOException {
+        Random random = new Random(0x5678);
+        List<byte[]> packets = randomPackets(random, 300);
+        byte[] data = encode(packets);
+        for (int maxChunk : new int[]{1, 3, 1500, 20000, 100000}) {
+            FrameReader reader = new FrameReader(new ChunkedInputStream(data, random, maxChunk), MAGIC, MTU);
+            assertPackets(packets, decodeAll(reader));
+        }
+    }
+
+    @Test
+    public void testSmallBuffer() throws IOException {
+        Random random = new Random(0x9abc);
+        List<byte[]> packets = randomPackets(random, 100);
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(encode(packets)), MAGIC, MTU, 0);
+        assertPackets(packets, decodeAll(reader));
+    }
+
+    @Test
+    public void testManyFramesPerRead() throws IOException {
+        List<byte[]> packets = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            packets.add(new byte[]{0x45, (byte) i});
+        }
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(encode(packets)), MAGIC, MTU);
+        List<byte[]> list = new ArrayList<>();
+        assertEquals(50, reader.read((buffer, offset, length) -> list.add(Arrays.copyOfRange(buffer, offset, offset + length))));
+        assertEquals(-1, reader.read((buffer, offset, length) -> fail()));
+        assertPackets(packets, list);
+    }
+
+    @Test
+    public void testZeroLengthFrameSkipped() throws IOException {
+        byte[] data = {0, 0, 0, 1, 0x45 ^ MAGIC, 0, 0};
+        List<byte[]> packets = decodeAll(new FrameReader(new ByteArrayInputStream(data), MAGIC, MTU));
+        assertEquals(1, packets.size());
+        assertArrayEquals(new byte[]{0x45}, packets.get(0));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedFrame() throws IOException {
+        byte[] data = {0, 4, 1, 2};
+        decodeAll(new FrameReader(new ByteArrayInputStream(data), MAGIC, MTU));
+    }
+
+    @Test(expected = IOException.class)
+    public void testLengthAboveMtu() throws IOException {
+        byte[] data = {0x7f, 0x7f, 1, 2};
+        decodeAll(new FrameReader(new ByteArrayInputStream(data), MAGIC, 1500));
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameWriterTest {
+
+    private static final byte MAGIC = 0xe;
+    private static final int MTU = 10000;
+
+    /**
+     * The framing the uplink loop used before batching: writeShort, xor in place, write.
+     */
+    private static byte[] legacyEncode(byte[][] packets) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(baos);
+        for (byte[] src : packets) {
+            byte[] packet = src.clone();
+            output.writeShort(packet.length);
+            for (int i = 0; i < packet.length; i++) {
+                packet[i] ^= MAGIC;
+            }
+            output.write(packet, 0, packet.length);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[][] randomPackets(Random random, int count) {
+        byte[][] packets = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int length = random.nextInt(8) == 0 ? MTU - random.nextInt(100) : 20 + random.nextInt(1480);
+            packets[i] = new byte[length];
+            random.nextBytes(packets[i]);
+        }
+        return packets;
+    }
+
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        int writes;
+        int flushes;
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+        @Override
+        public synchronized void write(int b) {
+            writes++;
+            super.write(b);
+        }
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    @Test
+    public void testWireFormatUnchanged() throws IOException {
+        Random random = new Random(0x1234);
+        byte[][] packets = randomPackets(random, 500);
+
+        CountingOutputStream out = new CountingOutputStream();
+        FrameWriter writer = new FrameWriter(out, MAGIC, MTU);
+        for (byte[] packet : packets) {
+            byte[] copy = packet.clone();
+            writer.writeFrame(copy, 0, copy.length);
+            assertArrayEquals("packet must not be modified", packet, copy);
+            if (random.nextInt(10) == 0) {
+                writer.flush();
+            }
+        }
+        writer.flush();
+        assertEquals(0, writer.pendingFrames());
+        assertArrayEquals(legacyEncode(packets), out.toByteArray());
+        assertTrue("writes=" + out.writes, out.writes < packets.length);
+    }
+
+    @Test
+    public void testBatchedIntoSingleWrite() throws IOException {
+        byte[][] packets = new byte[][]{{0x45, 1, 2}, {0x45}, {}, {0x60, 0, 0, 0}};
+        CountingOutputStream out = new CountingOutputStream();
+        FrameWriter writer = new FrameWriter(out, MAGIC, MTU);
+        for (byte[] packet : packets) {
+            writer.writeFrame(packet, 0, packet.length);
+        }
+        assertEquals(4, writer.pendingFrames());
+        assertEquals(0, out.writes);
+        writer.flush();
+        assertEquals(1, out.writes);
+        assertEquals(1, out.flushes);
+        assertArrayEquals(legacyEncode(packets), out.toByteArray());
+    }
+
+    @Test
+    public void testDrainsWhenBufferFull() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        FrameWriter writer = new FrameWriter(out, MAGIC, 100, 256);
+        byte[] packet = new byte[100];
+        for (int i = 0; i < 5; i++) {
+            writer.writeFrame(packet, 0, packet.length);
+        }
+        // 102 bytes per frame, two frames fit into 256 bytes
+        assertEquals(2, out.writes);
+        assertEquals(0, out.flushes);
+        assertEquals(1, writer.pendingFrames());
+        writer.flush();
+        assertEquals(5 * 102, out.size());
+    }
+
+    @Test
+    public void testDirectBufferFrames() throws IOException {
+        Random random = new Random(0x5678);
+        byte[][] packets = randomPackets(random, 100);
+        CountingOutputStream out = new CountingOutputStream();
+        FrameWriter writer = new FrameWriter(out, MAGIC, MTU);
+        ByteBuffer slot = ByteBuffer.allocateDirect(MTU + 16);
+        for (byte[] packet : packets) {
+            slot.clear();
+            slot.position(3);
+            slot.put(packet).flip().position(3);
+            writer.writeFrame(slot);
+            assertEquals(3, slot.position());
+            assertEquals(3 + packet.length, slot.limit());
+        }
+        writer.flush();
+        assertArrayEquals(legacyEncode(packets), out.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectOversizedPacket() throws IOException {
+        FrameWriter writer = new FrameWriter(new ByteArrayOutputStream(), MAGIC, 100, 0);
+        writer.writeFrame(new byte[200], 0, 200);
+    }
+
+}
@@ -0,0 +1,236 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IPUtilTest {
+
+    private static List<String> split(long from, long to) {
+        List<String> list = new ArrayList<>();
+        int count = IPUtil.forEachCIDR(from, to, (address, prefix) -> list.add(IPUtil.toString(address) + "/" + prefix));
+        assertEquals(list.size(), count);
+        return list;
+    }
+
+    private static List<String> routes(List<IPUtil.CIDR> listExclude, boolean multicast) {
+        IPUtil.RangeSet routes = new IPUtil.RangeSet();
+        for (IPUtil.CIDR exclude : listExclude)
+            routes.add(exclude);
+        routes.complement();
+        if (multicast)
+            routes.addCIDR(0xE0000000, 3);
+        List<String> list = new ArrayList<>();
+        routes.forEachCIDR((address, prefix) -> list.add(IPUtil.toString(address) + "/" + prefix));
+        return list;
+    }
+
+    private static String covered(List<String> cidrs) throws UnknownHostException {
+        IPUtil.RangeSet set = new IPUtil.RangeSet();
+        for (String cidr : cidrs) {
+            String[] parts = cidr.split("/");
+            set.addCIDR(address(parts[0]), Integer.parseInt(parts[1]));
+        }
+        return set.toString();
+    }
+
+    /**
+     * Same routes as the legacy loop, except that the multicast block now merges with the range below it.
+     */
+    private static void assertRoutesMatchLegacy(List<IPUtil.CIDR> exclusions) throws UnknownHostException {
+        assertEquals(LegacyRoutes.routes(exclusions, false), routes(exclusions, false));
+        List<String> legacy = LegacyRoutes.routes(exclusions, true);
+        List<String> routes = routes(exclusions, true);
+        assertEquals(covered(legacy), covered(routes));
+        assertTrue(routes.size() <= legacy.size());
+    }
+
+    private static int address(String ip) throws UnknownHostException {
+        return (int) IPUtil.toLong(InetAddress.getByName(ip));
+    }
+
+    /**
+     * The exclusions {@code getBuilder} uses on a Verizon phone with one Wi-Fi address.
+     */
+    static List<IPUtil.CIDR> typicalExclusions() {
+        return new ArrayList<>(Arrays.asList(
+                new IPUtil.CIDR("192.168.1.10", 32), // vpn host
+                new IPUtil.CIDR("8.8.8.8", 24),
+                new IPUtil.CIDR("127.0.0.0", 8),
+                new IPUtil.CIDR("192.168.42.0", 23),
+                new IPUtil.CIDR("192.168.49.0", 24),
+                new IPUtil.CIDR("172.16.5.0", 24), // wlan0
+                new IPUtil.CIDR("66.174.0.0", 16),
+                new IPUtil.CIDR("66.82.0.0", 15),
+                new IPUtil.CIDR("69.96.0.0", 13),
+                new IPUtil.CIDR("70.192.0.0", 11),
+                new IPUtil.CIDR("97.128.0.0", 9),
+                new IPUtil.CIDR("174.192.0.0", 9),
+                new IPUtil.CIDR("72.96.0.0", 9),
+                new IPUtil.CIDR("75.192.0.0", 9),
+                new IPUtil.CIDR("97.0.0.0", 10),
+                new IPUtil.CIDR("224.0.0.0", 3)));
+    }
+
+    @Test
+    public void testSplitMatchesLegacyExhaustively() {
+        long[] bases = {0, 0x0a000000L, 0x7fffff00L, 0xc0a80100L, 0xffffff00L};
+        for (long base : bases) {
+            for (long from = base; from <= base + 0xff; from++) {
+                for (long to = from; to <= base + 0xff; to++) {
+                    assertEquals(from + "..." + to, LegacyRoutes.toCIDR(from, to), split(from, to));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSplitLargeRanges() {
+        assertEquals(Arrays.asList("0.0.0.0/0"), split(0, 0xFFFFFFFFL));
+        assertEquals(Arrays.asList("0.0.0.1/32", "0.0.0.2/31", "0.0.0.4/30", "0.0.0.8/29", "0.0.0.16/28", "0.0.0.32/27",
+                "0.0.0.64/26", "0.0.0.128/25", "0.0.1.0/24", "0.0.2.0/23", "0.0.4.0/22", "0.0.8.0/21", "0.0.16.0/20",
+                "0.0.32.0/19", "0.0.64.0/18", "0.0.128.0/17", "0.1.0.0/16", "0.2.0.0/15", "0.4.0.0/14", "0.8.0.0/13",
+                "0.16.0.0/12", "0.32.0.0/11", "0.64.0.0/10", "0.128.0.0/9", "1.0.0.0/8", "2.0.0.0/7", "4.0.0.0/6",
+                "8.0.0.0/5", "16.0.0.0/4", "32.0.0.0/3", "64.0.0.0/2", "128.0.0.0/1"), split(1, 0xFFFFFFFFL));
+        Random random = new Random(0x13);
+        for (int i = 0; i < 20000; i++) {
+            long a = random.nextInt() & 0xFFFFFFFFL;
+            long b = random.nextInt() & 0xFFFFFFFFL;
+            long from = Math.min(a, b), to = Math.max(a, b);
+            assertEquals(from + "..." + to, LegacyRoutes.toCIDR(from, to), split(from, to));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSplitRejectsEmptyRange() {
+        split(10, 9);
+    }
+
+    @Test
+    public void testRoutesMatchLegacy() throws UnknownHostException {
+        List<IPUtil.CIDR> exclusions = typicalExclusions();
+        assertRoutesMatchLegacy(exclusions);
+        List<String> routes = routes(exclusions, true);
+        assertEquals(LegacyRoutes.routes(exclusions, true), routes);
+        assertTrue(routes.contains("224.0.0.0/3"));
+        assertFalse(routes.contains("0.0.0.0/0"));
+    }
+
+    @Test
+    public void testRandomDisjointRoutesMatchLegacy() throws UnknownHostException {
+        Random random = new Random(0x1313);
+        for (int round = 0; round < 200; round++) {
+            List<IPUtil.CIDR> exclusions = new ArrayList<>();
+            IPUtil.RangeSet taken = new IPUtil.RangeSet();
+            for (int i = 0; i < 30; i++) {
+                int prefix = 8 + random.nextInt(25);
+                int mask = -1 << (32 - prefix);
+                int address = ((1 + random.nextInt(0xde)) << 24 | random.nextInt(1 << 24)) & mask;
+                int end = address | ~mask;
+                if (Integer.compareUnsigned(end, 0xE0000000) >= 0 || taken.contains(address) || taken.contains(end)) {
+                    continue;
+                }
+                boolean overlaps = false;
+                for (IPUtil.CIDR cidr : exclusions) {
+                    long start = IPUtil.toLong(cidr.address);
+                    overlaps |= start >= (address & 0xFFFFFFFFL) && start <= (end & 0xFFFFFFFFL);
+                }
+                if (overlaps) {
+                    continue;
+                }
+                taken.add(address, end);
+                exclusions.add(new IPUtil.CIDR(InetAddress.getByName(IPUtil.toString(address)), prefix));
+            }
+            exclusions.add(new IPUtil.CIDR("224.0.0.0", 3));
+            assertRoutesMatchLegacy(exclusions);
+        }
+    }
+
+    @Test
+    public void testOverlappingExclusionsMerged() throws UnknownHostException {
+        // the legacy loop restarted at 10.1.3.0 after the /24 inside 10/8 and routed the rest of 10/8 again
+        List<IPUtil.CIDR> exclusions = Arrays.asList(
+                new IPUtil.CIDR("10.0.0.0", 8),
+                new IPUtil.CIDR("10.1.2.3", 24),
+                new IPUtil.CIDR("10.1.2.0", 23),
+                new IPUtil.CIDR("11.0.0.0", 8),
+                new IPUtil.CIDR("224.0.0.0", 3));
+        IPUtil.RangeSet routes = new IPUtil.RangeSet();
+        for (IPUtil.CIDR exclude : exclusions)
+            routes.add(exclude);
+        routes.complement();
+        assertEquals("RangeSet[0.0.0.0...9.255.255.255, 12.0.0.0...223.255.255.255]", routes.toString());
+        assertEquals(Arrays.asList("0.0.0.0/5", "8.0.0.0/7", "12.0.0.0/6", "16.0.0.0/4", "32.0.0.0/3", "64.0.0.0/2",
+                "128.0.0.0/1"), routes(exclusions, true));
+    }
+
+    @Test
+    public void testRoutesCoverExactlyTheComplement() throws UnknownHostException {
+        Random random = new Random(0x13130);
+        for (int round = 0; round < 50; round++) {
+            int[][] exclusions = new int[1 + random.nextInt(40)][];
+            IPUtil.RangeSet set = new IPUtil.RangeSet(1);
+            for (int i = 0; i < exclusions.length; i++) {
+                int a = random.nextInt(), b = random.nextInt() >> random.nextInt(32);
+                int start = Integer.compareUnsigned(a, b) < 0 ? a : b;
+                int end = Integer.compareUnsigned(a, b) < 0 ? b : a;
+                exclusions[i] = new int[]{start, end};
+                set.add(start, end);
+            }
+            set.complement();
+            IPUtil.RangeSet covered = new IPUtil.RangeSet();
+            List<int[]> cidrs = new ArrayList<>();
+            set.forEachCIDR((address, prefix) -> {
+                cidrs.add(new int[]{address, prefix});
+                covered.addCIDR(address, prefix);
+            });
+            for (int i = 1; i < cidrs.size(); i++) {
+                int[] previous = cidrs.get(i - 1), cidr = cidrs.get(i);
+                assertTrue("ascending", Integer.compareUnsigned(previous[0], cidr[0]) < 0);
+                boolean siblings = previous[1] == cidr[1] && previous[1] > 0 &&
+                        (previous[0] ^ cidr[0]) == 1 << (32 - cidr[1]) && (previous[0] & 1 << (32 - cidr[1])) == 0;
+                assertFalse("not minimal", siblings);
+            }
+            assertEquals(set.toString(), covered.toString());
+            for (int probe = 0; probe < 2000; probe++) {
+                int address = random.nextInt();
+                boolean excluded = false;
+                for (int[] exclusion : exclusions) {
+                    excluded |= Integer.compareUnsigned(address, exclusion[0]) >= 0 && Integer.compareUnsigned(address, exclusion[1]) <= 0;
+                }
+                assertEquals(IPUtil.toString(address), !excluded, set.contains(address));
+            }
+            for (int[] exclusion : exclusions) {
+                assertFalse(set.contains(exclusion[0]));
+                assertFalse(set.contains(exclusion[1]));
+            }
+        }
+    }
+
+    @Test
+    public void testRangeSetEdges() throws UnknownHostException {
+        IPUtil.RangeSet set = new IPUtil.RangeSet();
+        assertEquals("RangeSet[0.0.0.0...255.255.255.255]", set.complement().toString());
+        assertEquals("RangeSet[]", set.complement().toString());
+        set.addCIDR(0, 0);
+        assertEquals(1, set.forEachCIDR((address, prefix) -> assertEquals(0, prefix)));
+        set = new IPUtil.RangeSet(1).add(address("1.0.0.0"), address("1.0.0.255")).add(address("1.0.1.0"), address("1.0.1.9"))
+                .add(address("255.255.255.255"), address("255.255.255.255"));
+        assertEquals("adjacent ranges merge", 2, set.size());
+        assertEquals("RangeSet[0.0.0.0...0.255.255.255, 1.0.1.10...255.255.255.254]", set.complement().toString());
+        assertTrue(set.contains(address("0.0.0.0")));
+        assertFalse(set.contains(address("1.0.0.0")));
+        assertTrue(set.contains(address("200.1.1.1")));
+        assertFalse(set.contains(address("255.255.255.255")));
+        assertEquals("RangeSet[8.8.8.0...8.8.8.255]", new IPUtil.RangeSet().add(new IPUtil.CIDR("8.8.8.8", 24))
+                .add(new IPUtil.CIDR(InetAddress.getByName("::1"), 128)).toString());
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MaskCodecTest {
+
+    private static final byte MAGIC = 0xe;
+
+    private static byte[] scalar(byte[] data, int offset, int length, byte magic) {
+        byte[] copy = data.clone();
+        for (int i = offset; i < offset + length; i++) {
+            copy[i] ^= magic;
+        }
+        return copy;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.capacity()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = buffer.get(i);
+        }
+        return data;
+    }
+
+    @Test
+    public void testInPlaceMatchesScalar() {
+        Random random = new Random(0x42);
+        for (byte magic : new byte[]{MAGIC, 0, (byte) 0xff, (byte) 0x80}) {
+            for (int size = 0; size < 80; size++) {
+                for (int offset = 0; offset < 9; offset++) {
+                    byte[] data = new byte[size + offset + 5];
+                    random.nextBytes(data);
+                    byte[] expected = scalar(data, offset, size, magic);
+
+                    for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+                        byte[] heap = data.clone();
+                        MaskCodec.mask(ByteBuffer.wrap(heap).order(order), offset, size, magic);
+                        assertArrayEquals("size=" + size + ", offset=" + offset, expected, heap);
+
+                        byte[] sliced = new byte[data.length + 3];
+                        System.arraycopy(data, 0, sliced, 3, data.length);
+                        ByteBuffer slice = ByteBuffer.wrap(sliced, 3, data.length).slice().order(order);
+                        MaskCodec.mask(slice, offset, size, magic);
+                        assertArrayEquals("slice size=" + size + ", offset=" + offset, expected, toArray(slice));
+
+                        ByteBuffer direct = ByteBuffer.allocateDirect(data.length).order(order);
+                        direct.put(data);
+                        MaskCodec.mask(direct, offset, size, magic);
+                        assertArrayEquals("direct size=" + size + ", offset=" + offset, expected, toArray(direct));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCopyMatchesScalar() {
+        Random random = new Random(0x43);
+        for (int size = 0; size < 80; size++) {
+            for (int offset = 0; offset < 9; offset++) {
+                byte[] src = new byte[size + 3];
+                random.nextBytes(src);
+                byte[] original = src.clone();
+                byte[] expected = new byte[size + offset];
+                for (int i = 0; i < size; i++) {
+                    expected[offset + i] = (byte) (src[3 + i] ^ MAGIC);
+                }
+                for (ByteOrder dstOrder : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+                    byte[] dst = new byte[size + offset];
+                    MaskCodec.mask(ByteBuffer.wrap(src), 3, ByteBuffer.wrap(dst).order(dstOrder), offset, size, MAGIC);
+                    assertArrayEquals(original, src);
+                    assertArrayEquals("size=" + size + ", offset=" + offset + ", dst " + dstOrder, expected, dst);
+
+                    ByteBuffer direct = ByteBuffer.allocateDirect(src.length);
+                    direct.put(src);
+                    dst = new byte[size + offset];
+                    MaskCodec.mask(direct, 3, ByteBuffer.wrap(dst).order(dstOrder), offset, size, MAGIC);
+                    assertArrayEquals("direct size=" + size + ", offset=" + offset + ", dst " + dstOrder, expected, dst);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() {
+        byte[] data = new byte[10000];
+        new Random(0x44).nextBytes(data);
+        byte[] copy = data.clone();
+        ByteBuffer buffer = ByteBuffer.wrap(copy);
+        MaskCodec.mask(buffer, 0, copy.length, MAGIC);
+        MaskCodec.mask(buffer, 0, copy.length, MAGIC);
+        assertArrayEquals(data, copy);
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PackageCacheTest {
+
+    private static class CountingLoader implements PackageCache.Loader {
+        final int[] loads = new int[20000];
+        PackageCache cache;
+        int invalidateDuringLoad = -1;
+        @Override
+        public List<Package> load(int uid) {
+            loads[uid]++;
+            if (uid == invalidateDuringLoad) {
+                cache.invalidate(uid);
+            }
+            if (uid == 0) {
+                return null;
+            }
+            List<Package> packages = new ArrayList<>();
+            packages.add(new Package("app.uid" + uid, "App " + uid, uid * 10L + loads[uid]));
+            return packages;
+        }
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        PackageCache cache = new PackageCache(loader);
+        PackageCache.Entry first = cache.get(10001);
+        assertSame(first, cache.get(10001));
+        assertSame(first, cache.get(10001));
+        assertEquals(1, loader.loads[10001]);
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        PackageCache.Entry none = cache.get(0);
+        assertTrue(none.packages.isEmpty());
+        cache.get(0);
+        assertEquals("uids without packages are cached too", 1, loader.loads[0]);
+    }
+
+    @Test
+    public void testEncodedMatchesPackageOutput() throws Exception {
+        PackageCache cache = new PackageCache(new CountingLoader());
+        PackageCache.Entry entry = cache.get(10042);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(entry.encoded));
+        assertEquals(1, input.readUnsignedByte());
+        assertEquals("app.uid10042", input.readUTF());
+        assertEquals("App 10042", input.readUTF());
+        assertEquals(100421, input.readLong());
+        assertEquals(0, input.available());
+
+        assertArrayEquals(new byte[]{0}, cache.get(0).encoded);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        PackageCache cache = new PackageCache(loader, 3);
+        cache.get(10001);
+        cache.get(10002);
+        cache.get(10003);
+        cache.get(10001);
+        cache.get(10004);
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictions());
+
+        cache.get(10001);
+        assertEquals(1, loader.loads[10001]);
+        cache.get(10002);
+        assertEquals("10002 was the least recently used", 2, loader.loads[10002]);
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        PackageCache cache = new PackageCache(loader);
+        PackageCache.Entry before = cache.get(10001);
+        cache.get(10002);
+        cache.invalidate(10001);
+        cache.invalidate(10999);
+        assertEquals(1, cache.getInvalidations());
+
+        PackageCache.Entry after = cache.get(10001);
+        assertNotSame(before, after);
+        assertEquals(100012, after.packages.get(0).versionCode);
+        assertEquals(1, loader.loads[10002]);
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertEquals(3, cache.getInvalidations());
+    }
+
+    @Test
+    public void testLoadRacingInvalidationNotCached() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        PackageCache cache = new PackageCache(loader);
+        loader.cache = cache;
+        loader.invalidateDuringLoad = 10001;
+        assertEquals(1, cache.get(10001).packages.size());
+        loader.invalidateDuringLoad = -1;
+        cache.get(10001);
+        assertEquals(2, loader.loads[10001]);
+        cache.get(10001);
+        assertEquals(2, loader.loads[10001]);
+    }
+
+    @Test
+    public void testPackagesUnmodifiable() throws Exception {
+        PackageCache cache = new PackageCache(new CountingLoader());
+        try {
+            cache.get(10001).packages.clear();
+            fail();
+        } catch (UnsupportedOperationException expected) {
+            assertEquals(1, cache.get(10001).packages.size());
+        }
+    }
+
+    @Test
+    public void testLoaderFailurePropagates() {
+        PackageCache cache = new PackageCache(uid -> {
+            throw new IllegalStateException("binder died");
+        });
+        try {
+            cache.get(10001);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(0, cache.size());
+        } catch (Exception e) {
+            fail(e.toString());
+        }
+    }
+
+}
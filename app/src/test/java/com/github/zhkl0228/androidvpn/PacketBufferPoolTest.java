@@ -0,0 +1,153 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PacketBufferPoolTest {
+
+    private static final byte MAGIC = 0xe;
+    private static final int MTU = 10000;
+
+    @Test
+    public void testAcquireRelease() {
+        PacketBufferPool pool = new PacketBufferPool(MTU, 4);
+        ByteBuffer buffer = pool.acquire();
+        assertNotNull(buffer);
+        assertTrue(buffer.isDirect());
+        assertEquals(0, buffer.position());
+        assertEquals(MTU, buffer.limit());
+        assertEquals(MTU, buffer.capacity());
+        buffer.put(new byte[100]);
+        assertEquals(1, pool.getInUse());
+        pool.release(buffer);
+        assertEquals(0, pool.getInUse());
+
+        ByteBuffer again = pool.acquire();
+        assertEquals("acquired buffers come back cleared", 0, again.position());
+        assertEquals(MTU, again.limit());
+        pool.release(again);
+        assertEquals(2, pool.getAcquired());
+        assertEquals(1, pool.getPeakInUse());
+    }
+
+    @Test
+    public void testBuffersDoNotOverlap() {
+        PacketBufferPool pool = new PacketBufferPool(16, 8);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            ByteBuffer buffer = pool.acquire();
+            byte[] fill = new byte[16];
+            Arrays.fill(fill, (byte) i);
+            buffer.put(fill);
+            buffers.add(buffer);
+        }
+        for (int i = 0; i < 8; i++) {
+            ByteBuffer buffer = buffers.get(i);
+            for (int j = 0; j < 16; j++) {
+                assertEquals(i, buffer.get(j));
+            }
+            pool.release(buffer);
+        }
+    }
+
+    @Test
+    public void testExhaustion() throws InterruptedException {
+        PacketBufferPool pool = new PacketBufferPool(MTU, 2);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        assertNotNull(second);
+        assertNull(pool.acquire());
+        assertNull(pool.acquire(10, TimeUnit.MILLISECONDS));
+        assertEquals(2, pool.getExhausted());
+        assertEquals(2, pool.getInUse());
+        assertEquals(2, pool.getPeakInUse());
+
+        Thread releaser = new Thread(() -> pool.release(first));
+        releaser.start();
+        assertSame(first, pool.acquire(5, TimeUnit.SECONDS));
+        releaser.join();
+        pool.release(first);
+        pool.release(second);
+        assertEquals(0, pool.getInUse());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDoubleRelease() {
+        PacketBufferPool pool = new PacketBufferPool(MTU, 2);
+        ByteBuffer buffer = pool.acquire();
+        pool.acquire();
+        pool.release(buffer);
+        pool.release(buffer);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForeignBuffer() {
+        new PacketBufferPool(MTU, 2).release(ByteBuffer.allocateDirect(MTU));
+    }
+
+    /**
+     * One uplink round per packet - acquire, fill, frame with compression, release. Once warmed up none of it
+     * may touch the heap.
+     */
+    @Test
+    public void testSteadyStateAllocatesNothing() throws IOException {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+        PacketBufferPool pool = new PacketBufferPool(MTU, 8);
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        FrameWriter writer = new FrameWriter(discard, MAGIC, MTU, FrameWriter.DEFAULT_BATCH_SIZE, new FrameCompressor());
+        byte[] text = new byte[1200];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ("abcdefgh".charAt(i % 8) + i / 100);
+        }
+        byte[][] packets = {
+                TestPackets.udp4("10.1.10.1", 5353, "8.8.8.8", 53, new byte[32]),
+                TestPackets.tcp4("10.1.10.1", 40000, "1.1.1.1", 443, TestPackets.TCP_ACK, text),
+        };
+
+        long threadId = Thread.currentThread().getId();
+        int packetsPerRound = 100000;
+        long allocated = 0;
+        for (int round = 0; round < 2; round++) {
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < packetsPerRound; i++) {
+                byte[] packet = packets[i & 1];
+                ByteBuffer uplink = pool.acquire();
+                uplink.put(packet).flip();
+                writer.writeFrame(uplink);
+                pool.release(uplink);
+                if ((i & 15) == 15) {
+                    writer.flush();
+                }
+            }
+            allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        }
+        // the allocation counter itself may cost a few bytes, a single object per packet would be megabytes
+        assertTrue("steady state allocated " + allocated + " bytes, " + pool, allocated < 1024);
+        assertEquals(0, pool.getInUse());
+        assertEquals(0, pool.getExhausted());
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PathMtuTest {
+
+    private static int sum(byte[] data, int offset, int length, int sum) {
+        for (int i = offset; i < offset + length; i += 2) {
+            sum += ((data[i] & 0xff) << 8) | (i + 1 < offset + length ? data[i + 1] & 0xff : 0);
+        }
+        return sum;
+    }
+
+    private static int fold(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return sum;
+    }
+
+    /**
+     * @return true if the IPv4 transport checksum, pseudo header included, adds up.
+     */
+    private static boolean checksumOk4(byte[] packet, int protocol) {
+        int length = packet.length - 20;
+        int pseudo = protocol == PathMtu.IPPROTO_ICMP ? 0 : sum(packet, 12, 8, protocol + length);
+        return fold(sum(packet, 20, length, pseudo)) == 0xffff;
+    }
+
+    private static byte[] tcpSyn(int flags, int mss) {
+        byte[] packet = TestPackets.tcp4("10.1.10.1", 40000, "1.1.1.1", 443, flags, new byte[]{1, 1, 2, 4, (byte) (mss >>> 8), (byte) mss, 1, 1});
+        packet[20 + 12] = 7 << 4;
+        int checksum = ~fold(sum(packet, 20, packet.length - 20, sum(packet, 12, 8, PacketHeaders.IPPROTO_TCP + packet.length - 20)));
+        packet[20 + 16] = (byte) (checksum >>> 8);
+        packet[20 + 17] = (byte) checksum;
+        assertTrue(checksumOk4(packet, PacketHeaders.IPPROTO_TCP));
+        return packet;
+    }
+
+    private static int mssOf(byte[] packet) {
+        return ((packet[44] & 0xff) << 8) | (packet[45] & 0xff);
+    }
+
+    @Test
+    public void testClampMss() {
+        byte[] syn = tcpSyn(TestPackets.TCP_SYN, 8960);
+        assertTrue(PathMtu.clampMss(ByteBuffer.wrap(syn), 1400));
+        assertEquals(1400 - 40, mssOf(syn));
+        assertTrue(checksumOk4(syn, PacketHeaders.IPPROTO_TCP));
+
+        byte[] synAck = tcpSyn(TestPackets.TCP_SYN | TestPackets.TCP_ACK, 1460);
+        assertFalse("already fits", PathMtu.clampMss(ByteBuffer.wrap(synAck), 1500));
+        assertTrue(PathMtu.clampMss(ByteBuffer.wrap(synAck), 1280));
+        assertEquals(1240, mssOf(synAck));
+        assertTrue(checksumOk4(synAck, PacketHeaders.IPPROTO_TCP));
+
+        byte[] ack = tcpSyn(TestPackets.TCP_ACK, 8960);
+        assertFalse(PathMtu.clampMss(ByteBuffer.wrap(ack), 1400));
+        assertEquals(8960, mssOf(ack));
+        assertFalse(PathMtu.clampMss(ByteBuffer.wrap(TestPackets.udp4("10.1.10.1", 40000, "1.1.1.1", 443, new byte[8])), 576));
+    }
+
+    @Test
+    public void testFragmentationNeeded() {
+        byte[] packet = TestPackets.udp4("10.1.10.1", 40000, "1.1.1.1", 443, new byte[3000]);
+        ByteBuffer reply = ByteBuffer.allocate(PathMtu.MAX_REPLY);
+        assertFalse("may be fragmented", PathMtu.writeTooBig(ByteBuffer.wrap(packet), 1500, reply));
+
+        packet[6] = 0x40;
+        ByteBuffer framed = ByteBuffer.allocate(packet.length + 10);
+        framed.position(10);
+        framed.put(packet).flip().position(10);
+        assertTrue(PathMtu.writeTooBig(framed, 1500, reply));
+        byte[] icmp = new byte[reply.remaining()];
+        reply.get(icmp);
+        assertEquals(20 + 8 + 28, icmp.length);
+        assertEquals(0xffff, fold(sum(icmp, 0, 20, 0)));
+        assertArrayEquals("back to the sender", Arrays.copyOfRange(packet, 12, 16), Arrays.copyOfRange(icmp, 16, 20));
+        assertEquals(PathMtu.ICMP_UNREACHABLE, icmp[20]);
+        assertEquals(PathMtu.ICMP_FRAGMENTATION_NEEDED, icmp[21]);
+        assertEquals(1500, ((icmp[26] & 0xff) << 8) | (icmp[27] & 0xff));
+        assertArrayEquals(Arrays.copyOfRange(packet, 0, 28), Arrays.copyOfRange(icmp, 28, 56));
+        assertTrue(checksumOk4(icmp, PathMtu.IPPROTO_ICMP));
+
+        assertFalse("ICMP errors are not answered", PathMtu.writeTooBig(ByteBuffer.wrap(icmp), 40, reply));
+    }
+
+    @Test
+    public void testPacketTooBig6() {
+        byte[] packet = new byte[40 + 8 + 2000];
+        packet[0] = 0x60;
+        packet[4] = (byte) ((8 + 2000) >>> 8);
+        packet[5] = (byte) (8 + 2000);
+        packet[6] = (byte) PacketHeaders.IPPROTO_UDP;
+        packet[7] = 64;
+        packet[8] = (byte) 0xfd;
+        packet[23] = 1;
+        packet[24] = 0x20;
+        packet[39] = 2;
+        ByteBuffer reply = ByteBuffer.allocate(PathMtu.MAX_REPLY);
+        assertTrue(PathMtu.writeTooBig(ByteBuffer.wrap(packet), 1400, reply));
+        byte[] icmp = new byte[reply.remaining()];
+        reply.get(icmp);
+        assertEquals(PathMtu.MAX_REPLY, icmp.length);
+        assertEquals(PathMtu.IPPROTO_ICMPV6, icmp[6]);
+        assertArrayEquals(Arrays.copyOfRange(packet, 24, 40), Arrays.copyOfRange(icmp, 8, 24));
+        assertArrayEquals(Arrays.copyOfRange(packet, 8, 24), Arrays.copyOfRange(icmp, 24, 40));
+        assertEquals(PathMtu.ICMPV6_PACKET_TOO_BIG, icmp[40]);
+        assertEquals(1400, ByteBuffer.wrap(icmp).getInt(44));
+        int pseudo = sum(icmp, 8, 32, icmp.length - 40 + PathMtu.IPPROTO_ICMPV6);
+        assertEquals(0xffff, fold(sum(icmp, 40, icmp.length - 40, pseudo)));
+        assertArrayEquals(Arrays.copyOfRange(packet, 0, icmp.length - 48), Arrays.copyOfRange(icmp, 48, icmp.length));
+    }
+}
@@ -0,0 +1,253 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class PcapRingTest {
+
+    private static final class Record {
+        final long micros;
+        final int captured;
+        final int length;
+        final byte[] data;
+        final int flags;
+        final long id;
+
+        Record(long micros, int captured, int length, byte[] data, int flags, long id) {
+            this.micros = micros;
+            this.captured = captured;
+            this.length = length;
+            this.data = data;
+            this.flags = flags;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Checks the section and interface headers and returns the enhanced packet blocks.
+     */
+    private static List<Record> parse(byte[] pcapng, int snaplen) {
+        ByteBuffer buffer = ByteBuffer.wrap(pcapng).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x0a0d0d0a, buffer.getInt());
+        assertEquals(28, buffer.getInt());
+        assertEquals(0x1a2b3c4d, buffer.getInt());
+        assertEquals(1, buffer.getShort());
+        assertEquals(0, buffer.getShort());
+        assertEquals(-1L, buffer.getLong());
+        assertEquals(28, buffer.getInt());
+        assertEquals(1, buffer.getInt());
+        assertEquals(20, buffer.getInt());
+        assertEquals(PcapRing.LINKTYPE_RAW, buffer.getShort());
+        assertEquals(0, buffer.getShort());
+        assertEquals(snaplen, buffer.getInt());
+        assertEquals(20, buffer.getInt());
+
+        List<Record> records = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            assertEquals(6, buffer.getInt());
+            int blockSize = buffer.getInt();
+            assertEquals(blockSize, buffer.getInt(start + blockSize - 4));
+            assertEquals(0, buffer.getInt());
+            long micros = ((long) buffer.getInt() << 32) | (buffer.getInt() & 0xffffffffL);
+            int captured = buffer.getInt();
+            int length = buffer.getInt();
+            byte[] data = new byte[captured];
+            buffer.get(data);
+            buffer.position(buffer.position() + ((4 - captured % 4) % 4));
+            int flags = -1;
+            long id = -1;
+            while (true) {
+                int code = buffer.getShort();
+                int optionLength = buffer.getShort();
+                if (code == 0) {
+                    break;
+                } else if (code == 2) {
+                    flags = buffer.getInt();
+                } else if (code == 5) {
+                    id = buffer.getLong();
+                } else {
+                    fail("option " + code);
+                }
+                assertTrue(optionLength == 4 || optionLength == 8);
+            }
+            assertEquals(blockSize, buffer.getInt());
+            assertEquals(start + blockSize, buffer.position());
+            records.add(new Record(micros, captured, length, data, flags, id));
+        }
+        return records;
+    }
+
+    private static byte[] dump(PcapRing ring) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ring.dump(outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private static ByteBuffer packet(int seq, int size) {
+        ByteBuffer packet = ByteBuffer.allocateDirect(size + 8);
+        packet.position(4);
+        for (int i = 0; i < size; i++) {
+            packet.put((byte) (seq + i));
+        }
+        packet.flip().position(4);
+        return packet;
+    }
+
+    private static File tempFile() throws Exception {
+        File file = File.createTempFile("capture", ".ring");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testTruncatesAndRestoresPacket() throws Exception {
+        try (PcapRing ring = new PcapRing(tempFile(), 64 * 1024, 64, 1)) {
+            long before = System.currentTimeMillis() * 1000;
+            ByteBuffer small = packet(1, 21);
+            ring.capture(small, true);
+            assertEquals(4, small.position());
+            assertEquals(25, small.limit());
+            ByteBuffer large = packet(2, 1500);
+            ring.capture(large, false);
+            assertEquals(4, large.position());
+            assertEquals(1504, large.limit());
+
+            List<Record> records = parse(dump(ring), 64);
+            assertEquals(2, records.size());
+            Record first = records.get(0);
+            assertEquals(21, first.captured);
+            assertEquals(21, first.length);
+            assertEquals(2, first.flags);
+            assertEquals(0, first.id);
+            assertTrue(Math.abs(first.micros - before) < 5000000);
+            for (int i = 0; i < 21; i++) {
+                assertEquals((byte) (1 + i), first.data[i]);
+            }
+            Record second = records.get(1);
+            assertEquals(64, second.captured);
+            assertEquals(1500, second.length);
+            assertEquals(1, second.flags);
+            assertEquals(1, second.id);
+            assertEquals((byte) (2 + 63), second.data[63]);
+            assertTrue(second.micros >= first.micros);
+        }
+    }
+
+    @Test
+    public void testWrapKeepsNewestInOrder() throws Exception {
+        try (PcapRing ring = new PcapRing(tempFile(), 64 * 1024, 128, 1)) {
+            int slots = ring.getSlots();
+            int packets = slots * 3 + 5;
+            for (int i = 0; i < packets; i++) {
+                ring.capture(packet(i, 40 + i % 100), i % 2 == 0);
+            }
+            assertEquals(packets, ring.getCaptured());
+            List<Record> records = parse(dump(ring), 128);
+            assertEquals(slots, records.size());
+            for (int i = 0; i < slots; i++) {
+                int seq = packets - slots + i;
+                Record record = records.get(i);
+                assertEquals(seq, record.id);
+                assertEquals(40 + seq % 100, record.length);
+                assertEquals((byte) seq, record.data[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testSampling() throws Exception {
+        try (PcapRing ring = new PcapRing(tempFile(), 256 * 1024, 64, 10)) {
+            for (int i = 0; i < 95; i++) {
+                ring.capture(packet(i, 30), true);
+            }
+            List<Record> records = parse(dump(ring), 64);
+            assertEquals(10, records.size());
+            for (int i = 0; i < records.size(); i++) {
+                assertEquals((byte) (i * 10), records.get(i).data[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testClosedRingIgnoresPackets() throws Exception {
+        PcapRing ring = new PcapRing(tempFile(), 64 * 1024, 64, 1);
+        ring.capture(packet(0, 30), true);
+        ring.close();
+        ring.capture(packet(1, 30), true);
+        assertEquals(1, ring.getCaptured());
+        assertEquals(1, parse(dump(ring), 64).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooSmall() throws Exception {
+        new PcapRing(tempFile(), 4096, 1500, 1).close();
+    }
+
+    /**
+     * Dumps while several threads capture, every dumped block must be whole and in capture order.
+     */
+    @Test
+    public void testDumpWhileCapturing() throws Exception {
+        try (PcapRing ring = new PcapRing(tempFile(), 128 * 1024, 96, 1)) {
+            int threads = 4;
+            AtomicBoolean running = new AtomicBoolean(true);
+            CountDownLatch started = new CountDownLatch(threads);
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                Thread writer = new Thread(() -> {
+                    started.countDown();
+                    int seq = 0;
+                    while (running.get()) {
+                        int size = 20 + (seq * 7 + thread) % 200;
+                        ByteBuffer packet = ByteBuffer.allocate(size);
+                        packet.put(0, (byte) thread);
+                        for (int i = 1; i < size; i++) {
+                            packet.put(i, (byte) size);
+                        }
+                        ring.capture(packet, thread % 2 == 0);
+                        seq++;
+                    }
+                });
+                writer.start();
+                writers.add(writer);
+            }
+            started.await();
+            int dumped = 0;
+            for (int i = 0; i < 20; i++) {
+                List<Record> records = parse(dump(ring), 96);
+                long lastId = -1;
+                for (Record record : records) {
+                    assertTrue(record.id > lastId);
+                    lastId = record.id;
+                    assertEquals(Math.min(96, record.length), record.captured);
+                    int thread = record.data[0];
+                    assertEquals(thread % 2 == 0 ? 2 : 1, record.flags);
+                    for (int j = 1; j < record.captured; j++) {
+                        assertEquals((byte) record.length, record.data[j]);
+                    }
+                }
+                dumped += records.size();
+            }
+            running.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertTrue(dumped > 0);
+            int held = parse(dump(ring), 96).size();
+            assertTrue(held <= ring.getSlots());
+            assertTrue(held + " held, " + ring, held + ring.getDropped() >= ring.getSlots());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void testExponentialWithinJitter() {
+        ReconnectBackoff backoff = new ReconnectBackoff(50, 30000, new Random(1));
+        long step = 50;
+        for (int i = 0; i < 20; i++) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue("attempt " + i + " delay=" + delay + " step=" + step, delay >= step / 2 && delay <= step);
+            step = Math.min(30000, step * 2);
+        }
+        assertEquals(20, backoff.getAttempts());
+    }
+
+    @Test
+    public void testFirstRetryIsFast() {
+        for (int seed = 0; seed < 100; seed++) {
+            ReconnectBackoff backoff = new ReconnectBackoff(new Random(seed));
+            assertTrue(backoff.nextDelayMillis() <= ReconnectBackoff.DEFAULT_BASE_MILLIS);
+        }
+    }
+
+    @Test
+    public void testCappedAndReset() {
+        ReconnectBackoff backoff = new ReconnectBackoff(50, 1000, new Random(2));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(backoff.nextDelayMillis() <= 1000);
+        }
+        assertTrue("the cap holds for many attempts", backoff.nextDelayMillis() >= 500);
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.nextDelayMillis() <= 50);
+    }
+
+    @Test
+    public void testJitterSpreadsClients() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int seed = 0; seed < 200; seed++) {
+            ReconnectBackoff backoff = new ReconnectBackoff(50, 30000, new Random(seed));
+            long delay = 0;
+            for (int i = 0; i < 6; i++) {
+                delay = backoff.nextDelayMillis();
+            }
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue("min=" + min + ", max=" + max, max - min > 600);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadBounds() {
+        new ReconnectBackoff(100, 50, new Random());
+    }
+}
@@ -0,0 +1,186 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StripedFrameWriterTest {
+
+    private static final byte MAGIC = 0xe;
+    private static final int MTU = 10000;
+
+    private static byte[] flowPacket(int flow, int seq, int size) {
+        byte[] payload = new byte[Math.max(8, size)];
+        payload[0] = (byte) (flow >>> 8);
+        payload[1] = (byte) flow;
+        payload[2] = (byte) (seq >>> 24);
+        payload[3] = (byte) (seq >>> 16);
+        payload[4] = (byte) (seq >>> 8);
+        payload[5] = (byte) seq;
+        return TestPackets.udp4("10.1.10.1", 20000 + flow, "93.184.216.34", 443, payload);
+    }
+
+    private static int flowOf(byte[] buffer, int offset) {
+        return ((buffer[offset + 28] & 0xff) << 8) | (buffer[offset + 29] & 0xff);
+    }
+
+    private static int seqOf(byte[] buffer, int offset) {
+        int payload = offset + 30;
+        return ((buffer[payload] & 0xff) << 24) | ((buffer[payload + 1] & 0xff) << 16) | ((buffer[payload + 2] & 0xff) << 8) | (buffer[payload + 3] & 0xff);
+    }
+
+    @Test
+    public void testFlowPinnedToOneStripe() throws IOException {
+        int stripes = 4;
+        ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[stripes];
+        FrameSink[] writers = new FrameSink[stripes];
+        for (int i = 0; i < stripes; i++) {
+            outputs[i] = new ByteArrayOutputStream();
+            writers[i] = new FrameWriter(outputs[i], MAGIC, MTU);
+        }
+        StripedFrameWriter writer = new StripedFrameWriter(writers);
+        for (int seq = 0; seq < 20; seq++) {
+            for (int flow = 0; flow < 64; flow++) {
+                byte[] packet = flowPacket(flow, seq, 100);
+                writer.writeFrame(packet, 0, packet.length);
+            }
+        }
+        assertEquals(64 * 20, writer.pendingFrames());
+        writer.flush();
+        assertEquals(0, writer.pendingFrames());
+
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < stripes; i++) {
+            int[] lastSeq = new int[64];
+            Arrays.fill(lastSeq, -1);
+            Set<Integer> flows = new HashSet<>();
+            FrameReader reader = new FrameReader(new ByteArrayInputStream(outputs[i].toByteArray()), MAGIC, MTU);
+            FrameReader.PacketHandler handler = (buffer, offset, length) -> {
+                int flow = flowOf(buffer, offset);
+                int seq = seqOf(buffer, offset);
+                assertEquals(lastSeq[flow] + 1, seq);
+                lastSeq[flow] = seq;
+                flows.add(flow);
+            };
+            int packets;
+            do {
+                packets = reader.read(handler);
+            } while (packets != -1);
+            assertFalse("stripe " + i + " unused", flows.isEmpty());
+            for (int flow : flows) {
+                assertTrue("flow " + flow + " on two stripes", seen.add(flow));
+            }
+        }
+        assertEquals(64, seen.size());
+    }
+
+    @Test
+    public void testStripeOfIsStable() {
+        byte[] syn = TestPackets.tcp4("10.1.10.1", 40000, "1.1.1.1", 443, TestPackets.TCP_SYN, new byte[0]);
+        byte[] data = TestPackets.tcp4("10.1.10.1", 40000, "1.1.1.1", 443, TestPackets.TCP_ACK, new byte[1200]);
+        for (int stripes = 1; stripes <= TunnelOptions.MAX_STRIPES; stripes++) {
+            assertEquals(StripedFrameWriter.stripeOf(ByteBuffer.wrap(syn), 0, syn.length, stripes), StripedFrameWriter.stripeOf(ByteBuffer.wrap(data), 0, data.length, stripes));
+        }
+        ByteBuffer direct = ByteBuffer.allocateDirect(syn.length + 7);
+        direct.position(7);
+        direct.put(syn);
+        assertEquals(StripedFrameWriter.stripeOf(ByteBuffer.wrap(syn), 0, syn.length, 4), StripedFrameWriter.stripeOf(direct, 7, syn.length, 4));
+        byte[] garbage = {0x12, 0x34};
+        assertEquals(0, StripedFrameWriter.stripeOf(ByteBuffer.wrap(garbage), 0, garbage.length, 4));
+    }
+
+    /**
+     * A stall on one connection, as a lost segment costs the TCP connection it was sent on, holds back only
+     * the flows striped onto it: every other flow is delivered, in order, while it lasts.
+     */
+    @Test
+    public void testStallHoldsBackOnlyItsStripe() throws Exception {
+        final int stripes = 4;
+        final int flows = 16;
+        final int packetsPerFlow = 20;
+        byte[] stalledPacket = flowPacket(0, 0, 100);
+        int stalledStripe = StripedFrameWriter.stripeOf(ByteBuffer.wrap(stalledPacket), 0, stalledPacket.length, stripes);
+        int held = 0;
+        for (int flow = 0; flow < flows; flow++) {
+            byte[] packet = flowPacket(flow, 0, 100);
+            if (StripedFrameWriter.stripeOf(ByteBuffer.wrap(packet), 0, packet.length, stripes) == stalledStripe) {
+                held++;
+            }
+        }
+        assertTrue("some flows on other stripes", held < flows);
+
+        CountDownLatch stall = new CountDownLatch(1);
+        CountDownLatch others = new CountDownLatch((flows - held) * packetsPerFlow);
+        CountDownLatch all = new CountDownLatch(flows * packetsPerFlow);
+        AtomicInteger outOfOrder = new AtomicInteger();
+        int[] lastSeq = new int[flows];
+        Arrays.fill(lastSeq, -1);
+        StandInServer.Listener listener = (connection, buffer, offset, length) -> {
+            int flow = flowOf(buffer, offset);
+            int seq = seqOf(buffer, offset);
+            if (flow == 0 && seq == 0) {
+                try {
+                    stall.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            byte[] packet = flowPacket(flow, seq, 100);
+            if (StripedFrameWriter.stripeOf(ByteBuffer.wrap(packet), 0, packet.length, stripes) != stalledStripe) {
+                others.countDown();
+            }
+            synchronized (lastSeq) {
+                if (seq != lastSeq[flow] + 1) {
+                    outOfOrder.incrementAndGet();
+                }
+                lastSeq[flow] = seq;
+            }
+            all.countDown();
+        };
+        Socket[] sockets = new Socket[stripes];
+        try (StandInServer server = new StandInServer(listener, MAGIC, MTU)) {
+            FrameSink[] writers = new FrameSink[stripes];
+            for (int i = 0; i < stripes; i++) {
+                sockets[i] = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                OutputStream outputStream = sockets[i].getOutputStream();
+                outputStream.write(0x0);
+                writers[i] = new FrameWriter(outputStream, MAGIC, MTU);
+            }
+            StripedFrameWriter writer = new StripedFrameWriter(writers);
+            for (int seq = 0; seq < packetsPerFlow; seq++) {
+                for (int flow = 0; flow < flows; flow++) {
+                    byte[] packet = flowPacket(flow, seq, 100);
+                    writer.writeFrame(packet, 0, packet.length);
+                }
+                writer.flush();
+            }
+            assertTrue("flows on the other stripes wait for the stall", others.await(10, TimeUnit.SECONDS));
+            assertEquals("nothing passed the stall on its own stripe", held * packetsPerFlow, all.getCount());
+            stall.countDown();
+            assertTrue("timeout", all.await(10, TimeUnit.SECONDS));
+            assertEquals(0, outOfOrder.get());
+        } finally {
+            stall.countDown();
+            for (Socket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Builds raw IPv4 packets as they would come out of the tun fd.
+ */
+final class TestPackets {
+
+    static final int TCP_FIN = 0x01;
+    static final int TCP_SYN = 0x02;
+    static final int TCP_ACK = 0x10;
+
+    private TestPackets() {
+    }
+
+    static byte[] udp4(String src, int sport, String dst, int dport, byte[] payload) {
+        byte[] packet = ipv4(PacketHeaders.IPPROTO_UDP, src, dst, 8 + payload.length);
+        int udp = 20;
+        putShort(packet, udp, sport);
+        putShort(packet, udp + 2, dport);
+        putShort(packet, udp + 4, 8 + payload.length);
+        System.arraycopy(payload, 0, packet, udp + 8, payload.length);
+        return packet;
+    }
+
+    static byte[] tcp4(String src, int sport, String dst, int dport, int flags, byte[] payload) {
+        byte[] packet = ipv4(PacketHeaders.IPPROTO_TCP, src, dst, 20 + payload.length);
+        int tcp = 20;
+        putShort(packet, tcp, sport);
+        putShort(packet, tcp + 2, dport);
+        packet[tcp + 12] = 5 << 4;
+        packet[tcp + 13] = (byte) flags;
+        putShort(packet, tcp + 14, 65535);
+        System.arraycopy(payload, 0, packet, tcp + 20, payload.length);
+        return packet;
+    }
+
+    private static byte[] ipv4(int protocol, String src, String dst, int transportLength) {
+        byte[] packet = new byte[20 + transportLength];
+        packet[0] = 0x45;
+        putShort(packet, 2, packet.length);
+        packet[8] = 64;
+        packet[9] = (byte) protocol;
+        System.arraycopy(address(src), 0, packet, 12, 4);
+        System.arraycopy(address(dst), 0, packet, 16, 4);
+        int sum = 0;
+        for (int i = 0; i < 20; i += 2) {
+            sum += ((packet[i] & 0xff) << 8) | (packet[i + 1] & 0xff);
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        putShort(packet, 10, ~sum);
+        return packet;
+    }
+
+    private static byte[] address(String ip) {
+        try {
+            return InetAddress.getByName(ip).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(ip, e);
+        }
+    }
+
+    private static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+}
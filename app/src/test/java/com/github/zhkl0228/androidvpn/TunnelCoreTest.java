@@ -0,0 +1,330 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TunnelCoreTest {
+
+    private static final byte MAGIC = 0xe;
+    private static final int MTU = 10000;
+
+    private static byte[] packet(int flow, int seq, int size) {
+        byte[] payload = new byte[size];
+        ByteBuffer.wrap(payload).putInt(flow).putInt(seq);
+        return TestPackets.udp4("10.1.10.1", 40000 + flow, "1.1.1.1", 53, payload);
+    }
+
+    private static int flowOf(byte[] packet) {
+        return ByteBuffer.wrap(packet).getInt(28);
+    }
+
+    private static int seqOf(byte[] packet) {
+        return ByteBuffer.wrap(packet).getInt(32);
+    }
+
+    private static byte[] copy(ByteBuffer packet) {
+        byte[] data = new byte[packet.remaining()];
+        packet.get(data);
+        return data;
+    }
+
+    /**
+     * Connects {@code stripes} sockets to {@code server} and sends the handshake on each. Compression is only
+     * ever negotiated: with the extended flag it is proposed and used if the server agrees.
+     */
+    private static TunnelCore connect(StandInServer server, TunDevice tun, int stripes, int osType, TunnelMetrics metrics) throws IOException {
+        TunnelCore core = new TunnelCore(tun, MAGIC, MTU, new PacketBufferPool(MTU, 16), metrics);
+        for (int i = 0; i < stripes; i++) {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+            socket.getOutputStream().write(osType);
+            TunnelParameters parameters = null;
+            if ((osType & 0x10) != 0) {
+                parameters = new TunnelParameters(TunnelParameters.VERSION, MTU, 256 * 1024,
+                        TunnelParameters.FEATURE_SUPER_FRAMES | TunnelParameters.FEATURE_COMPRESSION).negotiate(socket, 5000);
+            }
+            core.addStripe(socket, parameters, parameters != null && parameters.compression(), (osType & 0x04) != 0 ? new TunnelHealth(100, System.nanoTime()) : null);
+        }
+        return core;
+    }
+
+    private static Thread start(TunnelCore core, UplinkBacklog backlog, AtomicReference<IOException> failure) {
+        Thread thread = new Thread(() -> {
+            try {
+                core.run(backlog);
+            } catch (IOException e) {
+                failure.set(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void roundTrip(int stripes, int osType) throws Exception {
+        roundTrip(stripes, osType, TunnelParameters.FEATURE_SUPER_FRAMES | TunnelParameters.FEATURE_COMPRESSION);
+    }
+
+    private void roundTrip(int stripes, int osType, int serverFeatures) throws Exception {
+        final int flows = 8;
+        final int packetsPerFlow = 250;
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        PacketPipe pipe = new PacketPipe(64, packet -> received.add(copy(packet)));
+        TunnelMetrics metrics = new TunnelMetrics();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        try (StandInServer server = new StandInServer(null, MAGIC, MTU)) {
+            server.setReflect(true);
+            server.setFeatures(serverFeatures);
+            TunnelCore core = connect(server, pipe, stripes, osType, metrics);
+            Thread thread = start(core, null, failure);
+            for (int seq = 0; seq < packetsPerFlow; seq++) {
+                for (int flow = 0; flow < flows; flow++) {
+                    assertTrue(pipe.offer(packet(flow, seq, 64 + (seq * 37 + flow) % 1400), 10, TimeUnit.SECONDS));
+                }
+            }
+            int[] nextSeq = new int[flows];
+            for (int i = 0; i < flows * packetsPerFlow; i++) {
+                byte[] packet = received.poll(10, TimeUnit.SECONDS);
+                assertNotNull("timeout after " + i + " packets", packet);
+                int flow = flowOf(packet);
+                int seq = seqOf(packet);
+                assertEquals("flow " + flow + " in order", nextSeq[flow]++, seq);
+                assertArrayEquals(packet(flow, seq, 64 + (seq * 37 + flow) % 1400), packet);
+            }
+            core.close();
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+        assertTrue(String.valueOf(failure.get()), failure.get() instanceof SocketException);
+        assertEquals(flows * packetsPerFlow, metrics.uplinkPackets.count());
+        assertEquals(flows * packetsPerFlow, metrics.downlinkPackets.count());
+    }
+
+    @Test
+    public void testPipeRoundTrip() throws Exception {
+        roundTrip(1, 0);
+    }
+
+    @Test
+    public void testStripedCompressedRoundTripWithPings() throws Exception {
+        roundTrip(3, 0x10 | 0x04);
+    }
+
+    @Test
+    public void testCompressionNeedsTheServersAgreement() throws Exception {
+        roundTrip(2, 0x10);
+        roundTrip(2, 0x10, TunnelParameters.FEATURE_SUPER_FRAMES);
+    }
+
+    @Test
+    public void testPacketsAboveTheAgreedMtuAreAnswered() throws Exception {
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        PacketPipe pipe = new PacketPipe(64, packet -> received.add(copy(packet)));
+        TunnelMetrics metrics = new TunnelMetrics();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        try (StandInServer server = new StandInServer(null, MAGIC, MTU)) {
+            server.setReflect(true);
+            TunnelCore core = new TunnelCore(pipe, MAGIC, 1400, new PacketBufferPool(MTU, 16), metrics);
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+            socket.getOutputStream().write(0);
+            core.addStripe(socket, null, false, null);
+            Thread thread = start(core, null, failure);
+
+            byte[] large = packet(0, 0, 3000);
+            // don't fragment
+            large[6] = 0x40;
+            assertTrue(pipe.offer(large, 10, TimeUnit.SECONDS));
+            byte[] reply = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull(reply);
+            assertEquals(PathMtu.IPPROTO_ICMP, reply[9]);
+            assertEquals(PathMtu.ICMP_FRAGMENTATION_NEEDED, reply[21]);
+            assertEquals(1400, ByteBuffer.wrap(reply).getShort(26));
+
+            byte[] small = packet(1, 0, 100);
+            assertTrue(pipe.offer(small, 10, TimeUnit.SECONDS));
+            assertArrayEquals(small, received.poll(10, TimeUnit.SECONDS));
+            core.close();
+            thread.join(5000);
+        }
+        assertEquals(1, metrics.uplinkDropped.sum());
+        assertEquals(1, metrics.uplinkTooBig.sum());
+    }
+
+    @Test
+    public void testScheduledRoundTrip() throws Exception {
+        final int flows = 8;
+        final int packetsPerFlow = 250;
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        PacketPipe pipe = new PacketPipe(64, packet -> received.add(copy(packet)));
+        TunnelMetrics metrics = new TunnelMetrics();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        try (StandInServer server = new StandInServer(null, MAGIC, MTU)) {
+            server.setReflect(true);
+            TunnelCore core = connect(server, pipe, 2, 0x04, metrics);
+            UplinkScheduler scheduler = new UplinkScheduler(8, 1514, metrics);
+            core.setUplinkScheduler(scheduler);
+            Thread thread = start(core, null, failure);
+            for (int seq = 0; seq < packetsPerFlow; seq++) {
+                for (int flow = 0; flow < flows; flow++) {
+                    assertTrue(pipe.offer(packet(flow, seq, 64 + (seq * 37 + flow) % 1400), 10, TimeUnit.SECONDS));
+                }
+            }
+            // a full scheduler drops instead of blocking the tun, but never reorders a flow
+            int[] lastSeq = new int[flows];
+            Arrays.fill(lastSeq, -1);
+            int count = 0;
+            while (count + metrics.uplinkQueueDropped.sum() < flows * packetsPerFlow) {
+                byte[] packet = received.poll(10, TimeUnit.SECONDS);
+                assertNotNull("timeout after " + count + " packets, " + scheduler, packet);
+                int flow = flowOf(packet);
+                int seq = seqOf(packet);
+                assertTrue("flow " + flow + " in order", seq > lastSeq[flow]);
+                lastSeq[flow] = seq;
+                assertArrayEquals(packet(flow, seq, 64 + (seq * 37 + flow) % 1400), packet);
+                count++;
+            }
+            core.close();
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+            assertEquals(0, scheduler.size());
+            assertEquals(count, metrics.uplinkPackets.count());
+            assertEquals(count, metrics.uplinkQueueMicros[UplinkScheduler.CLASS_INTERACTIVE].count());
+        }
+        assertTrue(String.valueOf(failure.get()), failure.get() instanceof SocketException);
+    }
+
+    @Test
+    public void testScheduledUplinkPingsWhileBusy() throws Exception {
+        PacketPipe pipe = new PacketPipe(64, packet -> {
+        });
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        try (StandInServer server = new StandInServer(null, MAGIC, MTU)) {
+            TunnelCore core = new TunnelCore(pipe, MAGIC, MTU, new PacketBufferPool(MTU, 16), new TunnelMetrics());
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+            socket.getOutputStream().write(0x04);
+            TunnelHealth health = new TunnelHealth(50, System.nanoTime());
+            core.addStripe(socket, null, false, health);
+            core.setUplinkScheduler(new UplinkScheduler(8, 1514, new TunnelMetrics()));
+            // a slow writer, the scheduler never runs dry while the tun keeps up
+            core.setUplinkFilter((packet, sink) -> {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            });
+            Thread thread = start(core, null, failure);
+            long deadline = System.currentTimeMillis() + 1000;
+            for (int seq = 0; System.currentTimeMillis() < deadline; seq++) {
+                assertTrue(pipe.offer(packet(seq % 4, seq, 100), 10, TimeUnit.SECONDS));
+                Thread.sleep(1);
+            }
+            assertTrue("pongs=" + health.getSamples(), health.getSamples() >= 5);
+            core.close();
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+        assertTrue(String.valueOf(failure.get()), failure.get() instanceof SocketException);
+    }
+
+    @Test
+    public void testBacklogGoesFirst() throws Exception {
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        PacketPipe pipe = new PacketPipe(8, packet -> received.add(copy(packet)));
+        UplinkBacklog backlog = new UplinkBacklog(8, 1 << 20);
+        byte[] queued = packet(0, 0, 100);
+        backlog.offer(queued, 0, queued.length);
+        byte[] oversized = new byte[MTU + 1];
+        backlog.offer(oversized, 0, oversized.length);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        try (StandInServer server = new StandInServer(null, MAGIC, MTU)) {
+            server.setReflect(true);
+            TunnelCore core = connect(server, pipe, 1, 0, new TunnelMetrics());
+            Thread thread = start(core, backlog, failure);
+            assertTrue(pipe.offer(packet(0, 1, 100), 1, TimeUnit.SECONDS));
+            assertArrayEquals(queued, received.poll(10, TimeUnit.SECONDS));
+            assertEquals("the oversized packet is dropped", 1, seqOf(received.poll(10, TimeUnit.SECONDS)));
+            assertEquals(0, backlog.size());
+            pipe.close();
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+        assertTrue(String.valueOf(failure.get()), failure.get() instanceof java.io.EOFException);
+    }
+
+    @Test
+    public void testUplinkFilter() throws Exception {
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        PacketPipe pipe = new PacketPipe(8, packet -> received.add(copy(packet)));
+        List<Integer> filtered = new ArrayList<>();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        try (StandInServer server = new StandInServer(null, MAGIC, MTU)) {
+            server.setReflect(true);
+            TunnelCore core = connect(server, pipe, 1, 0, new TunnelMetrics());
+            core.setUplinkFilter((packet, sink) -> {
+                int seq = packet.getInt(packet.position() + 32);
+                if (seq % 2 == 0) {
+                    filtered.add(seq);
+                    return true;
+                }
+                return false;
+            });
+            Thread thread = start(core, null, failure);
+            for (int seq = 0; seq < 10; seq++) {
+                assertTrue(pipe.offer(packet(0, seq, 100), 1, TimeUnit.SECONDS));
+            }
+            for (int seq = 1; seq < 10; seq += 2) {
+                assertEquals(seq, seqOf(received.poll(10, TimeUnit.SECONDS)));
+            }
+            core.close();
+            thread.join(5000);
+        }
+        assertEquals(5, filtered.size());
+    }
+
+    @Test
+    public void testDatagramDevice() throws Exception {
+        try (DatagramChannel apps = DatagramChannel.open();
+             DatagramChannel device = DatagramChannel.open();
+             StandInServer server = new StandInServer(null, MAGIC, MTU)) {
+            apps.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            device.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            apps.connect(device.getLocalAddress());
+            device.connect(apps.getLocalAddress());
+            server.setReflect(true);
+            DatagramTunDevice tun = new DatagramTunDevice(device);
+            AtomicReference<IOException> failure = new AtomicReference<>();
+            TunnelCore core = connect(server, tun, 1, 0, new TunnelMetrics());
+            Thread thread = start(core, null, failure);
+            apps.socket().setSoTimeout(10000);
+            ByteBuffer buffer = ByteBuffer.allocate(MTU);
+            for (int seq = 0; seq < 20; seq++) {
+                byte[] packet = packet(1, seq, 200 + seq);
+                apps.write(ByteBuffer.wrap(packet));
+                buffer.clear();
+                apps.read(buffer);
+                buffer.flip();
+                assertArrayEquals(packet, copy(buffer));
+            }
+            tun.close();
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+            assertNotNull(failure.get());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TunnelHealthTest {
+
+    private static final byte MAGIC = 0xe;
+    private static final int MTU = 10000;
+    private static final long MS = 1000000L;
+
+    @Test
+    public void testPingSchedule() {
+        TunnelHealth health = new TunnelHealth(1000, 0);
+        assertNull(health.pingIfDue(500 * MS));
+        assertEquals(500, health.millisUntilPing(500 * MS));
+        byte[] ping = health.pingIfDue(1000 * MS);
+        assertNotNull(ping);
+        assertEquals(ControlFrame.PING_BODY, ping.length);
+        assertEquals(1, ping[3]);
+        assertEquals(1000 * MS, DatagramTunnel.getLong(ping, 4));
+        assertNull("one ping per interval", health.pingIfDue(1500 * MS));
+        assertEquals(2, health.pingIfDue(2000 * MS)[3]);
+    }
+
+    @Test
+    public void testSmoothedRtt() {
+        TunnelHealth health = new TunnelHealth(1000, 0);
+        health.onRttSample(100 * MS);
+        assertEquals(100 * MS, health.getSmoothedRttNanos());
+        assertEquals(50 * MS, health.getRttVarianceNanos());
+        assertEquals(0, health.getJitterNanos());
+        for (int i = 0; i < 200; i++) {
+            health.onRttSample((i % 2 == 0 ? 40 : 60) * MS);
+        }
+        assertEquals(50 * MS, health.getSmoothedRttNanos(), 3 * MS);
+        assertEquals("alternating samples differ by 20ms", 20 * MS, health.getJitterNanos(), MS);
+        assertEquals(10 * MS, health.getRttVarianceNanos(), 2 * MS);
+        assertEquals(201, health.getSamples());
+    }
+
+    @Test
+    public void testPongRoundTrip() {
+        TunnelHealth health = new TunnelHealth(1000, 0);
+        byte[] ping = health.pingIfDue(1000 * MS).clone();
+        assertFalse("short body", health.onPong(ping, 0, 8, 1030 * MS));
+        assertFalse("from the future", health.onPong(ping, 0, ping.length, 900 * MS));
+        assertTrue(health.onPong(ping, 0, ping.length, 1030 * MS));
+        assertEquals(30 * MS, health.getSmoothedRttNanos());
+    }
+
+    @Test
+    public void testDeadPeer() {
+        TunnelHealth health = new TunnelHealth(1000, 0);
+        health.onReceived(1000 * MS);
+        assertFalse(health.isDead(3900 * MS));
+        assertTrue("silent for three intervals", health.isDead(4100 * MS));
+        health.onReceived(4100 * MS);
+        assertFalse(health.isDead(4200 * MS));
+        assertEquals(100 * MS, health.getIdleNanos(4200 * MS));
+
+        health.onRttSample(200 * MS);
+        assertFalse("a slow path gets its retransmission timeout on top", health.isDead(7500 * MS));
+        assertTrue(health.isDead(7800 * MS));
+    }
+
+    @Test
+    public void testPingFramesBetweenPackets() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out, MAGIC, MTU);
+        TunnelHealth sender = new TunnelHealth(1000, 0);
+        byte[] ping = sender.pingIfDue(1000 * MS);
+        writer.writeFrame(new byte[]{1, 2, 3}, 0, 3);
+        writer.writeControlFrame(ControlFrame.TYPE_PONG, ping, 0, ping.length);
+        writer.writeFrame(new byte[]{4, 5}, 0, 2);
+        writer.flush();
+
+        List<byte[]> packets = new ArrayList<>();
+        TunnelHealth receiver = new TunnelHealth(1000, 0);
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()), MAGIC, MTU, FrameReader.DEFAULT_BUFFER_SIZE, null, null,
+                (type, buffer, offset, length) -> {
+                    assertEquals(ControlFrame.TYPE_PONG, type);
+                    assertTrue(receiver.onPong(buffer, offset, length, 1025 * MS));
+                });
+        assertEquals(2, reader.read((buffer, offset, length) -> packets.add(Arrays.copyOfRange(buffer, offset, offset + length))));
+        assertArrayEquals(new byte[]{1, 2, 3}, packets.get(0));
+        assertArrayEquals(new byte[]{4, 5}, packets.get(1));
+        assertEquals(1, reader.getControlFrames());
+        assertEquals(25 * MS, receiver.getSmoothedRttNanos());
+    }
+
+    @Test
+    public void testLegacyReaderKeepsControlBitAsLength() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out, MAGIC, 0x5000);
+        writer.writeFrame(new byte[0x4001], 0, 0x4001);
+        writer.flush();
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()), MAGIC, 0x5000);
+        int[] length = new int[1];
+        assertEquals(1, reader.read((buffer, offset, packetLength) -> length[0] = packetLength));
+        assertEquals("without a control handler the legacy framing is unchanged", 0x4001, length[0]);
+    }
+}
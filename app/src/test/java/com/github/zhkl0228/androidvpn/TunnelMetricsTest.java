@@ -0,0 +1,116 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TunnelMetricsTest {
+
+    @Test
+    public void testHistogramQuantiles() {
+        TunnelMetrics.Histogram histogram = new TunnelMetrics.Histogram();
+        assertEquals(0, histogram.quantile(0.5));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(5050, histogram.sum());
+        assertEquals("50 lies in 32..63", 63, histogram.quantile(0.5));
+        assertEquals(127, histogram.quantile(0.99));
+        assertEquals(127, histogram.quantile(1));
+        assertEquals(1, histogram.quantile(0.01));
+
+        histogram.record(0);
+        histogram.record(-5);
+        assertEquals("zero and negatives share the first bucket", 0, histogram.quantile(0.015));
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.quantile(1));
+    }
+
+    @Test
+    public void testRecordBatch() {
+        TunnelMetrics.Histogram histogram = new TunnelMetrics.Histogram();
+        histogram.record(1000, 30);
+        histogram.record(10, 70);
+        assertEquals(100, histogram.count());
+        assertEquals(30 * 1000 + 70 * 10, histogram.sum());
+        assertEquals(15, histogram.quantile(0.69));
+        assertEquals(1023, histogram.quantile(0.71));
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws InterruptedException {
+        TunnelMetrics metrics = new TunnelMetrics();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    metrics.uplinkPackets.record(1500);
+                    metrics.tunReads.increment();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, metrics.uplinkPackets.count());
+        assertEquals(400000L * 1500, metrics.uplinkPackets.sum());
+        assertEquals(400000, metrics.tunReads.sum());
+    }
+
+    @Test
+    public void testMeteredStreams() throws IOException {
+        TunnelMetrics metrics = new TunnelMetrics();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TunnelMetrics.MeteredOutputStream output = metrics.meter(out);
+        output.write(new byte[100], 0, 100);
+        output.write(new byte[20]);
+        assertEquals(120, out.size());
+        assertEquals(2, metrics.socketWrites.sum());
+        assertEquals(120, metrics.socketWriteBytes.sum());
+
+        TunnelMetrics.MeteredInputStream input = metrics.meter(new ByteArrayInputStream(new byte[50]));
+        long before = System.nanoTime();
+        assertEquals(50, input.read(new byte[64], 0, 64));
+        assertEquals(-1, input.read(new byte[64]));
+        assertEquals(2, metrics.socketReads.sum());
+        assertEquals(50, metrics.socketReadBytes.sum());
+        assertTrue(input.getLastReadNanos() >= before);
+    }
+
+    @Test
+    public void testDumpAndJson() {
+        TunnelMetrics metrics = new TunnelMetrics();
+        metrics.uplinkPackets.record(100);
+        metrics.downlinkPackets.record(1400, 3);
+        metrics.discoveryQueries.increment();
+        metrics.discoveryLookupMicros.record(250);
+
+        StringWriter text = new StringWriter();
+        metrics.dump(new PrintWriter(text, true));
+        assertTrue(text.toString(), text.toString().contains("uplink: packets=1, bytes=100"));
+        assertTrue(text.toString(), text.toString().contains("downlink: packets=3, bytes=4200"));
+
+        String json = metrics.toJson();
+        assertTrue(json, json.startsWith("{\"uptimeMillis\":"));
+        assertTrue(json, json.contains("\"uplink\":{\"packets\":1,\"bytes\":100,\"dropped\":0,\"tooBig\":0,\"mssClamped\":0,\"packetSize\":{\"count\":1,\"sum\":100,\"mean\":100,\"p50\":127"));
+        assertTrue(json, json.contains("\"discovery\":{\"queries\":1,\"flows\":0,"));
+        assertTrue(json, json.contains("\"lookupMicros\":{\"count\":1,\"sum\":250,"));
+        int depth = 0;
+        for (char c : json.toCharArray()) {
+            depth += c == '{' ? 1 : c == '}' ? -1 : 0;
+            assertTrue(depth >= 0);
+        }
+        assertEquals("balanced", 0, depth);
+    }
+}
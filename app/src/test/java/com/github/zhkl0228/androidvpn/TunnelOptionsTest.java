@@ -0,0 +1,46 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class TunnelOptionsTest {
+
+    @Test
+    public void testUnsupportedOptionsAreListedOnce() {
+        Properties properties = new Properties();
+        properties.setProperty("ping", "true");
+        properties.setProperty("scheduler", "true");
+        properties.setProperty("compression", "true");
+        assertEquals(Collections.singletonList("compression without negotiate=true"), new TunnelOptions(properties).unsupported());
+
+        properties.setProperty("transport", "udp");
+        assertEquals(Arrays.asList("compression", "scheduler", "ping, the udp transport keeps its own keepalive"),
+                new TunnelOptions(properties).unsupported());
+
+        properties.setProperty("transport", "tcp");
+        properties.setProperty("negotiate", "true");
+        assertTrue(new TunnelOptions(properties).unsupported().isEmpty());
+    }
+
+    @Test
+    public void testConnectionOptionsOfTheOtherPaths() {
+        Properties properties = new Properties();
+        properties.setProperty("stripes", "4");
+        properties.setProperty("socketSendBuffer", "262144");
+        properties.setProperty("capture", "true");
+        assertTrue("the stream engine over tcp takes them all", new TunnelOptions(properties).unsupported().isEmpty());
+
+        properties.setProperty("engine", "nio");
+        assertEquals(Arrays.asList("stripes, the nio engine uses one connection", "socketSendBuffer", "capture"),
+                new TunnelOptions(properties).unsupported());
+
+        properties.setProperty("transport", "udp");
+        assertEquals("the udp transport captures with any engine", Arrays.asList("stripes, the udp transport uses one socket", "socketSendBuffer"),
+                new TunnelOptions(properties).unsupported());
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TunnelSessionTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        TunnelSession session = new TunnelSession(0x0123456789abcdefL);
+        session.nextGeneration();
+        session.nextGeneration();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        session.write(new DataOutputStream(baos));
+        assertEquals(10, baos.size());
+
+        TunnelSession read = TunnelSession.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertEquals(session.token, read.token);
+        assertEquals(2, read.getGeneration());
+    }
+
+    @Test
+    public void testGenerationWraps() {
+        TunnelSession session = new TunnelSession(1);
+        for (int i = 0; i < 0x10000; i++) {
+            session.nextGeneration();
+        }
+        assertEquals(0, session.getGeneration());
+    }
+}
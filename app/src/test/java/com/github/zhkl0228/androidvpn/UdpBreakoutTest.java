@@ -0,0 +1,222 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UdpBreakoutTest {
+
+    private static final int MTU = 10000;
+
+    /**
+     * Collects what would be written to the tun, one array per packet.
+     */
+    private static class TunSink implements WritableByteChannel {
+        final BlockingQueue<byte[]> packets = new LinkedBlockingQueue<>();
+        /**
+         * Thrown by the next write if set.
+         */
+        volatile IOException failure;
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            IOException failure = this.failure;
+            if (failure != null) {
+                this.failure = null;
+                throw failure;
+            }
+            byte[] packet = new byte[src.remaining()];
+            src.get(packet);
+            packets.add(packet);
+            return packet.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private DatagramSocket echo;
+    private Thread echoThread;
+    private final TunSink tun = new TunSink();
+    private int protectedSockets;
+    private UdpBreakout breakout;
+    private Thread breakoutThread;
+
+    @Before
+    public void setUp() throws IOException {
+        echo = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        echoThread = new Thread(() -> {
+            byte[] buffer = new byte[0x10000];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    echo.receive(packet);
+                    echo.send(new DatagramPacket(buffer, packet.getLength(), packet.getSocketAddress()));
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        echoThread.start();
+        BreakoutPolicy policy = BreakoutPolicy.parse(new StringReader("direct udp 127.0.0.0/8\ntunnel udp 127.0.0.2\n"));
+        breakout = new UdpBreakout(policy, socket -> {
+            protectedSockets++;
+            return true;
+        }, tun, MTU);
+        breakoutThread = new Thread(breakout);
+        breakoutThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        breakout.close();
+        breakoutThread.join(5000);
+        echo.close();
+        echoThread.join(5000);
+    }
+
+    private static ByteBuffer direct(byte[] packet) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MTU);
+        buffer.put(packet).flip();
+        return buffer;
+    }
+
+    private static int checksum(byte[] data, int offset, int length, int sum) {
+        for (int i = 0; i < length; i += 2) {
+            sum += ((data[offset + i] & 0xff) << 8) | (i + 1 < length ? data[offset + i + 1] & 0xff : 0);
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return sum;
+    }
+
+    private static void assertReply(byte[] reply, int localPort, byte[] payload) throws IOException {
+        ByteBuffer packet = ByteBuffer.wrap(reply);
+        assertEquals(0x45, packet.get(0));
+        assertEquals(reply.length, packet.getShort(2) & 0xffff);
+        assertEquals(PacketHeaders.IPPROTO_UDP, packet.get(9));
+        assertEquals("ip checksum", 0xffff, checksum(reply, 0, 20, 0));
+        assertEquals(InetAddress.getByName("127.0.0.1"), InetAddress.getByAddress(Arrays.copyOfRange(reply, 12, 16)));
+        assertEquals(InetAddress.getByName("10.1.10.1"), InetAddress.getByAddress(Arrays.copyOfRange(reply, 16, 20)));
+        assertEquals(localPort, packet.getShort(22) & 0xffff);
+        int udpLength = packet.getShort(24) & 0xffff;
+        assertEquals(8 + payload.length, udpLength);
+        int pseudo = checksum(reply, 12, 8, 0) + PacketHeaders.IPPROTO_UDP + udpLength;
+        assertEquals("udp checksum", 0xffff, checksum(reply, 20, udpLength, pseudo));
+        assertArrayEquals(payload, Arrays.copyOfRange(reply, 28, reply.length));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        int echoPort = echo.getLocalPort();
+        for (int size : new int[]{1, 33, 1400, MTU - 28}) {
+            byte[] payload = new byte[size];
+            Arrays.fill(payload, (byte) size);
+            ByteBuffer packet = direct(TestPackets.udp4("10.1.10.1", 5353, "127.0.0.1", echoPort, payload));
+            int limit = packet.limit();
+            assertTrue(breakout.onUplinkPacket(packet));
+            assertEquals("packet left as it was", 0, packet.position());
+            assertEquals(limit, packet.limit());
+            byte[] reply = tun.packets.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no reply for size=" + size, reply);
+            assertReply(reply, 5353, payload);
+        }
+        assertEquals("one socket per flow", 1, protectedSockets);
+        assertEquals(1, breakout.getFlows());
+        assertEquals(4, breakout.getUplinkPackets());
+        assertEquals(4, breakout.getDownlinkPackets());
+
+        assertTrue("empty datagrams are dropped", breakout.onUplinkPacket(direct(TestPackets.udp4("10.1.10.1", 5353, "127.0.0.1", echoPort, new byte[0]))));
+        assertEquals(1, breakout.getUplinkDropped());
+
+        assertTrue(breakout.onUplinkPacket(direct(TestPackets.udp4("10.1.10.1", 5354, "127.0.0.1", echoPort, new byte[3]))));
+        assertReply(tun.packets.poll(5, TimeUnit.SECONDS), 5354, new byte[3]);
+        assertEquals(2, protectedSockets);
+    }
+
+    @Test
+    public void testUnmatchedLeftToTunnel() {
+        assertFalse(breakout.onUplinkPacket(direct(TestPackets.udp4("10.1.10.1", 5353, "8.8.8.8", 53, new byte[10]))));
+        assertFalse(breakout.onUplinkPacket(direct(TestPackets.udp4("10.1.10.1", 5353, "127.0.0.2", 53, new byte[10]))));
+        assertFalse(breakout.onUplinkPacket(direct(TestPackets.tcp4("10.1.10.1", 5353, "127.0.0.1", 53, TestPackets.TCP_SYN, new byte[0]))));
+        assertFalse(breakout.onUplinkPacket(direct(new byte[]{0x45, 0, 0})));
+        assertEquals(0, protectedSockets);
+        assertEquals(0, breakout.getFlows());
+    }
+
+    @Test
+    public void testFragmentsLeftToTunnel() throws Exception {
+        int echoPort = echo.getLocalPort();
+        byte[] first = TestPackets.udp4("10.1.10.1", 5353, "127.0.0.1", echoPort, new byte[24]);
+        // more fragments follow, the UDP length covers them all
+        first[6] = 0x20;
+        first[20 + 4] = (byte) (3000 >>> 8);
+        first[20 + 5] = (byte) 3000;
+        assertFalse(breakout.onUplinkPacket(direct(first)));
+
+        byte[] cut = TestPackets.udp4("10.1.10.1", 5353, "127.0.0.1", echoPort, new byte[24]);
+        cut[20 + 5] = 8 + 100;
+        assertFalse(breakout.onUplinkPacket(direct(cut)));
+        assertEquals(0, breakout.getFlows());
+
+        byte[] whole = TestPackets.udp4("10.1.10.1", 5353, "127.0.0.1", echoPort, new byte[24]);
+        whole[6] = 0x40;
+        assertTrue("don't fragment is fine", breakout.onUplinkPacket(direct(whole)));
+        assertReply(tun.packets.poll(5, TimeUnit.SECONDS), 5353, new byte[24]);
+    }
+
+    @Test
+    public void testUnprotectedSocketLeftToTunnel() throws IOException {
+        BreakoutPolicy policy = BreakoutPolicy.parse(new StringReader("direct udp 0.0.0.0/0\n"));
+        UdpBreakout unprotected = new UdpBreakout(policy, socket -> false, tun, MTU);
+        try {
+            assertFalse(unprotected.onUplinkPacket(direct(TestPackets.udp4("10.1.10.1", 5353, "127.0.0.1", 53, new byte[10]))));
+            assertEquals(0, unprotected.getFlows());
+        } finally {
+            unprotected.close();
+        }
+    }
+
+    @Test
+    public void testTunWriteErrorDropsOnlyThatDatagram() throws Exception {
+        int echoPort = echo.getLocalPort();
+        tun.failure = new IOException("No buffer space available");
+        assertTrue(breakout.onUplinkPacket(direct(TestPackets.udp4("10.1.10.1", 5353, "127.0.0.1", echoPort, new byte[5]))));
+        assertNull(tun.packets.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(breakout.onUplinkPacket(direct(TestPackets.udp4("10.1.10.1", 5353, "127.0.0.1", echoPort, new byte[7]))));
+        assertReply(tun.packets.poll(5, TimeUnit.SECONDS), 5353, new byte[7]);
+        assertEquals(1, breakout.getDownlinkPackets());
+        assertTrue(breakoutThread.isAlive());
+    }
+
+    @Test
+    public void testClosedTunLeavesFlowsToTunnel() throws Exception {
+        tun.failure = new ClosedChannelException();
+        assertTrue(breakout.onUplinkPacket(direct(TestPackets.udp4("10.1.10.1", 5353, "127.0.0.1", echo.getLocalPort(), new byte[5]))));
+        breakoutThread.join(5000);
+        assertFalse(breakoutThread.isAlive());
+        assertFalse("nobody would answer", breakout.onUplinkPacket(direct(TestPackets.udp4("10.1.10.1", 5353, "127.0.0.1", echo.getLocalPort(), new byte[5]))));
+        assertEquals(0, breakout.getFlows());
+    }
+}
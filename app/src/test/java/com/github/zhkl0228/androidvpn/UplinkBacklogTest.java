@@ -0,0 +1,72 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class UplinkBacklogTest {
+
+    private static byte[] packet(int size, int value) {
+        byte[] packet = new byte[size];
+        Arrays.fill(packet, (byte) value);
+        return packet;
+    }
+
+    @Test
+    public void testFifo() {
+        UplinkBacklog backlog = new UplinkBacklog(8, 1024);
+        byte[] buffer = new byte[100];
+        for (int i = 1; i <= 3; i++) {
+            Arrays.fill(buffer, (byte) i);
+            assertTrue(backlog.offer(buffer, 10, 10 * i));
+        }
+        Arrays.fill(buffer, (byte) 0);
+        assertEquals(3, backlog.size());
+        assertEquals(60, backlog.getBytes());
+        for (int i = 1; i <= 3; i++) {
+            ByteBuffer packet = backlog.poll();
+            assertEquals("copied, not referenced", 10 * i, packet.remaining());
+            assertArrayEquals(packet(10 * i, i), packet.array());
+        }
+        assertNull(backlog.poll());
+        assertEquals(0, backlog.getBytes());
+        assertEquals(3, backlog.getQueued());
+        assertEquals(0, backlog.getDropped());
+    }
+
+    @Test
+    public void testPacketBoundDropsOldest() {
+        UplinkBacklog backlog = new UplinkBacklog(2, 1024);
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(backlog.offer(packet(4, i), 0, 4));
+        }
+        assertEquals(2, backlog.size());
+        assertEquals(3, backlog.getDropped());
+        assertEquals(4, backlog.poll().get(0));
+        assertEquals(5, backlog.poll().get(0));
+    }
+
+    @Test
+    public void testByteBound() {
+        UplinkBacklog backlog = new UplinkBacklog(100, 1000);
+        assertTrue(backlog.offer(packet(400, 1), 0, 400));
+        assertTrue(backlog.offer(packet(400, 2), 0, 400));
+        assertTrue(backlog.offer(packet(400, 3), 0, 400));
+        assertEquals(2, backlog.size());
+        assertEquals(800, backlog.getBytes());
+        assertFalse("larger than the whole backlog", backlog.offer(packet(1001, 4), 0, 1001));
+        assertEquals(2, backlog.getDropped());
+        assertEquals(2, backlog.poll().get(0));
+    }
+
+    @Test
+    public void testDisabled() {
+        UplinkBacklog backlog = new UplinkBacklog(0, 1024);
+        assertFalse(backlog.offer(packet(4, 1), 0, 4));
+        assertEquals(0, backlog.size());
+        assertEquals(1, backlog.getDropped());
+    }
+}
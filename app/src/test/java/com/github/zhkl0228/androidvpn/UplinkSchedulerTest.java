@@ -0,0 +1,206 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UplinkSchedulerTest {
+
+    private static final int QUANTUM = 1514;
+
+    private static ByteBuffer udp(int sport, int dport, int size) {
+        return ByteBuffer.wrap(TestPackets.udp4("10.1.10.1", sport, "10.2.0.1", dport, new byte[size - 28]));
+    }
+
+    private static ByteBuffer tcp(int flags, int payload) {
+        return ByteBuffer.wrap(TestPackets.tcp4("10.1.10.1", 40000, "10.2.0.1", 443, flags, new byte[payload]));
+    }
+
+    private static ByteBuffer dscp(ByteBuffer packet, int dscp) {
+        packet.put(1, (byte) (dscp << 2));
+        return packet;
+    }
+
+    /**
+     * IPv6 TCP segment without payload, with {@code dscp} in the traffic class.
+     */
+    private static ByteBuffer tcp6(int flags, int dscp) {
+        byte[] packet = new byte[60];
+        int trafficClass = dscp << 2;
+        packet[0] = (byte) (0x60 | (trafficClass >>> 4));
+        packet[1] = (byte) (trafficClass << 4);
+        packet[5] = 20;
+        packet[6] = (byte) PacketHeaders.IPPROTO_TCP;
+        packet[7] = 64;
+        packet[40 + 12] = 5 << 4;
+        packet[40 + 13] = (byte) flags;
+        return ByteBuffer.wrap(packet);
+    }
+
+    @Test
+    public void testClassify() {
+        assertEquals(UplinkScheduler.CLASS_INTERACTIVE, UplinkScheduler.classify(tcp(TestPackets.TCP_ACK, 0)));
+        assertEquals(UplinkScheduler.CLASS_INTERACTIVE, UplinkScheduler.classify(tcp(TestPackets.TCP_SYN, 0)));
+        assertEquals(UplinkScheduler.CLASS_DEFAULT, UplinkScheduler.classify(tcp(TestPackets.TCP_ACK, 1)));
+        assertEquals(UplinkScheduler.CLASS_DEFAULT, UplinkScheduler.classify(tcp(TestPackets.TCP_ACK | TestPackets.TCP_FIN, 0)));
+        assertEquals(UplinkScheduler.CLASS_DEFAULT, UplinkScheduler.classify(tcp(TestPackets.TCP_ACK | 0x04, 0)));
+        assertEquals(UplinkScheduler.CLASS_INTERACTIVE, UplinkScheduler.classify(udp(40000, 53, 80)));
+        assertEquals(UplinkScheduler.CLASS_DEFAULT, UplinkScheduler.classify(udp(40000, 443, 80)));
+        assertEquals(UplinkScheduler.CLASS_INTERACTIVE, UplinkScheduler.classify(dscp(udp(40000, 443, 1400), 46)));
+        assertEquals(UplinkScheduler.CLASS_BACKGROUND, UplinkScheduler.classify(dscp(udp(40000, 443, 1400), 8)));
+        assertEquals(UplinkScheduler.CLASS_BACKGROUND, UplinkScheduler.classify(dscp(tcp(TestPackets.TCP_ACK, 0), 1)));
+
+        ByteBuffer icmp = udp(40000, 443, 64);
+        icmp.put(9, (byte) 1);
+        assertEquals(UplinkScheduler.CLASS_INTERACTIVE, UplinkScheduler.classify(icmp));
+
+        assertEquals(UplinkScheduler.CLASS_INTERACTIVE, UplinkScheduler.classify(tcp6(TestPackets.TCP_ACK, 0)));
+        assertEquals(UplinkScheduler.CLASS_BACKGROUND, UplinkScheduler.classify(tcp6(TestPackets.TCP_ACK, 8)));
+        assertEquals(UplinkScheduler.CLASS_DEFAULT, UplinkScheduler.classify(ByteBuffer.wrap(new byte[10])));
+
+        // position and limit frame the packet
+        ByteBuffer framed = ByteBuffer.allocate(200);
+        framed.position(50);
+        framed.put(udp(40000, 53, 80));
+        framed.flip().position(50);
+        assertEquals(UplinkScheduler.CLASS_INTERACTIVE, UplinkScheduler.classify(framed));
+    }
+
+    @Test
+    public void testInteractiveGoesFirst() throws Exception {
+        UplinkScheduler scheduler = new UplinkScheduler(16, QUANTUM, null);
+        ByteBuffer bulk = udp(40000, 443, 1400);
+        ByteBuffer background = dscp(udp(40001, 443, 1400), 8);
+        ByteBuffer ack = tcp(TestPackets.TCP_ACK, 0);
+        assertNull(scheduler.offer(background, 1));
+        assertNull(scheduler.offer(bulk, 2));
+        assertNull(scheduler.offer(ack, 3));
+        assertSame(ack, scheduler.poll(0));
+        assertEquals(3, scheduler.getLastEnqueuedNanos());
+        assertSame(bulk, scheduler.poll(0));
+        assertSame(background, scheduler.poll(0));
+        assertNull(scheduler.poll(0));
+        assertEquals(1, scheduler.getQueued(UplinkScheduler.CLASS_INTERACTIVE));
+        assertEquals(1, scheduler.getQueued(UplinkScheduler.CLASS_DEFAULT));
+        assertEquals(1, scheduler.getQueued(UplinkScheduler.CLASS_BACKGROUND));
+    }
+
+    @Test
+    public void testFlowsShareBytesFairly() throws Exception {
+        UplinkScheduler scheduler = new UplinkScheduler(256, QUANTUM, null);
+        for (int i = 0; i < 50; i++) {
+            scheduler.offer(udp(40000, 443, 1500), i);
+        }
+        for (int i = 0; i < 200; i++) {
+            scheduler.offer(udp(40001, 443, 300), i);
+        }
+        int large = 0;
+        int small = 0;
+        ByteBuffer packet;
+        while ((packet = scheduler.poll(0)) != null && large < 40 * 1500 && small < 160 * 300) {
+            if (packet.remaining() == 1500) {
+                large += packet.remaining();
+            } else {
+                small += packet.remaining();
+            }
+            assertTrue("large=" + large + ", small=" + small, Math.abs(large - small) <= 2 * QUANTUM);
+        }
+    }
+
+    @Test
+    public void testFlowKeepsItsOrder() throws Exception {
+        UplinkScheduler scheduler = new UplinkScheduler(64, QUANTUM, null);
+        ByteBuffer[] packets = new ByteBuffer[20];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = udp(40000, 443, 100 + i * 50);
+            scheduler.offer(packets[i], i);
+            scheduler.offer(udp(40001 + i % 3, 443, 700), i);
+        }
+        int next = 0;
+        ByteBuffer packet;
+        while ((packet = scheduler.poll(0)) != null) {
+            if (PacketHeaders.sourcePort(packet, 20) == 40000) {
+                assertSame(packets[next++], packet);
+            }
+        }
+        assertEquals(packets.length, next);
+    }
+
+    @Test
+    public void testNewFlowSkipsTheBacklog() throws Exception {
+        UplinkScheduler scheduler = new UplinkScheduler(64, QUANTUM, null);
+        for (int i = 0; i < 30; i++) {
+            scheduler.offer(udp(40000 + i % 2, 443, 1400), i);
+        }
+        scheduler.poll(0);
+        ByteBuffer probe = udp(50000, 443, 100);
+        scheduler.offer(probe, 30);
+        assertSame(probe, scheduler.poll(0));
+    }
+
+    @Test
+    public void testFullQueueDropsFromTheFattestFlow() {
+        TunnelMetrics metrics = new TunnelMetrics();
+        UplinkScheduler scheduler = new UplinkScheduler(4, QUANTUM, metrics);
+        ByteBuffer oldest = udp(40000, 443, 1400);
+        scheduler.offer(oldest, 0);
+        scheduler.offer(udp(40000, 443, 1400), 1);
+        scheduler.offer(tcp(TestPackets.TCP_ACK, 0), 2);
+        scheduler.offer(udp(40001, 443, 100), 3);
+        assertSame(oldest, scheduler.offer(udp(40002, 443, 100), 4));
+        assertEquals(4, scheduler.size());
+        assertEquals(1, scheduler.getDropped());
+        assertEquals(1, metrics.uplinkQueueDropped.sum());
+    }
+
+    @Test
+    public void testLowerClassesAreNotStarved() throws Exception {
+        UplinkScheduler scheduler = new UplinkScheduler(512, QUANTUM, null);
+        for (int i = 0; i < 300; i++) {
+            scheduler.offer(udp(40000 + i % 4, 53, 100), i);
+        }
+        for (int i = 0; i < 10; i++) {
+            scheduler.offer(udp(41000, 443, 1400), i);
+            scheduler.offer(dscp(udp(42000, 443, 1400), 8), i);
+        }
+        int[] seen = new int[UplinkScheduler.CLASSES];
+        for (int i = 0; i < 2 * (UplinkScheduler.PRIORITY_BURST + 2); i++) {
+            seen[UplinkScheduler.classify(scheduler.poll(0))]++;
+        }
+        assertEquals(2, seen[UplinkScheduler.CLASS_DEFAULT]);
+        assertEquals(2, seen[UplinkScheduler.CLASS_BACKGROUND]);
+    }
+
+    @Test
+    public void testPollWaitsForPackets() throws Exception {
+        TunnelMetrics metrics = new TunnelMetrics();
+        UplinkScheduler scheduler = new UplinkScheduler(8, QUANTUM, metrics);
+        long start = System.nanoTime();
+        assertNull(scheduler.poll(50));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+
+        ByteBuffer packet = udp(40000, 443, 100);
+        Thread offer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            scheduler.offer(packet, System.nanoTime());
+        });
+        offer.start();
+        assertSame(packet, scheduler.poll(5000));
+        offer.join();
+        assertEquals(1, metrics.uplinkQueueMicros[UplinkScheduler.CLASS_DEFAULT].count());
+
+        scheduler.offer(packet, 0);
+        scheduler.close();
+        // queued packets outlive close
+        assertSame(packet, scheduler.poll(5000));
+        start = System.nanoTime();
+        assertNull(scheduler.poll(5000));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+}
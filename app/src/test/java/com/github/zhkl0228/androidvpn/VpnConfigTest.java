@@ -0,0 +1,210 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class VpnConfigTest {
+
+    private static byte[] text(int size) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < size; i++) {
+            builder.append("rule").append(i % 100).append("=DIRECT,example").append(i).append(".com\n");
+        }
+        return builder.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static DataInputStream input(ByteArrayOutputStream baos) {
+        return new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    }
+
+    private static VpnConfig roundTrip(VpnConfig config) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(baos);
+        config.writeOffer(output, "{\"locale\":\"en_US\"}");
+        config.writeData(output);
+        DataInputStream input = input(baos);
+        VpnConfig.Offer offer = VpnConfig.readOffer(input);
+        assertArrayEquals(config.hash, offer.hash);
+        assertEquals("{\"locale\":\"en_US\"}", offer.header);
+        VpnConfig read = VpnConfig.readData(input, offer);
+        assertEquals(-1, input.read());
+        return read;
+    }
+
+    @Test
+    public void testHash() {
+        VpnConfig config = new VpnConfig("abc".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", config.getHashHex());
+        assertEquals(VpnConfig.HASH_SIZE, config.hash.length);
+    }
+
+    @Test
+    public void testCompressedRoundTripInChunks() throws IOException {
+        byte[] data = text(200 * 1024);
+        VpnConfig config = new VpnConfig(data);
+        assertTrue(config.getEncodedSize() < data.length / 4);
+        assertArrayEquals(data, roundTrip(config).data);
+    }
+
+    @Test
+    public void testIncompressibleIsStored() throws IOException {
+        byte[] data = new byte[3 * VpnConfig.CHUNK_SIZE + 17];
+        new Random(1).nextBytes(data);
+        VpnConfig config = new VpnConfig(data);
+        assertEquals(data.length, config.getEncodedSize());
+        assertArrayEquals(data, roundTrip(config).data);
+        assertArrayEquals(new byte[0], roundTrip(new VpnConfig(new byte[0])).data);
+    }
+
+    @Test
+    public void testReply() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(baos);
+        VpnConfig.writeReply(output, true);
+        VpnConfig.writeReply(output, false);
+        output.writeByte(7);
+        DataInputStream input = input(baos);
+        assertTrue(VpnConfig.readReply(input));
+        assertFalse(VpnConfig.readReply(input));
+        try {
+            VpnConfig.readReply(input);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testHashMismatchIsRejected() throws IOException {
+        VpnConfig offered = new VpnConfig(text(1000));
+        VpnConfig sent = new VpnConfig(text(999));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(baos);
+        offered.writeOffer(output, "{}");
+        sent.writeData(output);
+        DataInputStream input = input(baos);
+        VpnConfig.Offer offer = VpnConfig.readOffer(input);
+        try {
+            VpnConfig.readData(input, offer);
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("config hash mismatch"));
+        }
+    }
+
+    @Test
+    public void testTruncatedDataIsRejected() throws IOException {
+        VpnConfig config = new VpnConfig(text(100 * 1024));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(baos);
+        config.writeOffer(output, "{}");
+        config.writeData(output);
+        byte[] bytes = baos.toByteArray();
+        // cut the last data chunk short and end the chunks there
+        byte[] truncated = new byte[bytes.length - 10];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length - 2);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(truncated));
+        VpnConfig.Offer offer = VpnConfig.readOffer(input);
+        try {
+            VpnConfig.readData(input, offer);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * @return true if the server asked for the config.
+     */
+    private static boolean offer(StandInServer server, VpnConfig config) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            socket.setSoTimeout(5000);
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            output.writeByte(0x02);
+            config.writeOffer(output, "{}");
+            output.flush();
+            boolean send = VpnConfig.readReply(new DataInputStream(socket.getInputStream()));
+            if (send) {
+                config.writeData(output);
+                output.flush();
+            }
+            return send;
+        }
+    }
+
+    @Test
+    public void testServerAsksOnlyForUnknownConfigs() throws Exception {
+        try (StandInServer server = new StandInServer(null, (byte) 0xe, 1500)) {
+            VpnConfig config = new VpnConfig(text(100 * 1024));
+            assertTrue(offer(server, config));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.getConfigUploads() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertArrayEquals(config.data, server.getConfig(config.getHashHex()).data);
+
+            assertFalse(offer(server, new VpnConfig(text(100 * 1024))));
+            assertTrue(offer(server, new VpnConfig(text(100 * 1024 + 1))));
+        }
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(data);
+        }
+    }
+
+    @Test
+    public void testCacheReadsOncePerChange() throws IOException {
+        File file = File.createTempFile("vpn_config", ".txt");
+        try {
+            FileCache<VpnConfig> cache = VpnConfig.newCache();
+            write(file, text(5000));
+            VpnConfig first = cache.get(file);
+            assertSame(first, cache.get(file));
+            assertEquals(1, cache.getLoads());
+
+            write(file, text(6000));
+            assertTrue(file.setLastModified(file.lastModified() + 2000));
+            VpnConfig second = cache.get(file);
+            assertNotSame(first, second);
+            assertArrayEquals(text(6000), second.data);
+            assertEquals(2, cache.getLoads());
+
+            assertTrue(file.delete());
+            assertNull(cache.get(file));
+            assertNull(cache.get(null));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testInlineLimit() throws IOException {
+        char[] json = new char[VpnConfig.MAX_INLINE_SIZE];
+        Arrays.fill(json, 'a');
+        assertTrue(VpnConfig.fitsInline(new String(json)));
+        assertFalse(VpnConfig.fitsInline(new String(json) + "a"));
+        json[0] = '\u0800';
+        assertFalse("three bytes of modified UTF-8", VpnConfig.fitsInline(new String(json)));
+        json[0] = 0;
+        assertFalse("NUL takes two", VpnConfig.fitsInline(new String(json)));
+
+        // whatever fits is what writeUTF accepts
+        String fits = new String(json, 1, json.length - 1);
+        assertTrue(VpnConfig.fitsInline(fits));
+        new DataOutputStream(new ByteArrayOutputStream()).writeUTF(fits);
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Compares every benchmark's current path with its baseline in a JMH CSV result and fails when the speedup
+ * drops below the minimum recorded for the benchmark. Ratios of two runs on the same box hold across
+ * machines where absolute scores do not. It also prints the minimums this result suggests, {@value #FLOOR}
+ * of the smallest speedup per benchmark, which is how regression.properties is meant to be refreshed.
+ * <pre>
+ * BenchmarkRegressionCheck results.csv regression.properties
+ * </pre>
+ */
+public final class BenchmarkRegressionCheck {
+
+    /**
+     * Share of the smallest measured speedup a suggested minimum keeps, room for run to run noise.
+     */
+    static final double FLOOR = 0.7;
+
+    private BenchmarkRegressionCheck() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: BenchmarkRegressionCheck results.csv regression.properties");
+            System.exit(2);
+        }
+        Properties minimums = new Properties();
+        try (InputStream inputStream = new FileInputStream(args[1])) {
+            minimums.load(inputStream);
+        }
+        List<String> failures = check(Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8), minimums);
+        for (String failure : failures) {
+            System.err.println("REGRESSION " + failure);
+        }
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return one line per benchmark that fell below its minimum speedup, empty if none did.
+     */
+    static List<String> check(List<String> csv, Properties minimums) {
+        List<String> header = parseLine(csv.get(0));
+        int benchmarkColumn = header.indexOf("Benchmark");
+        int scoreColumn = header.indexOf("Score");
+        int modeColumn = header.indexOf("Param: mode");
+        if (benchmarkColumn < 0 || scoreColumn < 0 || modeColumn < 0) {
+            throw new IllegalArgumentException("not a JMH CSV result with a mode parameter: " + header);
+        }
+        Map<String, double[]> scores = new TreeMap<>();
+        for (String line : csv.subList(1, csv.size())) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            List<String> row = parseLine(line);
+            StringBuilder key = new StringBuilder(simpleName(row.get(benchmarkColumn)));
+            for (int i = 0; i < header.size(); i++) {
+                if (i != modeColumn && header.get(i).startsWith("Param: ")) {
+                    key.append(' ').append(header.get(i).substring(7)).append('=').append(row.get(i));
+                }
+            }
+            double[] pair = scores.computeIfAbsent(key.toString(), k -> new double[2]);
+            pair["baseline".equals(row.get(modeColumn)) ? 0 : 1] = Double.parseDouble(row.get(scoreColumn));
+        }
+
+        List<String> failures = new ArrayList<>();
+        Map<String, Double> smallest = new TreeMap<>();
+        for (Map.Entry<String, double[]> entry : scores.entrySet()) {
+            String key = entry.getKey();
+            double[] pair = entry.getValue();
+            if (pair[0] <= 0 || pair[1] <= 0) {
+                continue;
+            }
+            double speedup = pair[1] / pair[0];
+            String benchmark = key.split(" ", 2)[0];
+            smallest.merge(benchmark, speedup, Math::min);
+            String minimum = minimums.getProperty(benchmark);
+            String line = String.format(Locale.ROOT, "%-60s %8.2fx", key, speedup);
+            if (minimum != null && speedup < Double.parseDouble(minimum)) {
+                failures.add(line + " < " + minimum + "x");
+            }
+            System.out.println(line + (minimum == null ? "" : " (min " + minimum + "x)"));
+        }
+        System.out.println("# suggested minimums");
+        for (Map.Entry<String, Double> entry : smallest.entrySet()) {
+            System.out.println(entry.getKey() + "=" + suggestMinimum(entry.getValue()));
+        }
+        return failures;
+    }
+
+    /**
+     * @return {@link #FLOOR} of {@code speedup}, rounded down to two significant digits.
+     */
+    static String suggestMinimum(double speedup) {
+        return new BigDecimal(speedup * FLOOR).round(new MathContext(2, RoundingMode.DOWN)).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * @return {@code Class.method} of a fully qualified benchmark name.
+     */
+    private static String simpleName(String benchmark) {
+        int method = benchmark.lastIndexOf('.');
+        return benchmark.substring(benchmark.lastIndexOf('.', method - 1) + 1);
+    }
+
+    private static List<String> parseLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
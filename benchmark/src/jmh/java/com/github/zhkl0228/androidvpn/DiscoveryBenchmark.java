@@ -0,0 +1,153 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owner discovery for a burst of new flows, one operation answers all of them. The baseline is one
+ * {@code 0x1} query per flow parsed with {@link DataInputStream}, and one reply per flow encoding its packages
+ * anew as {@code responseForPackages} did before {@link PackageCache}. The current path is a single
+ * {@link DiscoveryBatch} query and the cached encoding packed into as few replies as fit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DiscoveryBenchmark {
+
+    private static final int IPPROTO_TCP = 6;
+
+    @Param({"baseline", "current"})
+    public String mode;
+
+    @Param({"1", "16", "64"})
+    public int flows;
+
+    private boolean baseline;
+    private byte[][] singleQueries;
+    private byte[] batchQuery;
+    private List<DiscoveryBatch.Flow> parsedFlows;
+    private List<List<Package>> packages;
+    private byte[][] encodedPackages;
+
+    @Setup
+    public void setUp() throws IOException {
+        baseline = "baseline".equals(mode);
+        Random random = new Random(flows);
+        singleQueries = new byte[flows][];
+        ByteBuffer batch = ByteBuffer.allocate(2 + flows * 14);
+        batch.put((byte) DiscoveryBatch.TYPE_QUERY);
+        batch.put((byte) flows);
+        packages = new ArrayList<>(flows);
+        encodedPackages = new byte[flows][];
+        for (int i = 0; i < flows; i++) {
+            byte[] local = {10, 1, (byte) (i >> 8), (byte) i};
+            byte[] remote = new byte[4];
+            random.nextBytes(remote);
+            int localPort = 40000 + i;
+            int remotePort = 443;
+
+            ByteArrayOutputStream single = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(single);
+            output.writeByte(0x1);
+            output.writeByte(IPPROTO_TCP);
+            output.writeUTF(IPUtil.toString(ByteBuffer.wrap(local).getInt()));
+            output.writeShort(localPort);
+            output.writeUTF(IPUtil.toString(ByteBuffer.wrap(remote).getInt()));
+            output.writeShort(remotePort);
+            singleQueries[i] = single.toByteArray();
+
+            batch.put((byte) IPPROTO_TCP).put((byte) 4);
+            batch.put(local).putShort((short) localPort);
+            batch.put(remote).putShort((short) remotePort);
+
+            List<Package> owner = Collections.singletonList(new Package("com.example.app" + i, "Example App " + i, 100 + i));
+            packages.add(owner);
+            encodedPackages[i] = Package.encode(owner);
+        }
+        batchQuery = batch.array();
+        parsedFlows = DiscoveryBatch.parseQuery(batchQuery, 0, batchQuery.length);
+
+        long singleIds = 0;
+        for (byte[] query : singleQueries) {
+            singleIds += parseSingle(query);
+        }
+        long batchIds = 0;
+        for (DiscoveryBatch.Flow flow : parsedFlows) {
+            batchIds += flow.id;
+        }
+        if (singleIds != batchIds) {
+            throw new IllegalStateException("batch ids differ from single query ids");
+        }
+    }
+
+    /**
+     * The {@code 0x1} branch of {@code ApplicationDiscoverServer.handle}.
+     *
+     * @return the id the reply is sent with.
+     */
+    private static int parseSingle(byte[] query) throws IOException {
+        DataInput dataInput = new DataInputStream(new ByteArrayInputStream(query));
+        int type = dataInput.readUnsignedByte();
+        if (type != 0x1) {
+            throw new IllegalStateException("type=" + type);
+        }
+        int protocol = dataInput.readUnsignedByte();
+        String saddr = dataInput.readUTF();
+        int sport = dataInput.readUnsignedShort();
+        String daddr = dataInput.readUTF();
+        int dport = dataInput.readUnsignedShort();
+        InetSocketAddress local = new InetSocketAddress(saddr, sport);
+        InetSocketAddress remote = new InetSocketAddress(daddr, dport);
+        return DiscoveryBatch.id(protocol, saddr, local.getPort(), daddr, remote.getPort());
+    }
+
+    @Benchmark
+    public long parse() throws IOException {
+        long ids = 0;
+        if (baseline) {
+            for (byte[] query : singleQueries) {
+                ids += parseSingle(query);
+            }
+        } else {
+            for (DiscoveryBatch.Flow flow : DiscoveryBatch.parseQuery(batchQuery, 0, batchQuery.length)) {
+                ids += flow.id;
+            }
+        }
+        return ids;
+    }
+
+    @Benchmark
+    public long reply() {
+        long bytes = 0;
+        if (baseline) {
+            for (int i = 0; i < flows; i++) {
+                bytes += DiscoveryBatch.encodeSingleReply(parsedFlows.get(i).id, Package.encode(packages.get(i))).length;
+            }
+        } else {
+            for (byte[] reply : DiscoveryBatch.encodeReplies(parsedFlows, encodedPackages, DiscoveryBatch.MAX_REPLY_SIZE)) {
+                bytes += reply.length;
+            }
+        }
+        return bytes;
+    }
+}
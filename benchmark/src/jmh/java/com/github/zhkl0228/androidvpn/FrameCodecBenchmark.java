@@ -0,0 +1,175 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Framing of a burst of packets, one operation is {@link #PACKETS} packets. The baseline is the loop
+ * {@code startNative} and {@code StreamForward} ran before batching: a {@code writeShort}, an in place mask
+ * and a flush per packet up, a {@code readUnsignedShort} and {@code readFully} per packet down.
+ * <p>
+ * The socket is an in memory stream, so a write or read costs a copy here and a system call on a device.
+ * Fewer calls are the larger part of the gain, {@code socketCalls} is returned to show them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FrameCodecBenchmark {
+
+    private static final byte MAGIC = 0xe;
+    private static final int MTU = 10000;
+    private static final int PACKETS = 64;
+
+    /**
+     * A socket read rarely returns more than a few segments.
+     */
+    private static final int READ_SIZE = 16 * 1024;
+
+    @Param({"baseline", "current"})
+    public String mode;
+
+    @Param({"64", "1400"})
+    public int packetSize;
+
+    private boolean baseline;
+    private byte[][] packets;
+    private byte[] packet;
+    private long checksum;
+
+    private CountingOutputStream uplink;
+    private DataOutputStream baselineOutput;
+    private FrameWriter writer;
+
+    private ChunkedInputStream downlink;
+    private DataInputStream baselineInput;
+    private FrameReader reader;
+    private final FrameReader.PacketHandler handler = (buffer, offset, length) -> checksum += buffer[offset];
+
+    @Setup
+    public void setUp() throws IOException {
+        baseline = "baseline".equals(mode);
+        Random random = new Random(packetSize);
+        packets = new byte[PACKETS][packetSize];
+        for (byte[] packet : packets) {
+            random.nextBytes(packet);
+        }
+        packet = new byte[MTU];
+
+        uplink = new CountingOutputStream();
+        baselineOutput = new DataOutputStream(uplink);
+        writer = new FrameWriter(uplink, MAGIC, MTU);
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        FrameWriter encoder = new FrameWriter(encoded, MAGIC, MTU);
+        for (byte[] packet : packets) {
+            encoder.writeFrame(packet, 0, packet.length);
+        }
+        encoder.flush();
+        downlink = new ChunkedInputStream(encoded.toByteArray(), READ_SIZE);
+        baselineInput = new DataInputStream(downlink);
+        reader = new FrameReader(downlink, MAGIC, MTU);
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        if (baseline) {
+            for (byte[] packet : packets) {
+                baselineOutput.writeShort(packet.length);
+                for (int i = 0; i < packet.length; i++) {
+                    packet[i] ^= MAGIC;
+                }
+                baselineOutput.write(packet, 0, packet.length);
+                uplink.flush();
+            }
+        } else {
+            for (byte[] packet : packets) {
+                writer.writeFrame(packet, 0, packet.length);
+            }
+            writer.flush();
+        }
+        return uplink.socketCalls;
+    }
+
+    @Benchmark
+    public long decode() throws IOException {
+        downlink.rewind();
+        if (baseline) {
+            for (int n = 0; n < PACKETS; n++) {
+                int length = baselineInput.readUnsignedShort();
+                baselineInput.readFully(packet, 0, length);
+                for (int i = 0; i < length; i++) {
+                    packet[i] ^= MAGIC;
+                }
+                handler.onPacket(packet, 0, length);
+            }
+        } else {
+            while (reader.read(handler) != -1) {
+                checksum++;
+            }
+        }
+        return checksum + downlink.socketCalls;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long socketCalls;
+
+        @Override
+        public void write(int b) {
+            socketCalls++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            socketCalls++;
+        }
+    }
+
+    private static final class ChunkedInputStream extends InputStream {
+        private final byte[] data;
+        private final int chunk;
+        private int position;
+        long socketCalls;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        void rewind() {
+            position = 0;
+        }
+
+        @Override
+        public int read() {
+            socketCalls++;
+            return position < data.length ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            socketCalls++;
+            if (position == data.length) {
+                return -1;
+            }
+            int read = Math.min(Math.min(len, chunk), data.length - position);
+            System.arraycopy(data, position, b, off, read);
+            position += read;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.zhkl0228.androidvpn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route planning of {@code getBuilder}, against {@link LegacyRoutes}: {@link #routes()} for the whole
+ * exclusion list, {@link #toCIDR()} for splitting one awkward range. Both sides produce the route strings
+ * handed to {@code addRoute}, and setup checks that they produce the same ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RoutePlanBenchmark {
+
+    /**
+     * 10.0.0.1...223.255.255.254, unaligned at both ends.
+     */
+    private static final long FROM = 0x0A000001L;
+    private static final long TO = 0xDFFFFFFEL;
+
+    @Param({"baseline", "current"})
+    public String mode;
+
+    private boolean baseline;
+    private List<IPUtil.CIDR> exclusions;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        baseline = "baseline".equals(mode);
+        exclusions = new ArrayList<>(Arrays.asList(
+                new IPUtil.CIDR("192.168.1.10", 32), // vpn host
+                new IPUtil.CIDR("8.8.8.8", 24),
+                new IPUtil.CIDR("127.0.0.0", 8),
+                new IPUtil.CIDR("192.168.42.0", 23),
+                new IPUtil.CIDR("192.168.49.0", 24),
+                new IPUtil.CIDR("172.16.5.0", 24), // wlan0
+                new IPUtil.CIDR("66.174.0.0", 16),
+                new IPUtil.CIDR("66.82.0.0", 15),
+                new IPUtil.CIDR("69.96.0.0", 13),
+                new IPUtil.CIDR("70.192.0.0", 11),
+                new IPUtil.CIDR("97.128.0.0", 9),
+                new IPUtil.CIDR("174.192.0.0", 9),
+                new IPUtil.CIDR("72.96.0.0", 9),
+                new IPUtil.CIDR("75.192.0.0", 9),
+                new IPUtil.CIDR("97.0.0.0", 10),
+                new IPUtil.CIDR("224.0.0.0", 3)));
+        if (!LegacyRoutes.routes(exclusions, true).equals(plan(exclusions))) {
+            throw new IllegalStateException("routes differ from the legacy planner");
+        }
+        if (!LegacyRoutes.toCIDR(FROM, TO).equals(split(FROM, TO))) {
+            throw new IllegalStateException("ranges differ from the legacy split");
+        }
+    }
+
+    /**
+     * As {@code getBuilder} plans them.
+     */
+    private static List<String> plan(List<IPUtil.CIDR> exclusions) {
+        IPUtil.RangeSet routes = new IPUtil.RangeSet(exclusions.size() + 1);
+        for (IPUtil.CIDR exclude : exclusions) {
+            routes.add(exclude);
+        }
+        routes.complement();
+        routes.addCIDR(0xE0000000, 3);
+        List<String> result = new ArrayList<>();
+        routes.forEachCIDR((address, prefix) -> result.add(IPUtil.toString(address) + "/" + prefix));
+        return result;
+    }
+
+    private static List<String> split(long from, long to) {
+        List<String> result = new ArrayList<>();
+        IPUtil.forEachCIDR(from, to, (address, prefix) -> result.add(IPUtil.toString(address) + "/" + prefix));
+        return result;
+    }
+
+    @Benchmark
+    public List<String> routes() throws UnknownHostException {
+        return baseline ? LegacyRoutes.routes(exclusions, true) : plan(exclusions);
+    }
+
+    @Benchmark
+    public List<String> toCIDR() {
+        return baseline ? LegacyRoutes.toCIDR(FROM, TO) : split(FROM, TO);
+    }
+}
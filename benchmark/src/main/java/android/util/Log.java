@@ -0,0 +1,47 @@
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * The part of the Android logger the app sources built here call, printing warnings and errors to stderr.
+ * Debug and info lines only show with {@code -Dandroid.util.Log.debug=true}.
+ */
+public final class Log {
+
+    private static final boolean DEBUG = Boolean.getBoolean("android.util.Log.debug");
+
+    private Log() {
+    }
+
+    private static int println(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg + (tr == null ? "" : "\n" + getStackTraceString(tr)));
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return DEBUG ? println("D", tag, msg, null) : 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return DEBUG ? println("I", tag, msg, null) : 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println("W", tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg, null);
+    }
+
+    public static String getStackTraceString(Throwable tr) {
+        StringWriter writer = new StringWriter();
+        tr.printStackTrace(new PrintWriter(writer, true));
+        return writer.toString();
+    }
+}
@@ -0,0 +1,358 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End to end load test of {@link TunnelCore} over loopback: a {@link StandInServer} reflects every packet,
+ * so each one crosses the uplink and the downlink once. Packets are IPv4/UDP of a size mix, spread over
+ * a number of flows, and carry their send time back to the harness, which reports packets/s and Gbit/s
+ * per direction and percentiles of the per packet round trip.
+ * <pre>
+ * LoadHarness [--seconds 10] [--warmup 2] [--stripes 1] [--mix small|imix|large] [--flows 64]
+ *             [--device pipe|datagram] [--queue 256] [--rate 0] [--stall 0] [--compression] [--ping]
+ * </pre>
+ * {@code --device pipe} hands packets over in memory, {@code datagram} through a loopback datagram socket
+ * pair, the closest a plain JVM gets to a tun fd. {@code --rate} paces the sender in packets/s, 0 sends as
+ * fast as the tunnel takes them. {@code --stall} is the probability of a {@value #STALL_MILLIS}ms stall the
+ * server takes before a packet, a retransmission timeout costing only the connection it hits; compare the
+ * goodput of {@code --stripes 1} and {@code 4} under it.
+ */
+public final class LoadHarness {
+
+    private static final byte MAGIC = 0xe;
+    private static final int MTU = 10000;
+
+    private static final int IP_HEADER = 20;
+    private static final int UDP_HEADER = 8;
+    /**
+     * {@code [u32 flow][u32 sequence][u64 send nanos]} right behind the udp header.
+     */
+    private static final int STAMP = IP_HEADER + UDP_HEADER;
+    private static final int STAMP_SIZE = 16;
+
+    /**
+     * Round trips kept for the percentiles, later packets are counted but not sampled.
+     */
+    private static final int MAX_SAMPLES = 1 << 22;
+
+    private static final long STALL_MILLIS = 5;
+
+    enum Mix {
+        small(64),
+        /**
+         * The classic 7:4:1 internet mix, with 64 instead of 40 byte packets so the small ones have room
+         * for the stamp.
+         */
+        imix(64, 64, 64, 64, 64, 64, 64, 576, 576, 576, 576, 1500),
+        large(1500);
+
+        final int[] sizes;
+
+        Mix(int... sizes) {
+            this.sizes = sizes;
+        }
+    }
+
+    private int seconds = 10;
+    private int warmupSeconds = 2;
+    private int stripes = 1;
+    private Mix mix = Mix.imix;
+    private int flows = 64;
+    private String device = "pipe";
+    private int queue = 256;
+    private int rate;
+    private boolean compression;
+    private boolean ping;
+    private double stall;
+
+    private volatile long measureStart = Long.MAX_VALUE;
+    private volatile long measureEnd = Long.MAX_VALUE;
+    private final LongAdder offered = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder uplink = new LongAdder();
+    private final LongAdder uplinkBytes = new LongAdder();
+    private final LongAdder downlink = new LongAdder();
+    private final LongAdder downlinkBytes = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final long[] samples = new long[MAX_SAMPLES];
+    private final AtomicInteger sampleCount = new AtomicInteger();
+
+    private LoadHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadHarness harness = new LoadHarness();
+        harness.parse(args);
+        harness.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--compression":
+                    compression = true;
+                    continue;
+                case "--ping":
+                    ping = true;
+                    continue;
+                default:
+                    break;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value of " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--seconds":
+                    seconds = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "--stripes":
+                    stripes = Integer.parseInt(value);
+                    break;
+                case "--mix":
+                    mix = Mix.valueOf(value);
+                    break;
+                case "--flows":
+                    flows = Integer.parseInt(value);
+                    break;
+                case "--device":
+                    device = value;
+                    break;
+                case "--queue":
+                    queue = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    rate = Integer.parseInt(value);
+                    break;
+                case "--stall":
+                    stall = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (seconds <= 0 || warmupSeconds < 0 || stripes < 1 || flows < 1 || flows > 0xffff || queue < 1 || rate < 0 || stall < 0 || stall > 1) {
+            throw new IllegalArgumentException("seconds=" + seconds + ", warmup=" + warmupSeconds + ", stripes=" + stripes + ", flows=" + flows +
+                    ", queue=" + queue + ", rate=" + rate + ", stall=" + stall);
+        }
+    }
+
+    /**
+     * IPv4/UDP from 10.1.x.y:(40000 + flow) to 10.2.0.1:9, checksums left zero as nothing verifies them.
+     */
+    private static byte[] template(int flow, int size) {
+        ByteBuffer packet = ByteBuffer.allocate(size);
+        packet.put((byte) 0x45).put((byte) 0).putShort((short) size);
+        packet.putInt(0);
+        packet.put((byte) 64).put((byte) 17).putShort((short) 0);
+        packet.put((byte) 10).put((byte) 1).put((byte) (flow >>> 8)).put((byte) flow);
+        packet.put((byte) 10).put((byte) 2).put((byte) 0).put((byte) 1);
+        packet.putShort((short) (40000 + flow)).putShort((short) 9).putShort((short) (size - IP_HEADER)).putShort((short) 0);
+        return packet.array();
+    }
+
+    /**
+     * Counts one packet that came back, if it was sent inside the measured window.
+     */
+    private void onReceived(ByteBuffer packet) {
+        int length = packet.remaining();
+        if (length < STAMP + STAMP_SIZE) {
+            return;
+        }
+        long now = System.nanoTime();
+        long sentAt = packet.getLong(packet.position() + STAMP + 8);
+        received.increment();
+        if (sentAt < measureStart || sentAt >= measureEnd) {
+            return;
+        }
+        downlink.increment();
+        downlinkBytes.add(length);
+        int sample = sampleCount.getAndIncrement();
+        if (sample < MAX_SAMPLES) {
+            samples[sample] = now - sentAt;
+        }
+    }
+
+    private void run() throws Exception {
+        TunnelMetrics metrics = new TunnelMetrics();
+        StandInServer.Listener listener = (connection, buffer, offset, length) -> {
+            if (length >= STAMP + STAMP_SIZE) {
+                long sentAt = ByteBuffer.wrap(buffer, offset, length).getLong(offset + STAMP + 8);
+                if (sentAt >= measureStart && sentAt < measureEnd) {
+                    uplink.increment();
+                    uplinkBytes.add(length);
+                }
+            }
+        };
+        try (StandInServer server = new StandInServer(listener, MAGIC, MTU)) {
+            server.setReflect(true);
+            server.setStall(stall, STALL_MILLIS);
+
+            PacketPipe pipe = null;
+            DatagramChannel apps = null;
+            TunDevice tun;
+            if ("pipe".equals(device)) {
+                pipe = new PacketPipe(queue, this::onReceived);
+                tun = pipe;
+            } else if ("datagram".equals(device)) {
+                InetAddress loopback = InetAddress.getLoopbackAddress();
+                apps = DatagramChannel.open();
+                DatagramChannel channel = DatagramChannel.open();
+                for (DatagramChannel end : new DatagramChannel[]{apps, channel}) {
+                    end.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+                    end.setOption(StandardSocketOptions.SO_SNDBUF, 4 << 20);
+                    end.bind(new InetSocketAddress(loopback, 0));
+                }
+                apps.connect(channel.getLocalAddress());
+                channel.connect(apps.getLocalAddress());
+                tun = new DatagramTunDevice(channel);
+            } else {
+                throw new IllegalArgumentException("device=" + device);
+            }
+
+            TunnelCore core = new TunnelCore(tun, MAGIC, MTU, new PacketBufferPool(MTU, 64), metrics);
+            // compression is a feature of the extended handshake, proposed alone so nothing else changes
+            int osType = (compression ? 0x10 : 0) | (ping ? 0x04 : 0);
+            for (int i = 0; i < stripes; i++) {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                socket.setTcpNoDelay(true);
+                socket.getOutputStream().write(osType);
+                TunnelParameters parameters = null;
+                if (compression) {
+                    parameters = new TunnelParameters(TunnelParameters.VERSION, MTU, 256 * 1024, TunnelParameters.FEATURE_COMPRESSION).negotiate(socket, 5000);
+                }
+                core.addStripe(socket, parameters, parameters != null && parameters.compression(), ping ? new TunnelHealth(1000, System.nanoTime()) : null);
+            }
+            Thread engine = new Thread(() -> {
+                try {
+                    core.run(null);
+                } catch (IOException ignored) {
+                }
+            }, "Tunnel core");
+            engine.start();
+
+            Thread appReader = null;
+            if (apps != null) {
+                DatagramChannel channel = apps;
+                appReader = new Thread(() -> {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(MTU);
+                    try {
+                        while (true) {
+                            buffer.clear();
+                            channel.read(buffer);
+                            buffer.flip();
+                            onReceived(buffer);
+                        }
+                    } catch (IOException ignored) {
+                    }
+                }, "Datagram apps");
+                appReader.setDaemon(true);
+                appReader.start();
+            }
+
+            long start = System.nanoTime();
+            measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            measureEnd = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+            send(pipe, apps);
+
+            // let the packets in flight come back before the tunnel goes down
+            long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (received.sum() < offered.sum() && System.nanoTime() < drainDeadline) {
+                Thread.sleep(10);
+            }
+            core.close();
+            tun.close();
+            if (apps != null) {
+                apps.close();
+            }
+            engine.join(5000);
+            report(metrics);
+        }
+    }
+
+    private void send(PacketPipe pipe, DatagramChannel apps) throws IOException, InterruptedException {
+        int[] sizes = mix.sizes;
+        byte[][][] templates = new byte[flows][sizes.length][];
+        for (int flow = 0; flow < flows; flow++) {
+            for (int i = 0; i < sizes.length; i++) {
+                templates[flow][i] = template(flow, sizes[i]);
+            }
+        }
+        long intervalNanos = rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / rate;
+        long next = System.nanoTime();
+        int[] sequence = new int[flows];
+        for (long n = 0; ; n++) {
+            long now = System.nanoTime();
+            if (now >= measureEnd) {
+                break;
+            }
+            if (intervalNanos > 0) {
+                next += intervalNanos;
+                if (next > now) {
+                    LockSupport.parkNanos(next - now);
+                    now = System.nanoTime();
+                }
+            }
+            int flow = (int) (n % flows);
+            byte[] packet = templates[flow][(int) (n / flows % sizes.length)].clone();
+            ByteBuffer.wrap(packet, STAMP, STAMP_SIZE).putInt(flow).putInt(sequence[flow]++).putLong(now);
+            if (pipe != null) {
+                while (!pipe.offer(packet, 1, TimeUnit.SECONDS)) {
+                    if (System.nanoTime() >= measureEnd) {
+                        return;
+                    }
+                }
+            } else {
+                apps.write(ByteBuffer.wrap(packet));
+            }
+            offered.increment();
+            if (now >= measureStart) {
+                sent.increment();
+                sentBytes.add(packet.length);
+            }
+        }
+    }
+
+    private void report(TunnelMetrics metrics) {
+        double elapsed = seconds;
+        int count = Math.min(sampleCount.get(), MAX_SAMPLES);
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        PrintWriter out = new PrintWriter(System.out, true);
+        out.printf(Locale.ROOT, "device=%s stripes=%d mix=%s flows=%d compression=%s ping=%s rate=%s stall=%s seconds=%d%n", device, stripes, mix,
+                flows, compression, ping, rate == 0 ? "max" : rate + "/s", stall, seconds);
+        out.printf(Locale.ROOT, "sent:     %12.0f packets/s %8.3f Gbit/s%n", sent.sum() / elapsed, sentBytes.sum() * 8 / elapsed / 1e9);
+        out.printf(Locale.ROOT, "uplink:   %12.0f packets/s %8.3f Gbit/s%n", uplink.sum() / elapsed, uplinkBytes.sum() * 8 / elapsed / 1e9);
+        out.printf(Locale.ROOT, "downlink: %12.0f packets/s %8.3f Gbit/s%n", downlink.sum() / elapsed, downlinkBytes.sum() * 8 / elapsed / 1e9);
+        out.printf(Locale.ROOT, "lost:     %d of %d%n", Math.max(0, sent.sum() - downlink.sum()), sent.sum());
+        if (count > 0) {
+            out.printf(Locale.ROOT, "round trip us: p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f (%d samples)%n", percentile(sorted, 0.5) / 1e3,
+                    percentile(sorted, 0.9) / 1e3, percentile(sorted, 0.99) / 1e3, percentile(sorted, 0.999) / 1e3, sorted[count - 1] / 1e3, count);
+        }
+        out.println("-- tunnel metrics, warmup included --");
+        metrics.dump(out);
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}
@@ -0,0 +1,290 @@
+package com.github.zhkl0228.androidvpn;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Uplink latency of a small-packet flow through {@link TunnelCore}, alone and next to bulk flows, with the
+ * uplink in arrival order and through an {@link UplinkScheduler}. A {@link StandInServer} reads the tunnel
+ * at a fixed rate, the bottleneck link the uplink queues up in front of, and timestamps every probe packet
+ * as it comes out of the tunnel.
+ * <pre>
+ * UplinkLatencyHarness [--seconds 5] [--link-mbit 50] [--bulk-flows 4] [--probe-interval-us 1000]
+ *                      [--send-buffer 32768] [--scheduler-packets 64] [--queue 1024]
+ * </pre>
+ * Bulk flows are 1400 byte UDP packets offered as fast as the tun takes them, the probe a 100 byte packet
+ * every interval. {@code --queue} is the depth of the in-memory tun, {@code --send-buffer} the SO_SNDBUF of
+ * the tunnel socket.
+ */
+public final class UplinkLatencyHarness {
+
+    private static final byte MAGIC = 0xe;
+    private static final int MTU = 1500;
+    /**
+     * Receive buffer of the stand-in server, small so the queue builds on the client side of the link.
+     */
+    private static final int RECEIVE_BUFFER = 16 * 1024;
+
+    private static final int IP_HEADER = 20;
+    private static final int UDP_HEADER = 8;
+    /**
+     * {@code [u32 flow][u32 sequence][u64 send nanos]} right behind the udp header.
+     */
+    private static final int STAMP = IP_HEADER + UDP_HEADER;
+    private static final int STAMP_SIZE = 16;
+    private static final int PROBE_FLOW = 0;
+    private static final int PROBE_SIZE = 100;
+    private static final int BULK_SIZE = 1400;
+    private static final int WARMUP_SECONDS = 1;
+
+    private int seconds = 5;
+    private int linkMbit = 50;
+    private int bulkFlows = 4;
+    private int probeIntervalMicros = 1000;
+    private int sendBuffer = 32 * 1024;
+    private int schedulerPackets = 64;
+    private int queue = 1024;
+
+    private UplinkLatencyHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        UplinkLatencyHarness harness = new UplinkLatencyHarness();
+        harness.parse(args);
+        harness.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value of " + arg);
+            }
+            int value = Integer.parseInt(args[++i]);
+            switch (arg) {
+                case "--seconds":
+                    seconds = value;
+                    break;
+                case "--link-mbit":
+                    linkMbit = value;
+                    break;
+                case "--bulk-flows":
+                    bulkFlows = value;
+                    break;
+                case "--probe-interval-us":
+                    probeIntervalMicros = value;
+                    break;
+                case "--send-buffer":
+                    sendBuffer = value;
+                    break;
+                case "--scheduler-packets":
+                    schedulerPackets = value;
+                    break;
+                case "--queue":
+                    queue = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (seconds <= 0 || linkMbit <= 0 || bulkFlows < 1 || probeIntervalMicros <= 0 || sendBuffer < 0 || schedulerPackets < 1 || queue < 1) {
+            throw new IllegalArgumentException("seconds=" + seconds + ", linkMbit=" + linkMbit + ", bulkFlows=" + bulkFlows +
+                    ", probeIntervalMicros=" + probeIntervalMicros + ", sendBuffer=" + sendBuffer + ", schedulerPackets=" + schedulerPackets +
+                    ", queue=" + queue);
+        }
+    }
+
+    /**
+     * One run of the tunnel, and what the server saw of it.
+     */
+    private final class Scenario {
+        final boolean scheduled;
+        final int bulk;
+        final TunnelMetrics metrics = new TunnelMetrics();
+        final long[] samples;
+        final AtomicInteger sampleCount = new AtomicInteger();
+        final LongAdder probesSent = new LongAdder();
+        final LongAdder bulkBytes = new LongAdder();
+        volatile long measureStart = Long.MAX_VALUE;
+        volatile long measureEnd = Long.MAX_VALUE;
+        volatile boolean stopped;
+
+        Scenario(boolean scheduled, int bulk) {
+            this.scheduled = scheduled;
+            this.bulk = bulk;
+            this.samples = new long[(int) Math.min(1 << 22, TimeUnit.SECONDS.toMicros(seconds) / probeIntervalMicros + 16)];
+        }
+
+        void onPacket(byte[] buffer, int offset, int length) {
+            if (length < STAMP + STAMP_SIZE) {
+                return;
+            }
+            ByteBuffer packet = ByteBuffer.wrap(buffer, offset, length);
+            long now = System.nanoTime();
+            long sentAt = packet.getLong(offset + STAMP + 8);
+            if (sentAt < measureStart || sentAt >= measureEnd) {
+                return;
+            }
+            if (packet.getInt(offset + STAMP) == PROBE_FLOW) {
+                int sample = sampleCount.getAndIncrement();
+                if (sample < samples.length) {
+                    samples[sample] = now - sentAt;
+                }
+            } else {
+                bulkBytes.add(length);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        List<Scenario> scenarios = new ArrayList<>();
+        for (boolean scheduled : new boolean[]{false, true}) {
+            for (int bulk : new int[]{0, bulkFlows}) {
+                Scenario scenario = new Scenario(scheduled, bulk);
+                run(scenario);
+                scenarios.add(scenario);
+            }
+        }
+        report(scenarios);
+    }
+
+    /**
+     * IPv4/UDP from 10.1.x.y:(40000 + flow) to 10.2.0.1:9, checksums left zero as nothing verifies them.
+     */
+    private static byte[] template(int flow, int size) {
+        ByteBuffer packet = ByteBuffer.allocate(size);
+        packet.put((byte) 0x45).put((byte) 0).putShort((short) size);
+        packet.putInt(0);
+        packet.put((byte) 64).put((byte) 17).putShort((short) 0);
+        packet.put((byte) 10).put((byte) 1).put((byte) (flow >>> 8)).put((byte) flow);
+        packet.put((byte) 10).put((byte) 2).put((byte) 0).put((byte) 1);
+        packet.putShort((short) (40000 + flow)).putShort((short) 9).putShort((short) (size - IP_HEADER)).putShort((short) 0);
+        return packet.array();
+    }
+
+    private static byte[] stamp(byte[] template, int flow, int sequence, long nanos) {
+        byte[] packet = template.clone();
+        ByteBuffer.wrap(packet, STAMP, STAMP_SIZE).putInt(flow).putInt(sequence).putLong(nanos);
+        return packet;
+    }
+
+    private void run(Scenario scenario) throws Exception {
+        try (StandInServer server = new StandInServer((connection, buffer, offset, length) -> scenario.onPacket(buffer, offset, length), MAGIC, MTU, RECEIVE_BUFFER)) {
+            server.setReadRate(linkMbit * 1000000L / 8);
+            PacketPipe pipe = new PacketPipe(queue, packet -> {
+            });
+            TunnelCore core = new TunnelCore(pipe, MAGIC, MTU, new PacketBufferPool(MTU, 2 * schedulerPackets + 16), scenario.metrics);
+            if (scenario.scheduled) {
+                core.setUplinkScheduler(new UplinkScheduler(schedulerPackets, 1514, scenario.metrics));
+            }
+            Socket socket = new Socket();
+            if (sendBuffer > 0) {
+                socket.setSendBufferSize(sendBuffer);
+            }
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+            socket.setTcpNoDelay(true);
+            socket.getOutputStream().write(0);
+            core.addStripe(socket, null, false, null);
+            Thread engine = new Thread(() -> {
+                try {
+                    core.run(null);
+                } catch (IOException ignored) {
+                }
+            }, "Tunnel core");
+            engine.start();
+
+            long start = System.nanoTime();
+            scenario.measureStart = start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+            scenario.measureEnd = scenario.measureStart + TimeUnit.SECONDS.toNanos(seconds);
+            List<Thread> senders = new ArrayList<>();
+            for (int flow = 1; flow <= scenario.bulk; flow++) {
+                int bulkFlow = flow;
+                Thread sender = new Thread(() -> sendBulk(scenario, pipe, bulkFlow), "Bulk " + flow);
+                sender.start();
+                senders.add(sender);
+            }
+            sendProbes(scenario, pipe);
+            scenario.stopped = true;
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            // probes still queued when the window closed count as lost
+            Thread.sleep(200);
+            core.close();
+            pipe.close();
+            engine.join(5000);
+        }
+    }
+
+    private void sendBulk(Scenario scenario, PacketPipe pipe, int flow) {
+        byte[] template = template(flow, BULK_SIZE);
+        try {
+            for (int sequence = 0; !scenario.stopped; sequence++) {
+                byte[] packet = stamp(template, flow, sequence, System.nanoTime());
+                while (!pipe.offer(packet, 100, TimeUnit.MILLISECONDS)) {
+                    if (scenario.stopped) {
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void sendProbes(Scenario scenario, PacketPipe pipe) throws InterruptedException {
+        byte[] template = template(PROBE_FLOW, PROBE_SIZE);
+        long interval = TimeUnit.MICROSECONDS.toNanos(probeIntervalMicros);
+        long next = System.nanoTime();
+        for (int sequence = 0; ; sequence++) {
+            next += interval;
+            long now = System.nanoTime();
+            if (next > now) {
+                LockSupport.parkNanos(next - now);
+                now = System.nanoTime();
+            }
+            if (now >= scenario.measureEnd) {
+                return;
+            }
+            if (pipe.offer(stamp(template, PROBE_FLOW, sequence, now), 1, TimeUnit.SECONDS) && now >= scenario.measureStart) {
+                scenario.probesSent.increment();
+            }
+        }
+    }
+
+    private void report(List<Scenario> scenarios) {
+        PrintWriter out = new PrintWriter(System.out, true);
+        out.printf(Locale.ROOT, "link=%d Mbit/s bulk-flows=%d probe=%dB every %dus send-buffer=%d scheduler-packets=%d queue=%d seconds=%d%n",
+                linkMbit, bulkFlows, PROBE_SIZE, probeIntervalMicros, sendBuffer, schedulerPackets, queue, seconds);
+        out.printf(Locale.ROOT, "%-10s %5s %10s %10s %10s %10s %8s %12s %10s%n", "uplink", "bulk", "p50 ms", "p90 ms", "p99 ms", "max ms",
+                "lost", "bulk Mbit/s", "dropped");
+        for (Scenario scenario : scenarios) {
+            int count = Math.min(scenario.sampleCount.get(), scenario.samples.length);
+            long[] sorted = Arrays.copyOf(scenario.samples, count);
+            Arrays.sort(sorted);
+            out.printf(Locale.ROOT, "%-10s %5d %10.2f %10.2f %10.2f %10.2f %8d %12.1f %10d%n", scenario.scheduled ? "scheduled" : "fifo",
+                    scenario.bulk, percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.9) / 1e6, percentile(sorted, 0.99) / 1e6,
+                    count == 0 ? 0 : sorted[count - 1] / 1e6, Math.max(0, scenario.probesSent.sum() - count),
+                    scenario.bulkBytes.sum() * 8 / (double) seconds / 1e6, scenario.metrics.uplinkQueueDropped.sum());
+        }
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}